@@ -0,0 +1,331 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package analyzer;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import ingest.Json;
+import ingest.Rollups;
+
+/**
+ * Analyzes strace captures offline, the same way droopytrace does live.
+ * <p>
+ * The capture is split in chunks that are parsed in parallel, and then the
+ * chunks are fed in order to a {@link RequestTracker}.  At most a couple of
+ * chunks per thread are parsed ahead of the tracker, to bound the memory
+ * used.  The reports are printed on stdout, either one JSON object per line
+ * or as a {@code _bulk} request for ElasticSearch (or the ingest gateway),
+ * with the same documents droopytrace uploads.  The reports always include
+ * the {@link Rollups} the viewer uses.
+ */
+public final class Analyzer {
+
+  /** Same as {@code TRACE_SUMMARY_FIELDS} in droopytrace.  */
+  private static final String[] SUMMARY_FIELDS = {
+    "method", "resource", "request_ts", "end_to_end", "num_syscalls",
+    "slowest_syscall", "apache_closed", "prev_slowest", "prev_connect",
+  };
+
+  private Analyzer() {
+    // Not instantiable.
+  }
+
+  private static void usage(final String msg) {
+    if (msg != null) {
+      System.err.println("error: " + msg);
+    }
+    System.err.println("Usage: analyzer [options] <capture|->\n"
+      + "Analyzes a capture made with `strace -tttT' on a single process.\n"
+      + "Options:\n"
+      + "  --bulk                   Print a _bulk request for ElasticSearch\n"
+      + "                           instead of one JSON report per line.\n"
+      + "  --index=NAME             Index for --bulk (default: droopy).\n"
+      + "  --grep=RE                Only report requests for HTTP resources\n"
+      + "                           that match this regexp.\n"
+      + "  --min-latency=MSEC       Only report requests that took longer.\n"
+      + "  --max-requests=NUM       Stop after this many requests.\n"
+      + "  --show-options-requests  Also report OPTIONS requests.\n"
+      + "  --show-backend-requests  Report the calls made to each backend.\n"
+      + "  --print-all-syscalls     Report all the syscalls of each request.\n"
+      + "  --gearman                The capture is of a gearman worker.\n"
+      + "  --resolve                Resolve the IP addresses of backends.\n"
+      + "  --threads=N              Parser threads (default: # of CPUs).");
+    System.exit(2);
+  }
+
+  /** Parses "--name=value" and "--flag" arguments, and the capture.  */
+  private static HashMap<String, String> parseArgs(final String[] args) {
+    final HashMap<String, String> opts = new HashMap<String, String>();
+    for (final String arg : args) {
+      if (!arg.startsWith("--")) {
+        if (opts.put("", arg) != null) {
+          usage("more than one capture given");
+        }
+        continue;
+      }
+      final int eq = arg.indexOf('=');
+      if (eq < 0) {
+        opts.put(arg.substring(2), "");
+      } else {
+        opts.put(arg.substring(2, eq), arg.substring(eq + 1));
+      }
+    }
+    return opts;
+  }
+
+  private static boolean getFlag(final HashMap<String, String> opts,
+                                 final String name) {
+    final String value = opts.remove(name);
+    if (value != null && !value.isEmpty()) {
+      usage("--" + name + " doesn't take a value");
+    }
+    return value != null;
+  }
+
+  private static long getLong(final HashMap<String, String> opts,
+                              final String name, final long dflt) {
+    final String value = opts.remove(name);
+    if (value == null) {
+      return dflt;
+    }
+    long n = 0;
+    try {
+      n = Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      usage("--" + name + " must be a number: " + value);
+    }
+    if (n <= 0) {
+      usage("--" + name + " must be strictly positive: " + value);
+    }
+    return n;
+  }
+
+  public static void main(final String[] args) throws Exception {
+    final HashMap<String, String> opts = parseArgs(args);
+    final String path = opts.remove("");
+    if (path == null) {
+      usage("no capture given");
+    }
+    final Options options = new Options();
+    final String grep = opts.remove("grep");
+    if (grep != null) {
+      try {
+        options.grep = Pattern.compile(grep);
+      } catch (PatternSyntaxException e) {
+        usage("invalid --grep: " + e.getMessage());
+      }
+    }
+    options.min_lat = getLong(opts, "min-latency", 0) * 1000;
+    options.max_reqs = (int) getLong(opts, "max-requests", 0);
+    options.show_options = getFlag(opts, "show-options-requests");
+    options.show_backend_reqs = getFlag(opts, "show-backend-requests");
+    options.print_all = getFlag(opts, "print-all-syscalls");
+    options.gearman = getFlag(opts, "gearman");
+    options.resolve = getFlag(opts, "resolve");
+    final boolean bulk = getFlag(opts, "bulk");
+    String index = opts.remove("index");
+    if (index == null) {
+      index = "droopy";
+    }
+    final int threads = (int) getLong(opts, "threads",
+                                      Runtime.getRuntime().availableProcessors());
+    if (!opts.isEmpty()) {
+      usage("unknown options: " + opts.keySet());
+    }
+
+    final Writer out = new BufferedWriter(new OutputStreamWriter(System.out,
+                                                                 Json.UTF8));
+    final RequestTracker.Sink sink = bulk ? new BulkSink(out, index)
+                                          : new JsonSink(out);
+    final Capture capture = new Capture(path);
+    try {
+      analyze(capture, new RequestTracker(options, sink), threads);
+    } finally {
+      capture.close();
+      out.flush();
+    }
+  }
+
+  /**
+   * Parses a capture in parallel and feeds it to a tracker in order.
+   * @param threads Number of threads to use to parse the capture.
+   */
+  static void analyze(final Capture capture, final RequestTracker tracker,
+                      final int threads) throws IOException {
+    final ExecutorService parsers = Executors.newFixedThreadPool(threads,
+      new ThreadFactory() {
+        public Thread newThread(final Runnable r) {
+          final Thread t = new Thread(r, "Parser");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    final ArrayDeque<Future<ParsedChunk>> pending =
+      new ArrayDeque<Future<ParsedChunk>>();
+    final int window = threads * 2;
+    try {
+      while (!tracker.done()) {
+        ByteBuffer buf;
+        while (pending.size() < window && (buf = capture.next()) != null) {
+          final ByteBuffer chunk = buf;
+          pending.add(parsers.submit(new Callable<ParsedChunk>() {
+            public ParsedChunk call() {
+              return ParsedChunk.parse(chunk);
+            }
+          }));
+        }
+        final Future<ParsedChunk> next = pending.poll();
+        if (next == null) {
+          break;  // We're done with the capture.
+        }
+        tracker.process(next.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while parsing", e);
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException("Failed to parse a chunk", cause);
+    } finally {
+      parsers.shutdownNow();
+    }
+  }
+
+  /** Prints one report per line.  */
+  private static final class JsonSink implements RequestTracker.Sink {
+
+    private final Writer out;
+    private final StringBuilder buf = new StringBuilder();
+
+    JsonSink(final Writer out) {
+      this.out = out;
+    }
+
+    public void report(final Map<String, Object> trace) {
+      Rollups.add(trace, trace);
+      buf.setLength(0);
+      Json.append(buf, trace);
+      buf.append('\n');
+      write(out, buf);
+    }
+
+  }
+
+  /** Prints the reports as a {@code _bulk} request, like droopytrace.  */
+  private static final class BulkSink implements RequestTracker.Sink {
+
+    private final Writer out;
+    private final String index;
+    private final StringBuilder buf = new StringBuilder();
+
+    BulkSink(final Writer out, final String index) {
+      this.out = out;
+      this.index = index;
+    }
+
+    public void report(final Map<String, Object> trace) {
+      final String id = traceId();
+      final LinkedHashMap<String, Object> summary = new LinkedHashMap<String, Object>();
+      for (final String field : SUMMARY_FIELDS) {
+        if (trace.containsKey(field)) {
+          summary.put(field, trace.remove(field));
+        }
+      }
+      final Object fulltrace = trace.remove("syscalls");
+      Rollups.add(summary, trace);
+      buf.setLength(0);
+      append("summary", id, summary);
+      append("trace", id, trace);
+      if (fulltrace != null) {
+        final LinkedHashMap<String, Object> syscalls = new LinkedHashMap<String, Object>(1);
+        syscalls.put("syscalls", fulltrace);
+        append("fulltrace", id, syscalls);
+      }
+      write(out, buf);
+    }
+
+    private void append(final String type, final String id,
+                        final Map<String, Object> source) {
+      final LinkedHashMap<String, Object> action = new LinkedHashMap<String, Object>(3);
+      action.put("_index", index);
+      action.put("_type", type);
+      action.put("_id", id);
+      final LinkedHashMap<String, Object> index = new LinkedHashMap<String, Object>(1);
+      index.put("index", action);
+      Json.append(buf, index);
+      buf.append('\n');
+      Json.append(buf, source);
+      buf.append('\n');
+    }
+
+  }
+
+  private static void write(final Writer out, final CharSequence buf) {
+    try {
+      out.append(buf);
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to write a report", e);
+    }
+  }
+
+  private static final char[] URLSAFE_BASE64 =
+    "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+  /**
+   * Returns a random trace ID.
+   * Same as droopytrace: a UUID in URL-safe base64 without padding.
+   */
+  static String traceId() {
+    final UUID uuid = UUID.randomUUID();
+    final long hi = uuid.getMostSignificantBits();
+    final long lo = uuid.getLeastSignificantBits();
+    final char[] id = new char[22];
+    int bits = 0;     // Number of bits available in `acc'.
+    int acc = 0;
+    int n = 0;
+    for (int i = 0; i < 16; i++) {
+      final long word = i < 8 ? hi : lo;
+      acc = (acc << 8) | (int) ((word >>> (56 - 8 * (i & 7))) & 0xFF);
+      bits += 8;
+      while (bits >= 6) {
+        bits -= 6;
+        id[n++] = URLSAFE_BASE64[(acc >>> bits) & 0x3F];
+      }
+    }
+    id[n++] = URLSAFE_BASE64[(acc << (6 - bits)) & 0x3F];  // 2 bits left.
+    return new String(id, 0, n);
+  }
+
+}
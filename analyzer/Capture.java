@@ -0,0 +1,137 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package analyzer;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Splits a strace capture ({@code strace -tttT}) in chunks of whole lines.
+ * <p>
+ * Files are memory-mapped one chunk at a time, so a capture can be much
+ * larger than the heap.  Captures read from a pipe are copied into heap
+ * buffers instead.  Chunks are independent of each other and can be parsed
+ * in parallel.  This class isn't thread-safe.
+ */
+final class Capture implements Closeable {
+
+  /** Approximate size of a chunk.  */
+  static final int CHUNK_SIZE = 16 << 20;
+
+  /** Set if we're reading from a file we can map.  */
+  private final FileChannel file;
+  /** Set if we're reading from a pipe.  */
+  private final ReadableByteChannel pipe;
+  /** Where the next chunk starts in the file.  */
+  private long position;
+  /** Partial line left over at the end of the last chunk read from the pipe. */
+  private ByteBuffer leftover;
+
+  /**
+   * Opens a capture.
+   * @param path The path to the capture, or "-" to read from stdin.
+   */
+  Capture(final String path) throws IOException {
+    if (path.equals("-")) {
+      file = null;
+      pipe = Channels.newChannel(System.in);
+    } else {
+      file = new FileInputStream(path).getChannel();
+      pipe = null;
+    }
+  }
+
+  /**
+   * Returns the next chunk.
+   * The chunk starts at position 0 and its limit is right after the last
+   * newline in it (or at the end of the capture).
+   * @return The next chunk, or {@code null} once the capture is exhausted.
+   */
+  ByteBuffer next() throws IOException {
+    return file != null ? map() : read();
+  }
+
+  private ByteBuffer map() throws IOException {
+    final long size = file.size();
+    if (position >= size) {
+      return null;
+    }
+    long length = Math.min(CHUNK_SIZE, size - position);
+    while (true) {
+      final ByteBuffer buf = file.map(FileChannel.MapMode.READ_ONLY,
+                                      position, length);
+      final int end = position + length < size ? afterLastNewline(buf) : buf.limit();
+      if (end > 0) {
+        buf.limit(end);
+        position += end;
+        return buf;
+      }
+      // A single line longer than the chunk, unlikely but let's map more.
+      length = Math.min(length * 2, size - position);
+    }
+  }
+
+  private ByteBuffer read() throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(CHUNK_SIZE);
+    if (leftover != null) {
+      buf.put(leftover);
+      leftover = null;
+    }
+    while (true) {
+      while (buf.hasRemaining() && pipe.read(buf) >= 0) {
+        // Keep reading until the buffer is full or we reach EOF.
+      }
+      buf.flip();
+      if (buf.limit() < buf.capacity()) {  // EOF.
+        return buf.limit() > 0 ? buf : null;
+      }
+      final int end = afterLastNewline(buf);
+      if (end > 0) {
+        final ByteBuffer rest = buf.duplicate();
+        rest.position(end);
+        leftover = ByteBuffer.allocate(rest.remaining());
+        leftover.put(rest);
+        leftover.flip();
+        buf.limit(end);
+        return buf;
+      }
+      // A single line longer than the chunk, grow the buffer.
+      final ByteBuffer bigger = ByteBuffer.allocate(buf.capacity() * 2);
+      bigger.put(buf);
+      buf = bigger;
+    }
+  }
+
+  /** Returns the offset after the last newline, or 0 if there's none.  */
+  private static int afterLastNewline(final ByteBuffer buf) {
+    int i = buf.limit();
+    while (i > 0 && buf.get(i - 1) != '\n') {
+      i--;
+    }
+    return i;
+  }
+
+  public void close() throws IOException {
+    if (file != null) {
+      file.close();
+    } else {
+      pipe.close();
+    }
+  }
+
+}
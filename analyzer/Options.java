@@ -0,0 +1,44 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package analyzer;
+
+import java.util.regex.Pattern;
+
+/**
+ * Options of the analyzer.
+ * These have the same meaning as droopytrace's options of the same name.
+ */
+final class Options {
+
+  /** Only report requests whose resource matches this.  */
+  Pattern grep;
+  /** Only report requests that took at least this many microseconds.  */
+  long min_lat;
+  /** Stop after this many requests (0 means no limit).  */
+  int max_reqs;
+  /** Also report OPTIONS requests.  */
+  boolean show_options;
+  /** Report the calls made to each backend.  */
+  boolean show_backend_reqs;
+  /** Report all the lines of each request.  */
+  boolean print_all;
+  /** Slice the requests of a gearman worker instead of Apache.  */
+  boolean gearman;
+  /**
+   * Resolve the IP addresses of the peers to their host names.
+   * droopytrace always does this, but captures are often analyzed
+   * somewhere else than where they were taken, and it's slow.
+   */
+  boolean resolve;
+
+}
@@ -0,0 +1,289 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package analyzer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A chunk of a capture, with all its lines parsed into columns.
+ * <p>
+ * Line {@code i} of the chunk is described by the {@code i}-th element of
+ * each array.  Chunks are parsed independently of each other, in parallel,
+ * and then fed in order to the {@link RequestTracker}.  Strings are only
+ * extracted from the underlying buffer when the tracker needs them.
+ * <p>
+ * All times are in microseconds.
+ */
+final class ParsedChunk {
+
+  /** Value of {@link #timestamp} when the line wasn't fully parsed.  */
+  static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+  /** Value of {@link #name} when the line couldn't be parsed.  */
+  static final int INVALID = -1;
+
+  /** strace escapes non-printable characters, but just in case...  */
+  static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+  /** Lines start with a fixed-size timestamp followed by a space.  */
+  static final int TIMESTAMP_LENGTH = 17;
+
+  /** Where the name of the syscall starts in a line.  */
+  static final int NAME_START = TIMESTAMP_LENGTH + 1;
+
+  private final ByteBuffer buf;
+
+  /** Number of lines in this chunk.  */
+  int size;
+  /** Offset in the buffer where each line starts.  */
+  int[] start;
+  /** Length of each line, without the newline.  */
+  int[] length;
+  /** ID of the syscall (see {@link Syscalls}), or {@link #INVALID}.  */
+  int[] name;
+  /**
+   * When the syscall started, or {@link #NO_TIMESTAMP} if we didn't parse
+   * the line entirely because it's not for a syscall we track.
+   */
+  long[] timestamp;
+  /** How long the syscall took.  */
+  long[] duration;
+  /** Return value of the syscall, only valid if there's a timestamp.  */
+  long[] retval;
+  /**
+   * Offset in the line where the " = " before the return value is.
+   * The "call" is what's between the timestamp and this offset.
+   */
+  int[] call_end;
+
+  private ParsedChunk(final ByteBuffer buf, final int capacity) {
+    this.buf = buf;
+    start = new int[capacity];
+    length = new int[capacity];
+    name = new int[capacity];
+    timestamp = new long[capacity];
+    duration = new long[capacity];
+    retval = new long[capacity];
+    call_end = new int[capacity];
+  }
+
+  /**
+   * Parses all the lines in the given buffer.
+   * @param buf A buffer that contains whole lines only.
+   */
+  static ParsedChunk parse(final ByteBuffer buf) {
+    final int limit = buf.limit();
+    // Estimate the number of lines assuming ~100 bytes per line.
+    final ParsedChunk chunk = new ParsedChunk(buf, Math.max(16, limit / 100));
+    int pos = 0;
+    while (pos < limit) {
+      int eol = pos;
+      while (eol < limit && buf.get(eol) != '\n') {
+        eol++;
+      }
+      if (eol > pos) {  // Skip empty lines.
+        chunk.add(pos, eol - pos);
+      }
+      pos = eol + 1;
+    }
+    return chunk;
+  }
+
+  /** Adds and parses the line at the given offset.  */
+  private void add(final int offset, final int len) {
+    if (size == start.length) {
+      final int n = size * 2;
+      start = Arrays.copyOf(start, n);
+      length = Arrays.copyOf(length, n);
+      name = Arrays.copyOf(name, n);
+      timestamp = Arrays.copyOf(timestamp, n);
+      duration = Arrays.copyOf(duration, n);
+      retval = Arrays.copyOf(retval, n);
+      call_end = Arrays.copyOf(call_end, n);
+    }
+    final int i = size++;
+    start[i] = offset;
+    length[i] = len;
+    if (!parseLine(i, offset, offset + len)) {
+      name[i] = INVALID;
+    }
+  }
+
+  /** Returned by the number parsers on malformed input.  */
+  private static final long BAD_NUMBER = Long.MIN_VALUE;
+
+  /**
+   * Parses a line returned by strace.
+   * A line looks like this: {@code 1299473528.478145 close(3) = 0 <0.000009>}
+   * The same lines as {@code parse_call} in droopytrace are accepted, but
+   * this works directly on the bytes of the buffer and never allocates.
+   * If the syscall isn't one we track and it was fast, we don't bother
+   * parsing its timestamp and return value.
+   * @param i Index of the line in this chunk.
+   * @param offset Offset of the first byte of the line in the buffer.
+   * @param end Offset of the end of the line (the newline, if any).
+   * @return {@code false} if the line isn't in the expected format.
+   */
+  private boolean parseLine(final int i, final int offset, final int end) {
+    final ByteBuffer buf = this.buf;
+    final int len = end - offset;
+    if (len < NAME_START + 12 || buf.get(offset + TIMESTAMP_LENGTH) != ' ') {
+      return false;
+    }
+    int paren = offset + NAME_START;
+    while (paren < end && buf.get(paren) != '(') {
+      paren++;
+    }
+    // Scan backwards for the `<' of the duration, then for the ` = '.
+    int lt = end - 5;
+    while (lt >= offset && buf.get(lt) != '<') {
+      lt--;
+    }
+    int equal = Math.min(lt, end - 8) - 3;
+    while (equal >= offset + NAME_START
+           && (buf.get(equal) != ' ' || buf.get(equal + 1) != '='
+               || buf.get(equal + 2) != ' ')) {
+      equal--;
+    }
+    if (paren == end || lt < offset || equal < offset + NAME_START) {
+      return false;
+    }
+    final long micros = parseMicros(buf, lt + 1, end - 1);
+    if (micros == BAD_NUMBER) {
+      return false;
+    }
+    final int id = Syscalls.id(buf, offset + NAME_START, paren);
+    name[i] = id;
+    duration[i] = micros;
+    call_end[i] = equal - offset;
+    if (!Syscalls.is(id, Syscalls.FLAG_TRACK) && micros < 1000) {
+      timestamp[i] = NO_TIMESTAMP;
+      return true;
+    }
+    final long ts = parseMicros(buf, offset, offset + TIMESTAMP_LENGTH);
+    int retv_end = equal + 3;
+    while (retv_end < end && buf.get(retv_end) != ' ') {
+      retv_end++;
+    }
+    final long retv = parseInt(buf, equal + 3, retv_end);
+    if (ts == BAD_NUMBER || retv == BAD_NUMBER) {
+      return false;
+    }
+    timestamp[i] = ts;
+    retval[i] = retv;
+    return true;
+  }
+
+  /**
+   * Parses a number of seconds into microseconds.
+   * Digits past the 6th decimal are ignored.
+   * @return The number of microseconds, or {@link #BAD_NUMBER}.
+   */
+  static long parseMicros(final ByteBuffer buf, int pos, final int end) {
+    long n = 0;
+    int decimals = -1;  // Number of digits after the `.', -1 if none yet.
+    if (pos == end) {
+      return BAD_NUMBER;
+    }
+    for (; pos < end; pos++) {
+      final int c = buf.get(pos);
+      if (c == '.' && decimals < 0) {
+        decimals = 0;
+      } else if (c < '0' || c > '9') {
+        return BAD_NUMBER;
+      } else if (decimals < 6) {
+        n = n * 10 + (c - '0');
+        if (decimals >= 0) {
+          decimals++;
+        }
+      }
+    }
+    for (decimals = Math.max(decimals, 0); decimals < 6; decimals++) {
+      n *= 10;
+    }
+    return n;
+  }
+
+  /**
+   * Parses an integer the way {@link Long#decode} does.
+   * Return values are usually in decimal, but pointers are in hexadecimal.
+   * @return The integer, or {@link #BAD_NUMBER}.
+   */
+  static long parseInt(final ByteBuffer buf, int pos, final int end) {
+    final boolean negative = pos < end && buf.get(pos) == '-';
+    if (negative) {
+      pos++;
+    }
+    int radix = 10;
+    if (end - pos > 2 && buf.get(pos) == '0'
+        && (buf.get(pos + 1) == 'x' || buf.get(pos + 1) == 'X')) {
+      radix = 16;
+      pos += 2;
+    } else if (end - pos > 1 && buf.get(pos) == '0') {
+      radix = 8;
+      pos++;
+    }
+    if (pos == end) {
+      return BAD_NUMBER;
+    }
+    long n = 0;
+    for (; pos < end; pos++) {
+      final int digit = Character.digit(buf.get(pos), radix);
+      if (digit < 0) {
+        return BAD_NUMBER;
+      }
+      n = n * radix + digit;
+    }
+    return negative ? -n : n;
+  }
+
+  /** Returns the text of the given line.  */
+  String line(final int i) {
+    return string(start[i], length[i]);
+  }
+
+  /**
+   * Returns the call of the given line.
+   * That's the line without the timestamp and the return value, e.g.
+   * {@code close(3)}.
+   */
+  String call(final int i) {
+    return string(start[i] + NAME_START, call_end[i] - NAME_START);
+  }
+
+  /** Returns whether the call of the given line starts with this prefix. */
+  boolean callStartsWith(final int i, final String prefix) {
+    final int n = prefix.length();
+    if (call_end[i] - NAME_START < n) {
+      return false;
+    }
+    final int offset = start[i] + NAME_START;
+    for (int j = 0; j < n; j++) {
+      if (buf.get(offset + j) != prefix.charAt(j)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private String string(final int offset, final int len) {
+    final byte[] bytes = new byte[len];
+    final ByteBuffer dup = buf.duplicate();
+    dup.position(offset);
+    dup.get(bytes);
+    return new String(bytes, LATIN1);
+  }
+
+}
@@ -0,0 +1,49 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package analyzer;
+
+/**
+ * A remote end we talk to, e.g. a backend.
+ * <p>
+ * Port numbers less than or equal to 0 mean this isn't a TCP peer.  When
+ * we don't know who's on the other end of a socket, the host is a guess
+ * in parentheses, and the port is minus the file descriptor number, so that
+ * each socket is counted as a different peer.
+ */
+final class Peer {
+
+  final String host;
+  final int port;
+
+  Peer(final String host, final int port) {
+    this.host = host;
+    this.port = port;
+  }
+
+  public boolean equals(final Object other) {
+    if (!(other instanceof Peer)) {
+      return false;
+    }
+    final Peer peer = (Peer) other;
+    return port == peer.port && host.equals(peer.host);
+  }
+
+  public int hashCode() {
+    return host.hashCode() * 31 + port;
+  }
+
+  public String toString() {
+    return host + ':' + port;
+  }
+
+}
@@ -0,0 +1,627 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package analyzer;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Slices the syscalls of a process into requests and reports each of them.
+ * <p>
+ * This is a port of {@code straceprof} in droopytrace, and produces the
+ * same JSON reports (which the viewer reads with {@code Summary} and
+ * {@code Trace}).  Only the JSON reports are produced, not the text ones.
+ * Roughly, a request goes like this: we accept a connection from the client,
+ * read the request from it, interact with backends, write the response and
+ * then either read the next request or close the connection.  A request is
+ * reported when we start reading the next one on the same connection or on
+ * the next connection we accept.
+ * <p>
+ * Syscalls must be fed in order, this class isn't thread-safe.
+ */
+final class RequestTracker {
+
+  /** Receives the reports.  */
+  interface Sink {
+    /** Called with the JSON report of each request.  */
+    void report(Map<String, Object> trace);
+  }
+
+  private static final HashSet<String> VALID_METHODS =
+    new HashSet<String>(Arrays.asList("GET", "POST", "HEAD", "OPTIONS"));
+
+  /** Maps a port number to the name of the service.  */
+  private static final HashMap<Integer, String> PORT2SERVICE =
+    new HashMap<Integer, String>();
+  static {
+    PORT2SERVICE.put(25, "smtp");
+    PORT2SERVICE.put(53, "dns");
+    PORT2SERVICE.put(80, "http");
+    PORT2SERVICE.put(443, "https");
+    PORT2SERVICE.put(3306, "mysql");
+    PORT2SERVICE.put(6379, "redis");
+    PORT2SERVICE.put(7003, "gearmand");
+    PORT2SERVICE.put(9090, "thrift_hbase");
+    PORT2SERVICE.put(9200, "esearch");
+  }
+
+  private static final int GEARMAND_PORT = 7003;
+
+  /** Value of a file descriptor we don't know.  */
+  private static final int NO_FD = Integer.MIN_VALUE;
+
+  /** A syscall we remember: (duration, name, retval, line, timestamp).  */
+  private static final class Call {
+    final long duration;
+    final String name;
+    final long retval;
+    final String call;
+    final long timestamp;
+
+    Call(final long duration, final String name, final long retval,
+         final String call, final long timestamp) {
+      this.duration = duration;
+      this.name = name;
+      this.retval = retval;
+      this.call = call;
+      this.timestamp = timestamp;
+    }
+  }
+
+  /** A connection we saw: (timestamp, peer, retval, line).  */
+  private static final class Connect {
+    final long timestamp;  // 0 if we didn't see the connect.
+    final Peer peer;
+    final long retval;
+    final String call;
+
+    Connect(final long timestamp, final Peer peer, final long retval,
+            final String call) {
+      this.timestamp = timestamp;
+      this.peer = peer;
+      this.retval = retval;
+      this.call = call;
+    }
+  }
+
+  private final Options options;
+  private final Sink sink;
+  /** Number of requests reported so far.  */
+  private int nreqs;
+  /** Set once we've reported {@code max_reqs} requests.  */
+  private boolean done;
+  /** Cache of the host names we resolved.  */
+  private final HashMap<String, String> fqdns = new HashMap<String, String>();
+
+  // All the timestamps and durations are in microseconds.
+  private int client_fd = NO_FD;      // FD of the client socket.
+  private String read_prefix;         // "read(<client_fd>,"
+  private String writev_prefix;       // "writev(<client_fd>,"
+  private String write_prefix;        // "write(<client_fd>"
+  private Boolean closed_cli;         // Have we closed the client's socket?
+  private String request;             // Raw HTTP request (maybe truncated).
+  private String method;              // HTTP method of the request.
+  private String resource;            // HTTP resource requested.
+  private long first_read_ts;         // Time of the 1st read from client_fd.
+  private long cli_read_ts;           // Time of the last read of the request.
+  private long first_write_ts;        // Time of the 1st write of the response.
+  private long cli_write_ts;          // Time of the last write to client_fd.
+  private long end_to_end;
+  private int num_syscalls;           // Syscalls done for this request.
+  private int num_cli_read;           // Reads from client_fd.
+  private int num_cli_write;          // Writes to client_fd.
+  private long read_time;             // Time needed to read the request.
+  private long write_time;            // Time needed to write the response.
+  private long req_size;              // Bytes read from client_fd.
+  private long resp_size;             // Bytes written to client_fd.
+  /** Maps a syscall name to {cumulative time, number of calls}.  */
+  private final LinkedHashMap<String, long[]> syscalls_times =
+    new LinkedHashMap<String, long[]>();
+  private long slowest_syscall_time;
+  private String slowest_syscall_name;
+  private Long slowest_syscall_retv;  // null if we didn't parse it.
+  private String slowest_syscall_line;
+  private int slowest_fd = NO_FD;     // If known, FD of the slowest syscall.
+  private Call prev_slowest;          // Syscall that preceded the slowest one
+                                      // on the same FD.
+  private Connect prev_connect;       // connect() of the FD of prev_slowest.
+  /** Maps a FD to the most recent call on it.  */
+  private final HashMap<Integer, Call> known_fds = new HashMap<Integer, Call>();
+  /** Maps a FD to when it was connected, if we saw it.  */
+  private final HashMap<Integer, Connect> connected_fds =
+    new HashMap<Integer, Connect>();
+  /** Maps a peer to the calls made to it during the request.  */
+  private final LinkedHashMap<Peer, ArrayList<Call>> backend_reqs =
+    new LinkedHashMap<Peer, ArrayList<Call>>();
+  /** All the lines of this request, if {@code print_all}.  */
+  private ArrayList<String> calls = new ArrayList<String>();
+
+  RequestTracker(final Options options, final Sink sink) {
+    this.options = options;
+    this.sink = sink;
+  }
+
+  /** Returns whether we've reported as many requests as we were asked.  */
+  boolean done() {
+    return done;
+  }
+
+  /** Feeds all the syscalls of a chunk, in order.  */
+  void process(final ParsedChunk chunk) {
+    for (int i = 0; i < chunk.size && !done; i++) {
+      process(chunk, i);
+    }
+  }
+
+  private void setClientFd(final int fd) {
+    client_fd = fd;
+    read_prefix = "read(" + fd + ',';
+    writev_prefix = "writev(" + fd + ',';
+    write_prefix = "write(" + fd;
+  }
+
+  private void process(final ParsedChunk chunk, final int i) {
+    if (options.print_all) {
+      calls.add(chunk.line(i) + '\n');
+    }
+    final int id = chunk.name[i];
+    if (id == ParsedChunk.INVALID) {
+      return;
+    }
+    final long timestamp = chunk.timestamp[i];
+    final long duration = chunk.duration[i];
+    final long retval = chunk.retval[i];
+    final boolean track_fd = Syscalls.is(id, Syscalls.FLAG_FD);
+    int fd = NO_FD;
+
+    if (id == Syscalls.ACCEPT) {
+      setClientFd((int) retval);
+    } else if (options.gearman && id == Syscalls.CONNECT
+               && isGearmand(chunk.line(i))) {
+      fd = parseFd(chunk.call(i), id);
+      setClientFd(fd);
+    } else if (client_fd == NO_FD) {
+      return;  // We don't know who we're talking to, skip until we do.
+    } else {
+      if (track_fd) {
+        fd = parseFd(chunk.call(i), id);
+      }
+      // Don't count these for accept() itself.  We can hang in accept() for
+      // a while if this worker doesn't get any work to do.
+      num_syscalls++;
+      final String name = Syscalls.name(id);
+      long[] times = syscalls_times.get(name);
+      if (times == null) {
+        times = new long[2];
+        syscalls_times.put(name, times);
+      }
+      times[0] += duration;
+      times[1]++;
+      // Measure the slowest system call that's in the serving path.
+      if (request != null && !request.isEmpty()
+          && duration > slowest_syscall_time) {
+        slowest_syscall_time = duration;
+        slowest_syscall_name = name;
+        slowest_syscall_retv = timestamp == ParsedChunk.NO_TIMESTAMP ? null : retval;
+        slowest_syscall_line = chunk.call(i);
+        if (track_fd) {
+          slowest_fd = fd;
+          prev_slowest = known_fds.get(fd);
+          prev_connect = connected_fds.get(fd);
+        } else {
+          slowest_fd = NO_FD;
+          prev_slowest = null;
+          prev_connect = null;
+        }
+      }
+    }
+
+    if (timestamp == ParsedChunk.NO_TIMESTAMP) {
+      return;
+    }
+
+    // If we successfully read something from the client socket...
+    if (retval > 0 && id == Syscalls.READ && chunk.callStartsWith(i, read_prefix)) {
+      if (cli_write_ts != 0) {
+        end_to_end = cli_write_ts - cli_read_ts;
+      }
+      if (cli_read_ts != 0 && cli_write_ts != 0
+          && (options.show_options || !"OPTIONS".equals(method))
+          && (options.grep == null || options.grep.matcher(resource).find())
+          && (options.min_lat == 0 || end_to_end >= options.min_lat)) {
+        read_time += cli_read_ts - first_read_ts;
+        write_time += cli_write_ts - first_write_ts;
+        sink.report(report());
+        nreqs++;
+        if (options.max_reqs > 0 && nreqs >= options.max_reqs) {
+          done = true;
+          return;
+        }
+      }
+      if (cli_write_ts != 0) {
+        reset();
+      }
+      if (request == null) {  // First read we're doing for this request?
+        if (!calls.isEmpty()) {
+          final String read = calls.get(calls.size() - 1);  // Keep the read.
+          calls = new ArrayList<String>();
+          calls.add(read);
+        }
+        first_read_ts = timestamp;
+        if (options.gearman) {
+          request = resource = chunk.call(i);
+          method = "(gearman)";
+        } else {
+          parseHttpRequest(chunk.line(i));
+        }
+      }  // else: It took us more than one read to get the full request.
+      cli_read_ts = timestamp;
+      num_cli_read++;
+      read_time += duration;
+      req_size += retval;
+    }
+
+    // If we write to the client socket, we're responding to the query.
+    if (client_fd != NO_FD
+        && ((id == Syscalls.WRITEV && chunk.callStartsWith(i, writev_prefix))
+            || (id == Syscalls.WRITE && chunk.callStartsWith(i, write_prefix)))) {
+      if (first_write_ts == 0) {
+        first_write_ts = timestamp;
+      }
+      cli_write_ts = timestamp;
+      num_cli_write++;
+      write_time += duration;
+      resp_size += retval;
+    } else if (retval == 0 && id == Syscalls.CLOSE) {
+      // A FD was closed, forget what we track about it.
+      final String call = chunk.call(i);
+      final int closed;
+      try {
+        closed = Integer.parseInt(call.substring(6, call.indexOf(')', 7)));
+      } catch (RuntimeException e) {
+        return;
+      }
+      if (closed == client_fd) {
+        closed_cli = true;
+        client_fd = NO_FD;
+      } else {
+        known_fds.remove(closed);
+        final Connect connect = connected_fds.remove(closed);
+        if (connect != null && options.show_backend_reqs) {
+          addBackendCall(connect.peer, new Call(duration, Syscalls.name(id),
+                                                retval, call, timestamp));
+        }
+      }
+    } else if (track_fd && fd != NO_FD) {
+      // Remember the last read / write on a FD.
+      final String name = Syscalls.name(id);
+      final String call = chunk.call(i);
+      known_fds.put(fd, new Call(duration, name, retval, call, 0));
+      Peer peer = null;
+      Connect connect;
+      if (id == Syscalls.CONNECT  // Extract the remote address.
+          || (id == Syscalls.BIND && call.contains("sa_family=AF_NETLINK"))) {
+        peer = parseConnect(chunk.line(i));
+        if (peer != null) {
+          connected_fds.put(fd, new Connect(timestamp, peer, retval, call));
+        }
+      } else if ((connect = connected_fds.get(fd)) != null) {
+        peer = connect.peer;
+      } else if (Syscalls.is(id, Syscalls.FLAG_RPC)) {
+        // We use the negative value of the FD as the port number so that
+        // each FD will be counted as a different peer.
+        peer = new Peer(guessHostType(name, call), -fd);
+        connected_fds.put(fd, new Connect(0, peer, 0, "(pre-existing connection)"));
+      }
+      if (peer != null && options.show_backend_reqs) {
+        addBackendCall(peer, new Call(duration, name, retval, call, timestamp));
+      }
+    } else if (Syscalls.is(id, Syscalls.FLAG_UNSUPPORTED)) {
+      System.err.println("  Warning: unsupported system call: " + chunk.line(i));
+    }
+  }
+
+  private void addBackendCall(final Peer peer, final Call call) {
+    ArrayList<Call> calls = backend_reqs.get(peer);
+    if (calls == null) {
+      calls = new ArrayList<Call>();
+      backend_reqs.put(peer, calls);
+    }
+    calls.add(call);
+  }
+
+  /** Forgets everything about the request we just reported.  */
+  private void reset() {
+    closed_cli = false;
+    request = null;
+    num_syscalls = 0;
+    slowest_syscall_time = 0;
+    cli_read_ts = cli_write_ts = first_write_ts = 0;
+    num_cli_read = num_cli_write = 0;
+    read_time = write_time = 0;
+    syscalls_times.clear();
+    backend_reqs.clear();
+    req_size = resp_size = 0;
+    // Note: droopytrace doesn't reset the other details of the slowest
+    // syscall either, they get overwritten by the next slowest syscall.
+  }
+
+  /** Returns the JSON report of the current request.  */
+  private Map<String, Object> report() {
+    final LinkedHashMap<String, Object> data = new LinkedHashMap<String, Object>();
+    data.put("method", method);
+    data.put("request", request);
+    data.put("resource", resource);
+    data.put("request_ts", ms(first_read_ts));
+    data.put("req_size", req_size);
+    data.put("resp_size", resp_size);
+    data.put("num_cli_read", num_cli_read);
+    data.put("read_time", ms(read_time));
+    data.put("num_cli_write", num_cli_write);
+    data.put("write_time", ms(write_time));
+    data.put("end_to_end", ms(end_to_end));
+    data.put("num_syscalls", num_syscalls);
+    // droopytrace uses `retv or -4242', so 0 also becomes -4242.
+    final long retv = slowest_syscall_retv == null || slowest_syscall_retv == 0
+      ? -4242 : slowest_syscall_retv;
+    data.put("slowest_syscall", syscall(slowest_syscall_time, slowest_syscall_name,
+                                        retv, slowest_syscall_line));
+    data.put("apache_closed", closed_cli);
+
+    final ArrayList<Object> timings = new ArrayList<Object>(syscalls_times.size());
+    for (final Map.Entry<String, long[]> entry : syscalls_times.entrySet()) {
+      final LinkedHashMap<String, Object> timing = new LinkedHashMap<String, Object>(4);
+      timing.put("name", entry.getKey());
+      timing.put("time", ms(entry.getValue()[0]));
+      timing.put("count", entry.getValue()[1]);
+      timings.add(timing);
+    }
+    data.put("syscalls_times", timings);
+
+    if (prev_slowest != null) {
+      data.put("prev_slowest", syscall(prev_slowest.duration, prev_slowest.name,
+                                       prev_slowest.retval, prev_slowest.call));
+    }
+
+    if (!backend_reqs.isEmpty()) {
+      final ArrayList<Object> be_reqs = new ArrayList<Object>(backend_reqs.size());
+      for (final Map.Entry<Peer, ArrayList<Call>> entry : backend_reqs.entrySet()) {
+        final ArrayList<Object> transformed = new ArrayList<Object>(entry.getValue().size());
+        for (final Call call : entry.getValue()) {
+          final Map<String, Object> json =
+            syscall(call.duration, call.name, call.retval, call.call);
+          json.put("timestamp", ms(call.timestamp));
+          // Whether or not the syscall was in the fast path.
+          json.put("fast_path", call.timestamp < cli_write_ts);
+          transformed.add(json);
+        }
+        final LinkedHashMap<String, Object> be_req = new LinkedHashMap<String, Object>(2);
+        be_req.put("peer", prettyPeer(entry.getKey()));
+        be_req.put("calls", transformed);
+        be_reqs.add(be_req);
+      }
+      data.put("backend_reqs", be_reqs);
+    }
+
+    if (slowest_fd != NO_FD && slowest_fd == client_fd) {
+      final LinkedHashMap<String, Object> client = new LinkedHashMap<String, Object>(1);
+      client.put("client", true);
+      data.put("prev_connect", client);
+    } else if (prev_connect != null) {
+      final Peer peer = prev_connect.peer;
+      final LinkedHashMap<String, Object> connect = new LinkedHashMap<String, Object>(8);
+      connect.put("peer", peer.host + ':' + peer.port);
+      connect.put("host", fqdn(peer.host));
+      connect.put("type", hostType(peer));
+      connect.put("retv", prev_connect.retval);
+      connect.put("call", prev_connect.call);
+      connect.put("timestamp", ms(prev_connect.timestamp));
+      data.put("prev_connect", connect);
+    }
+
+    if (options.print_all) {
+      data.put("syscalls", calls);
+    }
+    return data;
+  }
+
+  private static Double ms(final long micros) {
+    return micros / 1000.0;
+  }
+
+  private static Map<String, Object> syscall(final long duration, final String name,
+                                             final long retv, final String call) {
+    final LinkedHashMap<String, Object> json = new LinkedHashMap<String, Object>(8);
+    json.put("duration", ms(duration));
+    json.put("name", name);
+    json.put("retv", retv);
+    json.put("call", call);
+    return json;
+  }
+
+  // ------- //
+  // Parsing //
+  // ------- //
+
+  /** Extracts the FD, which is the first argument of the call.  */
+  private static int parseFd(final String call, final int id) {
+    int i = 1;
+    if (id == Syscalls.POLL) {  // poll([{fd=117, events=...}], ...)
+      i += 5;  // Skip over "[{fd="
+    }
+    try {
+      final String name = Syscalls.name(id);
+      return Integer.parseInt(call.substring(i + name.length(),
+                                             call.indexOf(',', i)).trim());
+    } catch (RuntimeException e) {
+      return NO_FD;
+    }
+  }
+
+  /** Parses the HTTP request out of the first read from the client.  */
+  private void parseHttpRequest(final String line) {
+    try {
+      final int start = line.indexOf('"', 24) + 1;
+      final int end = line.lastIndexOf('"', line.length() - 10);
+      if (start == 0 || end < 0) {
+        throw new IllegalArgumentException("no quotes");
+      }
+      request = slice(line, start, end);
+      final String method = request.substring(0, request.indexOf(' ', 3));
+      if (!VALID_METHODS.contains(method)) {
+        System.err.println("Couldn't parse the HTTP request in " + line);
+        invalidRequest();
+        return;
+      }
+      this.method = method;
+      // The resource has to be on the 1st line, so up to the 1st \r\n
+      // (escaped by strace, so that's really a backslash and an `r'...).
+      final int m = method.length() + 1;
+      String resource = slice(request, m, request.indexOf("\\r\\n", m));
+      // If we have a query string, remove it.
+      int i = resource.indexOf('?', m);
+      if (i < 0) {  // If there's no query string, remove the " HTTP/1.x".
+        i = resource.lastIndexOf(' ');
+      }
+      if (i > 0) {
+        resource = resource.substring(0, i);
+      }
+      this.resource = resource;
+    } catch (RuntimeException e) {
+      System.err.println("Couldn't parse the HTTP request in " + line
+                         + ": " + e);
+      invalidRequest();
+    }
+  }
+
+  private void invalidRequest() {
+    request = "(invalid request)";
+    method = "(unknown method)";
+    resource = "(unknown resource)";
+  }
+
+  /** Same as Python's {@code s[start:end]}.  */
+  private static String slice(final String s, final int start, int end) {
+    if (end < 0) {
+      end += s.length();
+    }
+    end = Math.min(end, s.length());
+    return end <= start ? "" : s.substring(start, end);
+  }
+
+  /**
+   * Extracts the remote address out of a connect() syscall.
+   * @return The peer, or {@code null} if the line can't be parsed.
+   */
+  private static Peer parseConnect(final String line) {
+    final int open = line.indexOf('{', 26);
+    final int close = open < 0 ? -1 : line.indexOf('}', open + 1);
+    if (close < 0) {
+      return null;
+    }
+    final String addr = line.substring(open + 1, close);
+    if (addr.startsWith("sa_family=AF_INET")) {
+      try {
+        int i = addr.indexOf("sin_port=htons(") + 15;
+        final int port = Integer.parseInt(addr.substring(i, addr.indexOf(')', i + 1)));
+        i = addr.indexOf("sin_addr=inet_addr(\"") + 20;
+        final String host = addr.substring(i, addr.indexOf("\")", i + 1));
+        if (i >= 20) {
+          return new Peer(host, port);
+        }
+      } catch (RuntimeException e) {
+        // Fall through, e.g. AF_INET6 addresses.
+      }
+    }
+    return new Peer(addr, 0);
+  }
+
+  private static boolean isGearmand(final String line) {
+    final Peer peer = parseConnect(line);
+    return peer != null && peer.port == GEARMAND_PORT;
+  }
+
+  private static String guessHostType(final String syscall, final String call) {
+    if (syscall.equals("sendto")) {
+      if (call.contains("\"version\\r\\n\"")) {  // Memcache clients ask this.
+        return "(unknown-memcache)";
+      }
+      final int i = call.indexOf(',', syscall.length());
+      if (i >= 0 && (call.startsWith(", \"get ", i) || call.startsWith(", \"set ", i)
+                     || call.startsWith(", \"add ", i)
+                     || call.startsWith(", \"delete ", i))) {
+        return "(unknown-memcache)";
+      }
+    }
+    return "(uknown-host)";  // Sic, that's what droopytrace reports.
+  }
+
+  private static String hostType(final Peer peer) {
+    if (peer.port < 0) {
+      String host = peer.host;
+      if (host.startsWith("(")) {
+        host = host.substring(1);
+      }
+      if (host.endsWith(")")) {
+        host = host.substring(0, host.length() - 1);
+      }
+      return host.replace('-', '_');
+    }
+    String port = PORT2SERVICE.get(peer.port);
+    if (port == null) {
+      port = "port_" + peer.port;
+    }
+    if (peer.host.startsWith("10.")) {
+      return port;
+    } else if (peer.host.startsWith("127.")) {
+      return "localhost_" + port;
+    } else {  // Connection out to the intertubes.
+      return "external_" + port;
+    }
+  }
+
+  private String prettyPeer(final Peer peer) {
+    if (peer.port <= 0) {
+      return peer.host;
+    }
+    final String fqdn = fqdn(peer.host);
+    if (!fqdn.equals(peer.host)) {
+      return fqdn + ' ' + peer.host + ':' + peer.port;
+    }
+    return peer.host + ':' + peer.port;
+  }
+
+  /** Resolves the name of a host, if {@code resolve} is enabled.  */
+  private String fqdn(final String host) {
+    if (!options.resolve || host.startsWith("(")) {
+      return host;
+    }
+    String fqdn = fqdns.get(host);
+    if (fqdn == null) {
+      try {
+        fqdn = InetAddress.getByName(host).getCanonicalHostName();
+      } catch (UnknownHostException e) {
+        fqdn = host;
+      }
+      fqdns.put(host, fqdn);
+    }
+    return fqdn;
+  }
+
+}
@@ -0,0 +1,304 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package analyzer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The syscalls we care about, and the registry of syscall names.
+ * <p>
+ * Every syscall name is given a small integer ID so that parsed lines can
+ * be stored in primitive arrays.  IDs are shared by all the parser threads.
+ * Looking up an existing ID or name never takes a lock.
+ * <p>
+ * The parser looks up names straight from the bytes of the capture, so it
+ * doesn't need to create a {@code String} for every line.  The names in
+ * {@link #TRACK} are found with a perfect hash, which needs a single
+ * comparison.  Other names are found in a hash table that's copied when a
+ * new name is added, which only happens a few times per capture.
+ */
+final class Syscalls {
+
+  // The sets below are the same as the ones in droopytrace.
+
+  /**
+   * Syscalls that affect file descriptors.
+   * We assume the file descriptor number is the 1st argument.
+   */
+  static final HashSet<String> TRACK_FD = set("read", "readv", "recvfrom",
+    "recvmsg", "write", "writev", "sendto", "sendfile", "bind", "connect",
+    "poll");
+
+  /**
+   * Same thing but for system calls that are only used for RPCs.
+   * For these, even if we didn't see the connect() because we started
+   * tracing after the connection was established, we'll count them as
+   * interactions with backends.
+   */
+  static final HashSet<String> TRACK_FD_RPC = set("recvfrom", "sendto");
+
+  /** Syscalls we don't support right now but that matter like poll.  */
+  static final HashSet<String> UNSUPPORTED_FD = set("select", "pselect",
+    "epoll_wait", "epoll_pwait");
+
+  /** Any syscall that isn't in this set won't be fully parsed.  */
+  static final HashSet<String> TRACK = new HashSet<String>();
+  static {
+    TRACK.addAll(TRACK_FD);
+    TRACK.addAll(UNSUPPORTED_FD);
+    TRACK.add("accept");
+    TRACK.add("close");
+  }
+
+  private static HashSet<String> set(final String... names) {
+    return new HashSet<String>(Arrays.asList(names));
+  }
+
+  /** Maps a syscall name to its ID.  */
+  private static final ConcurrentHashMap<String, Integer> ids =
+    new ConcurrentHashMap<String, Integer>();
+  /** Lock to hold to assign new IDs.  */
+  private static final Object lock = new Object();
+  /** Number of IDs assigned so far.  Protected by {@link #lock}.  */
+  private static int count;
+  /**
+   * Maps an ID to its syscall name.
+   * Entries are written before the ID is published in {@link #ids}, and
+   * the array is replaced by a bigger copy when it's full.
+   */
+  private static volatile String[] names = new String[64];
+  /** Maps an ID to the {@code FLAG_*} of the syscall.  Same as names.  */
+  private static volatile byte[] flags = new byte[64];
+
+  static final byte FLAG_TRACK = 1;
+  static final byte FLAG_FD = 2;
+  static final byte FLAG_RPC = 4;
+  static final byte FLAG_UNSUPPORTED = 8;
+
+  // IDs of the syscalls the state machine looks for, for fast comparisons.
+  static final int ACCEPT = id("accept");
+  static final int BIND = id("bind");
+  static final int CLOSE = id("close");
+  static final int CONNECT = id("connect");
+  static final int POLL = id("poll");
+  static final int READ = id("read");
+  static final int WRITE = id("write");
+  static final int WRITEV = id("writev");
+
+  /** Size of the perfect hash table, must be a power of 2.  */
+  private static final int PERFECT_SIZE = 64;
+  /** Seed of the hash function that has no collisions on TRACK.  */
+  private static final int PERFECT_SEED;
+  /** Names in TRACK, at the index given by the perfect hash.  */
+  private static final byte[][] perfect_names = new byte[PERFECT_SIZE][];
+  /** IDs of the names in {@link #perfect_names}.  */
+  private static final int[] perfect_ids = new int[PERFECT_SIZE];
+  static {
+    final byte[][] track = new byte[TRACK.size()][];
+    int n = 0;
+    for (final String name : TRACK) {
+      track[n++] = name.getBytes(ParsedChunk.LATIN1);
+    }
+    PERFECT_SEED = findSeed(track);
+    for (final byte[] name : track) {
+      final int i = hash(PERFECT_SEED, name) & (PERFECT_SIZE - 1);
+      perfect_names[i] = name;
+      perfect_ids[i] = id(new String(name, ParsedChunk.LATIN1));
+    }
+  }
+
+  /** Open-addressing hash table of all the names we've seen.  Immutable. */
+  private static final class Table {
+    final byte[][] names;
+    final int[] ids;
+    final int size;  // Number of names in the table.
+
+    Table(final int capacity, final int size) {
+      names = new byte[capacity][];
+      ids = new int[capacity];
+      this.size = size;
+    }
+  }
+
+  /** Replaced by a bigger copy whenever a name is added.  */
+  private static volatile Table table = new Table(256, 0);
+
+  private Syscalls() {
+    // Not instantiable.
+  }
+
+  /** Returns the ID of the given syscall, assigning one if needed.  */
+  static int id(final String name) {
+    final Integer id = ids.get(name);
+    if (id != null) {
+      return id;
+    }
+    synchronized (lock) {
+      final Integer again = ids.get(name);  // Check again under the lock.
+      if (again != null) {
+        return again;
+      }
+      final int n = count++;
+      if (n == names.length) {
+        names = Arrays.copyOf(names, n * 2);
+        flags = Arrays.copyOf(flags, n * 2);
+      }
+      byte f = 0;
+      if (TRACK.contains(name)) {
+        f |= FLAG_TRACK;
+      }
+      if (TRACK_FD.contains(name)) {
+        f |= FLAG_FD;
+      }
+      if (TRACK_FD_RPC.contains(name)) {
+        f |= FLAG_RPC;
+      }
+      if (UNSUPPORTED_FD.contains(name)) {
+        f |= FLAG_UNSUPPORTED;
+      }
+      flags[n] = f;
+      names[n] = name;
+      ids.put(name, n);  // Publish last, once everything else is set.
+      return n;
+    }
+  }
+
+  /**
+   * Returns the ID of the syscall whose name is in the given buffer.
+   * This doesn't allocate anything unless it's the first time we see the
+   * name.
+   * @param buf The buffer to read the name from.
+   * @param start Offset of the first byte of the name.
+   * @param end Offset right after the last byte of the name.
+   */
+  static int id(final ByteBuffer buf, final int start, final int end) {
+    int i = hash(PERFECT_SEED, buf, start, end) & (PERFECT_SIZE - 1);
+    final byte[] name = perfect_names[i];
+    if (name != null && equals(name, buf, start, end)) {
+      return perfect_ids[i];
+    }
+    final Table t = table;
+    final int mask = t.names.length - 1;
+    i = hash(0, buf, start, end) & mask;
+    byte[] other;
+    while ((other = t.names[i]) != null) {
+      if (equals(other, buf, start, end)) {
+        return t.ids[i];
+      }
+      i = (i + 1) & mask;
+    }
+    return add(buf, start, end);
+  }
+
+  /** Slow path of {@link #id(ByteBuffer, int, int)}, for new names.  */
+  private static int add(final ByteBuffer buf, final int start, final int end) {
+    final byte[] name = new byte[end - start];
+    for (int i = 0; i < name.length; i++) {
+      name[i] = buf.get(start + i);
+    }
+    final int id = id(new String(name, ParsedChunk.LATIN1));
+    synchronized (lock) {
+      final Table old = table;
+      // Keep the table at most half full, so probes stay short.
+      final int capacity = (old.size + 1) * 2 > old.names.length
+        ? old.names.length * 2 : old.names.length;
+      final Table t = new Table(capacity, old.size + 1);
+      for (int i = 0; i < old.names.length; i++) {
+        if (old.names[i] != null) {
+          put(t, old.names[i], old.ids[i]);
+        }
+      }
+      if (!put(t, name, id)) {
+        return id;  // Another thread added it in the mean time.
+      }
+      table = t;
+    }
+    return id;
+  }
+
+  /** Returns false if the name was already in the table.  */
+  private static boolean put(final Table t, final byte[] name, final int id) {
+    final int mask = t.names.length - 1;
+    int i = hash(0, name) & mask;
+    while (t.names[i] != null) {
+      if (Arrays.equals(t.names[i], name)) {
+        return false;
+      }
+      i = (i + 1) & mask;
+    }
+    t.names[i] = name;
+    t.ids[i] = id;
+    return true;
+  }
+
+  private static boolean equals(final byte[] name, final ByteBuffer buf,
+                                final int start, final int end) {
+    if (name.length != end - start) {
+      return false;
+    }
+    for (int i = 0; i < name.length; i++) {
+      if (name[i] != buf.get(start + i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** FNV-1a, with a seed.  */
+  private static int hash(final int seed, final ByteBuffer buf,
+                          final int start, final int end) {
+    int h = 0x811C9DC5 ^ seed;
+    for (int i = start; i < end; i++) {
+      h = (h ^ (buf.get(i) & 0xFF)) * 0x01000193;
+    }
+    return h ^ (h >>> 16);
+  }
+
+  private static int hash(final int seed, final byte[] name) {
+    return hash(seed, ByteBuffer.wrap(name), 0, name.length);
+  }
+
+  /** Finds a seed for which the names don't collide in the perfect hash. */
+  private static int findSeed(final byte[][] names) {
+    final boolean[] used = new boolean[PERFECT_SIZE];
+    for (int seed = 0; ; seed++) {
+      Arrays.fill(used, false);
+      boolean collision = false;
+      for (final byte[] name : names) {
+        final int i = hash(seed, name) & (PERFECT_SIZE - 1);
+        if (used[i]) {
+          collision = true;
+          break;
+        }
+        used[i] = true;
+      }
+      if (!collision) {
+        return seed;
+      }
+    }
+  }
+
+  /** Returns the name of the syscall with the given ID.  */
+  static String name(final int id) {
+    return names[id];
+  }
+
+  /** Returns whether the syscall with the given ID has the given flag. */
+  static boolean is(final int id, final byte flag) {
+    return (flags[id] & flag) != 0;
+  }
+
+}
@@ -0,0 +1,122 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package analyzer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the parser of {@link ParsedChunk} with a straightforward port
+ * of droopytrace's {@code parse_call} that creates strings for every line.
+ * <p>
+ * Run with {@code make bench CAPTURE=/path/to/strace.log}.  The capture
+ * should be a large one taken with {@code strace -tttT} on a real server,
+ * only its first chunk is used.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+  @Param("capture.log")
+  public String capture;
+
+  private ByteBuffer chunk;
+
+  @Setup
+  public void setup() throws IOException {
+    final Capture capture = new Capture(this.capture);
+    try {
+      chunk = capture.next();
+    } finally {
+      capture.close();
+    }
+    if (chunk == null) {
+      throw new IllegalStateException("empty capture: " + this.capture);
+    }
+  }
+
+  /** Parses the chunk without creating any string.  */
+  @Benchmark
+  public ParsedChunk parseColumns() {
+    return ParsedChunk.parse(chunk);
+  }
+
+  /** Parses every line like droopytrace does, with substrings.  */
+  @Benchmark
+  public void parseStrings(final Blackhole bh) {
+    final ByteBuffer buf = chunk.duplicate();
+    final int limit = buf.limit();
+    int pos = 0;
+    while (pos < limit) {
+      int eol = pos;
+      while (eol < limit && buf.get(eol) != '\n') {
+        eol++;
+      }
+      final byte[] bytes = new byte[eol - pos];
+      buf.position(pos);
+      buf.get(bytes);
+      try {
+        parseCall(new String(bytes, ParsedChunk.LATIN1), bh);
+      } catch (RuntimeException e) {
+        bh.consume(e);
+      }
+      pos = eol + 1;
+    }
+  }
+
+  /** Port of {@code parse_call}, for comparison.  */
+  private static void parseCall(final String line, final Blackhole bh) {
+    final int len = line.length();
+    if (line.charAt(ParsedChunk.TIMESTAMP_LENGTH) != ' ') {
+      throw new IllegalArgumentException("no space after the timestamp");
+    }
+    final int paren = line.indexOf('(', ParsedChunk.NAME_START);
+    final String syscall = line.substring(ParsedChunk.NAME_START, paren);
+    final int lt = line.lastIndexOf('<', len - 5);
+    final double duration = Double.parseDouble(line.substring(lt + 1, len - 1)) * 1000;
+    final int equal = line.lastIndexOf(" = ", len - 11);
+    final String call = line.substring(ParsedChunk.NAME_START, equal);
+    bh.consume(call);
+    if (!Syscalls.TRACK.contains(syscall) && duration < 1) {
+      bh.consume(duration);
+      return;
+    }
+    final double timestamp =
+      Double.parseDouble(line.substring(0, ParsedChunk.TIMESTAMP_LENGTH)) * 1000;
+    int end = line.indexOf(' ', equal + 3);
+    if (end < 0) {
+      end = len;
+    }
+    bh.consume(timestamp);
+    bh.consume(Long.decode(line.substring(equal + 3, end)));
+  }
+
+}
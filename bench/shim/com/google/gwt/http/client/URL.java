@@ -0,0 +1,38 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package com.google.gwt.http.client;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+
+/**
+ * JVM stand-in for GWT's {@code URL}, whose methods are JSNI.
+ * Only used to run the viewer's code in the benchmarks.
+ */
+public final class URL {
+
+  private URL() {
+    // Not instantiable.
+  }
+
+  /** Same as JavaScript's {@code decodeURIComponent}.  */
+  public static String decodeComponent(final String encoded) {
+    try {
+      // Unlike URLDecoder, decodeURIComponent leaves `+' alone.
+      return URLDecoder.decode(encoded.replace("+", "%2B"), "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+}
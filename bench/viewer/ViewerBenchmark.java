@@ -0,0 +1,286 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package viewer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the plain Java code the viewer runs when rendering a trace
+ * or sending a search.
+ * <p>
+ * The JSOs of a trace can't exist on the JVM, so the trace-rendering
+ * benchmarks run {@link TimeSpent}, which is what {@code BackendReqs}
+ * and {@code Trace.TraceWidget} use to sort and split the long tail, over
+ * arrays.  The traces are synthetic, with durations drawn from a
+ * log-normal distribution, which is a good fit for syscall latencies: lots
+ * of fast calls and a few very slow ones.
+ * <p>
+ * Run with {@code make bench BENCH_ARGS=Viewer}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ViewerBenchmark {
+
+  /** Number of backend calls in the trace.  */
+  @Param({ "1000", "10000" })
+  public int calls;
+
+  /** Number of distinct backends the calls are made to.  */
+  @Param("40")
+  public int backends;
+
+  /** Number of distinct syscalls in {@code syscalls_times}.  */
+  private static final int SYSCALLS = 60;
+
+  /** Durations of the calls made to each backend, in ms.  */
+  private double[][] durations;
+  /** Time spent in each syscall, in ms, sorted by descending time.  */
+  private double[] syscalls_times;
+  /** History token of the viewer, the way users bookmark it.  */
+  private String token;
+  private IndexCatalog catalog;
+  private Date from;
+  private Date to;
+
+  /** Stand-in for {@code BackendReqs}, which sums the calls of a JSO.  */
+  private static final class Backend extends TimeSpent {
+    Backend(final double[] durations) {
+      super(sum(durations));
+    }
+
+    private static double sum(final double[] durations) {
+      double t = 0;
+      for (final double d : durations) {
+        t += d;
+      }
+      return t;
+    }
+  }
+
+  @Setup
+  public void setup() {
+    final Random random = new Random(42);
+    // Skew the calls so a few backends get most of them, like in practice.
+    final int[] ncalls = new int[backends];
+    for (int i = 0; i < calls; i++) {
+      ncalls[(int) (backends * Math.pow(random.nextDouble(), 3))]++;
+    }
+    durations = new double[backends][];
+    for (int b = 0; b < backends; b++) {
+      durations[b] = new double[ncalls[b]];
+      for (int i = 0; i < ncalls[b]; i++) {
+        durations[b][i] = logNormal(random, -2, 1.5);
+      }
+    }
+    syscalls_times = new double[SYSCALLS];
+    for (int i = 0; i < SYSCALLS; i++) {
+      syscalls_times[i] = logNormal(random, 0, 2);
+    }
+    Arrays.sort(syscalls_times);
+    for (int i = 0; i < SYSCALLS / 2; i++) {  // Reverse to descending order.
+      final double t = syscalls_times[i];
+      syscalls_times[i] = syscalls_times[SYSCALLS - 1 - i];
+      syscalls_times[SYSCALLS - 1 - i] = t;
+    }
+
+    final StringBuilder buf = new StringBuilder();
+    buf.append("start=2011%2F06%2F01-00%3A00%3A00&end=2011%2F07%2F01-00%3A00%3A00")
+      .append("&q=resource%3A%22%2Fapi%2Fv1%2Fsearch%22+AND+end_to_end%3A%5B500+TO+*%5D")
+      .append("&sort=end_to_end&results=100");
+    for (int i = 0; i < 20; i++) {  // Traces the user expanded.
+      buf.append("&trace=droopy-201106%2F").append(Long.toString(random.nextLong(), 36));
+    }
+    token = buf.toString();
+
+    // 3 years of monthly indices, with the ranges of half of them known.
+    catalog = new IndexCatalog("droopy");
+    final ArrayList<String> names = new ArrayList<String>();
+    for (int y = 2009; y <= 2011; y++) {
+      for (int m = 1; m <= 12; m++) {
+        final String name = "droopy-" + y + (m < 10 ? "0" : "") + m;
+        names.add(name);
+        if (m % 2 == 0) {
+          final long month = date(y, m, 1).getTime();
+          catalog.setRange(name, month, month + 28L * 86400000L);
+        }
+      }
+    }
+    catalog.setIndices(names);
+    from = date(2009, 4, 15);
+    to = date(2011, 9, 15);
+  }
+
+  /** Returns midnight, local time, on the given day ({@code month} is 1-based).  */
+  private static Date date(final int year, final int month, final int day) {
+    final Calendar cal = Calendar.getInstance();
+    cal.clear();
+    cal.set(year, month - 1, day);
+    return cal.getTime();
+  }
+
+  private static double logNormal(final Random random, final double mu,
+                                  final double sigma) {
+    return Math.exp(mu + sigma * random.nextGaussian());
+  }
+
+  /**
+   * What we do when expanding the backends of a trace without rollups:
+   * compute the total time of each backend, sort them, and find where the
+   * long tail starts.
+   */
+  @Benchmark
+  public int backendTotalsAndSort() {
+    final ArrayList<Backend> be_reqs = new ArrayList<Backend>(backends);
+    for (final double[] d : durations) {
+      be_reqs.add(new Backend(d));
+    }
+    Collections.sort(be_reqs);
+    double total_time = 0;
+    for (final Backend reqs : be_reqs) {
+      total_time += reqs.totalTime();
+    }
+    return TimeSpent.countImportant(new TimeSpent.Times() {
+      public int size() {
+        return be_reqs.size();
+      }
+      public double time(final int i) {
+        return be_reqs.get(i).totalTime();
+      }
+    }, total_time);
+  }
+
+  /**
+   * What we do when expanding a backend: sort its calls by duration and
+   * find how many of them aren't part of the long tail, like
+   * {@code BackendReqs.importantCalls}.
+   */
+  @Benchmark
+  public int backendCallsSplit() {
+    int important = 0;
+    for (final double[] d : durations) {
+      final Backend reqs = new Backend(d);
+      // Same as BackendReqs.JSO.sortCallsByDuration.
+      final Integer[] order = new Integer[d.length];
+      for (int i = 0; i < order.length; i++) {
+        order[i] = i;
+      }
+      Arrays.sort(order, new Comparator<Integer>() {
+        public int compare(final Integer a, final Integer b) {
+          return Double.compare(d[b], d[a]);
+        }
+      });
+      important += TimeSpent.countImportant(new TimeSpent.Times() {
+        public int size() {
+          return order.length;
+        }
+        public double time(final int i) {
+          return d[order[i]];
+        }
+      }, reqs.totalTime());
+    }
+    return important;
+  }
+
+  /** The split of {@code syscalls_times} between important and negligible. */
+  @Benchmark
+  public int syscallsTimesSplit() {
+    double syscalls_time = 0;
+    for (final double t : syscalls_times) {
+      syscalls_time += t;
+    }
+    return TimeSpent.countImportant(syscalls_times, syscalls_time);
+  }
+
+  /** Parsing the history token, which we do on every navigation.  */
+  @Benchmark
+  public Map<String, List<String>> queryStringGetParameters() {
+    return QueryStringDecoder.getParameters(token);
+  }
+
+  /** Building the request of the overview, like {@code Main.loadOverview}. */
+  @Benchmark
+  public String jsonBuilder() {
+    final Json query = Json.object("filtered",
+      Json.object("query", Json.object("query_string",
+                                       Json.object("query", "resource:\"/api\"")
+                                       .add("default_operator", "AND")))
+      .add("filter", Json.object("numeric_range",
+                                 Json.object("request_ts",
+                                             Json.object()
+                                             .add("from", 1306886400000L)
+                                             .add("to", 1309478400000L)))));
+    return Json.object()
+      .add("size", 0)
+      .add("query", query)
+      .add("facets",
+           Json.object()
+           .add("latstats", Json.object("statistical",
+                                        Json.object("field", "end_to_end")))
+           .add("lathisto", Json.object("histogram",
+                                        Json.object("field", "end_to_end")
+                                        .add("interval", 10)))
+           .add("timeline", Json.object("histogram",
+                                        Json.object("field", "request_ts")
+                                        .add("interval", 3600000)))
+           .add("topres", Json.object("terms_stats",
+                                      Json.object("key_field", "resource")
+                                      .add("value_field", "end_to_end")
+                                      .add("order", "total")
+                                      .add("size", 15))))
+      .toString();
+  }
+
+  /** Building the multi-GET of a page of traces, like TraceFetcher.  */
+  @Benchmark
+  public String jsonMultiGet() {
+    final Json docs = Json.array();
+    for (int i = 0; i < 100; i++) {
+      docs.add(Json.object("_index", "droopy-201106")
+               .add("_type", "trace")
+               .add("_id", "AbCdEfGhIjKlMnOpQrStUv"));
+    }
+    return Json.object("docs", docs).toString();
+  }
+
+  /** What {@code Main.indicesToSearch} does for a 2.5 years range.  */
+  @Benchmark
+  public String indicesToSearch() {
+    return catalog.indicesToSearch(from, to);
+  }
+
+}
@@ -0,0 +1,90 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package ingest;
+
+import java.util.Arrays;
+
+/**
+ * Standard base64 (RFC 4648, with padding), as understood by ES for
+ * {@code binary} fields and by the browsers' {@code atob}.
+ */
+final class Base64 {
+
+  private static final char[] ALPHABET =
+    "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+  /** Maps a character back to its 6-bit value, or -1.  */
+  private static final byte[] VALUES = new byte[128];
+  static {
+    Arrays.fill(VALUES, (byte) -1);
+    for (int i = 0; i < ALPHABET.length; i++) {
+      VALUES[ALPHABET[i]] = (byte) i;
+    }
+  }
+
+  private Base64() {
+    // Not instantiable.
+  }
+
+  /** Appends the base64 encoding of {@code data} to the buffer.  */
+  static void encode(final StringBuilder buf, final byte[] data) {
+    int i = 0;
+    for (; i + 2 < data.length; i += 3) {
+      final int n = (data[i] & 0xFF) << 16 | (data[i + 1] & 0xFF) << 8
+        | (data[i + 2] & 0xFF);
+      buf.append(ALPHABET[n >>> 18]).append(ALPHABET[(n >>> 12) & 0x3F])
+        .append(ALPHABET[(n >>> 6) & 0x3F]).append(ALPHABET[n & 0x3F]);
+    }
+    final int left = data.length - i;
+    if (left == 1) {
+      final int n = (data[i] & 0xFF) << 16;
+      buf.append(ALPHABET[n >>> 18]).append(ALPHABET[(n >>> 12) & 0x3F])
+        .append("==");
+    } else if (left == 2) {
+      final int n = (data[i] & 0xFF) << 16 | (data[i + 1] & 0xFF) << 8;
+      buf.append(ALPHABET[n >>> 18]).append(ALPHABET[(n >>> 12) & 0x3F])
+        .append(ALPHABET[(n >>> 6) & 0x3F]).append('=');
+    }
+  }
+
+  /**
+   * Decodes base64.
+   * @throws IllegalArgumentException if the input isn't valid base64.
+   */
+  static byte[] decode(final String s) {
+    int length = s.length();
+    while (length > 0 && s.charAt(length - 1) == '=') {
+      length--;
+    }
+    final byte[] data = new byte[length * 3 / 4];
+    int n = 0;
+    int bits = 0;
+    int j = 0;
+    for (int i = 0; i < length; i++) {
+      final char c = s.charAt(i);
+      final int v = c < 128 ? VALUES[c] : -1;
+      if (v < 0) {
+        throw new IllegalArgumentException("Invalid base64 character '" + c
+                                           + "' at offset " + i);
+      }
+      n = n << 6 | v;
+      bits += 6;
+      if (bits >= 8) {
+        bits -= 8;
+        data[j++] = (byte) (n >>> bits);
+      }
+    }
+    return data;
+  }
+
+}
@@ -0,0 +1,140 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package ingest;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One document to index, as found in a {@code _bulk} request.
+ * <p>
+ * The source of the document is kept as-is, we only parse it when we need
+ * to look inside.
+ */
+public final class BulkItem {
+
+  private final String index;
+  private final String type;
+  private final String id;
+  private String source;
+
+  public BulkItem(final String index, final String type, final String id,
+                  final String source) {
+    this.index = index;
+    this.type = type;
+    this.id = id;
+    this.source = source;
+  }
+
+  public String index() {
+    return index;
+  }
+
+  public String type() {
+    return type;
+  }
+
+  public String id() {
+    return id;
+  }
+
+  /** Returns the JSON source of the document.  */
+  public String source() {
+    return source;
+  }
+
+  /**
+   * Replaces the JSON source of the document.
+   * Must not be called once the item has been queued, as this changes its
+   * {@link #size}.
+   */
+  public void setSource(final String source) {
+    this.source = source;
+  }
+
+  /** Parses the source of the document.  */
+  public Map<String, Object> parseSource() {
+    return Json.parseObject(source);
+  }
+
+  /** Approximate number of bytes this item takes in a bulk request.  */
+  public int size() {
+    return 64 + index.length() + type.length() + id.length() + source.length();
+  }
+
+  /** Appends the action and source lines of this item to a bulk request.  */
+  public void appendTo(final StringBuilder buf) {
+    final LinkedHashMap<String, Object> meta = new LinkedHashMap<String, Object>(4);
+    meta.put("_index", index);
+    meta.put("_type", type);
+    meta.put("_id", id);
+    final LinkedHashMap<String, Object> action = new LinkedHashMap<String, Object>(2);
+    action.put("index", meta);
+    Json.append(buf, action);
+    buf.append('\n').append(source).append('\n');
+  }
+
+  /**
+   * Parses the body of a {@code _bulk} request.
+   * Only the {@code index} and {@code create} actions are supported, which
+   * is all droopytrace ever sends.
+   * @throws IllegalArgumentException if the request is malformed.
+   */
+  public static List<BulkItem> parse(final String body) {
+    final ArrayList<BulkItem> items = new ArrayList<BulkItem>();
+    int pos = 0;
+    final int length = body.length();
+    while (pos < length) {
+      final String action = nextLine(body, pos);
+      pos += action.length() + 1;
+      if (action.trim().isEmpty()) {
+        continue;
+      }
+      final Map<String, Object> parsed = Json.parseObject(action);
+      Map<String, Object> meta = Json.getObject(parsed, "index");
+      if (meta == null) {
+        meta = Json.getObject(parsed, "create");
+      }
+      if (meta == null) {
+        throw new IllegalArgumentException("Unsupported bulk action: " + action);
+      }
+      final String index = Json.getString(meta, "_index");
+      final String type = Json.getString(meta, "_type");
+      final String id = Json.getString(meta, "_id");
+      if (index == null || type == null || id == null) {
+        throw new IllegalArgumentException("Missing _index, _type or _id in "
+                                           + action);
+      }
+      if (pos >= length) {
+        throw new IllegalArgumentException("Missing source after " + action);
+      }
+      final String source = nextLine(body, pos);
+      pos += source.length() + 1;
+      items.add(new BulkItem(index, type, id, source));
+    }
+    return items;
+  }
+
+  /** Returns the line that starts at {@code pos}, without the newline.  */
+  private static String nextLine(final String body, final int pos) {
+    final int eol = body.indexOf('\n', pos);
+    return body.substring(pos, eol < 0 ? body.length() : eol);
+  }
+
+  public String toString() {
+    return index + '/' + type + '/' + id + " (" + source.length() + " bytes)";
+  }
+
+}
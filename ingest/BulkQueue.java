@@ -0,0 +1,142 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package ingest;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Queue of items waiting to be written to ElasticSearch, bounded in bytes.
+ * <p>
+ * The bytes of an item are accounted for from the moment it's offered until
+ * the writer {@link #release}s it once ElasticSearch has acknowledged it.
+ * So items being retried still count against the limit, which bounds the
+ * total amount of memory we use for buffering no matter how long ES is down.
+ * When the queue is full, producers block for a while and then give up, and
+ * that's how backpressure propagates to the tracers.
+ */
+final class BulkQueue {
+
+  private final long capacity;
+  private final ArrayDeque<BulkItem> items = new ArrayDeque<BulkItem>();
+  /** Bytes offered and not yet released (queued + in flight).  */
+  private long bytes;
+  /** Bytes of the items still in {@link #items}.  */
+  private long queued_bytes;
+
+  /**
+   * Constructor.
+   * @param capacity Maximum number of bytes to buffer.
+   */
+  BulkQueue(final long capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("invalid capacity: " + capacity);
+    }
+    this.capacity = capacity;
+  }
+
+  /**
+   * Adds all the given items to the queue, or none of them.
+   * @param batch The items to add.
+   * @param timeout_ms How long to wait for space to free up, at most.
+   * @return {@code false} if the queue didn't have enough room for the items
+   * before the timeout expired.
+   */
+  public synchronized boolean offer(final List<BulkItem> batch,
+                                    final long timeout_ms) throws InterruptedException {
+    long size = 0;
+    for (final BulkItem item : batch) {
+      size += item.size();
+    }
+    if (size > capacity) {
+      return false;  // Will never fit.
+    }
+    final long deadline = System.currentTimeMillis() + timeout_ms;
+    while (bytes + size > capacity) {
+      final long wait = deadline - System.currentTimeMillis();
+      if (wait <= 0) {
+        return false;
+      }
+      wait(wait);
+    }
+    items.addAll(batch);
+    bytes += size;
+    queued_bytes += size;
+    notifyAll();
+    return true;
+  }
+
+  /**
+   * Takes items off the queue to make a batch.
+   * Blocks until at least one item is available, and then waits up to
+   * {@code linger_ms} for more items to show up to fill the batch.
+   * @param max_items Maximum number of items in the batch.
+   * @param max_bytes Maximum size of the batch (the first item is always
+   * taken even if it's bigger than this).
+   * @param linger_ms How long to wait for the batch to fill up.
+   */
+  public synchronized List<BulkItem> take(final int max_items,
+                                          final long max_bytes,
+                                          final long linger_ms) throws InterruptedException {
+    do {
+      while (items.isEmpty()) {
+        wait();
+      }
+      final long deadline = System.currentTimeMillis() + linger_ms;
+      while (items.size() < max_items && queued_bytes < max_bytes) {
+        final long wait = deadline - System.currentTimeMillis();
+        if (wait <= 0) {
+          break;
+        }
+        wait(wait);
+      }
+      // Another writer may have taken everything while we were lingering.
+    } while (items.isEmpty());
+    final ArrayList<BulkItem> batch = new ArrayList<BulkItem>(Math.min(items.size(), max_items));
+    long size = 0;
+    while (!items.isEmpty() && batch.size() < max_items) {
+      final BulkItem item = items.peek();
+      if (!batch.isEmpty() && size + item.size() > max_bytes) {
+        break;
+      }
+      batch.add(items.poll());
+      size += item.size();
+    }
+    queued_bytes -= size;
+    return batch;
+  }
+
+  /** Frees up the space used by items that have been written to ES.  */
+  public synchronized void release(final List<BulkItem> batch) {
+    for (final BulkItem item : batch) {
+      bytes -= item.size();
+    }
+    notifyAll();
+  }
+
+  /** Number of items waiting in the queue (excluding those in flight).  */
+  public synchronized int depth() {
+    return items.size();
+  }
+
+  /** Number of bytes buffered (including those in flight).  */
+  public synchronized long bytes() {
+    return bytes;
+  }
+
+  public long capacity() {
+    return capacity;
+  }
+
+}
@@ -0,0 +1,254 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package ingest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Thread that takes items off the queue and writes them to ElasticSearch
+ * in large {@code _bulk} requests.
+ * <p>
+ * When ElasticSearch is unreachable or overloaded, the same batch is retried
+ * with an exponential backoff until it goes through.  Meanwhile the queue
+ * fills up and eventually pushes back on the tracers.  Items that ES
+ * rejects one by one because it's overloaded (e.g. with an
+ * {@code EsRejectedExecutionException} when its indexing thread pool is
+ * full) are retried the same way, but only up to
+ * {@value #MAX_ITEM_ATTEMPTS} times, since ES is up and could be rejecting
+ * them for good.  They stay in flight until then, so they still count
+ * against the size of the queue.
+ */
+final class BulkWriter extends Thread {
+
+  private static final Logger LOG = Logger.getLogger(BulkWriter.class.getName());
+
+  /** Initial delay before retrying a failed batch.  */
+  private static final long MIN_BACKOFF_MS = 100;
+  /** Maximum delay between two retries.  */
+  private static final long MAX_BACKOFF_MS = 30000;
+  /** How many times we send an item that ES keeps rejecting.  */
+  private static final int MAX_ITEM_ATTEMPTS = 5;
+
+  private final URL url;
+  private final BulkQueue queue;
+  private final Stats stats;
+  private final int batch_items;
+  private final long batch_bytes;
+  private final long linger_ms;
+
+  /**
+   * Constructor.
+   * @param server The "host:port" of the ES server.
+   * @param queue The queue to take items from.
+   * @param stats Where to record what we do.
+   * @param batch_items Maximum number of items per bulk request.
+   * @param batch_bytes Maximum size of a bulk request.
+   * @param linger_ms How long to wait for a batch to fill up.
+   */
+  BulkWriter(final String server, final BulkQueue queue, final Stats stats,
+             final int batch_items, final long batch_bytes,
+             final long linger_ms) throws IOException {
+    super("BulkWriter");
+    this.url = new URL("http://" + server + "/_bulk");
+    this.queue = queue;
+    this.stats = stats;
+    this.batch_items = batch_items;
+    this.batch_bytes = batch_bytes;
+    this.linger_ms = linger_ms;
+    setDaemon(true);
+  }
+
+  public void run() {
+    try {
+      while (true) {
+        final List<BulkItem> batch = queue.take(batch_items, batch_bytes, linger_ms);
+        try {
+          writeWithRetries(batch);
+        } finally {
+          queue.release(batch);
+        }
+      }
+    } catch (InterruptedException e) {
+      LOG.info("Interrupted, exiting");
+    }
+  }
+
+  private void writeWithRetries(List<BulkItem> batch) throws InterruptedException {
+    byte[] body = encode(batch);
+    long backoff = MIN_BACKOFF_MS;
+    int attempts = 0;  // How many times ES accepted the request.
+    while (true) {
+      final long start = System.currentTimeMillis();
+      try {
+        final List<BulkItem> rejected = write(body, batch);
+        if (rejected == null) {
+          stats.batches_dropped.incrementAndGet();
+          stats.items_failed.addAndGet(batch.size());
+          return;
+        }
+        stats.batches_written.incrementAndGet();
+        stats.bytes_written.addAndGet(body.length);
+        stats.write_time_ms.addAndGet(System.currentTimeMillis() - start);
+        if (rejected.isEmpty()) {
+          return;
+        } else if (++attempts >= MAX_ITEM_ATTEMPTS) {
+          LOG.warning("Giving up on " + rejected.size() + " items ElasticSearch"
+                      + " rejected " + attempts + " times");
+          stats.items_failed.addAndGet(rejected.size());
+          return;
+        }
+        LOG.warning("ElasticSearch rejected " + rejected.size() + " items"
+                    + " out of " + batch.size() + ", retrying in "
+                    + backoff + "ms");
+        stats.items_retried.addAndGet(rejected.size());
+        batch = rejected;
+        body = encode(batch);
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Failed to write " + batch.size() + " items ("
+                + body.length + " bytes) to " + url + ", retrying in "
+                + backoff + "ms", e);
+      }
+      stats.retries.incrementAndGet();
+      Thread.sleep(backoff);
+      backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+    }
+  }
+
+  /** Returns the body of the bulk request for the given items.  */
+  private static byte[] encode(final List<BulkItem> batch) {
+    final StringBuilder buf = new StringBuilder(batch.size() * 1024);
+    for (final BulkItem item : batch) {
+      item.appendTo(buf);
+    }
+    return buf.toString().getBytes(Json.UTF8);
+  }
+
+  /**
+   * Sends one bulk request to ES.
+   * Items it indexed are counted as written, and items it failed to index
+   * for good are counted as failed.
+   * @param body The body of the request.
+   * @param batch The items in the body.
+   * @return The items ES rejected because it's overloaded, which should be
+   * retried later, or {@code null} if ES refused the whole request, in which
+   * case there's no point in retrying it.
+   * @throws IOException if we failed to talk to ES or it's having issues,
+   * in which case the request should be retried later.
+   */
+  @SuppressWarnings("unchecked")
+  private List<BulkItem> write(final byte[] body,
+                               final List<BulkItem> batch) throws IOException {
+    final int nitems = batch.size();
+    final HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+    conn.setRequestMethod("POST");
+    conn.setDoOutput(true);
+    conn.setFixedLengthStreamingMode(body.length);
+    conn.setRequestProperty("Content-Type", "application/json");
+    conn.setConnectTimeout(5000);
+    conn.setReadTimeout(60000);
+    final OutputStream out = conn.getOutputStream();
+    try {
+      out.write(body);
+    } finally {
+      out.close();
+    }
+    final int status = conn.getResponseCode();
+    if (status >= 500) {
+      readFully(conn.getErrorStream());
+      throw new IOException("ElasticSearch responded " + status + ' '
+                            + conn.getResponseMessage());
+    } else if (status != HttpURLConnection.HTTP_OK) {
+      LOG.severe("ElasticSearch refused a batch of " + nitems + " items: "
+                 + status + ' ' + conn.getResponseMessage() + '\n'
+                 + readFully(conn.getErrorStream()));
+      return null;
+    }
+    final Map<String, Object> resp;
+    try {
+      resp = Json.parseObject(readFully(conn.getInputStream()));
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Invalid JSON from ElasticSearch: " + e.getMessage());
+    }
+    final List<Object> items = Json.getList(resp, "items");
+    if (items == null || items.size() != nitems) {
+      throw new IOException("Incomprehensible response from ElasticSearch: " + resp);
+    }
+    final ArrayList<BulkItem> rejected = new ArrayList<BulkItem>(0);
+    int failed = 0;
+    for (int i = 0; i < nitems; i++) {
+      final Object item = items.get(i);
+      final Map<String, Object> result =
+        item instanceof Map ? Json.getObject((Map<String, Object>) item, "index") : null;
+      if (result != null && result.get("error") == null) {
+        continue;
+      } else if (result != null && isRejection(result)) {
+        rejected.add(batch.get(i));
+      } else if (failed++ == 0) {
+        LOG.warning("ElasticSearch failed to index an item: " + item);
+      }
+    }
+    stats.items_written.addAndGet(nitems - rejected.size() - failed);
+    if (failed > 0) {
+      stats.items_failed.addAndGet(failed);
+    }
+    return rejected;
+  }
+
+  /**
+   * Returns whether ES failed to index an item only because it's overloaded.
+   * @param result The result of the item in the bulk response.
+   */
+  private static boolean isRejection(final Map<String, Object> result) {
+    final Object status = result.get("status");
+    if (status instanceof Number) {
+      final int code = ((Number) status).intValue();
+      return code == 429 || code >= 500;
+    }
+    final Object error = result.get("error");
+    return error != null
+      && error.toString().contains("EsRejectedExecutionException");
+  }
+
+  static String readFully(final InputStream in) throws IOException {
+    return new String(readBytes(in), Json.UTF8);
+  }
+
+  /** Reads the given stream until its end and closes it.  */
+  static byte[] readBytes(final InputStream in) throws IOException {
+    if (in == null) {
+      return new byte[0];
+    }
+    try {
+      final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+      final byte[] chunk = new byte[8192];
+      int n;
+      while ((n = in.read(chunk)) > 0) {
+        buf.write(chunk, 0, n);
+      }
+      return buf.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+}
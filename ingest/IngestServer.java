@@ -0,0 +1,543 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package ingest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Ingest gateway that sits between droopytrace and ElasticSearch.
+ * <p>
+ * It speaks enough of the ElasticSearch HTTP API for droopytrace to upload
+ * to it instead ({@code GET /_cluster/health} and {@code POST /_bulk}), and
+ * merges the small batches coming from all the tracers into large bulk
+ * requests to ElasticSearch.  Items are acknowledged as soon as they're
+ * queued.  When the queue is full, uploads are refused with a 503, so
+ * tracers find out that we can't keep up instead of us running out of
+ * memory, and droopytrace backs off before uploading them again.  Nothing
+ * from a refused upload is counted or sampled.
+ * <p>
+ * Counters are available at {@code GET /_droopy/stats}.
+ * <p>
+ * With {@code --routes}, every summary gets a {@code route}: its resource
+ * without the parts that change from one request to another, see
+ * {@link RouteNormalizer}.  The most frequent routes are listed at
+ * {@code GET /_droopy/routes}.  This means parsing and re-serializing every
+ * summary, so it's off unless asked for or needed by {@code --time-buckets}
+ * or {@code --sample}, which group the traces by route.
+ * <p>
+ * Strings such as the routes must be compared as a whole, so we install
+ * an index template that tells ES not to analyze them.
+ * <p>
+ * With {@code --compact}, {@code trace} and {@code fulltrace} documents are
+ * stored in the compact form of {@link TraceCodec}.  With {@code --rollups},
+ * what the viewer needs to render a trace is computed once here, see
+ * {@link Rollups}.  With {@code --time-buckets}, traffic is also summarized
+ * over time for dashboards, see {@link TimeBuckets}.  With {@code --sample},
+ * only the slow traces and a sample of the fast ones are stored, see
+ * {@link Sampler}.
+ */
+public final class IngestServer {
+
+  private static final Logger LOG = Logger.getLogger(IngestServer.class.getName());
+
+  private final BulkQueue queue;
+  private final Stats stats = new Stats();
+  /**
+   * How long an upload waits for room in the queue before we give up.
+   * Should be less than droopytrace's --server-timeout (3s by default).
+   */
+  private final long offer_timeout_ms;
+  /** Whether or not to store traces in their compact form.  */
+  private final boolean compact;
+  /** Whether or not to add rollups to the traces.  */
+  private final boolean rollups;
+  /** Where to count the traces over time, or {@code null}.  */
+  private TimeBuckets buckets;
+  /** Picks the traces to store, or {@code null} to store them all.  */
+  private Sampler sampler;
+  /** Turns resources into routes, or {@code null} without --routes.  */
+  private final RouteNormalizer routes;
+
+  private IngestServer(final BulkQueue queue, final long offer_timeout_ms,
+                       final boolean compact, final boolean rollups,
+                       final List<String[]> route_rules, final int max_routes) {
+    this.queue = queue;
+    this.routes = route_rules == null ? null
+      : new RouteNormalizer(route_rules, max_routes, stats);
+    this.offer_timeout_ms = offer_timeout_ms;
+    this.compact = compact;
+    this.rollups = rollups;
+  }
+
+  private static void usage(final String error) {
+    System.err.println("error: " + error);
+    System.err.println("Usage: ingest [options]\n"
+      + "  --port=N             Port to listen on (default: 9201).\n"
+      + "  --server=HOST:PORT   ElasticSearch server (default: localhost:9200).\n"
+      + "  --index=NAME         Base name of the monthly indices, to which our\n"
+      + "                       index templates apply (default: droopy).\n"
+      + "  --batch-items=N      Max items per bulk request to ES (default: 5000).\n"
+      + "  --batch-bytes=N      Max bytes per bulk request to ES (default: 16MB).\n"
+      + "  --linger-ms=N        How long to wait to fill a batch (default: 250).\n"
+      + "  --buffer-bytes=N     Max bytes buffered in memory (default: 256MB).\n"
+      + "  --offer-timeout-ms=N How long uploads wait when the buffer is full\n"
+      + "                       before being refused (default: 1000).\n"
+      + "  --writers=N          Concurrent bulk requests to ES (default: 2).\n"
+      + "  --compact            Store traces in a compact binary encoding.\n"
+      + "  --rollups            Precompute the totals the viewer needs.\n"
+      + "  --time-buckets       Summarize traffic in 1m, 10m and 1h buckets.\n"
+      + "  --bucket-grace-ms=N  How long to wait for late traces before\n"
+      + "                       writing a bucket (default: 60000).\n"
+      + "  --max-buckets=N      Max buckets in memory (default: 100000).\n"
+      + "  --topk=N             Resources to keep per bucket among those we\n"
+      + "                       spent the most time on (default: 20).\n"
+      + "  --sample=N           Only store the slow traces, the first of each\n"
+      + "                       resource and N others per resource every 10s.\n"
+      + "  --sample-slow-ms=N   Always store traces at least this slow, even\n"
+      + "                       if usual for their resource (default: 1000).\n"
+      + "  --sample-max-resources=N  Max resources to sample separately\n"
+      + "                       (default: 100000).\n"
+      + "  --routes             Add the route of each request to its summary\n"
+      + "                       (implied by --time-buckets and --sample).\n"
+      + "  --route-rules=FILE   Rules to turn resources into routes.\n"
+      + "  --max-routes=N       Max routes to list in /_droopy/routes\n"
+      + "                       (default: 10000).\n"
+      + "  --http-threads=N     Threads serving tracers (default: 16).");
+    System.exit(2);
+  }
+
+  /** Parses "--name=value" and "--flag" arguments.  */
+  private static HashMap<String, String> parseArgs(final String[] args) {
+    final HashMap<String, String> opts = new HashMap<String, String>();
+    for (final String arg : args) {
+      if (!arg.startsWith("--")) {
+        usage("invalid argument: " + arg);
+      }
+      final int eq = arg.indexOf('=');
+      if (eq < 0) {
+        opts.put(arg.substring(2), "");
+      } else {
+        opts.put(arg.substring(2, eq), arg.substring(eq + 1));
+      }
+    }
+    return opts;
+  }
+
+  private static boolean getFlag(final HashMap<String, String> opts,
+                                 final String name) {
+    final String value = opts.remove(name);
+    if (value != null && !value.isEmpty()) {
+      usage("--" + name + " doesn't take a value");
+    }
+    return value != null;
+  }
+
+  private static long getLong(final HashMap<String, String> opts,
+                              final String name, final long dflt) {
+    final String value = opts.remove(name);
+    if (value == null) {
+      return dflt;
+    }
+    long n = 0;
+    try {
+      n = Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      usage("--" + name + " must be a number: " + value);
+    }
+    if (n <= 0) {
+      usage("--" + name + " must be strictly positive: " + value);
+    }
+    return n;
+  }
+
+  public static void main(final String[] args) throws IOException {
+    final HashMap<String, String> opts = parseArgs(args);
+    final int port = (int) getLong(opts, "port", 9201);
+    String server = opts.remove("server");
+    if (server == null) {
+      server = "localhost:9200";
+    }
+    String index = opts.remove("index");
+    if (index == null) {
+      index = "droopy";
+    } else if (index.isEmpty() || index.indexOf('*') >= 0) {
+      usage("invalid --index: " + index);
+    }
+    final int batch_items = (int) getLong(opts, "batch-items", 5000);
+    final long batch_bytes = getLong(opts, "batch-bytes", 16 << 20);
+    final long linger_ms = getLong(opts, "linger-ms", 250);
+    final long buffer_bytes = getLong(opts, "buffer-bytes", 256 << 20);
+    final long offer_timeout_ms = getLong(opts, "offer-timeout-ms", 1000);
+    final int writers = (int) getLong(opts, "writers", 2);
+    final int http_threads = (int) getLong(opts, "http-threads", 16);
+    final boolean compact = getFlag(opts, "compact");
+    final boolean rollups = getFlag(opts, "rollups");
+    final boolean time_buckets = getFlag(opts, "time-buckets");
+    final long bucket_grace_ms = getLong(opts, "bucket-grace-ms", 60000);
+    final int max_buckets = (int) getLong(opts, "max-buckets", 100000);
+    final int topk = (int) getLong(opts, "topk", 20);
+    final int sample = (int) getLong(opts, "sample", 0);
+    final long sample_slow_ms = getLong(opts, "sample-slow-ms", 1000);
+    final int sample_max_resources = (int) getLong(opts, "sample-max-resources", 100000);
+    final String route_rules = opts.remove("route-rules");
+    final boolean routes = getFlag(opts, "routes") || route_rules != null
+      || time_buckets || sample > 0;
+    final int max_routes = (int) getLong(opts, "max-routes", 10000);
+    if (!opts.isEmpty()) {
+      usage("unknown options: " + opts.keySet());
+    }
+
+    if (compact) {
+      putCompactTemplate(server, index);
+    }
+    if (routes || rollups) {
+      putSummaryTemplate(server, index);
+    }
+    List<String[]> rules = routes ? new ArrayList<String[]>(0) : null;
+    if (route_rules != null) {
+      try {
+        rules = RouteNormalizer.readRules(route_rules);
+      } catch (IllegalArgumentException e) {
+        usage(e.getMessage());
+      }
+    }
+    final IngestServer ingest =
+      new IngestServer(new BulkQueue(buffer_bytes), offer_timeout_ms,
+                       compact, rollups, rules, max_routes);
+    if (time_buckets) {
+      ingest.buckets = new TimeBuckets(ingest.queue, ingest.stats,
+                                       bucket_grace_ms, max_buckets, topk);
+      ingest.buckets.start();
+    }
+    if (sample > 0) {
+      ingest.sampler = new Sampler(ingest.queue, ingest.stats, sample,
+                                   sample_slow_ms, sample_max_resources);
+      ingest.sampler.start();
+    }
+    for (int i = 0; i < writers; i++) {
+      new BulkWriter(server, ingest.queue, ingest.stats,
+                     batch_items, batch_bytes, linger_ms).start();
+    }
+    final HttpServer http = HttpServer.create(new InetSocketAddress(port), 1024);
+    http.createContext("/", ingest.new Handler());
+    http.setExecutor(Executors.newFixedThreadPool(http_threads));
+    http.start();
+    LOG.info("Listening on port " + port + ", writing to " + server);
+  }
+
+  /**
+   * Tells ES not to index the compact traces.
+   * Otherwise ES would try to analyze the base64 blobs as text.  This is
+   * only best effort, if it fails the traces are still readable.
+   * @param server The ES server.
+   * @param index Base name of the indices, the template only applies to
+   * the monthly indices "index-YYYYMM".
+   */
+  private static void putCompactTemplate(final String server, final String index) {
+    putTemplate(server, index, "compact", "compact traces",
+                "\"trace\":{\"properties\":{\"compact\":{\"type\":\"binary\"}}},"
+                + "\"fulltrace\":{\"properties\":{\"compact\":{\"type\":\"binary\"}}}");
+  }
+
+  /**
+   * Tells ES not to analyze the strings we add to the summaries.
+   * Otherwise a route like "/users/{id}" would be split into "users" and
+   * "id", and the viewer's {@code terms_stats} facets would group the
+   * traces by those words instead of by route.  Like the other templates,
+   * it only applies to the indices created from now on.
+   * @param server The ES server.
+   * @param index Base name of the indices.
+   */
+  private static void putSummaryTemplate(final String server, final String index) {
+    putTemplate(server, index, "summary", "summaries",
+                "\"summary\":{\"properties\":{"
+                + "\"route\":{\"type\":\"string\",\"index\":\"not_analyzed\"},"
+                + "\"top_backend\":{\"type\":\"string\",\"index\":\"not_analyzed\"}}}");
+  }
+
+  /**
+   * Installs an index template, on a best effort basis.
+   * @param server The ES server.
+   * @param index Base name of the indices, the template only applies to
+   * the monthly indices "index-YYYYMM".
+   * @param name Name of the template, after the name of the index.
+   * @param what What the template is for, for the logs.
+   * @param mappings The mappings of the template, without the braces.
+   */
+  private static void putTemplate(final String server, final String index,
+                                  final String name, final String what,
+                                  final String mappings) {
+    final String template = "{\"template\":" + Json.toString(index + "-*")
+      + ",\"order\":1,\"mappings\":{" + mappings + "}}";
+    final byte[] body = template.getBytes(Json.UTF8);
+    try {
+      final HttpURLConnection conn = (HttpURLConnection)
+        new URL("http://" + server + "/_template/" + index + '_' + name)
+        .openConnection();
+      conn.setRequestMethod("PUT");
+      conn.setDoOutput(true);
+      conn.setConnectTimeout(5000);
+      conn.setReadTimeout(10000);
+      final OutputStream out = conn.getOutputStream();
+      try {
+        out.write(body);
+      } finally {
+        out.close();
+      }
+      if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+        LOG.warning("Failed to install the template for " + what + ": "
+                    + conn.getResponseCode() + ' ' + conn.getResponseMessage()
+                    + '\n' + BulkWriter.readFully(conn.getErrorStream()));
+      } else {
+        BulkWriter.readFully(conn.getInputStream());
+      }
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Failed to install the template for " + what, e);
+    }
+  }
+
+  /** Dispatches the HTTP requests we get.  */
+  private final class Handler implements HttpHandler {
+    public void handle(final HttpExchange exchange) throws IOException {
+      try {
+        final String method = exchange.getRequestMethod();
+        final String path = exchange.getRequestURI().getPath();
+        if (path.equals("/_bulk") && method.equals("POST")) {
+          handleBulk(exchange);
+        } else if (path.equals("/_cluster/health")) {
+          respond(exchange, 200, health());
+        } else if (path.equals("/_droopy/stats")) {
+          respond(exchange, 200, stats.snapshot(queue));
+        } else if (path.equals("/_droopy/routes") && routes != null) {
+          respond(exchange, 200, routes.toJson(1000));
+        } else {
+          respond(exchange, 404, error("No handler for " + method + ' ' + path));
+        }
+      } catch (Exception e) {
+        LOG.log(Level.WARNING, "Unexpected exception while handling "
+                + exchange.getRequestURI(), e);
+        respond(exchange, 500, error(e.toString()));
+      } finally {
+        exchange.close();
+      }
+    }
+  }
+
+  private void handleBulk(final HttpExchange exchange) throws IOException {
+    final long start = System.currentTimeMillis();
+    stats.requests.incrementAndGet();
+    final byte[] raw = BulkWriter.readBytes(exchange.getRequestBody());
+    stats.bytes_received.addAndGet(raw.length);
+    final String body = new String(raw, Json.UTF8);
+    List<BulkItem> items;
+    try {
+      items = BulkItem.parse(body);
+    } catch (IllegalArgumentException e) {
+      stats.requests_invalid.incrementAndGet();
+      respond(exchange, 400, error(e.getMessage()));
+      return;
+    }
+    // Must be done before compacting the traces.
+    final List<Counted> counted = analyze(items);
+    if (compact) {
+      compact(items);
+    }
+    final List<BulkItem> received = items;
+    Sampler.Batch sampled = null;
+    if (sampler != null) {
+      sampled = sampler.sample(items);
+      items = sampled.items;
+    }
+    boolean queued;
+    try {
+      queued = queue.offer(items, offer_timeout_ms);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      queued = false;
+    }
+    if (!queued) {
+      stats.requests_rejected.incrementAndGet();
+      respond(exchange, 503, error("Ingest queue full, try again later"));
+      return;
+    }
+    stats.items_received.addAndGet(received.size());
+    // Only count and sample the traces now that they're queued, otherwise
+    // those the tracers retry after a 503 would be counted again.
+    if (sampled != null) {
+      sampler.record(sampled);
+    }
+    for (final Counted trace : counted) {
+      if (trace.route != null) {
+        routes.count(trace.route);
+      }
+      if (buckets != null) {
+        buckets.add(trace.index, trace.summary, trace.trace);
+      }
+    }
+
+    // Acknowledge every item the way ES would, even those we didn't keep.
+    final ArrayList<Object> results = new ArrayList<Object>(received.size());
+    for (final BulkItem item : received) {
+      final LinkedHashMap<String, Object> result = new LinkedHashMap<String, Object>(5);
+      result.put("_index", item.index());
+      result.put("_type", item.type());
+      result.put("_id", item.id());
+      result.put("ok", true);
+      final LinkedHashMap<String, Object> action = new LinkedHashMap<String, Object>(1);
+      action.put("index", result);
+      results.add(action);
+    }
+    final LinkedHashMap<String, Object> resp = new LinkedHashMap<String, Object>(2);
+    resp.put("took", System.currentTimeMillis() - start);
+    resp.put("items", results);
+    respond(exchange, 200, resp);
+  }
+
+  /**
+   * A trace to count in the route dictionary and its time buckets once
+   * it's been queued.
+   */
+  private static final class Counted {
+    final String index;
+    final Map<String, Object> summary;
+    final Map<String, Object> trace;
+    /** The route of the trace, or {@code null}.  */
+    final String route;
+
+    Counted(final String index, final Map<String, Object> summary,
+            final Map<String, Object> trace, final String route) {
+      this.index = index;
+      this.summary = summary;
+      this.trace = trace;
+      this.route = route;
+    }
+  }
+
+  /**
+   * Adds the route and the rollups to the traces in the given batch.
+   * droopytrace sends the summary of a trace in the same batch as the
+   * trace itself, so we can update both.
+   * @return The traces to count in the route dictionary and the time
+   * buckets, if any.
+   */
+  private List<Counted> analyze(final List<BulkItem> items) {
+    final ArrayList<Counted> counted = new ArrayList<Counted>(0);
+    if (routes == null && !rollups) {
+      return counted;  // Don't parse anything, --time-buckets implies routes.
+    }
+    final HashMap<String, BulkItem> summaries = new HashMap<String, BulkItem>();
+    for (final BulkItem item : items) {
+      if ("summary".equals(item.type())) {
+        summaries.put(item.index() + '/' + item.id(), item);
+      }
+    }
+    for (final BulkItem item : items) {
+      if (!"trace".equals(item.type())) {
+        continue;
+      }
+      final BulkItem summary_item = summaries.get(item.index() + '/' + item.id());
+      Map<String, Object> trace = null;
+      Map<String, Object> summary = null;
+      try {
+        if (summary_item != null) {
+          summary = summary_item.parseSource();
+        }
+        // Don't parse the trace if we only need the summary.
+        if (summary == null || rollups || buckets != null) {
+          trace = item.parseSource();
+        }
+      } catch (IllegalArgumentException e) {
+        continue;  // Let ES reject it.
+      }
+      // If the trace isn't split, its "summary" is the trace itself.
+      final Map<String, Object> doc = summary != null ? summary : trace;
+      final String resource = routes == null ? null : Json.getString(doc, "resource");
+      final String route = resource == null ? null : routes.route(resource);
+      if (route != null) {
+        doc.put("route", route);
+      }
+      if (buckets != null || route != null) {
+        counted.add(new Counted(item.index(), doc, trace, route));
+      }
+      if (rollups) {
+        Rollups.add(summary != null ? summary : new HashMap<String, Object>(), trace);
+      }
+      if (rollups || summary == null && resource != null) {
+        item.setSource(Json.toString(trace));
+      }
+      if (summary != null && (rollups || resource != null)) {
+        summary_item.setSource(Json.toString(summary));
+      }
+    }
+    return counted;
+  }
+
+  /** Replaces the traces in the given batch by their compact form.  */
+  private void compact(final List<BulkItem> items) {
+    for (final BulkItem item : items) {
+      final String source = item.source();
+      final String compacted = TraceCodec.compact(item.type(), source);
+      if (compacted != null) {
+        item.setSource(compacted);
+        stats.compact_bytes_in.addAndGet(source.length());
+        stats.compact_bytes_out.addAndGet(compacted.length());
+      }
+    }
+  }
+
+  /** Returns our health, in a format similar to ES's.  */
+  private Map<String, Object> health() {
+    final LinkedHashMap<String, Object> health = new LinkedHashMap<String, Object>();
+    health.put("cluster_name", "droopy-ingest");
+    // Yellow when the buffer is more than half full, we're falling behind.
+    health.put("status", queue.bytes() * 2 > queue.capacity() ? "yellow" : "green");
+    health.put("queue_depth", queue.depth());
+    return health;
+  }
+
+  private static Map<String, Object> error(final String msg) {
+    final LinkedHashMap<String, Object> error = new LinkedHashMap<String, Object>(1);
+    error.put("error", msg);
+    return error;
+  }
+
+  private static void respond(final HttpExchange exchange, final int status,
+                              final Map<String, Object> json) throws IOException {
+    final byte[] body = Json.toString(json).getBytes(Json.UTF8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+    exchange.sendResponseHeaders(status, body.length);
+    final OutputStream out = exchange.getResponseBody();
+    try {
+      out.write(body);
+    } finally {
+      out.close();
+    }
+  }
+
+}
@@ -0,0 +1,371 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package ingest;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimalist JSON parser and serializer.
+ * <p>
+ * JSON objects are parsed into {@link Map}s (which preserve the order of the
+ * fields), arrays into {@link List}s, integers into {@link Long}s, other
+ * numbers into {@link Double}s, and then {@link String}s, {@link Boolean}s
+ * and {@code null}.  Serialization accepts the same types, plus any other
+ * kind of {@link Number}.
+ * <p>
+ * We only need to deal with the documents produced by droopytrace, so this
+ * avoids pulling a dependency just for that.
+ */
+public final class Json {
+
+  /** JSON is always UTF-8 as far as we're concerned.  */
+  public static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final String text;
+  private int pos;
+
+  private Json(final String text) {
+    this.text = text;
+  }
+
+  /**
+   * Parses the given JSON text.
+   * @throws IllegalArgumentException if the text isn't valid JSON.
+   */
+  public static Object parse(final String text) {
+    final Json parser = new Json(text);
+    final Object value = parser.parseValue();
+    parser.skipWhitespace();
+    if (parser.pos != text.length()) {
+      throw parser.error("trailing garbage");
+    }
+    return value;
+  }
+
+  /**
+   * Parses the given JSON text, which must be an object.
+   * @throws IllegalArgumentException if the text isn't a valid JSON object.
+   */
+  @SuppressWarnings("unchecked")
+  public static Map<String, Object> parseObject(final String text) {
+    final Object value = parse(text);
+    if (!(value instanceof Map)) {
+      throw new IllegalArgumentException("not a JSON object: " + text);
+    }
+    return (Map<String, Object>) value;
+  }
+
+  private IllegalArgumentException error(final String msg) {
+    return new IllegalArgumentException(msg + " at offset " + pos + " in: "
+                                        + (text.length() > 200
+                                           ? text.substring(0, 200) + "..."
+                                           : text));
+  }
+
+  private void skipWhitespace() {
+    while (pos < text.length()) {
+      final char c = text.charAt(pos);
+      if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+        break;
+      }
+      pos++;
+    }
+  }
+
+  private Object parseValue() {
+    skipWhitespace();
+    if (pos >= text.length()) {
+      throw error("unexpected end of input");
+    }
+    final char c = text.charAt(pos);
+    switch (c) {
+      case '{': return parseMap();
+      case '[': return parseList();
+      case '"': return parseString();
+      case 't': expect("true"); return Boolean.TRUE;
+      case 'f': expect("false"); return Boolean.FALSE;
+      case 'n': expect("null"); return null;
+      default:
+        if (c == '-' || (c >= '0' && c <= '9')) {
+          return parseNumber();
+        }
+        throw error("unexpected character '" + c + "'");
+    }
+  }
+
+  private void expect(final String word) {
+    if (!text.startsWith(word, pos)) {
+      throw error("expected " + word);
+    }
+    pos += word.length();
+  }
+
+  private Map<String, Object> parseMap() {
+    final LinkedHashMap<String, Object> map = new LinkedHashMap<String, Object>();
+    pos++;  // Skip the `{'.
+    skipWhitespace();
+    if (pos < text.length() && text.charAt(pos) == '}') {
+      pos++;
+      return map;
+    }
+    while (true) {
+      skipWhitespace();
+      if (pos >= text.length() || text.charAt(pos) != '"') {
+        throw error("expected a string");
+      }
+      final String key = parseString();
+      skipWhitespace();
+      if (pos >= text.length() || text.charAt(pos) != ':') {
+        throw error("expected ':'");
+      }
+      pos++;
+      map.put(key, parseValue());
+      skipWhitespace();
+      if (pos >= text.length()) {
+        throw error("unterminated object");
+      }
+      final char c = text.charAt(pos++);
+      if (c == '}') {
+        return map;
+      } else if (c != ',') {
+        throw error("expected ',' or '}'");
+      }
+    }
+  }
+
+  private List<Object> parseList() {
+    final ArrayList<Object> list = new ArrayList<Object>();
+    pos++;  // Skip the `['.
+    skipWhitespace();
+    if (pos < text.length() && text.charAt(pos) == ']') {
+      pos++;
+      return list;
+    }
+    while (true) {
+      list.add(parseValue());
+      skipWhitespace();
+      if (pos >= text.length()) {
+        throw error("unterminated array");
+      }
+      final char c = text.charAt(pos++);
+      if (c == ']') {
+        return list;
+      } else if (c != ',') {
+        throw error("expected ',' or ']'");
+      }
+    }
+  }
+
+  private String parseString() {
+    pos++;  // Skip the opening quote.
+    StringBuilder buf = null;  // Only allocated if we see escape sequences.
+    int start = pos;
+    while (pos < text.length()) {
+      final char c = text.charAt(pos);
+      if (c == '"') {
+        final String s;
+        if (buf == null) {
+          s = text.substring(start, pos);
+        } else {
+          s = buf.append(text, start, pos).toString();
+        }
+        pos++;
+        return s;
+      } else if (c == '\\') {
+        if (buf == null) {
+          buf = new StringBuilder();
+        }
+        buf.append(text, start, pos);
+        if (++pos >= text.length()) {
+          break;
+        }
+        final char e = text.charAt(pos++);
+        switch (e) {
+          case '"': case '\\': case '/': buf.append(e); break;
+          case 'b': buf.append('\b'); break;
+          case 'f': buf.append('\f'); break;
+          case 'n': buf.append('\n'); break;
+          case 'r': buf.append('\r'); break;
+          case 't': buf.append('\t'); break;
+          case 'u':
+            if (pos + 4 > text.length()) {
+              throw error("truncated unicode escape");
+            }
+            try {
+              buf.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+            } catch (NumberFormatException ex) {
+              throw error("invalid unicode escape");
+            }
+            pos += 4;
+            break;
+          default:
+            throw error("invalid escape sequence '\\" + e + "'");
+        }
+        start = pos;
+      } else {
+        pos++;
+      }
+    }
+    throw error("unterminated string");
+  }
+
+  private Number parseNumber() {
+    final int start = pos;
+    boolean integral = true;
+    if (text.charAt(pos) == '-') {
+      pos++;
+    }
+    while (pos < text.length()) {
+      final char c = text.charAt(pos);
+      if (c >= '0' && c <= '9') {
+        pos++;
+      } else if (c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-') {
+        integral = false;
+        pos++;
+      } else {
+        break;
+      }
+    }
+    final String num = text.substring(start, pos);
+    try {
+      if (integral) {
+        return Long.parseLong(num);
+      }
+      return Double.parseDouble(num);
+    } catch (NumberFormatException e) {
+      throw error("invalid number " + num);
+    }
+  }
+
+  // ------------- //
+  // Serialization //
+  // ------------- //
+
+  /** Serializes the given value to JSON.  */
+  public static String toString(final Object value) {
+    final StringBuilder buf = new StringBuilder();
+    append(buf, value);
+    return buf.toString();
+  }
+
+  /** Serializes the given value to JSON in the given buffer.  */
+  public static void append(final StringBuilder buf, final Object value) {
+    if (value == null) {
+      buf.append("null");
+    } else if (value instanceof String) {
+      appendString(buf, (String) value);
+    } else if (value instanceof Map) {
+      buf.append('{');
+      boolean first = true;
+      for (final Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+        if (!first) {
+          buf.append(',');
+        }
+        first = false;
+        appendString(buf, e.getKey().toString());
+        buf.append(':');
+        append(buf, e.getValue());
+      }
+      buf.append('}');
+    } else if (value instanceof List) {
+      buf.append('[');
+      boolean first = true;
+      for (final Object o : (List<?>) value) {
+        if (!first) {
+          buf.append(',');
+        }
+        first = false;
+        append(buf, o);
+      }
+      buf.append(']');
+    } else if (value instanceof Double || value instanceof Float) {
+      final double d = ((Number) value).doubleValue();
+      if (Double.isNaN(d) || Double.isInfinite(d)) {
+        buf.append("null");  // JSON doesn't do NaN / Infinity.
+      } else if (d == Math.rint(d) && Math.abs(d) < 1e15) {
+        buf.append((long) d);  // Avoid the useless ".0".
+      } else {
+        buf.append(d);
+      }
+    } else if (value instanceof Number || value instanceof Boolean) {
+      buf.append(value);
+    } else {
+      throw new IllegalArgumentException("Can't serialize a "
+                                         + value.getClass().getName()
+                                         + " to JSON: " + value);
+    }
+  }
+
+  private static void appendString(final StringBuilder buf, final String s) {
+    buf.append('"');
+    final int n = s.length();
+    for (int i = 0; i < n; i++) {
+      final char c = s.charAt(i);
+      switch (c) {
+        case '"': buf.append("\\\""); break;
+        case '\\': buf.append("\\\\"); break;
+        case '\n': buf.append("\\n"); break;
+        case '\r': buf.append("\\r"); break;
+        case '\t': buf.append("\\t"); break;
+        default:
+          if (c < 0x20) {
+            buf.append("\\u00");
+            buf.append(Character.forDigit(c >> 4, 16));
+            buf.append(Character.forDigit(c & 0xF, 16));
+          } else {
+            buf.append(c);
+          }
+      }
+    }
+    buf.append('"');
+  }
+
+  // ------- //
+  // Helpers //
+  // ------- //
+
+  /** Returns the given field as a double, or {@code dflt} if missing.  */
+  public static double getDouble(final Map<String, Object> map,
+                                 final String field, final double dflt) {
+    final Object value = map.get(field);
+    return value instanceof Number ? ((Number) value).doubleValue() : dflt;
+  }
+
+  /** Returns the given field as a string, or {@code null} if missing.  */
+  public static String getString(final Map<String, Object> map,
+                                 final String field) {
+    final Object value = map.get(field);
+    return value instanceof String ? (String) value : null;
+  }
+
+  /** Returns the given field as an object, or {@code null} if missing.  */
+  @SuppressWarnings("unchecked")
+  public static Map<String, Object> getObject(final Map<String, Object> map,
+                                              final String field) {
+    final Object value = map.get(field);
+    return value instanceof Map ? (Map<String, Object>) value : null;
+  }
+
+  /** Returns the given field as an array, or {@code null} if missing.  */
+  @SuppressWarnings("unchecked")
+  public static List<Object> getList(final Map<String, Object> map,
+                                     final String field) {
+    final Object value = map.get(field);
+    return value instanceof List ? (List<Object>) value : null;
+  }
+
+}
@@ -0,0 +1,251 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package ingest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact, mergeable summary of a distribution of latencies.
+ * <p>
+ * Latencies (in milliseconds) are counted in logarithmic buckets: bucket
+ * {@code i} holds the values in {@code (GAMMA^(i-1), GAMMA^i]}.  Any
+ * quantile can then be estimated within {@code (GAMMA - 1) / 2}, i.e. 1%,
+ * of its true value, whatever the shape of the distribution.  Two sketches
+ * are merged by adding their buckets, so the sketches of small time
+ * buckets can be combined into the sketch of a long range, which isn't
+ * possible with precomputed percentiles.
+ * <p>
+ * From 1&micro;s to an hour, that's at most about 1100 buckets, and in
+ * practice a few dozens are used.  In JSON a sketch looks like:
+ * <pre>
+ * {"gamma": 1.02, "count": 42, "min": 0.8, "max": 250.1,
+ *  "b": [-11, 12, 13, 279], "c": [1, 30, 10, 1]}
+ * </pre>
+ * where {@code b} are the indices of the non-empty buckets, in ascending
+ * order, and {@code c} their counts.
+ * <p>
+ * This class isn't thread-safe.
+ */
+public final class LatencySketch {
+
+  /** Ratio between the bounds of consecutive buckets.  */
+  public static final double GAMMA = 1.02;
+
+  private static final double LOG_GAMMA = Math.log(GAMMA);
+
+  /** Values smaller than this (in ms) are counted as this.  */
+  private static final double MIN_VALUE = 1e-3;
+
+  /** Index of the bucket of {@code counts[0]}.  */
+  private int offset;
+  /** Count of each bucket, starting from {@link #offset}.  */
+  private long[] counts;
+  private long count;
+  private double min = Double.POSITIVE_INFINITY;
+  private double max = Double.NEGATIVE_INFINITY;
+
+  public LatencySketch() {
+  }
+
+  /** Returns the index of the bucket of a value.  */
+  static int bucket(final double value) {
+    return (int) Math.ceil(Math.log(Math.max(value, MIN_VALUE)) / LOG_GAMMA);
+  }
+
+  /** Returns the value that represents a bucket.  */
+  static double value(final int bucket) {
+    // Halfway between the bounds, in terms of relative error.
+    return 2 * Math.pow(GAMMA, bucket) / (GAMMA + 1);
+  }
+
+  /** Adds a latency, in milliseconds.  Negative and NaN values are ignored. */
+  public void add(final double value) {
+    if (!(value >= 0)) {
+      return;
+    }
+    increment(bucket(value), 1);
+    count++;
+    if (value < min) {
+      min = value;
+    }
+    if (value > max) {
+      max = value;
+    }
+  }
+
+  /** Adds all the latencies of another sketch to this one.  */
+  public void merge(final LatencySketch other) {
+    if (other.count == 0) {
+      return;
+    }
+    for (int i = 0; i < other.counts.length; i++) {
+      if (other.counts[i] != 0) {
+        increment(other.offset + i, other.counts[i]);
+      }
+    }
+    count += other.count;
+    min = Math.min(min, other.min);
+    max = Math.max(max, other.max);
+  }
+
+  private void increment(final int bucket, final long n) {
+    if (counts == null) {
+      offset = bucket;
+      counts = new long[16];
+    } else if (bucket < offset) {
+      // Grow downwards, with some slack since the next value may be lower.
+      final int shift = Math.max(offset - bucket, 16);
+      final long[] grown = new long[counts.length + shift];
+      System.arraycopy(counts, 0, grown, shift, counts.length);
+      counts = grown;
+      offset -= shift;
+    } else if (bucket - offset >= counts.length) {
+      counts = Arrays.copyOf(counts, Math.max(bucket - offset + 1,
+                                              counts.length * 2));
+    }
+    counts[bucket - offset] += n;
+  }
+
+  /** Returns the number of latencies in this sketch.  */
+  public long count() {
+    return count;
+  }
+
+  /** Returns the smallest latency, or NaN if the sketch is empty.  */
+  public double min() {
+    return count == 0 ? Double.NaN : min;
+  }
+
+  /** Returns the largest latency, or NaN if the sketch is empty.  */
+  public double max() {
+    return count == 0 ? Double.NaN : max;
+  }
+
+  /**
+   * Estimates a quantile.
+   * @param q The quantile, between 0 and 1 (e.g. 0.99 for the p99).
+   * @return The estimate, or NaN if the sketch is empty.
+   */
+  public double quantile(final double q) {
+    if (count == 0) {
+      return Double.NaN;
+    } else if (q <= 0) {
+      return min;
+    } else if (q >= 1) {
+      return max;
+    }
+    final long rank = (long) (q * (count - 1));
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen > rank) {
+        // The estimate can't be outside of what we've actually seen.
+        return Math.min(Math.max(value(offset + i), min), max);
+      }
+    }
+    return max;
+  }
+
+  /** Returns the JSON form of this sketch, for {@link Json#toString}.  */
+  public Map<String, Object> toJson() {
+    final ArrayList<Object> buckets = new ArrayList<Object>();
+    final ArrayList<Object> bucket_counts = new ArrayList<Object>();
+    if (counts != null) {
+      for (int i = 0; i < counts.length; i++) {
+        if (counts[i] != 0) {
+          buckets.add(offset + i);
+          bucket_counts.add(counts[i]);
+        }
+      }
+    }
+    final LinkedHashMap<String, Object> json = new LinkedHashMap<String, Object>(6);
+    json.put("gamma", GAMMA);
+    json.put("count", count);
+    if (count > 0) {
+      json.put("min", min);
+      json.put("max", max);
+    }
+    json.put("b", buckets);
+    json.put("c", bucket_counts);
+    return json;
+  }
+
+  /**
+   * Reads back a sketch from its JSON form.
+   * @throws IllegalArgumentException if it's not a valid sketch.
+   */
+  public static LatencySketch fromJson(final Object json) {
+    if (!(json instanceof Map)) {
+      throw new IllegalArgumentException("Not a sketch: " + Json.toString(json));
+    }
+    @SuppressWarnings("unchecked")
+    final Map<String, Object> map = (Map<String, Object>) json;
+    if (Json.getDouble(map, "gamma", GAMMA) != GAMMA) {
+      throw new IllegalArgumentException("Unsupported gamma in sketch: "
+                                         + map.get("gamma"));
+    }
+    final List<Object> buckets = Json.getList(map, "b");
+    final List<Object> bucket_counts = Json.getList(map, "c");
+    if (buckets == null || bucket_counts == null
+        || buckets.size() != bucket_counts.size()) {
+      throw new IllegalArgumentException("Invalid buckets in sketch: "
+                                         + Json.toString(json));
+    }
+    final LatencySketch sketch = new LatencySketch();
+    for (int i = 0; i < buckets.size(); i++) {
+      final Object b = buckets.get(i);
+      final Object c = bucket_counts.get(i);
+      if (!(b instanceof Number) || !(c instanceof Number)
+          || ((Number) c).longValue() < 0) {
+        throw new IllegalArgumentException("Invalid bucket in sketch: "
+                                           + Json.toString(json));
+      }
+      final long n = ((Number) c).longValue();
+      if (n != 0) {
+        sketch.increment(((Number) b).intValue(), n);
+        sketch.count += n;
+      }
+    }
+    if (sketch.count > 0) {
+      sketch.min = Json.getDouble(map, "min", value(sketch.firstBucket()));
+      sketch.max = Json.getDouble(map, "max", value(sketch.lastBucket()));
+    }
+    return sketch;
+  }
+
+  private int firstBucket() {
+    int i = 0;
+    while (counts[i] == 0) {
+      i++;
+    }
+    return offset + i;
+  }
+
+  private int lastBucket() {
+    int i = counts.length - 1;
+    while (counts[i] == 0) {
+      i--;
+    }
+    return offset + i;
+  }
+
+  public String toString() {
+    return "LatencySketch(count=" + count + ", p50=" + quantile(0.5)
+      + ", p99=" + quantile(0.99) + ", max=" + max() + ')';
+  }
+
+}
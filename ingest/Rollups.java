@@ -0,0 +1,203 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package ingest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import viewer.TimeSpent;
+
+/**
+ * Precomputes what the viewer needs to render a trace.
+ * <p>
+ * Without this, the viewer sorts {@code syscalls_times}, sums the duration
+ * of every backend call and sorts the backends every time a trace is
+ * expanded.  Here we do it once, when the trace is stored:
+ * <ul>
+ * <li>{@code syscalls_times} is sorted by descending time,</li>
+ * <li>{@code backend_reqs} is sorted by descending total time,</li>
+ * <li>a {@code rollups} object is added to the trace, with the totals and
+ * where the long tail of negligible items starts (see below, and
+ * {@link TimeSpent#countImportant}),</li>
+ * <li>the summary gets the total time spent with backends, and the backend
+ * we spent the most time with, so traces can be sorted and faceted on
+ * these.</li>
+ * </ul>
+ * The {@code rollups} object of the trace looks like this:
+ * <pre>
+ * {"syscalls_time": 12.3, "important_syscalls": 4,
+ *  "backends_time": 45.6, "backend_calls": 78, "important_backends": 2,
+ *  "backends": [{"total_time": 40.1, "num_calls": 70, "important_calls": 5},
+ *               ...]}
+ * </pre>
+ * where {@code backends} is in the same order as {@code backend_reqs}.
+ * The {@code backend*} fields are only there if {@code backend_reqs} is.
+ * The shape of the lists is left untouched, so {@link TraceCodec} can still
+ * encode them.
+ */
+public final class Rollups {
+
+  private Rollups() {
+    // Not instantiable.
+  }
+
+  /**
+   * Adds the rollups of a trace.
+   * Traces that already have rollups are left alone.
+   * @param summary The summary document of the trace, can be the same map
+   * as {@code trace} if the trace isn't split.
+   * @param trace The trace document.
+   */
+  @SuppressWarnings("unchecked")
+  public static void add(final Map<String, Object> summary,
+                         final Map<String, Object> trace) {
+    if (trace.containsKey("rollups")) {
+      return;
+    }
+    final LinkedHashMap<String, Object> rollups = new LinkedHashMap<String, Object>();
+
+    final Object times = trace.get("syscalls_times");
+    if (times instanceof List) {
+      final List<Object> list = (List<Object>) times;
+      Collections.sort(list, BY_TIME);
+      double total = 0;
+      for (final Object entry : list) {
+        total += number(entry, "time");
+      }
+      rollups.put("syscalls_time", round(total));
+      rollups.put("important_syscalls", TimeSpent.countImportant(new TimeSpent.Times() {
+        public int size() {
+          return list.size();
+        }
+        public double time(final int i) {
+          return number(list.get(i), "time");
+        }
+      }, total));
+    }
+
+    final Object reqs = trace.get("backend_reqs");
+    if (reqs instanceof List) {
+      final List<Object> list = (List<Object>) reqs;
+      final Backend[] backends = new Backend[list.size()];
+      for (int i = 0; i < backends.length; i++) {
+        backends[i] = new Backend(list.get(i));
+      }
+      Arrays.sort(backends);  // Stable, so ties stay in the same order.
+      double total = 0;
+      long ncalls = 0;
+      final ArrayList<Object> rolled = new ArrayList<Object>(backends.length);
+      for (int i = 0; i < backends.length; i++) {
+        final Backend backend = backends[i];
+        list.set(i, backend.req);
+        total += backend.total_time;
+        ncalls += backend.durations.length;
+        final LinkedHashMap<String, Object> rollup = new LinkedHashMap<String, Object>(4);
+        rollup.put("total_time", round(backend.total_time));
+        rollup.put("num_calls", backend.durations.length);
+        rollup.put("important_calls", backend.importantCalls());
+        rolled.add(rollup);
+      }
+      rollups.put("backends_time", round(total));
+      rollups.put("backend_calls", ncalls);
+      rollups.put("important_backends", TimeSpent.countImportant(new TimeSpent.Times() {
+        public int size() {
+          return backends.length;
+        }
+        public double time(final int i) {
+          return backends[i].total_time;
+        }
+      }, total));
+      rollups.put("backends", rolled);
+
+      summary.put("backend_time", round(total));
+      summary.put("backend_calls", ncalls);
+      if (backends.length > 0) {
+        final Object peer = ((Map<String, Object>) backends[0].req).get("peer");
+        if (peer instanceof String) {
+          summary.put("top_backend", peer);
+          summary.put("top_backend_time", round(backends[0].total_time));
+        }
+      }
+    }
+    trace.put("rollups", rollups);
+  }
+
+  /** Sorts maps by descending {@code time}.  */
+  private static final Comparator<Object> BY_TIME = new Comparator<Object>() {
+    public int compare(final Object a, final Object b) {
+      return Double.compare(number(b, "time"), number(a, "time"));
+    }
+  };
+
+  /** The calls made to a backend, and what we compute about them.  */
+  private static final class Backend implements Comparable<Backend> {
+    final Object req;
+    /** Durations of the calls, in ascending order.  */
+    final double[] durations;
+    final double total_time;
+
+    Backend(final Object req) {
+      this.req = req;
+      final Object calls = req instanceof Map ? ((Map<?, ?>) req).get("calls") : null;
+      if (calls instanceof List) {
+        final List<?> list = (List<?>) calls;
+        durations = new double[list.size()];
+        for (int i = 0; i < durations.length; i++) {
+          durations[i] = number(list.get(i), "duration");
+        }
+      } else {
+        durations = new double[0];
+      }
+      double t = 0;
+      for (final double d : durations) {
+        t += d;
+      }
+      total_time = t;
+      Arrays.sort(durations);
+    }
+
+    /** Returns how many of the slowest calls aren't part of the long tail. */
+    int importantCalls() {
+      return TimeSpent.countImportant(new TimeSpent.Times() {
+        public int size() {
+          return durations.length;
+        }
+        public double time(final int i) {
+          return durations[durations.length - 1 - i];  // Slowest first.
+        }
+      }, total_time);
+    }
+
+    /** Compares in descending order of total time.  */
+    public int compareTo(final Backend other) {
+      return Double.compare(other.total_time, total_time);
+    }
+  }
+
+  /** Returns the given number field of a map, or 0.  */
+  private static double number(final Object map, final String field) {
+    final Object value = map instanceof Map ? ((Map<?, ?>) map).get(field) : null;
+    return value instanceof Number ? ((Number) value).doubleValue() : 0;
+  }
+
+  /** Rounds a time in milliseconds to the microsecond.  */
+  static double round(final double ms) {
+    return Math.round(ms * 1000) / 1000.0;
+  }
+
+}
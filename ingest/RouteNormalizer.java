@@ -0,0 +1,292 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package ingest;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Turns the resources of the requests into routes.
+ * <p>
+ * A resource is a raw URL such as {@code /user/1234/photos?page=2}, so
+ * there are about as many resources as requests, which makes them useless
+ * to group requests by.  The route of this one is {@code /user/{num}/photos}:
+ * <ul>
+ * <li>The query string and fragment are dropped.</li>
+ * <li>If the path matches one of the rules, its route is what the rule
+ * says.  Rules are read from a file with one rule per line: a regular
+ * expression that must match the whole path, whitespace, and the route,
+ * which can refer to groups with {@code $1}.  For instance:
+ * <pre>
+ * # Usernames can't be detected automatically.
+ * /~[^/]+(/.*)?    /~{user}$1
+ * </pre>
+ * The first rule that matches wins.  Empty lines and lines starting with
+ * {@code #} are ignored.</li>
+ * <li>Otherwise, path segments (ignoring their extension) that look like
+ * identifiers are replaced by {@value #NUM} if they're a number,
+ * {@value #UUID} if they're a UUID, and {@value #HEX} if they're a long
+ * hex string, like a hash.</li>
+ * </ul>
+ * We also keep a dictionary of the routes we've seen recently and how many
+ * times, to find which routes need a rule.  It's bounded, the routes that
+ * haven't been seen for the longest time get evicted first.
+ * <p>
+ * This class is thread-safe.
+ */
+final class RouteNormalizer {
+
+  static final String NUM = "{num}";
+  static final String HEX = "{hex}";
+  static final String UUID = "{uuid}";
+
+  /** Hex strings shorter than this are more likely to be words.  */
+  private static final int MIN_HEX_LENGTH = 8;
+
+  private final Pattern[] patterns;
+  private final String[] routes;
+
+  /** Number of times we've seen each route, least recently seen first.  */
+  private final LinkedHashMap<String, long[]> dictionary;
+
+  /**
+   * Constructor.
+   * @param rules Pairs of regular expression and route, see above.
+   * @param max_routes Maximum number of routes to keep in the dictionary.
+   * @param stats Where to record what we do.
+   * @throws IllegalArgumentException if a regular expression is invalid.
+   */
+  RouteNormalizer(final List<String[]> rules, final int max_routes,
+                  final Stats stats) {
+    patterns = new Pattern[rules.size()];
+    routes = new String[rules.size()];
+    for (int i = 0; i < patterns.length; i++) {
+      try {
+        patterns[i] = Pattern.compile(rules.get(i)[0]);
+      } catch (PatternSyntaxException e) {
+        throw new IllegalArgumentException("Invalid route rule: "
+                                           + e.getMessage(), e);
+      }
+      routes[i] = rules.get(i)[1];
+    }
+    dictionary = new LinkedHashMap<String, long[]>(max_routes * 4 / 3 + 1,
+                                                   0.75f, true) {
+      protected boolean removeEldestEntry(final Map.Entry<String, long[]> e) {
+        if (size() <= max_routes) {
+          return false;
+        }
+        stats.routes_evicted.incrementAndGet();
+        return true;
+      }
+    };
+  }
+
+  /**
+   * Reads the rules from a file.
+   * @param path The file to read, see the class description for its format.
+   * @throws IllegalArgumentException if a line is invalid.
+   */
+  static List<String[]> readRules(final String path) throws IOException {
+    final ArrayList<String[]> rules = new ArrayList<String[]>();
+    final BufferedReader in = new BufferedReader(
+      new InputStreamReader(new FileInputStream(path), Json.UTF8));
+    try {
+      String line;
+      int lineno = 0;
+      while ((line = in.readLine()) != null) {
+        lineno++;
+        line = line.trim();
+        if (line.isEmpty() || line.charAt(0) == '#') {
+          continue;
+        }
+        final String[] rule = line.split("\\s+");
+        if (rule.length != 2) {
+          throw new IllegalArgumentException(path + ':' + lineno
+            + ": expected a regexp and a route, found: " + line);
+        }
+        rules.add(rule);
+      }
+    } finally {
+      in.close();
+    }
+    return rules;
+  }
+
+  /**
+   * Counts a route in the dictionary.
+   * This is separate from {@link #route} so that only the traces we end
+   * up keeping are counted.
+   * @param route What {@link #route} returned.
+   */
+  void count(final String route) {
+    synchronized (dictionary) {
+      final long[] count = dictionary.get(route);
+      if (count != null) {
+        count[0]++;
+      } else {
+        dictionary.put(route, new long[] { 1 });
+      }
+    }
+  }
+
+  /**
+   * Returns the route of a resource, without counting it.
+   * @param resource A URL, possibly with a query string.
+   */
+  String route(final String resource) {
+    int end = resource.indexOf('?');
+    final int fragment = resource.indexOf('#');
+    if (fragment >= 0 && (end < 0 || fragment < end)) {
+      end = fragment;
+    }
+    final String path = end < 0 ? resource : resource.substring(0, end);
+    for (int i = 0; i < patterns.length; i++) {
+      final Matcher m = patterns[i].matcher(path);
+      if (m.matches()) {
+        final StringBuffer route = new StringBuffer(path.length());
+        m.appendReplacement(route, routes[i]);
+        return route.toString();
+      }
+    }
+    return detect(path);
+  }
+
+  /** Replaces the path segments that look like identifiers.  */
+  static String detect(final String path) {
+    StringBuilder route = null;  // Only allocated if we change something.
+    int start = 0;
+    final int length = path.length();
+    while (start <= length) {
+      int end = path.indexOf('/', start);
+      if (end < 0) {
+        end = length;
+      }
+      // Look at "1234" in "1234.json".
+      int dot = path.indexOf('.', start);
+      if (dot < 0 || dot > end) {
+        dot = end;
+      }
+      final String placeholder = classify(path, start, dot);
+      if (placeholder != null) {
+        if (route == null) {
+          route = new StringBuilder(length).append(path, 0, start);
+        }
+        route.append(placeholder).append(path, dot, end);
+      } else if (route != null) {
+        route.append(path, start, end);
+      }
+      if (route != null && end < length) {
+        route.append('/');
+      }
+      start = end + 1;
+    }
+    return route == null ? path : route.toString();
+  }
+
+  /**
+   * Returns the placeholder for {@code path[start, end)}, or {@code null}
+   * if it doesn't look like an identifier.
+   */
+  private static String classify(final String path, final int start,
+                                 final int end) {
+    final int length = end - start;
+    if (length == 0) {
+      return null;
+    }
+    boolean digits = true;
+    boolean hex = true;
+    boolean has_digit = false;
+    for (int i = start; i < end; i++) {
+      final char c = path.charAt(i);
+      if (c >= '0' && c <= '9') {
+        has_digit = true;
+        continue;
+      }
+      digits = false;
+      if (!((c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F'))) {
+        hex = false;
+        break;
+      }
+    }
+    if (digits) {
+      return NUM;
+    } else if (hex && has_digit && length >= MIN_HEX_LENGTH) {
+      return HEX;
+    } else if (length == 36 && isUuid(path, start)) {
+      return UUID;
+    }
+    return null;
+  }
+
+  /** Returns whether the 36 characters at {@code start} are a UUID.  */
+  private static boolean isUuid(final String path, final int start) {
+    for (int i = 0; i < 36; i++) {
+      final char c = path.charAt(start + i);
+      if (i == 8 || i == 13 || i == 18 || i == 23) {
+        if (c != '-') {
+          return false;
+        }
+      } else if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f')
+                   || (c >= 'A' && c <= 'F'))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the routes in the dictionary, most frequent first.
+   * @param max How many routes to return, at most.
+   */
+  Map<String, Object> toJson(final int max) {
+    final ArrayList<Map.Entry<String, Long>> entries;
+    synchronized (dictionary) {
+      entries = new ArrayList<Map.Entry<String, Long>>(dictionary.size());
+      for (final Map.Entry<String, long[]> e : dictionary.entrySet()) {
+        entries.add(new AbstractMap.SimpleEntry<String, Long>(e.getKey(),
+                                                              e.getValue()[0]));
+      }
+    }
+    Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+      public int compare(final Map.Entry<String, Long> a,
+                         final Map.Entry<String, Long> b) {
+        return b.getValue().compareTo(a.getValue());
+      }
+    });
+    final LinkedHashMap<String, Object> routes =
+      new LinkedHashMap<String, Object>(Math.min(max, entries.size()));
+    for (final Map.Entry<String, Long> e : entries) {
+      if (routes.size() >= max) {
+        break;
+      }
+      routes.put(e.getKey(), e.getValue());
+    }
+    final LinkedHashMap<String, Object> json = new LinkedHashMap<String, Object>(2);
+    json.put("routes_tracked", entries.size());
+    json.put("routes", routes);
+    return json;
+  }
+
+}
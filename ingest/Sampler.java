@@ -0,0 +1,357 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package ingest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * Decides which traces are worth storing.
+ * <p>
+ * Most requests to a given resource are fast and look alike, so we don't
+ * need to store all of them, whereas we want every slow one.  For each
+ * resource (grouped by route, see {@link RouteNormalizer}), a trace is:
+ * <ul>
+ * <li>always kept if it's the first one we see for this resource;</li>
+ * <li>always kept if it's an outlier: slower than the p99 of the resource
+ * during the previous window (or than {@code slow_ms});</li>
+ * <li>otherwise, it goes in the reservoir of the resource, which keeps a
+ * uniform random sample of at most {@code reservoir} of them per window
+ * (Vitter's algorithm R).  The others are dropped.</li>
+ * </ul>
+ * The summary of every trace we keep gets a {@code sample_weight}: the
+ * number of traces it stands for.  It's 1 for the traces we always keep,
+ * and the number of traces that went through the reservoir divided by the
+ * number it kept otherwise, so summing the weights gives back the true
+ * number of requests.  Counts that must be exact should still come from
+ * {@link TimeBuckets} and {@link Rollups}, which see every trace before
+ * they're sampled.
+ * <p>
+ * The reservoirs are emptied into the queue at the end of each window.
+ * Since the tracers were acknowledged long before, what doesn't fit in the
+ * queue then is retried, and dropped if we keep falling behind.
+ */
+final class Sampler extends Thread {
+
+  private static final Logger LOG = Logger.getLogger(Sampler.class.getName());
+
+  /** How long each reservoir fills up before being written.  */
+  private static final long WINDOW_MS = 10000;
+
+  /** Traces slower than this quantile of their resource are outliers.  */
+  private static final double TAIL = 0.99;
+
+  /**
+   * Minimum number of traces in a window to trust the tail of a resource.
+   * Below that, we use the tail of all the resources together.
+   */
+  private static final long MIN_TAIL_COUNT = 100;
+
+  /** How long we remember a resource that gets no traffic.  */
+  private static final long IDLE_MS = 3600000;
+
+  /** Key under which we sample the resources that don't fit in memory.  */
+  private static final String OTHER = TimeBuckets.OTHER;
+
+  private final BulkQueue queue;
+  private final Stats stats;
+  /** Max number of fast traces to keep per resource per window.  */
+  private final int reservoir;
+  /** Traces at least this slow are always kept, in milliseconds.  */
+  private final double slow_ms;
+  /** Maximum number of resources to keep track of.  */
+  private final int max_resources;
+
+  private final HashMap<String, Resource> resources = new HashMap<String, Resource>();
+  /** Latencies of all the resources in the current window.  */
+  private LatencySketch all = new LatencySketch();
+  /** Tail threshold of all the resources during the previous window.  */
+  private double all_tail = Double.NaN;
+  private final Random random = new Random();
+
+  /** Traces that didn't fit in the queue last time.  */
+  private List<BulkItem> pending = new ArrayList<BulkItem>();
+
+  /**
+   * Constructor.
+   * @param queue The queue in which to put the sampled traces.
+   * @param stats Where to record what we do.
+   * @param reservoir Max number of fast traces to keep per resource every
+   * {@value #WINDOW_MS}ms.
+   * @param slow_ms Traces at least this slow are always kept.
+   * @param max_resources Maximum number of resources to keep track of.
+   * Past this, new resources are sampled together under {@link #OTHER}.
+   */
+  Sampler(final BulkQueue queue, final Stats stats, final int reservoir,
+          final double slow_ms, final int max_resources) {
+    super("Sampler");
+    this.queue = queue;
+    this.stats = stats;
+    this.reservoir = reservoir;
+    this.slow_ms = slow_ms;
+    this.max_resources = max_resources;
+    setDaemon(true);
+  }
+
+  /** The items of one trace: its summary, trace and fulltrace.  */
+  private static final class Trace {
+    final ArrayList<BulkItem> items = new ArrayList<BulkItem>(3);
+    BulkItem summary;
+  }
+
+  /** What we know about one resource.  */
+  private static final class Resource {
+    /** Latencies in the current window.  */
+    LatencySketch latency = new LatencySketch();
+    /** Tail threshold from the previous window, or NaN.  */
+    double tail = Double.NaN;
+    /** Number of fast traces offered to the reservoir in this window.  */
+    long seen;
+    final ArrayList<Trace> sample = new ArrayList<Trace>();
+    long last_seen;
+  }
+
+  /** A trace of a batch and what {@link #sample} decided to do with it.  */
+  private static final class Sampled {
+    final String route;
+    final double end_to_end;
+    final Trace trace;
+    /** {@code true} if it's written now, as opposed to sampled.  */
+    final boolean kept;
+
+    Sampled(final String route, final double end_to_end, final Trace trace,
+            final boolean kept) {
+      this.route = route;
+      this.end_to_end = end_to_end;
+      this.trace = trace;
+      this.kept = kept;
+    }
+  }
+
+  /** What {@link #sample} decided to do with the traces of a batch.  */
+  static final class Batch {
+    /** The items to write now.  */
+    final ArrayList<BulkItem> items;
+    private final ArrayList<Sampled> traces = new ArrayList<Sampled>();
+
+    private Batch(final int size) {
+      items = new ArrayList<BulkItem>(size);
+    }
+  }
+
+  /**
+   * Samples the traces in a batch.
+   * This doesn't change what we know about the resources: the batch must
+   * be {@link #record}ed once its items are queued, so that batches the
+   * tracers retry after a 503 aren't sampled twice.
+   * @param items The items of a {@code _bulk} request.
+   * @return The batch, whose {@code items} are the ones to write now.
+   * Items that aren't part of a trace with a summary are written as-is.
+   * The others may be held until the end of the window, or dropped.
+   */
+  Batch sample(final List<BulkItem> items) {
+    final Batch batch = new Batch(items.size());
+    final ArrayList<BulkItem> keep = batch.items;
+    // droopytrace sends all the items of a trace in the same batch.
+    final LinkedHashMap<String, Trace> traces = new LinkedHashMap<String, Trace>();
+    for (final BulkItem item : items) {
+      final String type = item.type();
+      if (!"summary".equals(type) && !"trace".equals(type)
+          && !"fulltrace".equals(type)) {
+        keep.add(item);
+        continue;
+      }
+      final String key = item.index() + '/' + item.id();
+      Trace trace = traces.get(key);
+      if (trace == null) {
+        trace = new Trace();
+        traces.put(key, trace);
+      }
+      trace.items.add(item);
+      if ("summary".equals(type)) {
+        trace.summary = item;
+      }
+    }
+    for (final Trace trace : traces.values()) {
+      if (trace.summary == null) {
+        keep.addAll(trace.items);
+        continue;
+      }
+      final Map<String, Object> summary;
+      try {
+        summary = trace.summary.parseSource();
+      } catch (IllegalArgumentException e) {
+        keep.addAll(trace.items);  // Let ES reject it.
+        continue;
+      }
+      String route = Json.getString(summary, "route");
+      if (route == null) {
+        route = Json.getString(summary, "resource");
+      }
+      final double end_to_end = Json.getDouble(summary, "end_to_end", Double.NaN);
+      if (route == null || end_to_end != end_to_end) {
+        keep.addAll(trace.items);
+        continue;
+      }
+      final boolean kept = mustKeep(route, end_to_end);
+      if (kept) {
+        summary.put("sample_weight", 1);
+        trace.summary.setSource(Json.toString(summary));
+        keep.addAll(trace.items);
+      }
+      batch.traces.add(new Sampled(route, end_to_end, trace, kept));
+    }
+    return batch;
+  }
+
+  /** Returns the resource to which the given route is counted, or null.  */
+  private Resource resource(final String route) {
+    final Resource resource = resources.get(route);
+    if (resource == null && resources.size() >= max_resources) {
+      return resources.get(OTHER);
+    }
+    return resource;
+  }
+
+  /**
+   * Tells whether a trace must be written right away, because it's the
+   * first one we see for its resource or because it's slow.
+   */
+  private synchronized boolean mustKeep(final String route,
+                                        final double end_to_end) {
+    final Resource resource = resource(route);
+    if (resource == null) {
+      return true;
+    }
+    final double tail = resource.tail == resource.tail ? resource.tail : all_tail;
+    // Until we know what's slow, keep everything.
+    return end_to_end >= slow_ms || !(end_to_end < tail);
+  }
+
+  /**
+   * Accounts for a batch returned by {@link #sample} once it's queued.
+   * The traces that weren't kept go in the reservoir of their resource,
+   * or are dropped.
+   */
+  synchronized void record(final Batch batch) {
+    final long now = System.currentTimeMillis();
+    for (final Sampled sampled : batch.traces) {
+      String key = sampled.route;
+      Resource resource = resources.get(key);
+      if (resource == null && resources.size() >= max_resources) {
+        key = OTHER;
+        resource = resources.get(key);
+      }
+      all.add(sampled.end_to_end);
+      final boolean is_new = resource == null;
+      if (is_new) {
+        resource = new Resource();
+        resources.put(key, resource);
+      }
+      resource.latency.add(sampled.end_to_end);
+      resource.last_seen = now;
+      if (sampled.kept) {
+        (is_new ? stats.traces_new : stats.traces_slow).incrementAndGet();
+        continue;
+      }
+      // Algorithm R: the n-th trace replaces a random one with probability k/n.
+      final long n = ++resource.seen;
+      if (resource.sample.size() < reservoir) {
+        resource.sample.add(sampled.trace);
+      } else {
+        final long i = (long) (random.nextDouble() * n);
+        if (i < reservoir) {
+          resource.sample.set((int) i, sampled.trace);
+        }
+        stats.traces_sampled_out.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Empties the reservoirs and starts a new window.
+   * @param now The current time, in milliseconds.
+   * @return The items of the traces we sampled.
+   */
+  synchronized List<BulkItem> roll(final long now) {
+    final ArrayList<BulkItem> items = new ArrayList<BulkItem>();
+    all_tail = all.count() >= MIN_TAIL_COUNT ? all.quantile(TAIL) : Double.NaN;
+    all = new LatencySketch();
+    final Iterator<Resource> it = resources.values().iterator();
+    while (it.hasNext()) {
+      final Resource resource = it.next();
+      final int kept = resource.sample.size();
+      for (final Trace trace : resource.sample) {
+        setWeight(trace.summary, (double) resource.seen / kept);
+        items.addAll(trace.items);
+      }
+      stats.traces_sampled.addAndGet(kept);
+      resource.sample.clear();
+      resource.seen = 0;
+      resource.tail = resource.latency.count() >= MIN_TAIL_COUNT
+        ? resource.latency.quantile(TAIL) : Double.NaN;
+      resource.latency = new LatencySketch();
+      if (resource.last_seen + IDLE_MS < now) {
+        it.remove();
+      }
+    }
+    return items;
+  }
+
+  private static void setWeight(final BulkItem summary, final double weight) {
+    final Map<String, Object> source = summary.parseSource();
+    source.put("sample_weight", Rollups.round(weight));
+    summary.setSource(Json.toString(source));
+  }
+
+  public void run() {
+    try {
+      while (true) {
+        Thread.sleep(WINDOW_MS);
+        flush();
+      }
+    } catch (InterruptedException e) {
+      LOG.info("Interrupted, no longer writing sampled traces");
+    }
+  }
+
+  /** Queues the traces sampled during the window that just ended.  */
+  private void flush() throws InterruptedException {
+    final List<BulkItem> sampled = roll(System.currentTimeMillis());
+    final List<BulkItem> items = pending;
+    items.addAll(sampled);
+    if (items.isEmpty()) {
+      return;
+    }
+    if (queue.offer(items, WINDOW_MS)) {
+      pending = new ArrayList<BulkItem>();
+      return;
+    }
+    // The queue is full, try again next time, but don't hoard memory: keep
+    // about two windows worth of traces.
+    final int max_pending = Math.max(2 * sampled.size(), reservoir);
+    if (items.size() > max_pending) {
+      final List<BulkItem> dropped = items.subList(0, items.size() - max_pending);
+      stats.sampled_items_dropped.addAndGet(dropped.size());
+      LOG.warning("Queue full, dropping " + dropped.size() + " sampled items");
+      dropped.clear();
+    }
+  }
+
+}
@@ -0,0 +1,149 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package ingest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Finds the heaviest keys of a stream in constant memory.
+ * <p>
+ * This is the weighted version of the Space-Saving algorithm (Metwally et
+ * al., 2005): we keep {@code capacity} counters, and when a key without a
+ * counter shows up, it takes over the counter with the smallest weight,
+ * inheriting its weight as a possible overestimation ({@link Counter#error}).
+ * Any key whose true weight is more than {@code 1/capacity} of the total is
+ * guaranteed to have a counter, and the weight of every counter is at most
+ * {@code total / capacity} too high.
+ * <p>
+ * The counters are kept in a min-heap on their weight, so each update is
+ * {@code O(log capacity)}.
+ * <p>
+ * This class isn't thread-safe.
+ */
+final class SpaceSaving {
+
+  /** The weight of a key.  */
+  static final class Counter {
+    final String key;
+    /** Total weight, possibly overestimated by up to {@link #error}.  */
+    double weight;
+    /** Weight inherited from the key we evicted.  */
+    double error;
+    /** Number of times the key was seen since it got its counter.  */
+    long hits;
+    /** Position in the heap.  */
+    int pos;
+
+    Counter(final String key) {
+      this.key = key;
+    }
+  }
+
+  private final Counter[] heap;
+  private int size;
+  private final HashMap<String, Counter> counters;
+
+  /**
+   * Constructor.
+   * @param capacity How many keys to keep track of.  This needs to be tens
+   * of times the number of keys we want to report for their estimates to be
+   * accurate when there's a long tail of light keys.
+   */
+  SpaceSaving(final int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("invalid capacity: " + capacity);
+    }
+    heap = new Counter[capacity];
+    counters = new HashMap<String, Counter>(capacity * 2);
+  }
+
+  /** Adds some weight to a key.  Negative and NaN weights are ignored.  */
+  void add(final String key, final double weight) {
+    if (!(weight >= 0)) {
+      return;
+    }
+    Counter counter = counters.get(key);
+    if (counter == null) {
+      if (size < heap.length) {
+        counter = new Counter(key);
+        counter.pos = size;
+        heap[size++] = counter;
+      } else {
+        // Take over the lightest counter.
+        final Counter evicted = heap[0];
+        counters.remove(evicted.key);
+        counter = new Counter(key);
+        counter.weight = evicted.weight;
+        counter.error = evicted.weight;
+        counter.pos = 0;
+        heap[0] = counter;
+      }
+      counters.put(key, counter);
+    }
+    counter.weight += weight;
+    counter.hits++;
+    siftDown(counter.pos);  // The weight only grows.
+  }
+
+  private void siftDown(int pos) {
+    final Counter counter = heap[pos];
+    while (true) {
+      int child = 2 * pos + 1;
+      if (child >= size) {
+        break;
+      } else if (child + 1 < size && heap[child + 1].weight < heap[child].weight) {
+        child++;
+      }
+      if (heap[child].weight >= counter.weight) {
+        break;
+      }
+      heap[pos] = heap[child];
+      heap[pos].pos = pos;
+      pos = child;
+    }
+    heap[pos] = counter;
+    counter.pos = pos;
+  }
+
+  /** Returns the number of keys we're tracking.  */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Returns the heaviest keys.
+   * @param k How many keys to return, at most.
+   * @return The counters of the keys, heaviest first.
+   */
+  List<Counter> top(final int k) {
+    final Counter[] sorted = Arrays.copyOf(heap, size);
+    Arrays.sort(sorted, HEAVIEST_FIRST);
+    final int n = Math.min(k, size);
+    final ArrayList<Counter> top = new ArrayList<Counter>(n);
+    for (int i = 0; i < n; i++) {
+      top.add(sorted[i]);
+    }
+    return top;
+  }
+
+  private static final Comparator<Counter> HEAVIEST_FIRST = new Comparator<Counter>() {
+    public int compare(final Counter a, final Counter b) {
+      return Double.compare(b.weight, a.weight);
+    }
+  };
+
+}
@@ -0,0 +1,97 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package ingest;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Counters about what the gateway has been doing.  */
+final class Stats {
+
+  /** When the gateway started, in milliseconds.  */
+  private final long start = System.currentTimeMillis();
+
+  // From the tracers.
+  final AtomicLong requests = new AtomicLong();
+  final AtomicLong items_received = new AtomicLong();
+  final AtomicLong bytes_received = new AtomicLong();
+  final AtomicLong requests_rejected = new AtomicLong();  // Queue full.
+  final AtomicLong requests_invalid = new AtomicLong();
+  // Size of the traces before and after --compact.
+  final AtomicLong compact_bytes_in = new AtomicLong();
+  final AtomicLong compact_bytes_out = new AtomicLong();
+  // From --time-buckets.
+  final AtomicLong buckets_written = new AtomicLong();
+  final AtomicLong buckets_dropped = new AtomicLong();  // Queue full.
+  // From --sample: traces kept because they're new, slow or were picked
+  // by a reservoir, and traces dropped.
+  final AtomicLong traces_new = new AtomicLong();
+  final AtomicLong traces_slow = new AtomicLong();
+  final AtomicLong traces_sampled = new AtomicLong();
+  final AtomicLong traces_sampled_out = new AtomicLong();
+  final AtomicLong sampled_items_dropped = new AtomicLong();  // Queue full.
+  // Routes that fell out of the dictionary of the RouteNormalizer.
+  final AtomicLong routes_evicted = new AtomicLong();
+
+  // To ElasticSearch.
+  final AtomicLong batches_written = new AtomicLong();
+  final AtomicLong items_written = new AtomicLong();
+  final AtomicLong bytes_written = new AtomicLong();
+  final AtomicLong items_failed = new AtomicLong();  // Rejected by ES.
+  final AtomicLong batches_dropped = new AtomicLong();
+  final AtomicLong retries = new AtomicLong();
+  final AtomicLong items_retried = new AtomicLong();  // ES was overloaded.
+  final AtomicLong write_time_ms = new AtomicLong();
+
+  /**
+   * Returns a snapshot of the counters.
+   * @param queue The queue whose depth to report.
+   */
+  Map<String, Object> snapshot(final BulkQueue queue) {
+    final LinkedHashMap<String, Object> stats = new LinkedHashMap<String, Object>();
+    final long uptime = System.currentTimeMillis() - start;
+    stats.put("uptime_ms", uptime);
+    stats.put("requests", requests.get());
+    stats.put("items_received", items_received.get());
+    stats.put("bytes_received", bytes_received.get());
+    stats.put("requests_rejected", requests_rejected.get());
+    stats.put("requests_invalid", requests_invalid.get());
+    stats.put("compact_bytes_in", compact_bytes_in.get());
+    stats.put("compact_bytes_out", compact_bytes_out.get());
+    stats.put("buckets_written", buckets_written.get());
+    stats.put("buckets_dropped", buckets_dropped.get());
+    stats.put("traces_new", traces_new.get());
+    stats.put("traces_slow", traces_slow.get());
+    stats.put("traces_sampled", traces_sampled.get());
+    stats.put("traces_sampled_out", traces_sampled_out.get());
+    stats.put("sampled_items_dropped", sampled_items_dropped.get());
+    stats.put("routes_evicted", routes_evicted.get());
+    stats.put("batches_written", batches_written.get());
+    stats.put("items_written", items_written.get());
+    stats.put("bytes_written", bytes_written.get());
+    stats.put("items_failed", items_failed.get());
+    stats.put("batches_dropped", batches_dropped.get());
+    stats.put("retries", retries.get());
+    stats.put("items_retried", items_retried.get());
+    stats.put("write_time_ms", write_time_ms.get());
+    final long batches = batches_written.get();
+    stats.put("avg_batch_items", batches == 0 ? 0 : items_written.get() / batches);
+    stats.put("items_per_sec", uptime == 0 ? 0 : items_written.get() * 1000 / uptime);
+    stats.put("queue_depth", queue.depth());
+    stats.put("queue_bytes", queue.bytes());
+    stats.put("queue_capacity", queue.capacity());
+    return stats;
+  }
+
+}
@@ -0,0 +1,453 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package ingest;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Downsamples the traces going through the gateway into time buckets.
+ * <p>
+ * Every trace is counted in a 1-minute, a 10-minute and a 1-hour bucket
+ * of each of its <em>dimensions</em>: its route, the total of all
+ * requests, each syscall it made and each backend it called.  Once a
+ * bucket is over (plus a grace period for the traces still on their way),
+ * it's written like any other document, as a {@code rollup} in the monthly
+ * index of the bucket:
+ * <pre>
+ * {"granularity": 60, "bucket_ts": 1300000020000,
+ *  "dimension": "resource", "key": "/user/{num}/photos",
+ *  "count": 42, "time_total": 1234.5, "time_mean": 29.39,
+ *  "time_min": 3.2, "time_max": 250.1,
+ *  "latency": {...},
+ *  "syscalls": [{"name": "read", "time": 600.2, "count": 1000}, ...]}
+ * </pre>
+ * where {@code granularity} is in seconds and {@code bucket_ts} is the
+ * start of the bucket, in milliseconds.  {@code latency} is a mergeable
+ * {@link LatencySketch} of the same times as {@code time_*}, so
+ * percentiles over any range of buckets can be computed without going
+ * back to the traces.  Depending on the {@code dimension}:
+ * <ul>
+ * <li>{@code resource}: the {@code end_to_end} of the requests to the
+ * route in {@code key} (see {@link RouteNormalizer}), and the time spent
+ * in each syscall.</li>
+ * <li>{@code total}: the same for all the requests, with key
+ * {@value #ALL}.</li>
+ * <li>{@code syscall}: the time each request spent in the syscall in
+ * {@code key}, from {@code syscalls_times}.  {@code count} is the number
+ * of requests, {@code calls} the number of syscalls.</li>
+ * <li>{@code backend}: the duration of the calls to the peer in
+ * {@code key}, from {@code backend_reqs}.  {@code count} is the number of
+ * calls, {@code requests} the number of requests that made them.
+ * {@code fast_time} and {@code fast_calls} are the time and number of the
+ * calls made on the serving path, before the response was sent, as
+ * opposed to those made after (e.g. to update a cache).</li>
+ * <li>{@code topk}: the same as {@code total}, plus the "method resource"
+ * on which we spent the most time, in a {@code top} list of
+ * <code>{"method", "resource", "time", "count", "error"}</code>.  They're
+ * found with a {@link SpaceSaving} sketch, so this takes constant memory
+ * whatever the number of distinct resources, and {@code time} can be
+ * overestimated by up to {@code error}.  The {@code resource} of each
+ * entry is its route.</li>
+ * </ul>
+ * <p>
+ * A trace that shows up after its bucket was written starts a new partial
+ * bucket, so there can be more than one document for the same bucket.
+ * They must be summed (and their sketches merged) when read, which is what
+ * a long time range needs to do anyway.
+ * <p>
+ * Buckets still being filled are lost if the gateway stops, just like the
+ * items still in the queue.
+ */
+final class TimeBuckets extends Thread {
+
+  private static final Logger LOG = Logger.getLogger(TimeBuckets.class.getName());
+
+  /** Type of the documents we write.  */
+  static final String TYPE = "rollup";
+
+  /** Duration of the buckets, in seconds.  */
+  static final int[] GRANULARITIES = { 60, 600, 3600 };
+
+  /** Key of the {@code total} dimension.  */
+  static final String ALL = "_all";
+
+  /** Key under which we count what doesn't fit in memory.  */
+  static final String OTHER = "_other";
+
+  /** How often we look for buckets to write.  */
+  private static final long TICK_MS = 10000;
+
+  /** Indices whose name already ends with the month ("name-YYYYMM").  */
+  private static final Pattern MONTHLY = Pattern.compile(".+-[0-9]{6}");
+
+  private final BulkQueue queue;
+  private final Stats stats;
+  /** How long after the end of a bucket we wait before writing it.  */
+  private final long grace_ms;
+  /** Maximum number of buckets being filled at the same time.  */
+  private final int max_buckets;
+  /** How many resources to keep in the {@code topk} buckets.  */
+  private final int topk;
+
+  /** Buckets being filled, by ID prefix.  */
+  private final HashMap<String, Bucket> buckets = new HashMap<String, Bucket>();
+  /** Makes the IDs of our documents unique, see {@link #expire}.  */
+  private final String instance = Long.toString(System.currentTimeMillis(), 36);
+  private long seqno;
+
+  /** Buckets that didn't fit in the queue last time.  */
+  private List<BulkItem> pending = new ArrayList<BulkItem>();
+
+  /**
+   * Constructor.
+   * @param queue The queue in which to put the buckets to write.
+   * @param stats Where to record what we do.
+   * @param grace_ms How long after the end of a bucket we wait for late
+   * traces before writing it.
+   * @param max_buckets Maximum number of buckets to keep in memory.  Past
+   * this, new keys are counted under {@link #OTHER}.
+   * @param topk How many resources to keep in the {@code topk} buckets.
+   */
+  TimeBuckets(final BulkQueue queue, final Stats stats, final long grace_ms,
+              final int max_buckets, final int topk) {
+    super("TimeBuckets");
+    this.queue = queue;
+    this.stats = stats;
+    this.grace_ms = grace_ms;
+    this.max_buckets = max_buckets;
+    this.topk = topk;
+    setDaemon(true);
+  }
+
+  /** What we've accumulated for one key in one time bucket.  */
+  private static final class Bucket {
+    final String index;
+    final int granularity;
+    final long bucket_ts;
+    final String dimension;
+    final String key;
+    long count;
+    /** Number of syscalls, for the {@code syscall} dimension.  */
+    long calls;
+    /** Number of requests, for the {@code backend} dimension.  */
+    long requests;
+    /** Calls on the serving path, for the {@code backend} dimension.  */
+    long fast_calls;
+    double fast_time;
+    double time_total;
+    double time_min = Double.POSITIVE_INFINITY;
+    double time_max = Double.NEGATIVE_INFINITY;
+    final LatencySketch latency = new LatencySketch();
+    /** Maps a syscall name to its time and count, or {@code null}.  */
+    final HashMap<String, double[]> syscalls;
+    /** Time spent on each "method resource", or {@code null}.  */
+    SpaceSaving hot;
+
+    Bucket(final String index, final int granularity, final long bucket_ts,
+           final String dimension, final String key) {
+      this.index = index;
+      this.granularity = granularity;
+      this.bucket_ts = bucket_ts;
+      this.dimension = dimension;
+      this.key = key;
+      syscalls = dimension.equals("resource") || dimension.equals("total")
+        ? new HashMap<String, double[]>() : null;
+    }
+
+    void add(final double time) {
+      count++;
+      if (time != time) {  // NaN
+        return;
+      }
+      time_total += time;
+      if (time < time_min) {
+        time_min = time;
+      }
+      if (time > time_max) {
+        time_max = time;
+      }
+      latency.add(time);
+    }
+
+    /** Returns the time at which this bucket is over, in milliseconds.  */
+    long end() {
+      return bucket_ts + granularity * 1000L;
+    }
+
+    /**
+     * Returns the document for this bucket.
+     * @param topk How many resources to put in the {@code top} list.
+     */
+    Map<String, Object> toJson(final int topk) {
+      final LinkedHashMap<String, Object> doc = new LinkedHashMap<String, Object>(12);
+      doc.put("granularity", granularity);
+      doc.put("bucket_ts", bucket_ts);
+      doc.put("dimension", dimension);
+      doc.put("key", key);
+      doc.put("count", count);
+      if (dimension.equals("syscall")) {
+        doc.put("calls", calls);
+      } else if (dimension.equals("backend")) {
+        doc.put("requests", requests);
+        doc.put("fast_calls", fast_calls);
+        doc.put("fast_time", Rollups.round(fast_time));
+      }
+      doc.put("time_total", Rollups.round(time_total));
+      if (latency.count() > 0) {
+        doc.put("time_mean", Rollups.round(time_total / latency.count()));
+        doc.put("time_min", time_min);
+        doc.put("time_max", time_max);
+      }
+      doc.put("latency", latency.toJson());
+      if (syscalls != null) {
+        final ArrayList<Map.Entry<String, double[]>> entries =
+          new ArrayList<Map.Entry<String, double[]>>(syscalls.entrySet());
+        Collections.sort(entries, BY_TIME);
+        final ArrayList<Object> list = new ArrayList<Object>(entries.size());
+        for (final Map.Entry<String, double[]> e : entries) {
+          final LinkedHashMap<String, Object> syscall = new LinkedHashMap<String, Object>(3);
+          syscall.put("name", e.getKey());
+          syscall.put("time", Rollups.round(e.getValue()[0]));
+          syscall.put("count", (long) e.getValue()[1]);
+          list.add(syscall);
+        }
+        doc.put("syscalls", list);
+      }
+      if (hot != null) {
+        final List<SpaceSaving.Counter> counters = hot.top(topk);
+        final ArrayList<Object> top = new ArrayList<Object>(counters.size());
+        for (final SpaceSaving.Counter counter : counters) {
+          final int space = counter.key.indexOf(' ');
+          final LinkedHashMap<String, Object> entry = new LinkedHashMap<String, Object>(5);
+          entry.put("method", counter.key.substring(0, space));
+          entry.put("resource", counter.key.substring(space + 1));
+          entry.put("time", Rollups.round(counter.weight));
+          entry.put("count", counter.hits);
+          entry.put("error", Rollups.round(counter.error));
+          top.add(entry);
+        }
+        doc.put("top", top);
+      }
+      return doc;
+    }
+  }
+
+  /** Sorts syscalls by descending time.  */
+  private static final Comparator<Map.Entry<String, double[]>> BY_TIME =
+    new Comparator<Map.Entry<String, double[]>>() {
+      public int compare(final Map.Entry<String, double[]> a,
+                         final Map.Entry<String, double[]> b) {
+        return Double.compare(b.getValue()[0], a.getValue()[0]);
+      }
+    };
+
+  /**
+   * Counts a trace in its buckets.
+   * @param index The index to which the trace was sent.
+   * @param summary The summary document of the trace.
+   * @param trace The trace document, can be the same map as {@code summary}
+   * if the trace isn't split.
+   */
+  synchronized void add(final String index, final Map<String, Object> summary,
+                        final Map<String, Object> trace) {
+    final double ts = Json.getDouble(summary, "request_ts", Double.NaN);
+    String route = Json.getString(summary, "route");
+    if (route == null) {
+      route = Json.getString(summary, "resource");
+    }
+    if (ts != ts || route == null) {
+      return;  // Can't tell where it goes.
+    }
+    final double end_to_end = Json.getDouble(summary, "end_to_end", Double.NaN);
+    final String method = Json.getString(summary, "method");
+    final String hot_key = (method != null ? method : "-") + ' ' + route;
+    final List<Object> times = Json.getList(trace, "syscalls_times");
+    final List<Object> reqs = Json.getList(trace, "backend_reqs");
+    for (final int granularity : GRANULARITIES) {
+      final Bucket bucket = getOrCreate(index, granularity, (long) ts,
+                                        "resource", route);
+      final Bucket total = getOrCreate(index, granularity, (long) ts,
+                                       "total", ALL);
+      bucket.add(end_to_end);
+      total.add(end_to_end);
+      final Bucket top = getOrCreate(index, granularity, (long) ts,
+                                     "topk", ALL);
+      top.add(end_to_end);
+      top.hot.add(hot_key, end_to_end);
+      if (times != null) {
+        for (final Object entry : times) {
+          if (!(entry instanceof Map)) {
+            continue;
+          }
+          @SuppressWarnings("unchecked")
+          final Map<String, Object> syscall = (Map<String, Object>) entry;
+          final String name = Json.getString(syscall, "name");
+          if (name == null) {
+            continue;
+          }
+          final double time = Json.getDouble(syscall, "time", 0);
+          final long ncalls = (long) Json.getDouble(syscall, "count", 0);
+          addSyscall(bucket, name, time, ncalls);
+          addSyscall(total, name, time, ncalls);
+          final Bucket sb = getOrCreate(index, granularity, (long) ts,
+                                        "syscall", name);
+          sb.add(time);
+          sb.calls += ncalls;
+        }
+      }
+      if (reqs == null) {
+        continue;
+      }
+      for (final Object req : reqs) {
+        if (!(req instanceof Map)) {
+          continue;
+        }
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> backend = (Map<String, Object>) req;
+        final String peer = Json.getString(backend, "peer");
+        final List<Object> calls = Json.getList(backend, "calls");
+        if (peer == null || calls == null) {
+          continue;
+        }
+        final Bucket be = getOrCreate(index, granularity, (long) ts,
+                                      "backend", peer);
+        be.requests++;
+        for (final Object call : calls) {
+          if (!(call instanceof Map)) {
+            continue;
+          }
+          @SuppressWarnings("unchecked")
+          final Map<String, Object> c = (Map<String, Object>) call;
+          final double duration = Json.getDouble(c, "duration", Double.NaN);
+          be.add(duration);
+          // droopytrace sets fast_path for the calls made before the last
+          // write to the client.  It used to set the timestamp to true.
+          if ((Boolean.TRUE.equals(c.get("fast_path"))
+               || Boolean.TRUE.equals(c.get("timestamp")))
+              && duration == duration) {
+            be.fast_calls++;
+            be.fast_time += duration;
+          }
+        }
+      }
+    }
+  }
+
+  private static void addSyscall(final Bucket bucket, final String name,
+                                 final double time, final long ncalls) {
+    double[] acc = bucket.syscalls.get(name);
+    if (acc == null) {
+      acc = new double[2];
+      bucket.syscalls.put(name, acc);
+    }
+    acc[0] += time;
+    acc[1] += ncalls;
+  }
+
+  private Bucket getOrCreate(final String index, final int granularity,
+                             final long ts, final String dimension,
+                             String key) {
+    final long bucket_ts = ts - ts % (granularity * 1000L);
+    final String prefix = granularity + "-" + dimension + '-' + bucket_ts + '-';
+    Bucket bucket = buckets.get(prefix + index + '/' + key);
+    if (bucket == null && buckets.size() >= max_buckets) {
+      key = OTHER;
+      bucket = buckets.get(prefix + index + '/' + key);
+    }
+    if (bucket == null) {
+      final String monthly = MONTHLY.matcher(index).matches() ? index
+        : index + '-' + month(bucket_ts);
+      bucket = new Bucket(monthly, granularity, bucket_ts, dimension, key);
+      if (dimension.equals("topk")) {
+        // With heavy-tailed URLs, the top ones are only accurate with
+        // many more counters than we report.
+        bucket.hot = new SpaceSaving(topk * 50);
+      }
+      buckets.put(prefix + index + '/' + key, bucket);
+    }
+    return bucket;
+  }
+
+  /** Returns the "YYYYMM" of a timestamp in milliseconds, in UTC.  */
+  private static String month(final long ms) {
+    final Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+    cal.setTimeInMillis(ms);
+    final int month = cal.get(Calendar.MONTH) + 1;
+    return cal.get(Calendar.YEAR) + (month < 10 ? "0" : "") + month;
+  }
+
+  /**
+   * Removes the buckets that are over and returns them as bulk items.
+   * @param now The current time, in milliseconds.
+   */
+  synchronized List<BulkItem> expire(final long now) {
+    final ArrayList<BulkItem> items = new ArrayList<BulkItem>();
+    final Iterator<Bucket> it = buckets.values().iterator();
+    while (it.hasNext()) {
+      final Bucket bucket = it.next();
+      if (bucket.end() + grace_ms > now) {
+        continue;
+      }
+      it.remove();
+      // Late traces can start a new partial bucket with the same key.
+      final String id = bucket.granularity + "-" + bucket.dimension + '-'
+        + bucket.bucket_ts + '-' + bucket.key + '-' + instance + '.' + seqno++;
+      items.add(new BulkItem(bucket.index, TYPE, id, Json.toString(bucket.toJson(topk))));
+    }
+    return items;
+  }
+
+  public void run() {
+    try {
+      while (true) {
+        Thread.sleep(TICK_MS);
+        flush();
+      }
+    } catch (InterruptedException e) {
+      LOG.info("Interrupted, no longer writing time buckets");
+    }
+  }
+
+  /** Queues the buckets that are over.  */
+  private void flush() throws InterruptedException {
+    final List<BulkItem> items = pending;
+    items.addAll(expire(System.currentTimeMillis()));
+    if (items.isEmpty()) {
+      return;
+    }
+    if (queue.offer(items, TICK_MS)) {
+      stats.buckets_written.addAndGet(items.size());
+      pending = new ArrayList<BulkItem>();
+      return;
+    }
+    // The queue is full, try again next time, but don't hoard memory.
+    if (items.size() > max_buckets) {
+      final List<BulkItem> dropped = items.subList(0, items.size() - max_buckets);
+      stats.buckets_dropped.addAndGet(dropped.size());
+      LOG.warning("Queue full, dropping " + dropped.size() + " time buckets");
+      dropped.clear();
+    }
+  }
+
+}
@@ -0,0 +1,765 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package ingest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of the {@code trace} and {@code fulltrace}
+ * documents produced by droopytrace.
+ * <p>
+ * The JSON documents repeat the same syscall names and peers over and over,
+ * and spell out every number in decimal.  This encoding:
+ * <ul>
+ * <li>interns syscall names and peers in a string table,</li>
+ * <li>stores times as integer microseconds (which is strace's resolution),
+ * delta-encoded against the previous value in the same list,</li>
+ * <li>packs all integers as varints (zigzag-encoded when signed).</li>
+ * </ul>
+ * Fields we don't know about are kept in a small JSON blob, so decoding
+ * gives back the same document, modulo the order of the fields and times
+ * being rounded to the microsecond.
+ * <p>
+ * The encoded document is stored in ES as {@code {"v":1,"compact":"..."}}
+ * where the value of {@code compact} is the encoding in base64.  The viewer
+ * decodes it with {@code viewer.CompactTrace} and {@code viewer/traceworker.js},
+ * which must be kept in sync with this class ({@code make check} runs the
+ * worker's decoders against what this class encodes).
+ *
+ * <h3>Format of a trace</h3>
+ * All integers are unsigned varints unless noted otherwise ("svarint" means
+ * zigzag-encoded varint).  "string" is a varint length (in bytes, plus one,
+ * 0 meaning {@code null}) followed by UTF-8 bytes.  A "time" is a svarint
+ * number of microseconds, delta-encoded against the previous time of the
+ * same list (or 0 for the first one).
+ * <pre>
+ * byte     version (1)
+ * varint   number of interned strings, followed by that many strings
+ * varint   bitmap of the top-level fields present (see TOP_FIELDS)
+ *          followed by the value of each of these fields, in order
+ * varint   number of syscalls_times entries, each being:
+ *            varint name (index in the string table), time, svarint count
+ * varint   number of backend_reqs entries, each being:
+ *            varint peer (index in the string table)
+ *            varint number of calls, each being:
+ *              time duration, varint name, svarint retv, string call,
+ *              varint flags (bit 0: timestamp is {@code true}, bit 1: a
+ *              numeric timestamp follows, bit 2: fast_path is {@code true},
+ *              bit 3: fast_path is {@code false}), [time timestamp],
+ *              string extra
+ * string   extra (JSON object of the top-level fields not covered above)
+ * </pre>
+ *
+ * <h3>Format of a full trace</h3>
+ * <pre>
+ * byte     version (1)
+ * varint   number of interned strings, followed by that many strings
+ * varint   number of lines, each being:
+ *            varint 0 followed by a string (lines we can't parse), or
+ *            varint (syscall name + 1) &lt;&lt; 1 | 1 if the line ends with
+ *            a newline, time timestamp, string arguments (what's between
+ *            the syscall name and " = "), string return value, time
+ *            duration
+ * </pre>
+ */
+public final class TraceCodec {
+
+  /** Version of the encoding.  */
+  public static final int VERSION = 1;
+
+  /** Top-level fields stored natively, in the order of the bitmap.  */
+  private static final String[] TOP_FIELDS = {
+    "request",        // string
+    "req_size",       // svarint
+    "resp_size",      // svarint
+    "num_cli_read",   // svarint
+    "read_time",      // time
+    "num_cli_write",  // svarint
+    "write_time",     // time
+  };
+  /** Which of the {@link #TOP_FIELDS} are times, the others are integers. */
+  private static final int TOP_TIME_FIELDS = (1 << 4) | (1 << 6);
+
+  private TraceCodec() {
+    // Not instantiable.
+  }
+
+  // -------- //
+  // Encoding //
+  // -------- //
+
+  /**
+   * Encodes a {@code trace} document.
+   * @param trace The parsed JSON document.
+   */
+  public static byte[] encodeTrace(final Map<String, Object> trace) {
+    final LinkedHashMap<String, Object> extra = new LinkedHashMap<String, Object>(trace);
+    final Buffer body = new Buffer(1024);
+    final StringTable strings = new StringTable();
+
+    int bitmap = 0;
+    for (int i = 0; i < TOP_FIELDS.length; i++) {
+      final Object value = trace.get(TOP_FIELDS[i]);
+      final boolean ok = i == 0 ? value instanceof String
+        : (TOP_TIME_FIELDS & (1 << i)) != 0 ? value instanceof Number
+        : isIntegral(value);
+      if (ok) {
+        bitmap |= 1 << i;
+      }
+    }
+    body.writeVarint(bitmap);
+    for (int i = 0; i < TOP_FIELDS.length; i++) {
+      if ((bitmap & (1 << i)) == 0) {
+        continue;
+      }
+      final Object value = extra.remove(TOP_FIELDS[i]);
+      if (i == 0) {
+        body.writeString((String) value);
+      } else if ((TOP_TIME_FIELDS & (1 << i)) != 0) {
+        body.writeSvarint(toMicros(value));
+      } else {
+        body.writeSvarint(((Number) value).longValue());
+      }
+    }
+
+    encodeSyscallsTimes(extra, body, strings);
+    encodeBackendReqs(extra, body, strings);
+    body.writeString(extra.isEmpty() ? null : Json.toString(extra));
+    return assemble(strings, body);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void encodeSyscallsTimes(final LinkedHashMap<String, Object> extra,
+                                          final Buffer body,
+                                          final StringTable strings) {
+    final Object value = extra.get("syscalls_times");
+    if (!(value instanceof List)) {
+      body.writeVarint(0);
+      return;
+    }
+    final List<Object> times = (List<Object>) value;
+    if (times.isEmpty()) {
+      body.writeVarint(0);  // Leave it in `extra' so we don't lose it.
+      return;
+    }
+    for (final Object o : times) {
+      if (!(o instanceof Map) || ((Map<?, ?>) o).size() != 3) {
+        body.writeVarint(0);  // Not what we expect, leave it in `extra'.
+        return;
+      }
+      final Map<String, Object> entry = (Map<String, Object>) o;
+      if (!(entry.get("name") instanceof String)
+          || !(entry.get("time") instanceof Number)
+          || !isIntegral(entry.get("count"))) {
+        body.writeVarint(0);
+        return;
+      }
+    }
+    extra.remove("syscalls_times");
+    body.writeVarint(times.size());
+    long prev = 0;
+    for (final Object o : times) {
+      final Map<String, Object> entry = (Map<String, Object>) o;
+      body.writeVarint(strings.intern((String) entry.get("name")));
+      final long time = toMicros(entry.get("time"));
+      body.writeSvarint(time - prev);
+      prev = time;
+      body.writeSvarint(((Number) entry.get("count")).longValue());
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void encodeBackendReqs(final LinkedHashMap<String, Object> extra,
+                                        final Buffer body,
+                                        final StringTable strings) {
+    final Object value = extra.get("backend_reqs");
+    if (!(value instanceof List)) {
+      body.writeVarint(0);
+      return;
+    }
+    final List<Object> reqs = (List<Object>) value;
+    if (reqs.isEmpty()) {
+      body.writeVarint(0);  // Leave it in `extra' so we don't lose it.
+      return;
+    }
+    for (final Object o : reqs) {
+      if (!(o instanceof Map) || ((Map<?, ?>) o).size() != 2) {
+        body.writeVarint(0);  // Not what we expect, leave it in `extra'.
+        return;
+      }
+      final Map<String, Object> req = (Map<String, Object>) o;
+      if (!(req.get("peer") instanceof String)) {
+        body.writeVarint(0);
+        return;
+      }
+      final Object calls = req.get("calls");
+      if (!(calls instanceof List)) {
+        body.writeVarint(0);
+        return;
+      }
+      for (final Object call : (List<Object>) calls) {
+        if (!isEncodableCall(call)) {
+          body.writeVarint(0);
+          return;
+        }
+      }
+    }
+    extra.remove("backend_reqs");
+    body.writeVarint(reqs.size());
+    for (final Object o : reqs) {
+      final Map<String, Object> req = (Map<String, Object>) o;
+      body.writeVarint(strings.intern((String) req.get("peer")));
+      final List<Object> calls = (List<Object>) req.get("calls");
+      body.writeVarint(calls.size());
+      long prev_duration = 0;
+      long prev_ts = 0;
+      for (final Object c : calls) {
+        final LinkedHashMap<String, Object> call =
+          new LinkedHashMap<String, Object>((Map<String, Object>) c);
+        final long duration = toMicros(call.remove("duration"));
+        body.writeSvarint(duration - prev_duration);
+        prev_duration = duration;
+        body.writeVarint(strings.intern((String) call.remove("name")));
+        body.writeSvarint(((Number) call.remove("retv")).longValue());
+        body.writeString((String) call.remove("call"));
+        final Object ts = call.remove("timestamp");
+        int flags = ts instanceof Number ? 2 : Boolean.TRUE.equals(ts) ? 1 : 0;
+        final Object fast_path = call.get("fast_path");
+        if (fast_path instanceof Boolean) {
+          call.remove("fast_path");
+          flags |= (Boolean) fast_path ? 4 : 8;
+        }
+        body.writeVarint(flags);
+        if (ts instanceof Number) {
+          final long micros = toMicros(ts);
+          body.writeSvarint(micros - prev_ts);
+          prev_ts = micros;
+        }
+        body.writeString(call.isEmpty() ? null : Json.toString(call));
+      }
+    }
+  }
+
+  /** Returns whether we can encode this call natively.  */
+  private static boolean isEncodableCall(final Object o) {
+    if (!(o instanceof Map)) {
+      return false;
+    }
+    final Map<?, ?> call = (Map<?, ?>) o;
+    final Object ts = call.get("timestamp");
+    return call.get("duration") instanceof Number
+      && call.get("name") instanceof String
+      && isIntegral(call.get("retv"))
+      && (call.get("call") == null || call.get("call") instanceof String)
+      && (ts == null || ts instanceof Boolean || ts instanceof Number);
+  }
+
+  /**
+   * Encodes a {@code fulltrace} document.
+   * @param fulltrace The parsed JSON document.
+   * @return The encoded document, or {@code null} if this document doesn't
+   * look like a full trace.
+   */
+  public static byte[] encodeFullTrace(final Map<String, Object> fulltrace) {
+    final List<Object> lines = Json.getList(fulltrace, "syscalls");
+    if (lines == null || fulltrace.size() != 1) {
+      return null;
+    }
+    for (final Object line : lines) {
+      if (!(line instanceof String)) {
+        return null;
+      }
+    }
+    final Buffer body = new Buffer(lines.size() * 64);
+    final StringTable strings = new StringTable();
+    body.writeVarint(lines.size());
+    long prev_ts = 0;
+    long prev_duration = 0;
+    for (final Object o : lines) {
+      final String line = (String) o;
+      final boolean newline = line.endsWith("\n");
+      final String[] parts =
+        splitLine(newline ? line.substring(0, line.length() - 1) : line);
+      if (parts == null) {
+        body.writeVarint(0);
+        body.writeString(line);
+        continue;
+      }
+      // parts = { timestamp, name, args, retv, duration }
+      final long ts = parseMicros(parts[0]);
+      final long duration = parseMicros(parts[4]);
+      body.writeVarint((strings.intern(parts[1]) + 1) << 1 | (newline ? 1 : 0));
+      body.writeSvarint(ts - prev_ts);
+      body.writeString(parts[2]);
+      body.writeString(parts[3]);
+      body.writeSvarint(duration - prev_duration);
+      prev_ts = ts;
+      prev_duration = duration;
+    }
+    return assemble(strings, body);
+  }
+
+  /**
+   * Splits a line of strace output in its components.
+   * A line looks like {@code 1299473528.478145 close(3) = 0 <0.000009>}
+   * (without the trailing newline).
+   * @return The timestamp, syscall name, arguments, return value and
+   * duration, or {@code null} if the line can't be rebuilt exactly from
+   * these parts.
+   */
+  private static String[] splitLine(final String line) {
+    final int space = 17;  // Timestamps have a fixed size.
+    if (line.length() < space + 10 || line.charAt(space) != ' '
+        || line.charAt(space - 7) != '.') {
+      return null;
+    }
+    final int paren = line.indexOf('(', space);
+    final int lt = line.lastIndexOf(" <");
+    final int equal = lt < 0 ? -1 : line.lastIndexOf(" = ", lt);
+    if (paren < 0 || equal < paren || !line.endsWith(">")) {
+      return null;
+    }
+    final String[] parts = {
+      line.substring(0, space),
+      line.substring(space + 1, paren),
+      line.substring(paren, equal),
+      line.substring(equal + 3, lt),
+      line.substring(lt + 2, line.length() - 1),
+    };
+    if (!isMicros(parts[0]) || !isMicros(parts[4]) || !isName(parts[1])) {
+      return null;
+    }
+    return parts;
+  }
+
+  /** Returns whether this looks like the name of a syscall.  */
+  private static boolean isName(final String s) {
+    if (s.isEmpty()) {
+      return false;
+    }
+    for (int i = 0; i < s.length(); i++) {
+      final char c = s.charAt(i);
+      if (!(c == '_' || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9'))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns whether this is a number of seconds with exactly 6 decimals,
+   * written the way {@link #formatMicros} would.
+   */
+  private static boolean isMicros(final String s) {
+    final int dot = s.length() - 7;
+    if (dot < 1 || s.charAt(dot) != '.' || s.length() > 19
+        || (dot > 1 && s.charAt(0) == '0')) {
+      return false;
+    }
+    for (int i = 0; i < s.length(); i++) {
+      final char c = s.charAt(i);
+      if (i != dot && (c < '0' || c > '9')) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Parses a number of seconds with 6 decimals into microseconds.  */
+  private static long parseMicros(final String s) {
+    final int dot = s.length() - 7;
+    return Long.parseLong(s.substring(0, dot)) * 1000000
+      + Long.parseLong(s.substring(dot + 1));
+  }
+
+  /** Formats microseconds into seconds with 6 decimals.  */
+  private static void formatMicros(final StringBuilder buf, final long micros) {
+    buf.append(micros / 1000000).append('.');
+    final String frac = Long.toString(micros % 1000000);
+    for (int i = frac.length(); i < 6; i++) {
+      buf.append('0');
+    }
+    buf.append(frac);
+  }
+
+  private static boolean isIntegral(final Object value) {
+    return value instanceof Long || value instanceof Integer;
+  }
+
+  /** Converts a time in milliseconds into microseconds.  */
+  private static long toMicros(final Object ms) {
+    return Math.round(((Number) ms).doubleValue() * 1000);
+  }
+
+  /** Puts the version, string table and body together.  */
+  private static byte[] assemble(final StringTable strings, final Buffer body) {
+    final Buffer out = new Buffer(body.length + strings.size() * 16 + 8);
+    out.writeByte(VERSION);
+    out.writeVarint(strings.size());
+    for (final String s : strings.strings) {
+      out.writeString(s);
+    }
+    out.write(body);
+    return out.toByteArray();
+  }
+
+  // -------- //
+  // Decoding //
+  // -------- //
+
+  /**
+   * Decodes a {@code trace} document.
+   * @throws IllegalArgumentException if the data is corrupted.
+   */
+  public static Map<String, Object> decodeTrace(final byte[] data) {
+    final Reader in = new Reader(data);
+    final String[] strings = in.readHeader();
+    final LinkedHashMap<String, Object> trace = new LinkedHashMap<String, Object>();
+    final int bitmap = (int) in.readVarint();
+    for (int i = 0; i < TOP_FIELDS.length; i++) {
+      if ((bitmap & (1 << i)) == 0) {
+        continue;
+      }
+      final Object value;
+      if (i == 0) {
+        value = in.readString();
+      } else if ((TOP_TIME_FIELDS & (1 << i)) != 0) {
+        value = in.readSvarint() / 1000.0;
+      } else {
+        value = in.readSvarint();
+      }
+      trace.put(TOP_FIELDS[i], value);
+    }
+
+    int n = in.readCount();
+    if (n > 0) {
+      final ArrayList<Object> times = new ArrayList<Object>(n);
+      long prev = 0;
+      for (int i = 0; i < n; i++) {
+        final LinkedHashMap<String, Object> entry = new LinkedHashMap<String, Object>(4);
+        entry.put("name", in.readRef(strings));
+        prev += in.readSvarint();
+        entry.put("time", prev / 1000.0);
+        entry.put("count", in.readSvarint());
+        times.add(entry);
+      }
+      trace.put("syscalls_times", times);
+    }
+
+    n = in.readCount();
+    if (n > 0) {
+      final ArrayList<Object> reqs = new ArrayList<Object>(n);
+      for (int i = 0; i < n; i++) {
+        final LinkedHashMap<String, Object> req = new LinkedHashMap<String, Object>(2);
+        req.put("peer", in.readRef(strings));
+        final int ncalls = in.readCount();
+        final ArrayList<Object> calls = new ArrayList<Object>(ncalls);
+        long prev_duration = 0;
+        long prev_ts = 0;
+        for (int j = 0; j < ncalls; j++) {
+          final LinkedHashMap<String, Object> call = new LinkedHashMap<String, Object>(8);
+          prev_duration += in.readSvarint();
+          call.put("duration", prev_duration / 1000.0);
+          call.put("name", in.readRef(strings));
+          call.put("retv", in.readSvarint());
+          final String args = in.readString();
+          if (args != null) {
+            call.put("call", args);
+          }
+          final long flags = in.readVarint();
+          if ((flags & 2) != 0) {
+            prev_ts += in.readSvarint();
+            call.put("timestamp", prev_ts / 1000.0);
+          } else if ((flags & 1) != 0) {
+            call.put("timestamp", true);
+          }
+          if ((flags & 12) != 0) {
+            call.put("fast_path", (flags & 4) != 0);
+          }
+          in.readExtra(call);
+          calls.add(call);
+        }
+        req.put("calls", calls);
+        reqs.add(req);
+      }
+      trace.put("backend_reqs", reqs);
+    }
+    in.readExtra(trace);
+    return trace;
+  }
+
+  /**
+   * Decodes a {@code fulltrace} document.
+   * @throws IllegalArgumentException if the data is corrupted.
+   */
+  public static Map<String, Object> decodeFullTrace(final byte[] data) {
+    final Reader in = new Reader(data);
+    final String[] strings = in.readHeader();
+    final int n = in.readCount();
+    final ArrayList<Object> lines = new ArrayList<Object>(n);
+    final StringBuilder buf = new StringBuilder(128);
+    long prev_ts = 0;
+    long prev_duration = 0;
+    for (int i = 0; i < n; i++) {
+      final long tag = in.readVarint();
+      if (tag == 0) {
+        lines.add(in.readString());
+        continue;
+      }
+      final long name = (tag >>> 1) - 1;
+      if (name < 0 || name >= strings.length) {
+        throw new IllegalArgumentException("Invalid string reference " + name);
+      }
+      prev_ts += in.readSvarint();
+      buf.setLength(0);
+      formatMicros(buf, prev_ts);
+      buf.append(' ').append(strings[(int) name]).append(in.readString())
+        .append(" = ").append(in.readString()).append(" <");
+      prev_duration += in.readSvarint();
+      formatMicros(buf, prev_duration);
+      buf.append('>');
+      if ((tag & 1) != 0) {
+        buf.append('\n');
+      }
+      lines.add(buf.toString());
+    }
+    final LinkedHashMap<String, Object> fulltrace = new LinkedHashMap<String, Object>(1);
+    fulltrace.put("syscalls", lines);
+    return fulltrace;
+  }
+
+  // -------------------------- //
+  // Documents stored in ES     //
+  // -------------------------- //
+
+  /**
+   * Returns the compact form of a document, as stored in ES.
+   * @param type The type of the document ("trace" or "fulltrace").
+   * @param source The JSON source of the document.
+   * @return The source of the compact document, or {@code null} if this
+   * type of document isn't encoded or doesn't look like what we expect.
+   */
+  public static String compact(final String type, final String source) {
+    final Map<String, Object> doc;
+    try {
+      doc = Json.parseObject(source);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+    final byte[] data;
+    if (type.equals("trace")) {
+      data = encodeTrace(doc);
+    } else if (type.equals("fulltrace")) {
+      data = encodeFullTrace(doc);
+    } else {
+      return null;
+    }
+    if (data == null) {
+      return null;
+    }
+    final StringBuilder buf = new StringBuilder(data.length * 4 / 3 + 32);
+    buf.append("{\"v\":").append(VERSION).append(",\"compact\":\"");
+    Base64.encode(buf, data);
+    return buf.append("\"}").toString();
+  }
+
+  /**
+   * Reverses {@link #compact}.
+   * @return The decoded document, or the document itself if it wasn't in
+   * the compact form.
+   * @throws IllegalArgumentException if the data is corrupted.
+   */
+  public static Map<String, Object> expand(final String type,
+                                           final Map<String, Object> doc) {
+    final String compact = Json.getString(doc, "compact");
+    if (compact == null) {
+      return doc;
+    }
+    final byte[] data = Base64.decode(compact);
+    return type.equals("fulltrace") ? decodeFullTrace(data) : decodeTrace(data);
+  }
+
+  // ------- //
+  // Helpers //
+  // ------- //
+
+  /** Assigns a small integer to each distinct string.  */
+  private static final class StringTable {
+    final ArrayList<String> strings = new ArrayList<String>();
+    private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+
+    int intern(final String s) {
+      final Integer id = ids.get(s);
+      if (id != null) {
+        return id;
+      }
+      final int n = strings.size();
+      strings.add(s);
+      ids.put(s, n);
+      return n;
+    }
+
+    int size() {
+      return strings.size();
+    }
+  }
+
+  /** Growable byte buffer with varint support.  */
+  private static final class Buffer {
+    private byte[] buf;
+    int length;
+
+    Buffer(final int capacity) {
+      buf = new byte[Math.max(capacity, 16)];
+    }
+
+    private void ensure(final int n) {
+      if (length + n > buf.length) {
+        final byte[] newbuf = new byte[Math.max(buf.length * 2, length + n)];
+        System.arraycopy(buf, 0, newbuf, 0, length);
+        buf = newbuf;
+      }
+    }
+
+    void writeByte(final int b) {
+      ensure(1);
+      buf[length++] = (byte) b;
+    }
+
+    void writeVarint(long v) {
+      ensure(10);
+      while ((v & ~0x7FL) != 0) {
+        buf[length++] = (byte) ((v & 0x7F) | 0x80);
+        v >>>= 7;
+      }
+      buf[length++] = (byte) v;
+    }
+
+    void writeSvarint(final long v) {
+      writeVarint((v << 1) ^ (v >> 63));  // Zigzag encoding.
+    }
+
+    void writeString(final String s) {
+      if (s == null) {
+        writeVarint(0);
+        return;
+      }
+      final byte[] b = s.getBytes(Json.UTF8);
+      writeVarint(b.length + 1);
+      ensure(b.length);
+      System.arraycopy(b, 0, buf, length, b.length);
+      length += b.length;
+    }
+
+    void write(final Buffer other) {
+      ensure(other.length);
+      System.arraycopy(other.buf, 0, buf, length, other.length);
+      length += other.length;
+    }
+
+    byte[] toByteArray() {
+      final byte[] b = new byte[length];
+      System.arraycopy(buf, 0, b, 0, length);
+      return b;
+    }
+  }
+
+  /** Reads what a {@link Buffer} wrote.  */
+  private static final class Reader {
+    private final byte[] buf;
+    private int pos;
+
+    Reader(final byte[] buf) {
+      this.buf = buf;
+    }
+
+    private IllegalArgumentException corrupted(final String msg) {
+      return new IllegalArgumentException("Corrupted compact trace at offset "
+                                          + pos + ": " + msg);
+    }
+
+    /** Checks the version and reads the string table.  */
+    String[] readHeader() {
+      if (buf.length == 0 || buf[pos++] != VERSION) {
+        throw corrupted("unsupported version");
+      }
+      final String[] strings = new String[readCount()];
+      for (int i = 0; i < strings.length; i++) {
+        strings[i] = readString();
+      }
+      return strings;
+    }
+
+    long readVarint() {
+      long v = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        if (pos >= buf.length) {
+          throw corrupted("truncated varint");
+        }
+        final byte b = buf[pos++];
+        v |= (long) (b & 0x7F) << shift;
+        if (b >= 0) {
+          return v;
+        }
+      }
+      throw corrupted("varint too long");
+    }
+
+    long readSvarint() {
+      final long v = readVarint();
+      return (v >>> 1) ^ -(v & 1);
+    }
+
+    /** Reads a number of elements, with a sanity check.  */
+    int readCount() {
+      final long n = readVarint();
+      if (n > buf.length - pos) {  // Each element takes at least 1 byte.
+        throw corrupted("invalid count " + n);
+      }
+      return (int) n;
+    }
+
+    String readRef(final String[] strings) {
+      final long ref = readVarint();
+      if (ref >= strings.length) {
+        throw corrupted("invalid string reference " + ref);
+      }
+      return strings[(int) ref];
+    }
+
+    String readString() {
+      final long n = readVarint();
+      if (n == 0) {
+        return null;
+      } else if (n - 1 > buf.length - pos) {
+        throw corrupted("truncated string");
+      }
+      final String s = new String(buf, pos, (int) n - 1, Json.UTF8);
+      pos += n - 1;
+      return s;
+    }
+
+    /** Reads the JSON blob of extra fields into the given map.  */
+    void readExtra(final Map<String, Object> map) {
+      final String extra = readString();
+      if (extra != null) {
+        map.putAll(Json.parseObject(extra));
+      }
+    }
+  }
+
+}
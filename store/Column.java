@@ -0,0 +1,158 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package store;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The values of one field of the summaries of a {@link Segment}.
+ * <p>
+ * Numbers are kept in an array indexed by document number, with NaN for
+ * documents that don't have the field.  Strings are dictionary-encoded:
+ * every distinct value gets an ordinal, and we keep the ordinal of every
+ * document (-1 if it doesn't have the field).  A field can have both kinds
+ * of values, although in practice it never happens.
+ * <p>
+ * When the column is inverted, we also keep the list of documents that
+ * have each ordinal, in ascending order.
+ * <p>
+ * This class isn't thread-safe.
+ */
+final class Column {
+
+  private static final double[] NO_NUMBERS = new double[0];
+  private static final int[] NO_ORDS = new int[0];
+
+  /** Name of the field, e.g. "prev_connect.host".  */
+  private final String name;
+  private double[] numbers = NO_NUMBERS;
+  private int[] ords = NO_ORDS;
+  /** Maps an ordinal to its term.  */
+  private final ArrayList<String> terms = new ArrayList<String>();
+  /** Maps a term to its ordinal.  */
+  private final HashMap<String, Integer> dict = new HashMap<String, Integer>();
+  /** Documents that have each ordinal, or {@code null} if not inverted.  */
+  private final ArrayList<int[]> postings;
+  /** Number of documents in each posting list.  */
+  private int[] posting_sizes;
+
+  Column(final String name, final boolean inverted) {
+    this.name = name;
+    postings = inverted ? new ArrayList<int[]>() : null;
+    posting_sizes = inverted ? new int[16] : null;
+  }
+
+  String name() {
+    return name;
+  }
+
+  /** Returns whether or not we keep posting lists for this column.  */
+  boolean inverted() {
+    return postings != null;
+  }
+
+  void setNumber(final int doc, final double value) {
+    if (doc >= numbers.length) {
+      final int old = numbers.length;
+      numbers = Arrays.copyOf(numbers, Math.max(doc + 1, old * 2 + 16));
+      Arrays.fill(numbers, old, numbers.length, Double.NaN);
+    }
+    numbers[doc] = value;
+  }
+
+  void setTerm(final int doc, final String term) {
+    Integer ord = dict.get(term);
+    if (ord == null) {
+      ord = terms.size();
+      terms.add(term);
+      dict.put(term, ord);
+      if (postings != null) {
+        postings.add(new int[4]);
+        if (ord >= posting_sizes.length) {
+          posting_sizes = Arrays.copyOf(posting_sizes, posting_sizes.length * 2);
+        }
+      }
+    }
+    if (doc >= ords.length) {
+      final int old = ords.length;
+      ords = Arrays.copyOf(ords, Math.max(doc + 1, old * 2 + 16));
+      Arrays.fill(ords, old, ords.length, -1);
+    }
+    ords[doc] = ord;
+    if (postings != null) {
+      int[] docs = postings.get(ord);
+      final int n = posting_sizes[ord];
+      if (n == docs.length) {
+        docs = Arrays.copyOf(docs, n * 2);
+        postings.set(ord, docs);
+      }
+      docs[n] = doc;  // Documents are added in order, so it stays sorted.
+      posting_sizes[ord] = n + 1;
+    }
+  }
+
+  /** Returns the number of a document, or NaN if it doesn't have one.  */
+  double number(final int doc) {
+    return doc < numbers.length ? numbers[doc] : Double.NaN;
+  }
+
+  /** Returns whether any document has a number in this column.  */
+  boolean hasNumbers() {
+    return numbers.length > 0;
+  }
+
+  /** Returns the ordinal of a document, or -1 if it doesn't have a term. */
+  int ord(final int doc) {
+    return doc < ords.length ? ords[doc] : -1;
+  }
+
+  /** Returns the number of distinct terms.  */
+  int numTerms() {
+    return terms.size();
+  }
+
+  String term(final int ord) {
+    return terms.get(ord);
+  }
+
+  /** Returns the documents that have the given ordinal.  */
+  int[] postings(final int ord) {
+    return postings.get(ord);
+  }
+
+  /** Returns how many documents have the given ordinal.  */
+  int postingsSize(final int ord) {
+    return posting_sizes[ord];
+  }
+
+  /**
+   * Returns the value of a document as a string, or {@code null}.
+   * Numbers are formatted the way they are in the JSON documents.
+   */
+  String value(final int doc) {
+    final int ord = ord(doc);
+    if (ord >= 0) {
+      return terms.get(ord);
+    }
+    final double n = number(doc);
+    if (n != n) {  // NaN
+      return null;
+    } else if (n == Math.rint(n) && Math.abs(n) < 1e15) {
+      return Long.toString((long) n);
+    }
+    return Double.toString(n);
+  }
+
+}
@@ -0,0 +1,483 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import ingest.Json;
+
+/**
+ * The facets of ElasticSearch that the viewer uses.
+ * <p>
+ * Supported: {@code terms}, {@code histogram}, {@code statistical} and
+ * {@code terms_stats}, with the same output format as ES 0.x, and with an
+ * optional {@code facet_filter}.  A facet collects the matching documents
+ * of each table in turn, and terms are counted by ordinal within a table,
+ * so we only deal with strings once per distinct term.
+ */
+abstract class Facet {
+
+  /** Collects the given documents of a table.  */
+  abstract void collect(Table table, int[] docs, int ndocs);
+
+  /** Returns the facet as ES would.  */
+  abstract Map<String, Object> result();
+
+  /**
+   * Parses the definition of a facet.
+   * @throws IllegalArgumentException if the facet is invalid or of a kind
+   * we don't support.
+   */
+  @SuppressWarnings("unchecked")
+  static Facet parse(final String name, final Object json) {
+    if (!(json instanceof Map)) {
+      throw new IllegalArgumentException("Invalid facet " + name);
+    }
+    final Facet facet = parseFacet(name, (Map<String, Object>) json);
+    final Object filter = ((Map<String, Object>) json).get("facet_filter");
+    return filter == null ? facet : new Filtered(Query.parse(filter), facet);
+  }
+
+  /** Parses the definition of a facet, ignoring its filter.  */
+  @SuppressWarnings("unchecked")
+  private static Facet parseFacet(final String name,
+                                  final Map<String, Object> json) {
+    for (final Map.Entry<String, Object> e : json.entrySet()) {
+      final String type = e.getKey();
+      if (type.equals("facet_filter") || !(e.getValue() instanceof Map)) {
+        continue;  // e.g. "global": true
+      }
+      final Map<String, Object> params = (Map<String, Object>) e.getValue();
+      if (type.equals("terms")) {
+        return new Terms(field(params, "field", name),
+                         (int) Json.getDouble(params, "size", 10));
+      } else if (type.equals("histogram")) {
+        final double interval = Json.getDouble(params, "interval", 0);
+        if (interval <= 0) {
+          throw new IllegalArgumentException("Invalid interval in facet " + name);
+        }
+        String field = Json.getString(params, "field");
+        if (field == null) {
+          field = field(params, "key_field", name);
+        }
+        return new Histogram(field, Json.getString(params, "value_field"),
+                             interval);
+      } else if (type.equals("statistical")) {
+        return new Statistical(field(params, "field", name));
+      } else if (type.equals("terms_stats")) {
+        final String order = Json.getString(params, "order");
+        return new TermsStats(field(params, "key_field", name),
+                              field(params, "value_field", name),
+                              (int) Json.getDouble(params, "size", 10),
+                              order == null ? "count" : order);
+      }
+      throw new IllegalArgumentException("Unsupported facet type " + type
+                                         + " for facet " + name);
+    }
+    throw new IllegalArgumentException("No facet type for facet " + name);
+  }
+
+  private static String field(final Map<String, Object> params,
+                              final String param, final String name) {
+    final String field = Json.getString(params, param);
+    if (field == null) {
+      throw new IllegalArgumentException("Missing " + param + " in facet "
+                                         + name);
+    }
+    return field;
+  }
+
+  /** A facet that only collects the documents matching a filter.  */
+  static final class Filtered extends Facet {
+    private final Query filter;
+    private final Facet facet;
+    /** The documents that match, reused from one table to the next.  */
+    private int[] matches = new int[0];
+
+    Filtered(final Query filter, final Facet facet) {
+      this.filter = filter;
+      this.facet = facet;
+    }
+
+    void collect(final Table table, final int[] docs, final int ndocs) {
+      final Query.Matcher matcher = filter.bind(table);
+      if (matches.length < ndocs) {
+        matches = new int[ndocs];
+      }
+      int nmatches = 0;
+      for (int i = 0; i < ndocs; i++) {
+        if (matcher.matches(docs[i])) {
+          matches[nmatches++] = docs[i];
+        }
+      }
+      facet.collect(table, matches, nmatches);
+    }
+
+    Map<String, Object> result() {
+      return facet.result();
+    }
+  }
+
+  /** Counts the documents that have each term of a field.  */
+  static final class Terms extends Facet {
+    private final String field;
+    private final int size;
+    private final HashMap<String, long[]> counts = new HashMap<String, long[]>();
+    private long missing;
+    private long total;
+
+    Terms(final String field, final int size) {
+      this.field = field;
+      this.size = size;
+    }
+
+    void collect(final Table table, final int[] docs, final int ndocs) {
+      final Column column = table.column(field);
+      if (column == null) {
+        missing += ndocs;
+        return;
+      }
+      final long[] by_ord = new long[column.numTerms()];
+      for (int i = 0; i < ndocs; i++) {
+        final int ord = column.ord(docs[i]);
+        if (ord >= 0) {
+          by_ord[ord]++;
+          continue;
+        }
+        final String value = column.value(docs[i]);  // Maybe a number.
+        if (value == null) {
+          missing++;
+        } else {
+          add(value, 1);
+        }
+      }
+      for (int ord = 0; ord < by_ord.length; ord++) {
+        if (by_ord[ord] > 0) {
+          add(column.term(ord), by_ord[ord]);
+        }
+      }
+    }
+
+    private void add(final String term, final long count) {
+      long[] c = counts.get(term);
+      if (c == null) {
+        c = new long[1];
+        counts.put(term, c);
+      }
+      c[0] += count;
+      total += count;
+    }
+
+    Map<String, Object> result() {
+      final ArrayList<Map.Entry<String, long[]>> entries =
+        new ArrayList<Map.Entry<String, long[]>>(counts.entrySet());
+      Collections.sort(entries, new Comparator<Map.Entry<String, long[]>>() {
+        public int compare(final Map.Entry<String, long[]> a,
+                           final Map.Entry<String, long[]> b) {
+          final long ca = a.getValue()[0];
+          final long cb = b.getValue()[0];
+          return ca != cb ? (ca > cb ? -1 : 1) : a.getKey().compareTo(b.getKey());
+        }
+      });
+      final ArrayList<Object> terms = new ArrayList<Object>(Math.min(size, entries.size()));
+      long other = total;
+      for (int i = 0; i < size && i < entries.size(); i++) {
+        final Map.Entry<String, long[]> e = entries.get(i);
+        final LinkedHashMap<String, Object> term = new LinkedHashMap<String, Object>(2);
+        term.put("term", e.getKey());
+        term.put("count", e.getValue()[0]);
+        terms.add(term);
+        other -= e.getValue()[0];
+      }
+      final LinkedHashMap<String, Object> result = new LinkedHashMap<String, Object>(5);
+      result.put("_type", "terms");
+      result.put("missing", missing);
+      result.put("total", total);
+      result.put("other", other);
+      result.put("terms", terms);
+      return result;
+    }
+  }
+
+  /**
+   * Counts the documents in each interval of a numeric field.
+   * With a {@code value_field}, also gives statistics on another field in
+   * each interval, which is how rollups get summed over time.
+   */
+  static final class Histogram extends Facet {
+    private final String field;
+    /** Field to compute statistics on, or {@code null}.  */
+    private final String value_field;
+    private final double interval;
+    private final TreeMap<Double, Stats> buckets = new TreeMap<Double, Stats>();
+
+    Histogram(final String field, final String value_field,
+              final double interval) {
+      this.field = field;
+      this.value_field = value_field;
+      this.interval = interval;
+    }
+
+    void collect(final Table table, final int[] docs, final int ndocs) {
+      final Column column = table.column(field);
+      final Column values = value_field == null ? null : table.column(value_field);
+      if (column == null || (value_field != null && values == null)) {
+        return;
+      }
+      // Consecutive documents often fall in the same bucket.
+      double last_key = Double.NaN;
+      Stats last = null;
+      for (int i = 0; i < ndocs; i++) {
+        final double n = column.number(docs[i]);
+        if (n != n) {  // NaN
+          continue;
+        }
+        final double key = Math.floor(n / interval) * interval;
+        if (key != last_key) {
+          last_key = key;
+          last = buckets.get(key);
+          if (last == null) {
+            last = new Stats();
+            buckets.put(key, last);
+          }
+        }
+        if (values == null) {
+          last.count++;
+          continue;
+        }
+        final double v = values.number(docs[i]);
+        if (v == v) {  // Not NaN
+          last.add(v);
+        }
+      }
+    }
+
+    Map<String, Object> result() {
+      final ArrayList<Object> entries = new ArrayList<Object>(buckets.size());
+      for (final Map.Entry<Double, Stats> e : buckets.entrySet()) {
+        final Stats stats = e.getValue();
+        final LinkedHashMap<String, Object> entry = new LinkedHashMap<String, Object>(7);
+        entry.put("key", e.getKey());
+        if (value_field == null) {
+          entry.put("count", stats.count);
+        } else {
+          stats.putIn(entry);
+          entry.put("total_count", stats.count);
+        }
+        entries.add(entry);
+      }
+      final LinkedHashMap<String, Object> result = new LinkedHashMap<String, Object>(2);
+      result.put("_type", "histogram");
+      result.put("entries", entries);
+      return result;
+    }
+  }
+
+  /** Accumulates count, min, max, total and sum of squares.  */
+  static final class Stats {
+    long count;
+    double min = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
+    double total;
+    double sum_of_squares;
+
+    void add(final double n) {
+      count++;
+      total += n;
+      sum_of_squares += n * n;
+      if (n < min) {
+        min = n;
+      }
+      if (n > max) {
+        max = n;
+      }
+    }
+
+    double mean() {
+      return count == 0 ? 0 : total / count;
+    }
+
+    /** Puts the stats in a facet result.  */
+    void putIn(final Map<String, Object> result) {
+      result.put("count", count);
+      result.put("total", total);
+      if (count > 0) {  // ES gives `Infinity' here, which isn't valid JSON.
+        result.put("min", min);
+        result.put("max", max);
+      }
+      result.put("mean", mean());
+    }
+  }
+
+  /** Statistics on a numeric field.  */
+  static final class Statistical extends Facet {
+    private final String field;
+    private final Stats stats = new Stats();
+
+    Statistical(final String field) {
+      this.field = field;
+    }
+
+    void collect(final Table table, final int[] docs, final int ndocs) {
+      final Column column = table.column(field);
+      if (column == null) {
+        return;
+      }
+      for (int i = 0; i < ndocs; i++) {
+        final double n = column.number(docs[i]);
+        if (n == n) {  // Not NaN
+          stats.add(n);
+        }
+      }
+    }
+
+    Map<String, Object> result() {
+      final LinkedHashMap<String, Object> result = new LinkedHashMap<String, Object>(9);
+      result.put("_type", "statistical");
+      stats.putIn(result);
+      result.put("sum_of_squares", stats.sum_of_squares);
+      final double variance = stats.count == 0 ? 0
+        : stats.sum_of_squares / stats.count - stats.mean() * stats.mean();
+      result.put("variance", variance);
+      result.put("std_deviation", Math.sqrt(Math.max(variance, 0)));
+      return result;
+    }
+  }
+
+  /** Statistics on a numeric field for each term of another field.  */
+  static final class TermsStats extends Facet {
+    private final String key_field;
+    private final String value_field;
+    private final int size;
+    private final String order;
+    private final HashMap<String, Stats> stats = new HashMap<String, Stats>();
+    private long missing;
+
+    TermsStats(final String key_field, final String value_field,
+               final int size, final String order) {
+      this.key_field = key_field;
+      this.value_field = value_field;
+      this.size = size;
+      this.order = order;
+      comparator();  // Validate the order early.
+    }
+
+    void collect(final Table table, final int[] docs, final int ndocs) {
+      final Column keys = table.column(key_field);
+      final Column values = table.column(value_field);
+      if (keys == null) {
+        missing += ndocs;
+        return;
+      }
+      final Stats[] by_ord = new Stats[keys.numTerms()];
+      for (int i = 0; i < ndocs; i++) {
+        final int doc = docs[i];
+        final double n = values == null ? Double.NaN : values.number(doc);
+        final int ord = keys.ord(doc);
+        Stats s;
+        if (ord >= 0) {
+          s = by_ord[ord];
+          if (s == null) {
+            s = by_ord[ord] = get(keys.term(ord));
+          }
+        } else {
+          final String key = keys.value(doc);
+          if (key == null) {
+            missing++;
+            continue;
+          }
+          s = get(key);
+        }
+        if (n == n) {  // Not NaN
+          s.add(n);
+        }
+      }
+    }
+
+    private Stats get(final String key) {
+      Stats s = stats.get(key);
+      if (s == null) {
+        s = new Stats();
+        stats.put(key, s);
+      }
+      return s;
+    }
+
+    private Comparator<Map.Entry<String, Stats>> comparator() {
+      final boolean reverse = order.startsWith("reverse_");
+      final String by = reverse ? order.substring(8) : order;
+      final int sign = reverse ? -1 : 1;
+      if (by.equals("term")) {
+        return new Comparator<Map.Entry<String, Stats>>() {
+          public int compare(final Map.Entry<String, Stats> a,
+                             final Map.Entry<String, Stats> b) {
+            return sign * a.getKey().compareTo(b.getKey());
+          }
+        };
+      } else if (!by.equals("count") && !by.equals("total")
+                 && !by.equals("min") && !by.equals("max") && !by.equals("mean")) {
+        throw new IllegalArgumentException("Unsupported order for terms_stats: "
+                                           + order);
+      }
+      // Numeric orders are descending, except for `min'.
+      final int dir = by.equals("min") ? sign : -sign;
+      return new Comparator<Map.Entry<String, Stats>>() {
+        public int compare(final Map.Entry<String, Stats> a,
+                           final Map.Entry<String, Stats> b) {
+          final int c = Double.compare(value(a.getValue()), value(b.getValue()));
+          return c != 0 ? dir * c : a.getKey().compareTo(b.getKey());
+        }
+        private double value(final Stats s) {
+          if (by.equals("count")) {
+            return s.count;
+          } else if (by.equals("total")) {
+            return s.total;
+          } else if (by.equals("min")) {
+            return s.min;
+          } else if (by.equals("max")) {
+            return s.max;
+          }
+          return s.mean();
+        }
+      };
+    }
+
+    Map<String, Object> result() {
+      final ArrayList<Map.Entry<String, Stats>> entries =
+        new ArrayList<Map.Entry<String, Stats>>(stats.entrySet());
+      Collections.sort(entries, comparator());
+      final ArrayList<Object> terms = new ArrayList<Object>(Math.min(size, entries.size()));
+      // A size of 0 means all the terms, in ES.
+      for (int i = 0; (size == 0 || i < size) && i < entries.size(); i++) {
+        final Map.Entry<String, Stats> e = entries.get(i);
+        final LinkedHashMap<String, Object> term = new LinkedHashMap<String, Object>(7);
+        term.put("term", e.getKey());
+        e.getValue().putIn(term);
+        term.put("total_count", e.getValue().count);
+        terms.add(term);
+      }
+      final LinkedHashMap<String, Object> result = new LinkedHashMap<String, Object>(3);
+      result.put("_type", "terms_stats");
+      result.put("missing", missing);
+      result.put("terms", terms);
+      return result;
+    }
+  }
+
+}
@@ -0,0 +1,561 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package store;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import ingest.Json;
+
+/**
+ * A query or a filter over the summaries.
+ * <p>
+ * Queries are parsed from the subset of the ElasticSearch query DSL that the
+ * viewer and people typing in its query box use: {@code match_all},
+ * {@code query_string} (see {@link QueryString}), {@code term},
+ * {@code range} and {@code numeric_range}, {@code prefix}, {@code bool},
+ * {@code filtered}, and the {@code and} / {@code or} / {@code not} filters.
+ * Queries and filters are the same thing here, since we don't score.
+ * <p>
+ * A query is bound to a {@link Table} before it runs, which gives a
+ * {@link Matcher} that knows the ordinals and posting lists of that table.
+ * <p>
+ * String fields match if the value is equal to the term, or contains it as
+ * a whole word, both ignoring the case.  This is close enough to what the
+ * standard analyzer of ES does, so "resource:search" still finds
+ * "/api/v1/search".
+ */
+abstract class Query {
+
+  /** Matches the documents of one table.  */
+  abstract static class Matcher {
+    abstract boolean matches(int doc);
+
+    /**
+     * Returns the only documents that can match, in any order.
+     * @return The candidates, or {@code null} if we'd have to look at all
+     * the documents.
+     */
+    int[] candidates() {
+      return null;
+    }
+  }
+
+  abstract Matcher bind(Table table);
+
+  /** A matcher that matches no document.  */
+  static final Matcher NOTHING = new Matcher() {
+    boolean matches(final int doc) {
+      return false;
+    }
+    int[] candidates() {
+      return new int[0];
+    }
+  };
+
+  static final Query MATCH_ALL = new Query() {
+    Matcher bind(final Table table) {
+      return new Matcher() {
+        boolean matches(final int doc) {
+          return true;
+        }
+      };
+    }
+  };
+
+  // ------- //
+  // Parsing //
+  // ------- //
+
+  /**
+   * Parses a query or a filter from the ES query DSL.
+   * @throws IllegalArgumentException if the query is invalid or uses
+   * something we don't support.
+   */
+  static Query parse(final Object json) {
+    final Map<String, Object> query = asObject(json, "query");
+    if (query.size() != 1) {
+      throw new IllegalArgumentException("A query must have exactly one"
+                                         + " field: " + Json.toString(query));
+    }
+    final Map.Entry<String, Object> e = query.entrySet().iterator().next();
+    final String type = e.getKey();
+    final Object body = e.getValue();
+    if (type.equals("match_all")) {
+      return MATCH_ALL;
+    } else if (type.equals("query_string")) {
+      final Map<String, Object> qs = asObject(body, type);
+      final String text = Json.getString(qs, "query");
+      if (text == null) {
+        throw new IllegalArgumentException("query_string without a query");
+      }
+      final String op = Json.getString(qs, "default_operator");
+      final String field = Json.getString(qs, "default_field");
+      return QueryString.parse(text, op == null || !op.equalsIgnoreCase("AND"),
+                               field == null ? QueryString.ALL : field);
+    } else if (type.equals("filtered")) {
+      final Map<String, Object> filtered = asObject(body, type);
+      final Object q = filtered.get("query");
+      final Object f = filtered.get("filter");
+      final ArrayList<Query> must = new ArrayList<Query>(2);
+      must.add(q == null ? MATCH_ALL : parse(q));
+      if (f != null) {
+        must.add(parse(f));
+      }
+      return new Bool(must, new ArrayList<Query>(0), new ArrayList<Query>(0));
+    } else if (type.equals("constant_score")) {
+      final Map<String, Object> cs = asObject(body, type);
+      final Object q = cs.containsKey("filter") ? cs.get("filter") : cs.get("query");
+      return parse(q);
+    } else if (type.equals("term") || type.equals("prefix")) {
+      final Map.Entry<String, Object> fv = singleField(body, type);
+      Object value = fv.getValue();
+      if (value instanceof Map) {  // {"field": {"value": ...}}
+        value = ((Map<?, ?>) value).get(type.equals("term") ? "value" : "prefix");
+      }
+      if (value == null) {
+        throw new IllegalArgumentException("No value for " + type + " query");
+      }
+      final String text = value instanceof String ? (String) value
+                                                  : Json.toString(value);
+      return type.equals("term") ? new Term(fv.getKey(), text)
+                                 : new Wildcard(fv.getKey(), text + '*');
+    } else if (type.equals("range") || type.equals("numeric_range")) {
+      final Map.Entry<String, Object> fv = singleField(body, type);
+      return Range.parse(fv.getKey(), asObject(fv.getValue(), type));
+    } else if (type.equals("bool")) {
+      final Map<String, Object> bool = asObject(body, type);
+      return new Bool(parseList(bool.get("must")), parseList(bool.get("should")),
+                      parseList(bool.get("must_not")));
+    } else if (type.equals("and") || type.equals("or")) {
+      Object filters = body;
+      if (body instanceof Map) {  // {"and": {"filters": [...]}}
+        filters = ((Map<?, ?>) body).get("filters");
+      }
+      final List<Query> list = parseList(filters);
+      final List<Query> none = new ArrayList<Query>(0);
+      return type.equals("and") ? new Bool(list, none, none)
+                                : new Bool(none, list, none);
+    } else if (type.equals("not")) {
+      Object filter = body;
+      if (body instanceof Map && ((Map<?, ?>) body).containsKey("filter")) {
+        filter = ((Map<?, ?>) body).get("filter");
+      }
+      return not(parse(filter));
+    }
+    throw new IllegalArgumentException("Unsupported query: " + type);
+  }
+
+  private static List<Query> parseList(final Object json) {
+    final ArrayList<Query> queries = new ArrayList<Query>();
+    if (json instanceof List) {
+      for (final Object q : (List<?>) json) {
+        queries.add(parse(q));
+      }
+    } else if (json != null) {
+      queries.add(parse(json));
+    }
+    return queries;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> asObject(final Object json,
+                                              final String what) {
+    if (!(json instanceof Map)) {
+      throw new IllegalArgumentException("Expected an object for " + what
+                                         + ", got: " + Json.toString(json));
+    }
+    return (Map<String, Object>) json;
+  }
+
+  /** Returns the only "field: value" of an object.  */
+  private static Map.Entry<String, Object> singleField(final Object json,
+                                                       final String what) {
+    final Map<String, Object> map = asObject(json, what);
+    for (final Map.Entry<String, Object> e : map.entrySet()) {
+      if (!e.getKey().startsWith("_")) {  // Skip "_cache" & co.
+        return e;
+      }
+    }
+    throw new IllegalArgumentException("No field in " + what + " query");
+  }
+
+  static Query not(final Query query) {
+    final List<Query> none = new ArrayList<Query>(0);
+    final ArrayList<Query> must_not = new ArrayList<Query>(1);
+    must_not.add(query);
+    return new Bool(none, none, must_not);
+  }
+
+  // ------------- //
+  // Query classes //
+  // ------------- //
+
+  /**
+   * Boolean combination of queries.
+   * With no {@code must} clause, at least one {@code should} clause must
+   * match (if there's any).
+   */
+  static final class Bool extends Query {
+    private final List<Query> must;
+    private final List<Query> should;
+    private final List<Query> must_not;
+
+    Bool(final List<Query> must, final List<Query> should,
+         final List<Query> must_not) {
+      this.must = must;
+      this.should = should;
+      this.must_not = must_not;
+    }
+
+    Matcher bind(final Table table) {
+      final Matcher[] musts = bindAll(must, table);
+      final Matcher[] shoulds = bindAll(should, table);
+      final Matcher[] must_nots = bindAll(must_not, table);
+      final boolean need_should = must.isEmpty() && !should.isEmpty();
+      return new Matcher() {
+        boolean matches(final int doc) {
+          for (final Matcher m : musts) {
+            if (!m.matches(doc)) {
+              return false;
+            }
+          }
+          for (final Matcher m : must_nots) {
+            if (m.matches(doc)) {
+              return false;
+            }
+          }
+          if (!need_should) {
+            return true;
+          }
+          for (final Matcher m : shoulds) {
+            if (m.matches(doc)) {
+              return true;
+            }
+          }
+          return false;
+        }
+
+        int[] candidates() {
+          // Any required clause will do, take the most selective one.
+          int[] best = null;
+          for (final Matcher m : musts) {
+            final int[] candidates = m.candidates();
+            if (candidates != null && (best == null || candidates.length < best.length)) {
+              best = candidates;
+            }
+          }
+          if (best != null || !need_should) {
+            return best;
+          }
+          // Otherwise it's the union of the candidates of the `should'.
+          final BitSet union = new BitSet();
+          for (final Matcher m : shoulds) {
+            final int[] candidates = m.candidates();
+            if (candidates == null) {
+              return null;
+            }
+            for (final int doc : candidates) {
+              union.set(doc);
+            }
+          }
+          return toArray(union);
+        }
+      };
+    }
+
+    private static Matcher[] bindAll(final List<Query> queries,
+                                     final Table table) {
+      final Matcher[] matchers = new Matcher[queries.size()];
+      for (int i = 0; i < matchers.length; i++) {
+        matchers[i] = queries.get(i).bind(table);
+      }
+      return matchers;
+    }
+  }
+
+  /**
+   * Matches the string or numeric values of a field.
+   * The terms of a column are only looked at once per table, and if the
+   * column is inverted, the posting lists of the matching terms give the
+   * candidates.
+   */
+  abstract static class TextQuery extends Query {
+    /** The field, or {@link QueryString#ALL} for any field.  */
+    final String field;
+
+    TextQuery(final String field) {
+      this.field = field;
+    }
+
+    abstract boolean matchesTerm(String value);
+
+    abstract boolean matchesNumber(double value);
+
+    Matcher bind(final Table table) {
+      final ArrayList<Column> columns = new ArrayList<Column>();
+      if (field.equals(QueryString.ALL)) {
+        columns.addAll(table.columns());
+      } else if (table.column(field) != null) {
+        columns.add(table.column(field));
+      }
+      if (columns.isEmpty()) {
+        return NOTHING;
+      }
+      final Column[] cols = columns.toArray(new Column[columns.size()]);
+      final BitSet[] ords = new BitSet[cols.length];
+      for (int i = 0; i < cols.length; i++) {
+        ords[i] = matchingOrds(cols[i]);
+      }
+      return new Matcher() {
+        boolean matches(final int doc) {
+          for (int i = 0; i < cols.length; i++) {
+            final int ord = cols[i].ord(doc);
+            if (ord >= 0) {
+              if (ords[i].get(ord)) {
+                return true;
+              }
+              continue;
+            }
+            final double n = cols[i].number(doc);
+            if (n == n && matchesNumber(n)) {  // n == n is false for NaN.
+              return true;
+            }
+          }
+          return false;
+        }
+
+        int[] candidates() {
+          if (cols.length != 1 || !cols[0].inverted() || cols[0].hasNumbers()) {
+            return null;
+          }
+          final Column column = cols[0];
+          int n = 0;
+          for (int ord = ords[0].nextSetBit(0); ord >= 0; ord = ords[0].nextSetBit(ord + 1)) {
+            n += column.postingsSize(ord);
+          }
+          final int[] docs = new int[n];
+          n = 0;
+          for (int ord = ords[0].nextSetBit(0); ord >= 0; ord = ords[0].nextSetBit(ord + 1)) {
+            final int size = column.postingsSize(ord);
+            System.arraycopy(column.postings(ord), 0, docs, n, size);
+            n += size;
+          }
+          return docs;
+        }
+      };
+    }
+
+    private BitSet matchingOrds(final Column column) {
+      final BitSet ords = new BitSet();
+      final int nterms = column.numTerms();
+      for (int ord = 0; ord < nterms; ord++) {
+        if (matchesTerm(column.term(ord))) {
+          ords.set(ord);
+        }
+      }
+      return ords;
+    }
+  }
+
+  /** Matches a term, see the comment of the class for strings.  */
+  static final class Term extends TextQuery {
+    private final String lower;
+    private final double number;
+
+    Term(final String field, final String term) {
+      super(field);
+      lower = term.toLowerCase(Locale.ENGLISH);
+      double n;
+      try {
+        n = Double.parseDouble(term);
+      } catch (NumberFormatException e) {
+        n = Double.NaN;
+      }
+      number = n;
+    }
+
+    boolean matchesTerm(final String value) {
+      return textMatches(value, lower);
+    }
+
+    boolean matchesNumber(final double value) {
+      return value == number;
+    }
+  }
+
+  /**
+   * Matches strings with {@code *} and {@code ?} wildcards.
+   * The whole value or one of its words must match.
+   */
+  static final class Wildcard extends TextQuery {
+    private final Pattern pattern;
+
+    Wildcard(final String field, final String wildcard) {
+      super(field);
+      final StringBuilder re = new StringBuilder(wildcard.length() + 8);
+      int start = 0;
+      for (int i = 0; i < wildcard.length(); i++) {
+        final char c = wildcard.charAt(i);
+        if (c == '*' || c == '?') {
+          re.append(Pattern.quote(wildcard.substring(start, i)));
+          re.append(c == '*' ? ".*" : ".");
+          start = i + 1;
+        }
+      }
+      re.append(Pattern.quote(wildcard.substring(start)));
+      pattern = Pattern.compile(re.toString(),
+                                Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    }
+
+    boolean matchesTerm(final String value) {
+      if (pattern.matcher(value).matches()) {
+        return true;
+      }
+      for (final String word : WORDS.split(value)) {
+        if (pattern.matcher(word).matches()) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    boolean matchesNumber(final double value) {
+      return false;
+    }
+  }
+
+  /** Matches numbers in a range.  */
+  static final class Range extends Query {
+    private final String field;
+    private final double from;
+    private final boolean include_from;
+    private final double to;
+    private final boolean include_to;
+
+    Range(final String field, final double from, final boolean include_from,
+          final double to, final boolean include_to) {
+      this.field = field;
+      this.from = from;
+      this.include_from = include_from;
+      this.to = to;
+      this.include_to = include_to;
+    }
+
+    static Range parse(final String field, final Map<String, Object> range) {
+      double from = Double.NEGATIVE_INFINITY;
+      double to = Double.POSITIVE_INFINITY;
+      boolean include_from = !Boolean.FALSE.equals(range.get("include_lower"));
+      boolean include_to = !Boolean.FALSE.equals(range.get("include_upper"));
+      for (final Map.Entry<String, Object> e : range.entrySet()) {
+        final String key = e.getKey();
+        if (key.startsWith("include_") || e.getValue() == null) {
+          continue;
+        }
+        final double value = number(e.getValue(), field);
+        if (key.equals("from") || key.equals("gte")) {
+          from = value;
+          include_from |= key.equals("gte");
+        } else if (key.equals("gt")) {
+          from = value;
+          include_from = false;
+        } else if (key.equals("to") || key.equals("lte")) {
+          to = value;
+          include_to |= key.equals("lte");
+        } else if (key.equals("lt")) {
+          to = value;
+          include_to = false;
+        } else {
+          throw new IllegalArgumentException("Unsupported range parameter: "
+                                             + key);
+        }
+      }
+      return new Range(field, from, include_from, to, include_to);
+    }
+
+    private static double number(final Object value, final String field) {
+      if (value instanceof Number) {
+        return ((Number) value).doubleValue();
+      }
+      try {
+        return Double.parseDouble(value.toString());
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Not a number in the range of "
+                                           + field + ": " + value);
+      }
+    }
+
+    Matcher bind(final Table table) {
+      final Column column = table.column(field);
+      if (column == null) {
+        return NOTHING;
+      }
+      final boolean by_ts = field.equals(table.timeField());
+      return new Matcher() {
+        boolean matches(final int doc) {
+          final double n = column.number(doc);
+          return (include_from ? n >= from : n > from)
+            && (include_to ? n <= to : n < to);  // False for NaN.
+        }
+        int[] candidates() {
+          return by_ts ? table.timeRange(from, include_from, to, include_to)
+                       : null;
+        }
+      };
+    }
+  }
+
+  /** Separates the words of a string value.  */
+  private static final Pattern WORDS = Pattern.compile("[^\\p{L}\\p{N}_]+");
+
+  /**
+   * Returns whether a string value matches a term in lower case.
+   * The term must be equal to the value, or to a sequence of whole words of
+   * it, ignoring the case.
+   */
+  static boolean textMatches(final String value, final String lower) {
+    if (lower.isEmpty()) {
+      return value.isEmpty();
+    }
+    final int len = lower.length();
+    final int end = value.length() - len;
+    for (int i = 0; i <= end; i++) {
+      if (value.regionMatches(true, i, lower, 0, len)
+          && (i == 0 || !isWordChar(value.charAt(i - 1))
+              || !isWordChar(lower.charAt(0)))
+          && (i == end || !isWordChar(value.charAt(i + len))
+              || !isWordChar(lower.charAt(len - 1)))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isWordChar(final char c) {
+    return Character.isLetterOrDigit(c) || c == '_';
+  }
+
+  private static int[] toArray(final BitSet docs) {
+    final int[] array = new int[docs.cardinality()];
+    int i = 0;
+    for (int doc = docs.nextSetBit(0); doc >= 0; doc = docs.nextSetBit(doc + 1)) {
+      array[i++] = doc;
+    }
+    return array;
+  }
+
+}
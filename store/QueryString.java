@@ -0,0 +1,271 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package store;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parser for the Lucene query syntax of {@code query_string} queries.
+ * <p>
+ * We support what people type in the query box of the viewer:
+ * <ul>
+ * <li>{@code word}, {@code "a phrase"}, {@code wild*card},</li>
+ * <li>{@code field:value}, {@code field:"a phrase"},
+ * {@code field:(a OR b)},</li>
+ * <li>{@code field:[10 TO 20]}, {@code field:{10 TO *}},</li>
+ * <li>{@code AND}, {@code OR}, {@code NOT}, {@code &&}, {@code ||},
+ * {@code !}, {@code +}, {@code -} and parentheses.</li>
+ * </ul>
+ * {@code AND} binds tighter than {@code OR}, and clauses without an
+ * operator between them are joined by the default operator.  Boosts and
+ * fuzziness ({@code ^2}, {@code ~}) are ignored.
+ */
+final class QueryString {
+
+  /** Pseudo-field to search all the fields.  */
+  static final String ALL = "_all";
+
+  private final String text;
+  private final boolean default_or;
+  private int pos;
+
+  private QueryString(final String text, final boolean default_or) {
+    this.text = text;
+    this.default_or = default_or;
+  }
+
+  /**
+   * Parses a query string.
+   * @param text The query.
+   * @param default_or Whether clauses are joined by OR (or AND) by default.
+   * @param field The default field.
+   * @throws IllegalArgumentException if the query is malformed.
+   */
+  static Query parse(final String text, final boolean default_or,
+                     final String field) {
+    final QueryString parser = new QueryString(text, default_or);
+    parser.skipWhitespace();
+    if (parser.pos == text.length()) {
+      return Query.MATCH_ALL;
+    }
+    final Query query = parser.parseClauses(field);
+    if (parser.pos != text.length()) {
+      throw parser.error("unexpected `" + text.charAt(parser.pos) + "'");
+    }
+    return query;
+  }
+
+  private IllegalArgumentException error(final String msg) {
+    return new IllegalArgumentException("Invalid query string: " + msg
+                                        + " at offset " + pos + " in: " + text);
+  }
+
+  private void skipWhitespace() {
+    while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+      pos++;
+    }
+  }
+
+  /** Consumes the given operator if it's next.  */
+  private boolean consume(final String op) {
+    if (!text.startsWith(op, pos)) {
+      return false;
+    }
+    final int end = pos + op.length();
+    // Words must be followed by a separator, "ANDROID" isn't an operator.
+    if (Character.isLetter(op.charAt(0)) && end < text.length()
+        && !Character.isWhitespace(text.charAt(end)) && text.charAt(end) != '(') {
+      return false;
+    }
+    pos = end;
+    skipWhitespace();
+    return true;
+  }
+
+  /**
+   * Parses clauses until the end of the text or a closing parenthesis.
+   * The result is an OR of ANDs.
+   */
+  private Query parseClauses(final String field) {
+    final ArrayList<Query> or = new ArrayList<Query>();
+    ArrayList<Query> and = new ArrayList<Query>();
+    and.add(parseUnary(field));
+    while (pos < text.length() && text.charAt(pos) != ')') {
+      final boolean is_or;
+      if (consume("OR") || consume("||")) {
+        is_or = true;
+      } else if (consume("AND") || consume("&&")) {
+        is_or = false;
+      } else {
+        is_or = default_or;
+      }
+      if (is_or) {
+        or.add(and(and));
+        and = new ArrayList<Query>();
+      }
+      and.add(parseUnary(field));
+    }
+    or.add(and(and));
+    if (or.size() == 1) {
+      return or.get(0);
+    }
+    return new Query.Bool(new ArrayList<Query>(0), or, new ArrayList<Query>(0));
+  }
+
+  private static Query and(final List<Query> clauses) {
+    if (clauses.size() == 1) {
+      return clauses.get(0);
+    }
+    return new Query.Bool(clauses, new ArrayList<Query>(0), new ArrayList<Query>(0));
+  }
+
+  private Query parseUnary(final String field) {
+    if (pos >= text.length()) {
+      throw error("missing clause");
+    } else if (consume("NOT") || consume("!") || consume("-")) {
+      return Query.not(parseUnary(field));
+    } else if (consume("+")) {
+      return parseUnary(field);
+    } else if (consume("(")) {
+      final Query query = parseClauses(field);
+      if (!consume(")")) {
+        throw error("missing `)'");
+      }
+      return query;
+    }
+    // Is it "field:something"?
+    final int start = pos;
+    final String word = readWord();
+    if (pos < text.length() && text.charAt(pos) == ':' && !word.isEmpty()) {
+      pos++;
+      skipWhitespace();
+      if (consume("(")) {
+        final Query query = parseClauses(word);
+        if (!consume(")")) {
+          throw error("missing `)'");
+        }
+        return query;
+      }
+      return parseValue(word);
+    }
+    pos = start;
+    return parseValue(field);
+  }
+
+  /** Parses the value of a clause on the given field.  */
+  private Query parseValue(final String field) {
+    if (pos >= text.length()) {
+      throw error("missing value for " + field);
+    }
+    final char c = text.charAt(pos);
+    final Query query;
+    if (c == '"') {
+      query = new Query.Term(field, readPhrase());
+    } else if (c == '[' || c == '{') {
+      query = parseRange(field);
+    } else {
+      final String word = readWord();
+      if (word.isEmpty()) {
+        throw error("unexpected `" + c + "'");
+      } else if (word.equals("*")) {
+        query = Query.MATCH_ALL;
+      } else if (word.indexOf('*') >= 0 || word.indexOf('?') >= 0) {
+        query = new Query.Wildcard(field, word);
+      } else {
+        query = new Query.Term(field, word);
+      }
+    }
+    skipBoost();
+    skipWhitespace();
+    return query;
+  }
+
+  /** Parses "[from TO to]", either bound can be `*'.  */
+  private Query parseRange(final String field) {
+    final boolean include_from = text.charAt(pos++) == '[';
+    skipWhitespace();
+    final double from = parseBound(Double.NEGATIVE_INFINITY);
+    skipWhitespace();
+    if (!consume("TO")) {
+      throw error("expected TO in range");
+    }
+    final double to = parseBound(Double.POSITIVE_INFINITY);
+    skipWhitespace();
+    if (pos >= text.length() || (text.charAt(pos) != ']' && text.charAt(pos) != '}')) {
+      throw error("unterminated range");
+    }
+    final boolean include_to = text.charAt(pos++) == ']';
+    return new Query.Range(field, from, include_from, to, include_to);
+  }
+
+  private double parseBound(final double unbounded) {
+    final String word = readWord();
+    if (word.equals("*")) {
+      return unbounded;
+    }
+    try {
+      return Double.parseDouble(word);
+    } catch (NumberFormatException e) {
+      throw error("not a number in range: " + word);
+    }
+  }
+
+  /** Reads a quoted phrase, without the quotes.  */
+  private String readPhrase() {
+    final StringBuilder buf = new StringBuilder();
+    pos++;  // Skip the opening quote.
+    while (pos < text.length()) {
+      final char c = text.charAt(pos++);
+      if (c == '"') {
+        return buf.toString();
+      } else if (c == '\\' && pos < text.length()) {
+        buf.append(text.charAt(pos++));
+      } else {
+        buf.append(c);
+      }
+    }
+    throw error("unterminated phrase");
+  }
+
+  /** Reads a bare word, handling backslash escapes.  */
+  private String readWord() {
+    final StringBuilder buf = new StringBuilder();
+    while (pos < text.length()) {
+      final char c = text.charAt(pos);
+      if (c == '\\' && pos + 1 < text.length()) {
+        buf.append(text.charAt(pos + 1));
+        pos += 2;
+        continue;
+      } else if (Character.isWhitespace(c) || "():\"[]{}^~".indexOf(c) >= 0) {
+        break;
+      }
+      buf.append(c);
+      pos++;
+    }
+    return buf.toString();
+  }
+
+  /** Skips "^boost" and "~fuzziness", which don't matter to us.  */
+  private void skipBoost() {
+    while (pos < text.length()
+           && (text.charAt(pos) == '^' || text.charAt(pos) == '~')) {
+      pos++;
+      while (pos < text.length()
+             && (Character.isDigit(text.charAt(pos)) || text.charAt(pos) == '.')) {
+        pos++;
+      }
+    }
+  }
+
+}
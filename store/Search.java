@@ -0,0 +1,302 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package store;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import ingest.Json;
+
+/**
+ * A {@code _search} request, and how to run it.
+ * <p>
+ * The body is the same as for ES: {@code query}, {@code from},
+ * {@code size}, {@code sort} and {@code facets}.  We don't score, so
+ * without a sort the hits come in the order they were indexed.
+ * <p>
+ * For each {@link Table} of the types searched in each segment, the query
+ * gives us its candidates (if it can narrow them down with the timestamp
+ * or the posting lists), we check them one by
+ * one, and the matches are fed to the facets and to a bounded priority
+ * queue that keeps the top {@code from + size} hits.  Only these hits are
+ * then read from disk.
+ */
+final class Search {
+
+  private final Query query;
+  private final int from;
+  private final int size;
+  /** Fields to sort on, or empty to keep the order of the segments.  */
+  private final String[] sort_fields;
+  /** For each sort field, 1 for ascending, -1 for descending.  */
+  private final int[] sort_orders;
+  private final LinkedHashMap<String, Facet> facets;
+
+  private Search(final Query query, final int from, final int size,
+                 final String[] sort_fields, final int[] sort_orders,
+                 final LinkedHashMap<String, Facet> facets) {
+    this.query = query;
+    this.from = from;
+    this.size = size;
+    this.sort_fields = sort_fields;
+    this.sort_orders = sort_orders;
+    this.facets = facets;
+  }
+
+  /**
+   * Parses the body of a search.
+   * @param body The body, can be empty to match everything.
+   * @throws IllegalArgumentException if the search is invalid.
+   */
+  static Search parse(final String body) {
+    final Map<String, Object> search = body.trim().isEmpty()
+      ? new LinkedHashMap<String, Object>() : Json.parseObject(body);
+    final Object q = search.get("query");
+    final Query query = q == null ? Query.MATCH_ALL : Query.parse(q);
+    final int from = (int) Json.getDouble(search, "from", 0);
+    final int size = (int) Json.getDouble(search, "size", 10);
+    if (from < 0 || size < 0) {
+      throw new IllegalArgumentException("Negative from or size");
+    }
+
+    final ArrayList<String> fields = new ArrayList<String>();
+    final ArrayList<Integer> orders = new ArrayList<Integer>();
+    Object sort = search.get("sort");
+    if (sort != null && !(sort instanceof List)) {
+      sort = Arrays.asList(sort);
+    }
+    if (sort != null) {
+      for (final Object s : (List<?>) sort) {
+        if (s instanceof String) {  // "field"
+          addSort(fields, orders, (String) s, null);
+        } else if (s instanceof Map) {  // {"field": "desc"} or {"field": {"order": "desc"}}
+          for (final Map.Entry<?, ?> e : ((Map<?, ?>) s).entrySet()) {
+            Object order = e.getValue();
+            if (order instanceof Map) {
+              order = ((Map<?, ?>) order).get("order");
+            }
+            addSort(fields, orders, e.getKey().toString(),
+                    order == null ? null : order.toString());
+          }
+        } else {
+          throw new IllegalArgumentException("Invalid sort: " + Json.toString(s));
+        }
+      }
+    }
+    final int[] sort_orders = new int[orders.size()];
+    for (int i = 0; i < sort_orders.length; i++) {
+      sort_orders[i] = orders.get(i);
+    }
+
+    final LinkedHashMap<String, Facet> facets = new LinkedHashMap<String, Facet>();
+    final Map<String, Object> f = Json.getObject(search, "facets");
+    if (f != null) {
+      for (final Map.Entry<String, Object> e : f.entrySet()) {
+        facets.put(e.getKey(), Facet.parse(e.getKey(), e.getValue()));
+      }
+    }
+    return new Search(query, from, size,
+                      fields.toArray(new String[fields.size()]), sort_orders,
+                      facets);
+  }
+
+  private static void addSort(final List<String> fields,
+                              final List<Integer> orders, final String field,
+                              final String order) {
+    if (field.equals("_score")) {
+      return;  // All the hits have the same score.
+    } else if (order != null && !order.equals("asc") && !order.equals("desc")) {
+      throw new IllegalArgumentException("Invalid sort order for " + field
+                                         + ": " + order);
+    }
+    fields.add(field);
+    orders.add("desc".equals(order) ? -1 : 1);
+  }
+
+  /** A hit that made it in the top hits.  */
+  private static final class Hit {
+    final Segment segment;
+    /** Order in which we found it, to break ties.  */
+    final long seqno;
+    final long offset;
+    /** Values of the sort fields (Double, String, or null if missing).  */
+    final Object[] values;
+
+    Hit(final Segment segment, final long seqno, final long offset,
+        final Object[] values) {
+      this.segment = segment;
+      this.seqno = seqno;
+      this.offset = offset;
+      this.values = values;
+    }
+  }
+
+  /** Orders hits, best first.  */
+  private final Comparator<Hit> best_first = new Comparator<Hit>() {
+    public int compare(final Hit a, final Hit b) {
+      for (int i = 0; i < sort_fields.length; i++) {
+        final int c = compareValues(a.values[i], b.values[i], sort_orders[i]);
+        if (c != 0) {
+          return c;
+        }
+      }
+      return a.seqno < b.seqno ? -1 : a.seqno > b.seqno ? 1 : 0;
+    }
+  };
+
+  /**
+   * Compares two values of a sort field.
+   * Missing values always come last, and numbers before strings.
+   */
+  private static int compareValues(final Object a, final Object b,
+                                   final int order) {
+    if (a == null || b == null) {
+      return a == null ? (b == null ? 0 : 1) : -1;
+    } else if (a instanceof Double && b instanceof Double) {
+      return order * Double.compare((Double) a, (Double) b);
+    } else if (a instanceof String && b instanceof String) {
+      return order * ((String) a).compareTo((String) b);
+    }
+    return a instanceof Double ? -1 : 1;
+  }
+
+  /**
+   * Runs this search and returns the response, in JSON.
+   * @param segments The segments to search.
+   * @param types The types to search, or {@code null} for all the
+   * searchable types.
+   */
+  String run(final List<Segment> segments, final List<String> types)
+    throws IOException {
+    final long start = System.currentTimeMillis();
+    final int top = from + size;
+    // Worst hit at the head, so we can evict it.
+    final PriorityQueue<Hit> hits = new PriorityQueue<Hit>(Math.max(top, 1),
+      Collections.reverseOrder(best_first));
+    long total = 0;
+    long seqno = 0;
+    final Object[] scratch = new Object[sort_fields.length];
+    final Hit probe = new Hit(null, Long.MAX_VALUE, 0, scratch);
+    final Column[] columns = new Column[sort_fields.length];
+    for (final Segment segment : segments) {
+      segment.readLock().lock();
+      try {
+        for (final Table table : segment.tables()) {
+          if (types != null && !types.contains(table.type())) {
+            continue;
+          }
+          final Query.Matcher matcher = query.bind(table);
+          final int[] docs = matcher.candidates();
+          final int ncandidates = docs == null ? table.numDocs() : docs.length;
+          int[] matches = docs != null ? docs : new int[Math.min(ncandidates, 1024)];
+          int nmatches = 0;
+          for (int i = 0; i < ncandidates; i++) {
+            final int doc = docs == null ? i : docs[i];
+            if (table.isDeleted(doc) || !matcher.matches(doc)) {
+              continue;
+            }
+            if (nmatches == matches.length) {
+              matches = Arrays.copyOf(matches, nmatches * 2);
+            }
+            matches[nmatches++] = doc;
+          }
+          if (docs != null && sort_fields.length == 0) {
+            // Candidates can come in any order, but we want the indexing order.
+            Arrays.sort(matches, 0, nmatches);
+          }
+          total += nmatches;
+          for (final Facet facet : facets.values()) {
+            facet.collect(table, matches, nmatches);
+          }
+          if (top == 0) {
+            continue;
+          }
+          for (int i = 0; i < columns.length; i++) {
+            columns[i] = table.column(sort_fields[i]);
+          }
+          for (int i = 0; i < nmatches; i++) {
+            final int doc = matches[i];
+            for (int j = 0; j < columns.length; j++) {
+              scratch[j] = sortValue(columns[j], doc);
+            }
+            if (hits.size() == top && best_first.compare(probe, hits.peek()) >= 0) {
+              seqno++;
+              continue;  // Not better than the worst of the top hits.
+            }
+            hits.add(new Hit(segment, seqno++, table.docOffset(doc), scratch.clone()));
+            if (hits.size() > top) {
+              hits.poll();
+            }
+          }
+        }
+      } finally {
+        segment.readLock().unlock();
+      }
+    }
+
+    final Hit[] sorted = hits.toArray(new Hit[hits.size()]);
+    Arrays.sort(sorted, best_first);
+    final StringBuilder buf = new StringBuilder(256 + 1024 * Math.min(size, sorted.length));
+    buf.append("{\"took\":").append(System.currentTimeMillis() - start)
+      .append(",\"timed_out\":false,\"_shards\":{\"total\":")
+      .append(segments.size()).append(",\"successful\":").append(segments.size())
+      .append(",\"failed\":0},\"hits\":{\"total\":").append(total)
+      .append(",\"max_score\":null,\"hits\":[");
+    for (int i = from; i < sorted.length; i++) {
+      final Hit hit = sorted[i];
+      final Segment.Record record = hit.segment.read(hit.offset);
+      if (i > from) {
+        buf.append(',');
+      }
+      TraceStore.appendDoc(buf, hit.segment.name(), record);
+      if (sort_fields.length > 0) {
+        buf.setLength(buf.length() - 1);  // Remove the closing `}'.
+        buf.append(",\"sort\":");
+        Json.append(buf, Arrays.asList(hit.values));
+        buf.append('}');
+      }
+    }
+    buf.append("]}");
+    if (!facets.isEmpty()) {
+      final LinkedHashMap<String, Object> results =
+        new LinkedHashMap<String, Object>(facets.size());
+      for (final Map.Entry<String, Facet> e : facets.entrySet()) {
+        results.put(e.getKey(), e.getValue().result());
+      }
+      buf.append(",\"facets\":");
+      Json.append(buf, results);
+    }
+    buf.append('}');
+    return buf.toString();
+  }
+
+  private static Object sortValue(final Column column, final int doc) {
+    if (column == null) {
+      return null;
+    }
+    final int ord = column.ord(doc);
+    if (ord >= 0) {
+      return column.term(ord);
+    }
+    final double n = column.number(doc);
+    return n == n ? (Object) n : null;  // n == n is false for NaN.
+  }
+
+}
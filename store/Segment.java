@@ -0,0 +1,347 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package store;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import ingest.BulkItem;
+import ingest.Json;
+
+/**
+ * One index of the {@link TraceStore}, e.g. "droopy-201106".
+ * <p>
+ * Documents are stored in an append-only file.  Each record is:
+ * <pre>
+ *   int    length of what follows the CRC
+ *   int    CRC32 of what follows
+ *   UTF    type (as written by {@link DataOutputStream#writeUTF})
+ *   UTF    id
+ *   bytes  JSON source, in UTF-8
+ * </pre>
+ * Indexing the same type and id again appends a new record that shadows
+ * the previous one.  When the segment is opened, the file is scanned to
+ * rebuild the in-memory indexes, and a torn record at the end (from a
+ * crash in the middle of a write) is truncated away.
+ * <p>
+ * Documents of most types are searchable, each type has its own
+ * {@link Table}.  Traces are too big for that, so {@link #UNSEARCHABLE}
+ * types can only be fetched by ID.
+ * <p>
+ * This class is thread-safe: searches must hold the {@link #readLock}, and
+ * writes take the write lock.
+ */
+final class Segment implements Closeable {
+
+  private static final Logger LOG = Logger.getLogger(Segment.class.getName());
+
+  /** Extension of the segment files.  */
+  static final String SUFFIX = ".seg";
+
+  /** Types of documents that can only be fetched by ID.  */
+  static final String[] UNSEARCHABLE = { "trace", "fulltrace" };
+
+  /** A document read back from the file.  */
+  static final class Record {
+    final String type;
+    final String id;
+    final String source;
+
+    Record(final String type, final String id, final String source) {
+      this.type = type;
+      this.id = id;
+      this.source = source;
+    }
+  }
+
+  private final String name;
+  private final FileChannel file;
+  /** Where the next record goes.  */
+  private long size;
+
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+  /** Maps "type/id" to the offset of the latest record of a document.  */
+  private final HashMap<String, Long> offsets = new HashMap<String, Long>();
+
+  /** The searchable documents, by type.  */
+  private final HashMap<String, Table> tables = new HashMap<String, Table>();
+
+  private Segment(final String name, final FileChannel file) {
+    this.name = name;
+    this.file = file;
+  }
+
+  /**
+   * Opens a segment, creating it if needed.
+   * @param dir The directory where the segments are.
+   * @param name The name of the index.
+   */
+  static Segment open(final File dir, final String name) throws IOException {
+    final File path = new File(dir, name + SUFFIX);
+    final FileChannel file = new RandomAccessFile(path, "rw").getChannel();
+    final Segment segment = new Segment(name, file);
+    boolean ok = false;
+    try {
+      segment.replay(path);
+      ok = true;
+    } finally {
+      if (!ok) {
+        file.close();
+      }
+    }
+    return segment;
+  }
+
+  /** Rebuilds the indexes from the file.  */
+  private void replay(final File path) throws IOException {
+    final long length = file.size();
+    final DataInputStream in =
+      new DataInputStream(new BufferedInputStream(new FileInputStream(path), 1 << 16));
+    final CRC32 crc = new CRC32();
+    long pos = 0;
+    try {
+      while (pos < length) {
+        final int len;
+        final int checksum;
+        final byte[] body;
+        try {
+          len = in.readInt();
+          checksum = in.readInt();
+          if (len < 4 || pos + 8 + len > length) {
+            break;
+          }
+          body = new byte[len];
+          in.readFully(body);
+        } catch (EOFException e) {
+          break;
+        }
+        crc.reset();
+        crc.update(body);
+        if ((int) crc.getValue() != checksum) {
+          break;
+        }
+        final Record record = decode(body);
+        index(record.type, record.id, record.source, pos);
+        pos += 8 + len;
+      }
+    } finally {
+      in.close();
+    }
+    if (pos < length) {
+      LOG.warning("Truncating " + (length - pos) + " bytes of garbage at the"
+                  + " end of " + path + ", probably from a crash");
+      file.truncate(pos);
+    }
+    size = pos;
+    final Table summaries = tables.get("summary");
+    LOG.info("Opened " + path + ": " + (summaries == null ? 0 : summaries.liveDocs())
+             + " traces, " + size + " bytes");
+  }
+
+  String name() {
+    return name;
+  }
+
+  /**
+   * Appends documents to this segment.
+   * @param items The documents to add, their sources must be JSON objects.
+   * @param parsed The parsed sources of the items (only needed for
+   * searchable types, the others can be {@code null}).
+   */
+  void add(final List<BulkItem> items,
+           final List<Map<String, Object>> parsed) throws IOException {
+    final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    final long[] positions = new long[items.size()];
+    final CRC32 crc = new CRC32();
+    for (int i = 0; i < positions.length; i++) {
+      final BulkItem item = items.get(i);
+      final byte[] body = encode(item.type(), item.id(), item.source());
+      crc.reset();
+      crc.update(body);
+      positions[i] = buf.size();
+      final DataOutputStream out = new DataOutputStream(buf);
+      out.writeInt(body.length);
+      out.writeInt((int) crc.getValue());
+      out.write(body);
+    }
+    final ByteBuffer records = ByteBuffer.wrap(buf.toByteArray());
+    lock.writeLock().lock();
+    try {
+      final long start = size;
+      try {
+        while (records.hasRemaining()) {
+          file.write(records, start + records.position());
+        }
+      } catch (IOException e) {
+        file.truncate(start);  // Don't leave a torn record behind.
+        throw e;
+      }
+      size = start + records.limit();
+      for (int i = 0; i < positions.length; i++) {
+        final BulkItem item = items.get(i);
+        final Map<String, Object> source = parsed.get(i);
+        if (source != null) {
+          index(item.type(), item.id(), source, start + positions[i]);
+        } else {
+          index(item.type(), item.id(), item.source(), start + positions[i]);
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private static byte[] encode(final String type, final String id,
+                               final String source) throws IOException {
+    final ByteArrayOutputStream buf = new ByteArrayOutputStream(source.length() + 64);
+    final DataOutputStream out = new DataOutputStream(buf);
+    out.writeUTF(type);
+    out.writeUTF(id);
+    out.write(source.getBytes(Json.UTF8));
+    return buf.toByteArray();
+  }
+
+  private static Record decode(final byte[] body) throws IOException {
+    final DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+    final String type = in.readUTF();
+    final String id = in.readUTF();
+    final int start = body.length - in.available();
+    return new Record(type, id, new String(body, start, body.length - start,
+                                           Json.UTF8));
+  }
+
+  /** Returns whether documents of the given type are searchable.  */
+  static boolean isSearchable(final String type) {
+    return !Arrays.asList(UNSEARCHABLE).contains(type);
+  }
+
+  /**
+   * Returns the field by which documents of a searchable type are sorted.
+   * Summaries are for a point in time, everything else is for a bucket.
+   */
+  static String timeField(final String type) {
+    return type.equals("summary") ? "request_ts" : "bucket_ts";
+  }
+
+  /** Indexes a document read back from the file.  */
+  private void index(final String type, final String id, final String source,
+                     final long offset) {
+    if (!isSearchable(type)) {
+      offsets.put(type + '/' + id, offset);
+      return;
+    }
+    final Map<String, Object> doc;
+    try {
+      doc = Json.parseObject(source);
+    } catch (IllegalArgumentException e) {
+      LOG.warning("Skipping invalid document " + name + '/' + type + '/' + id
+                  + ": " + e);
+      return;
+    }
+    index(type, id, doc, offset);
+  }
+
+  /** Indexes a document we just wrote.  */
+  private void index(final String type, final String id,
+                     final Map<String, Object> source, final long offset) {
+    offsets.put(type + '/' + id, offset);
+    if (!isSearchable(type)) {
+      return;
+    }
+    Table table = tables.get(type);
+    if (table == null) {
+      table = new Table(type, timeField(type));
+      tables.put(type, table);
+    }
+    table.add(id, source, offset);
+  }
+
+  // ------------------------------------------------------ //
+  // Everything below must be called with the read lock held. //
+  // ------------------------------------------------------ //
+
+  Lock readLock() {
+    return lock.readLock();
+  }
+
+  /** Returns the searchable documents of a type, or {@code null}.  */
+  Table table(final String type) {
+    return tables.get(type);
+  }
+
+  Collection<Table> tables() {
+    return tables.values();
+  }
+
+  /**
+   * Returns the offset of the record of a document.
+   * @return The offset, or -1 if we don't have this document.
+   */
+  long offset(final String type, final String id) {
+    final Long offset = offsets.get(type + '/' + id);
+    return offset == null ? -1 : offset;
+  }
+
+  /** Returns the size of the file, in bytes.  */
+  long sizeInBytes() {
+    return size;
+  }
+
+  // ----------------------------------- //
+  // Can be called without holding a lock. //
+  // ----------------------------------- //
+
+  /** Reads the record at the given offset.  */
+  Record read(final long offset) throws IOException {
+    final ByteBuffer header = ByteBuffer.allocate(8);
+    readFully(header, offset);
+    final ByteBuffer body = ByteBuffer.allocate(header.getInt(0));
+    readFully(body, offset + 8);
+    return decode(body.array());
+  }
+
+  private void readFully(final ByteBuffer buf, final long offset) throws IOException {
+    while (buf.hasRemaining()) {
+      if (file.read(buf, offset + buf.position()) < 0) {
+        throw new EOFException("Truncated record at offset " + offset
+                               + " in segment " + name);
+      }
+    }
+  }
+
+  public void close() throws IOException {
+    file.close();
+  }
+
+}
@@ -0,0 +1,223 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package store;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The searchable documents of one type in a {@link Segment}.
+ * <p>
+ * Documents are numbered in the order they're added.  Their fields are kept
+ * in {@link Column}s, {@link #INVERTED} fields also get posting lists, and
+ * we keep the documents sorted by their {@link #timeField}, so the time
+ * range of a search can be found with a binary search.
+ * <p>
+ * This class isn't thread-safe, the {@link Segment} takes care of locking.
+ */
+final class Table {
+
+  /** Fields for which we keep posting lists.  */
+  static final String[] INVERTED = {
+    "resource", "route", "prev_connect.host", "prev_connect.type",
+  };
+
+  private final String type;
+  /** Field by which we keep the documents sorted.  */
+  private final String time_field;
+
+  /** Maps the ID of a document to its number.  */
+  private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+  /** Number of documents, including the ones that have been shadowed.  */
+  private int ndocs;
+  /** Offset of the record of each document.  */
+  private long[] doc_offsets = new long[1024];
+  /** Documents that have been shadowed by a newer version.  */
+  private final BitSet deleted = new BitSet();
+  private int ndeleted;
+  private final HashMap<String, Column> columns = new HashMap<String, Column>();
+  /** Documents sorted by {@link #time_field}, ties in document order.  */
+  private int[] by_ts = new int[1024];
+  private int nts;
+
+  /**
+   * Constructor.
+   * @param type The type of the documents.
+   * @param time_field The field by which to keep them sorted.
+   */
+  Table(final String type, final String time_field) {
+    this.type = type;
+    this.time_field = time_field;
+  }
+
+  String type() {
+    return type;
+  }
+
+  String timeField() {
+    return time_field;
+  }
+
+  /**
+   * Adds a document.
+   * @param id Its ID.  If we already have a document with the same ID, it
+   * gets shadowed.
+   * @param source Its parsed source.
+   * @param offset The offset of its record in the segment.
+   */
+  void add(final String id, final Map<String, Object> source,
+           final long offset) {
+    final int doc = ndocs++;
+    final Integer old = ids.put(id, doc);
+    if (old != null) {
+      deleted.set(old);
+      ndeleted++;
+    }
+    if (doc == doc_offsets.length) {
+      doc_offsets = Arrays.copyOf(doc_offsets, doc * 2);
+    }
+    doc_offsets[doc] = offset;
+    flatten(doc, "", source);
+    final Column ts_column = columns.get(time_field);
+    final double ts = ts_column == null ? Double.NaN : ts_column.number(doc);
+    if (ts == ts) {  // Not NaN
+      insertByTimestamp(doc, ts);
+    }
+  }
+
+  /** Puts the fields of a document in their columns.  */
+  private void flatten(final int doc, final String prefix,
+                       final Map<String, Object> source) {
+    for (final Map.Entry<String, Object> e : source.entrySet()) {
+      final String field = prefix + e.getKey();
+      final Object value = e.getValue();
+      if (value instanceof Map) {
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> map = (Map<String, Object>) value;
+        flatten(doc, field + '.', map);
+      } else if (value instanceof Number) {
+        getOrCreateColumn(field).setNumber(doc, ((Number) value).doubleValue());
+      } else if (value instanceof String || value instanceof Boolean) {
+        getOrCreateColumn(field).setTerm(doc, value.toString());
+      }
+      // Arrays and nulls aren't searchable.
+    }
+  }
+
+  private Column getOrCreateColumn(final String field) {
+    Column column = columns.get(field);
+    if (column == null) {
+      column = new Column(field, Arrays.asList(INVERTED).contains(field));
+      columns.put(field, column);
+    }
+    return column;
+  }
+
+  private void insertByTimestamp(final int doc, final double ts) {
+    if (nts == by_ts.length) {
+      by_ts = Arrays.copyOf(by_ts, nts * 2);
+    }
+    // Documents mostly arrive in order, so this is usually an append.
+    final int i = upperBound(ts);
+    System.arraycopy(by_ts, i, by_ts, i + 1, nts - i);
+    by_ts[i] = doc;
+    nts++;
+  }
+
+  /** Returns the index in {@code by_ts} of the first entry after {@code ts}. */
+  private int upperBound(final double ts) {
+    final Column column = columns.get(time_field);
+    int lo = 0;
+    int hi = nts;
+    while (lo < hi) {
+      final int mid = (lo + hi) >>> 1;
+      if (column.number(by_ts[mid]) <= ts) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  /** Returns the index in {@code by_ts} of the first entry at or after {@code ts}. */
+  private int lowerBound(final double ts) {
+    final Column column = columns.get(time_field);
+    int lo = 0;
+    int hi = nts;
+    while (lo < hi) {
+      final int mid = (lo + hi) >>> 1;
+      if (column.number(by_ts[mid]) < ts) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  /** Returns the number of documents, including the shadowed ones.  */
+  int numDocs() {
+    return ndocs;
+  }
+
+  /** Returns the number of documents that haven't been shadowed.  */
+  int liveDocs() {
+    return ndocs - ndeleted;
+  }
+
+  int deletedDocs() {
+    return ndeleted;
+  }
+
+  boolean isDeleted(final int doc) {
+    return deleted.get(doc);
+  }
+
+  Collection<Column> columns() {
+    return columns.values();
+  }
+
+  /** Returns the column of a field, or {@code null} if no document has it. */
+  Column column(final String field) {
+    return columns.get(field);
+  }
+
+  /**
+   * Returns the documents whose {@link #timeField} is in the given range.
+   * @return The documents, in time order.
+   */
+  int[] timeRange(final double from, final boolean include_from,
+                  final double to, final boolean include_to) {
+    if (nts == 0) {
+      return new int[0];
+    }
+    final int start = include_from ? lowerBound(from) : upperBound(from);
+    final int end = include_to ? upperBound(to) : lowerBound(to);
+    return start < end ? Arrays.copyOfRange(by_ts, start, end) : new int[0];
+  }
+
+  /** Returns whether we have a document with the given ID.  */
+  boolean hasDoc(final String id) {
+    return ids.containsKey(id);
+  }
+
+  /** Returns the offset of the record of a document.  */
+  long docOffset(final int doc) {
+    return doc_offsets[doc];
+  }
+
+}
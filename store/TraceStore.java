@@ -0,0 +1,553 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import ingest.BulkItem;
+import ingest.Json;
+
+/**
+ * Embedded trace store, to use the viewer without ElasticSearch.
+ * <p>
+ * It speaks the subset of the ElasticSearch HTTP API that droopytrace, the
+ * ingest gateway and the viewer use:
+ * <ul>
+ * <li>{@code POST /_bulk} and {@code GET /_cluster/health} to store
+ * traces,</li>
+ * <li>{@code GET /<indices>/_status} to list the indices,</li>
+ * <li>{@code POST /<indices>/<types>/_search} with the queries of
+ * {@link Query} and the facets of {@link Facet}, on summaries and on the
+ * rollups of the ingest gateway (everything but traces),</li>
+ * <li>{@code POST /_mget} and {@code GET /<index>/<type>/<id>} to fetch
+ * traces.</li>
+ * </ul>
+ * Each index is a {@link Segment} in the data directory.  Traces are
+ * stored in one index per month ("indexname-YYYYMM", in UTC), like the
+ * viewer expects: summaries are sent to the month of their
+ * {@code request_ts}, rollups to the month of their {@code bucket_ts},
+ * and the other documents of a trace follow their summary.  Indices that already have a month in their name are left
+ * alone.  Searching an alias such as "droopy" searches all its months,
+ * and indices that don't exist are ignored instead of failing the search.
+ * <p>
+ * Everything but the documents themselves is kept in memory, and rebuilt
+ * from the segments on startup.
+ */
+public final class TraceStore {
+
+  private static final Logger LOG = Logger.getLogger(TraceStore.class.getName());
+
+  /** Valid index names, so they're safe to use as file names.  */
+  private static final Pattern INDEX_NAME = Pattern.compile("[-_.a-zA-Z0-9]+");
+  /** Names of indices that are already for a given month.  */
+  private static final Pattern MONTHLY = Pattern.compile(".+-[0-9]{6}");
+
+  private final File dir;
+  /** All the segments, by name.  Access must be synchronized on it.  */
+  private final TreeMap<String, Segment> segments = new TreeMap<String, Segment>();
+
+  private TraceStore(final File dir) {
+    this.dir = dir;
+  }
+
+  private static void usage(final String error) {
+    System.err.println("error: " + error);
+    System.err.println("Usage: store [options]\n"
+      + "  --dir=PATH           Where to keep the traces (default: droopy-data).\n"
+      + "  --port=N             Port to listen on (default: 9200).\n"
+      + "  --http-threads=N     Threads serving requests (default: 8).");
+    System.exit(2);
+  }
+
+  /** Parses "--name=value" arguments.  */
+  private static HashMap<String, String> parseArgs(final String[] args) {
+    final HashMap<String, String> opts = new HashMap<String, String>();
+    for (final String arg : args) {
+      final int eq = arg.indexOf('=');
+      if (!arg.startsWith("--") || eq < 0) {
+        usage("invalid argument: " + arg);
+      }
+      opts.put(arg.substring(2, eq), arg.substring(eq + 1));
+    }
+    return opts;
+  }
+
+  private static long getLong(final HashMap<String, String> opts,
+                              final String name, final long dflt) {
+    final String value = opts.remove(name);
+    if (value == null) {
+      return dflt;
+    }
+    long n = 0;
+    try {
+      n = Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      usage("--" + name + " must be a number: " + value);
+    }
+    if (n <= 0) {
+      usage("--" + name + " must be strictly positive: " + value);
+    }
+    return n;
+  }
+
+  public static void main(final String[] args) throws IOException {
+    final HashMap<String, String> opts = parseArgs(args);
+    final int port = (int) getLong(opts, "port", 9200);
+    final int http_threads = (int) getLong(opts, "http-threads", 8);
+    String path = opts.remove("dir");
+    if (path == null) {
+      path = "droopy-data";
+    }
+    if (!opts.isEmpty()) {
+      usage("unknown options: " + opts.keySet());
+    }
+    final File dir = new File(path);
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      usage("can't create directory " + dir);
+    }
+
+    final TraceStore store = new TraceStore(dir);
+    store.openSegments();
+    final HttpServer http = HttpServer.create(new InetSocketAddress(port), 1024);
+    http.createContext("/", store.new Handler());
+    http.setExecutor(Executors.newFixedThreadPool(http_threads));
+    http.start();
+    LOG.info("Listening on port " + port + ", storing traces in " + dir);
+  }
+
+  /** Opens all the segments of the data directory.  */
+  private void openSegments() throws IOException {
+    final File[] files = dir.listFiles();
+    if (files == null) {
+      throw new IOException("Can't list " + dir);
+    }
+    for (final File file : files) {
+      final String name = file.getName();
+      if (name.endsWith(Segment.SUFFIX)) {
+        final String index = name.substring(0, name.length() - Segment.SUFFIX.length());
+        segments.put(index, Segment.open(dir, index));
+      }
+    }
+  }
+
+  /** Returns the segment of an index, creating it if needed.  */
+  private Segment getOrCreateSegment(final String index) throws IOException {
+    synchronized (segments) {
+      Segment segment = segments.get(index);
+      if (segment == null) {
+        segment = Segment.open(dir, index);
+        segments.put(index, segment);
+      }
+      return segment;
+    }
+  }
+
+  /**
+   * Returns the segments of a comma-separated list of indices.
+   * Each index can be a name, an alias ("droopy" for all the
+   * "droopy-YYYYMM"), a pattern with {@code *}, or "_all".
+   * @return The segments, sorted by name.
+   */
+  private List<Segment> resolve(final String indices) {
+    final TreeMap<String, Segment> found = new TreeMap<String, Segment>();
+    synchronized (segments) {
+      for (final String index : indices.split(",")) {
+        if (index.equals("_all") || index.equals("*")) {
+          found.putAll(segments);
+          continue;
+        }
+        final Pattern pattern = index.indexOf('*') >= 0
+          ? Pattern.compile(Pattern.quote(index).replace("*", "\\E.*\\Q")) : null;
+        for (final Map.Entry<String, Segment> e : segments.entrySet()) {
+          final String name = e.getKey();
+          if (pattern != null ? pattern.matcher(name).matches()
+              : name.equals(index) || name.startsWith(index + '-')) {
+            found.put(name, e.getValue());
+          }
+        }
+      }
+    }
+    return new ArrayList<Segment>(found.values());
+  }
+
+  /** Dispatches the HTTP requests we get.  */
+  private final class Handler implements HttpHandler {
+    public void handle(final HttpExchange exchange) throws IOException {
+      try {
+        final String method = exchange.getRequestMethod();
+        final String path = exchange.getRequestURI().getPath();
+        final String[] parts = split(path);
+        final String last = parts.length > 0 ? parts[parts.length - 1] : "";
+        if (method.equals("OPTIONS")) {  // CORS preflight.
+          exchange.getResponseHeaders().set("Access-Control-Allow-Methods",
+                                            "GET, POST, PUT, OPTIONS");
+          exchange.getResponseHeaders().set("Access-Control-Allow-Headers",
+                                            "Content-Type");
+          exchange.getResponseHeaders().set("Access-Control-Max-Age", "86400");
+          respond(exchange, 200, "{\"ok\":true}");
+        } else if (path.equals("/_bulk") && method.equals("POST")) {
+          handleBulk(exchange);
+        } else if (path.equals("/_cluster/health")) {
+          respond(exchange, 200, "{\"cluster_name\":\"droopy-store\",\"status\":\"green\"}");
+        } else if (parts.length >= 1 && parts[0].equals("_template")) {
+          respond(exchange, 200, "{\"ok\":true,\"acknowledged\":true}");
+        } else if (last.equals("_status") && parts.length <= 2) {
+          handleStatus(exchange, parts.length == 2 ? parts[0] : "_all");
+        } else if (last.equals("_search") && parts.length >= 2 && parts.length <= 3) {
+          handleSearch(exchange, parts[0],
+                       parts.length == 3 ? Arrays.asList(parts[1].split(",")) : null);
+        } else if (last.equals("_mget") && parts.length <= 3) {
+          handleMultiGet(exchange, parts.length >= 2 ? parts[0] : null,
+                         parts.length == 3 ? parts[1] : null);
+        } else if (parts.length == 3 && method.equals("GET")
+                   && !parts[0].startsWith("_")) {
+          handleGet(exchange, parts[0], parts[1], parts[2]);
+        } else {
+          respond(exchange, 400, error(400, "No handler for " + method + ' ' + path));
+        }
+      } catch (IllegalArgumentException e) {
+        respond(exchange, 400, error(400, e.getMessage()));
+      } catch (Exception e) {
+        LOG.log(Level.WARNING, "Unexpected exception while handling "
+                + exchange.getRequestURI(), e);
+        respond(exchange, 500, error(500, e.toString()));
+      } finally {
+        exchange.close();
+      }
+    }
+  }
+
+  /** Splits a path in its URL-decoded, non-empty components.  */
+  private static String[] split(final String path) throws IOException {
+    final ArrayList<String> parts = new ArrayList<String>();
+    for (final String part : path.split("/")) {
+      if (!part.isEmpty()) {
+        parts.add(URLDecoder.decode(part, "UTF-8"));
+      }
+    }
+    return parts.toArray(new String[parts.size()]);
+  }
+
+  private void handleBulk(final HttpExchange exchange) throws IOException {
+    final long start = System.currentTimeMillis();
+    final List<BulkItem> items = BulkItem.parse(readFully(exchange.getRequestBody()));
+    final ArrayList<Object> results = new ArrayList<Object>(items.size());
+    // Items to add to each segment, with their parsed source.
+    final LinkedHashMap<String, List<BulkItem>> batches =
+      new LinkedHashMap<String, List<BulkItem>>();
+    final HashMap<String, List<Map<String, Object>>> sources =
+      new HashMap<String, List<Map<String, Object>>>();
+    // Where the summaries of this batch went, by "index/id".
+    final HashMap<String, String> routes = new HashMap<String, String>();
+    for (final BulkItem item : items) {
+      final LinkedHashMap<String, Object> result = new LinkedHashMap<String, Object>(5);
+      results.add(object("index", result));
+      Map<String, Object> source = null;
+      String error = null;
+      try {
+        if (!INDEX_NAME.matcher(item.index()).matches()) {
+          throw new IllegalArgumentException("Invalid index name: " + item.index());
+        }
+        source = item.parseSource();
+      } catch (IllegalArgumentException e) {
+        error = e.getMessage();
+      }
+      final boolean searchable = Segment.isSearchable(item.type());
+      final String index = error != null ? item.index()
+        : route(item, searchable ? source : null, routes);
+      result.put("_index", index);
+      result.put("_type", item.type());
+      result.put("_id", item.id());
+      if (error != null) {
+        result.put("error", error);
+        continue;
+      }
+      result.put("_version", 1);
+      result.put("ok", true);
+      List<BulkItem> batch = batches.get(index);
+      if (batch == null) {
+        batch = new ArrayList<BulkItem>();
+        batches.put(index, batch);
+        sources.put(index, new ArrayList<Map<String, Object>>());
+      }
+      batch.add(item);
+      sources.get(index).add(searchable ? source : null);
+    }
+    for (final Map.Entry<String, List<BulkItem>> e : batches.entrySet()) {
+      getOrCreateSegment(e.getKey()).add(e.getValue(), sources.get(e.getKey()));
+    }
+    final LinkedHashMap<String, Object> resp = new LinkedHashMap<String, Object>(2);
+    resp.put("took", System.currentTimeMillis() - start);
+    resp.put("items", results);
+    respond(exchange, 200, Json.toString(resp));
+  }
+
+  /**
+   * Returns the monthly index in which to store an item.
+   * @param item The item to store.
+   * @param source The source of the item if it's searchable.
+   * @param routes Where the summaries of the current batch went.
+   */
+  private String route(final BulkItem item, final Map<String, Object> source,
+                       final Map<String, String> routes) {
+    final String index = item.index();
+    if (MONTHLY.matcher(index).matches()) {
+      return index;
+    }
+    final String key = index + '/' + item.id();
+    if (source != null) {
+      final double ts = Json.getDouble(source, Segment.timeField(item.type()),
+                                       Double.NaN);
+      final String monthly = index + '-' + month(ts == ts ? (long) ts
+                                                 : System.currentTimeMillis());
+      if (item.type().equals("summary")) {
+        routes.put(key, monthly);
+      }
+      return monthly;
+    }
+    // Traces go with their summary, which is usually in the same batch.
+    final String routed = routes.get(key);
+    if (routed != null) {
+      return routed;
+    }
+    final List<Segment> candidates = resolve(index);
+    for (int i = candidates.size() - 1; i >= 0; i--) {  // Most recent first.
+      final Segment segment = candidates.get(i);
+      segment.readLock().lock();
+      try {
+        final Table summaries = segment.table("summary");
+        if (summaries != null && summaries.hasDoc(item.id())) {
+          return segment.name();
+        }
+      } finally {
+        segment.readLock().unlock();
+      }
+    }
+    return index + '-' + month(System.currentTimeMillis());
+  }
+
+  /** Returns the "YYYYMM" of a timestamp in milliseconds, in UTC.  */
+  private static String month(final long ms) {
+    final Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+    cal.setTimeInMillis(ms);
+    final int month = cal.get(Calendar.MONTH) + 1;
+    return cal.get(Calendar.YEAR) + (month < 10 ? "0" : "") + month;
+  }
+
+  private void handleStatus(final HttpExchange exchange,
+                            final String indices) throws IOException {
+    final List<Segment> found = resolve(indices);
+    final LinkedHashMap<String, Object> status = new LinkedHashMap<String, Object>();
+    for (final Segment segment : found) {
+      final LinkedHashMap<String, Object> docs = new LinkedHashMap<String, Object>(3);
+      final LinkedHashMap<String, Object> index = new LinkedHashMap<String, Object>(2);
+      segment.readLock().lock();
+      try {
+        // Traces are counted by their summary.
+        final Table summaries = segment.table("summary");
+        docs.put("num_docs", summaries == null ? 0 : summaries.liveDocs());
+        docs.put("max_doc", summaries == null ? 0 : summaries.numDocs());
+        docs.put("deleted_docs", summaries == null ? 0 : summaries.deletedDocs());
+        index.put("size_in_bytes", segment.sizeInBytes());
+      } finally {
+        segment.readLock().unlock();
+      }
+      final LinkedHashMap<String, Object> stats = new LinkedHashMap<String, Object>(2);
+      stats.put("index", index);
+      stats.put("docs", docs);
+      status.put(segment.name(), stats);
+    }
+    final LinkedHashMap<String, Object> resp = new LinkedHashMap<String, Object>(3);
+    resp.put("ok", true);
+    resp.put("_shards", shards(found.size()));
+    resp.put("indices", status);
+    respond(exchange, 200, Json.toString(resp));
+  }
+
+  private void handleSearch(final HttpExchange exchange, final String indices,
+                            final List<String> types) throws IOException {
+    final Search search = Search.parse(readFully(exchange.getRequestBody()));
+    respond(exchange, 200, search.run(resolve(indices), types));
+  }
+
+  @SuppressWarnings("unchecked")
+  private void handleMultiGet(final HttpExchange exchange, final String index,
+                              final String type) throws IOException {
+    final Map<String, Object> body = Json.parseObject(readFully(exchange.getRequestBody()));
+    List<Object> docs = Json.getList(body, "docs");
+    if (docs == null) {
+      final List<Object> ids = Json.getList(body, "ids");
+      if (ids == null) {
+        throw new IllegalArgumentException("_mget needs `docs' or `ids'");
+      }
+      docs = new ArrayList<Object>(ids.size());
+      for (final Object id : ids) {
+        docs.add(object("_id", id));
+      }
+    }
+    final StringBuilder buf = new StringBuilder(4096);
+    buf.append("{\"docs\":[");
+    boolean first = true;
+    for (final Object d : docs) {
+      if (!(d instanceof Map)) {
+        throw new IllegalArgumentException("Invalid doc in _mget: " + Json.toString(d));
+      }
+      final Map<String, Object> doc = (Map<String, Object>) d;
+      final String i = Json.getString(doc, "_index") != null
+        ? Json.getString(doc, "_index") : index;
+      final String t = Json.getString(doc, "_type") != null
+        ? Json.getString(doc, "_type") : type;
+      final String id = Json.getString(doc, "_id");
+      if (i == null || t == null || id == null) {
+        throw new IllegalArgumentException("Missing _index, _type or _id in _mget: "
+                                           + Json.toString(doc));
+      }
+      if (!first) {
+        buf.append(',');
+      }
+      first = false;
+      appendGet(buf, i, t, id);
+    }
+    buf.append("]}");
+    respond(exchange, 200, buf);
+  }
+
+  private void handleGet(final HttpExchange exchange, final String index,
+                         final String type, final String id) throws IOException {
+    final StringBuilder buf = new StringBuilder(4096);
+    final boolean exists = appendGet(buf, index, type, id);
+    respond(exchange, exists ? 200 : 404, buf);
+  }
+
+  /**
+   * Appends a document the way ES returns it from a GET.
+   * @return Whether the document exists.
+   */
+  private boolean appendGet(final StringBuilder buf, final String index,
+                            final String type, final String id) throws IOException {
+    final List<Segment> candidates = resolve(index);
+    for (int i = candidates.size() - 1; i >= 0; i--) {  // Most recent first.
+      final Segment segment = candidates.get(i);
+      final long offset;
+      segment.readLock().lock();
+      try {
+        offset = segment.offset(type, id);
+      } finally {
+        segment.readLock().unlock();
+      }
+      if (offset >= 0) {
+        appendDoc(buf, segment.name(), segment.read(offset));
+        buf.setLength(buf.length() - 1);  // Remove the closing `}'.
+        buf.append(",\"exists\":true}");
+        return true;
+      }
+    }
+    final LinkedHashMap<String, Object> missing = new LinkedHashMap<String, Object>(4);
+    missing.put("_index", index);
+    missing.put("_type", type);
+    missing.put("_id", id);
+    missing.put("exists", false);
+    Json.append(buf, missing);
+    return false;
+  }
+
+  /**
+   * Appends a document with its metadata, like in a search hit.
+   * The source is copied as-is, we know it's a valid JSON object.
+   */
+  static void appendDoc(final StringBuilder buf, final String index,
+                        final Segment.Record record) {
+    final LinkedHashMap<String, Object> meta = new LinkedHashMap<String, Object>(4);
+    meta.put("_index", index);
+    meta.put("_type", record.type);
+    meta.put("_id", record.id);
+    meta.put("_version", 1);
+    Json.append(buf, meta);
+    buf.setLength(buf.length() - 1);  // Remove the closing `}'.
+    buf.append(",\"_source\":").append(record.source).append('}');
+  }
+
+  private static Map<String, Object> object(final String key, final Object value) {
+    final LinkedHashMap<String, Object> object = new LinkedHashMap<String, Object>(1);
+    object.put(key, value);
+    return object;
+  }
+
+  private static Map<String, Object> shards(final int n) {
+    final LinkedHashMap<String, Object> shards = new LinkedHashMap<String, Object>(3);
+    shards.put("total", n);
+    shards.put("successful", n);
+    shards.put("failed", 0);
+    return shards;
+  }
+
+  private static String error(final int status, final String msg) {
+    final LinkedHashMap<String, Object> error = new LinkedHashMap<String, Object>(2);
+    error.put("error", msg);
+    error.put("status", status);
+    return Json.toString(error);
+  }
+
+  private static String readFully(final InputStream in) throws IOException {
+    final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    final byte[] chunk = new byte[8192];
+    int n;
+    try {
+      while ((n = in.read(chunk)) > 0) {
+        buf.write(chunk, 0, n);
+      }
+    } finally {
+      in.close();
+    }
+    return new String(buf.toByteArray(), Json.UTF8);
+  }
+
+  private static void respond(final HttpExchange exchange, final int status,
+                              final CharSequence json) throws IOException {
+    final byte[] body = json.toString().getBytes(Json.UTF8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+    // The viewer is usually served from another origin.
+    exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+    exchange.sendResponseHeaders(status, body.length);
+    final OutputStream out = exchange.getResponseBody();
+    try {
+      out.write(body);
+    } finally {
+      out.close();
+    }
+  }
+
+}
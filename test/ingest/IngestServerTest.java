@@ -0,0 +1,275 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package ingest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs the ingest gateway against a stub ElasticSearch that stops
+ * answering, to check what happens when the queue fills up.
+ * <p>
+ * Uploads must be refused with a 503 without counting, sampling or
+ * routing the traces they carry, and a tracer that retries them once ES is back must
+ * get every one of its traces written exactly once.
+ * <p>
+ * Run with {@code make check}.
+ */
+final class IngestServerTest {
+
+  private static final String INDEX = "droopy-test";
+
+  /** Stands in for ElasticSearch.  */
+  private static final class StubES implements HttpHandler {
+    /** Bulk requests hang until this is released.  */
+    final CountDownLatch stalled = new CountDownLatch(1);
+    /** Number of bulk requests to answer with a 503 once released.  */
+    final AtomicInteger failures = new AtomicInteger(1);
+    /** Number of items to reject as if ES was overloaded after that.  */
+    final AtomicInteger rejections = new AtomicInteger(1);
+    /** How many times each item was written, by "type/id".  */
+    final ConcurrentHashMap<String, AtomicInteger> written =
+      new ConcurrentHashMap<String, AtomicInteger>();
+
+    public void handle(final HttpExchange exchange) throws IOException {
+      try {
+        final String body = BulkWriter.readFully(exchange.getRequestBody());
+        if (!exchange.getRequestURI().getPath().equals("/_bulk")) {
+          respond(exchange, 200, "{}");
+          return;
+        }
+        try {
+          stalled.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+        if (failures.getAndDecrement() > 0) {
+          respond(exchange, 503, "{\"error\":\"stub overloaded\"}");
+          return;
+        }
+        final ArrayList<Object> results = new ArrayList<Object>();
+        for (final BulkItem item : BulkItem.parse(body)) {
+          final LinkedHashMap<String, Object> result = new LinkedHashMap<String, Object>();
+          result.put("_index", item.index());
+          result.put("_type", item.type());
+          result.put("_id", item.id());
+          if (rejections.getAndDecrement() > 0) {
+            result.put("error", "EsRejectedExecutionException[rejected execution"
+                       + " (queue capacity 50) on stub]");
+          } else {
+            final String key = item.type() + '/' + item.id();
+            written.putIfAbsent(key, new AtomicInteger());
+            written.get(key).incrementAndGet();
+            result.put("ok", true);
+          }
+          final LinkedHashMap<String, Object> action = new LinkedHashMap<String, Object>();
+          action.put("index", result);
+          results.add(action);
+        }
+        final LinkedHashMap<String, Object> resp = new LinkedHashMap<String, Object>();
+        resp.put("took", 1);
+        resp.put("items", results);
+        respond(exchange, 200, Json.toString(resp));
+      } finally {
+        exchange.close();
+      }
+    }
+  }
+
+  public static void main(final String[] args) {
+    try {
+      run();
+    } catch (Throwable e) {
+      e.printStackTrace();
+      System.exit(1);
+    }
+    System.out.println("PASS");
+    // The gateway's threads never exit.
+    System.exit(0);
+  }
+
+  private static void run() throws Exception {
+    final StubES es = new StubES();
+    final HttpServer http = HttpServer.create(new InetSocketAddress("localhost", 0), 64);
+    http.createContext("/", es);
+    http.setExecutor(Executors.newCachedThreadPool());
+    http.start();
+    final int port = freePort();
+    IngestServer.main(new String[] {
+      "--port=" + port,
+      "--server=localhost:" + http.getAddress().getPort(),
+      "--buffer-bytes=4096",
+      "--offer-timeout-ms=50",
+      "--linger-ms=1",
+      "--writers=1",
+      "--sample=10",
+      "--routes",
+    });
+    final String gateway = "http://localhost:" + port;
+
+    // ES hangs, so the queue fills up until uploads get refused.
+    int accepted = 0;
+    String refused = null;
+    for (int i = 0; i < 1000 && refused == null; i++) {
+      final String batch = batch(i);
+      final int status = post(gateway + "/_bulk", batch);
+      if (status == 200) {
+        accepted++;
+      } else {
+        check(status == 503, "unexpected status " + status);
+        refused = batch;
+      }
+    }
+    check(refused != null, "the queue never filled up");
+    check(accepted > 0, "no upload was accepted");
+    Map<String, Object> stats = stats(gateway);
+    check(number(stats, "requests_rejected") == 1, "rejected: " + stats);
+    check(number(stats, "items_received") == 2 * accepted, "received: " + stats);
+    // Traces of the refused batch mustn't have been sampled.
+    check(number(stats, "traces_new") + number(stats, "traces_slow") == accepted,
+          "sampled: " + stats);
+    check(routeCount(gateway) == accepted, "routed: " + routeCount(gateway));
+
+    // ES comes back, but fails the first bulk request and then rejects one
+    // item, which the gateway must retry.  Meanwhile the tracer retries the
+    // refused batch.
+    es.stalled.countDown();
+    long backoff = 50;
+    while (post(gateway + "/_bulk", refused) == 503) {
+      check(backoff < 10000, "the queue never drained");
+      Thread.sleep(backoff);
+      backoff *= 2;
+    }
+    accepted++;
+
+    final long deadline = System.currentTimeMillis() + 10000;
+    while (number(stats = stats(gateway), "items_written") < 2 * accepted) {
+      check(System.currentTimeMillis() < deadline, "items not written: " + stats);
+      Thread.sleep(10);
+    }
+    check(number(stats, "items_written") == 2 * accepted, "written: " + stats);
+    check(number(stats, "retries") >= 2, "ES failure not retried: " + stats);
+    check(number(stats, "items_retried") == 1, "rejection not retried: " + stats);
+    check(number(stats, "items_failed") == 0, "failed: " + stats);
+    check(number(stats, "traces_new") + number(stats, "traces_slow") == accepted,
+          "sampled: " + stats);
+    check(routeCount(gateway) == accepted, "routed: " + routeCount(gateway));
+    check(es.written.size() == 2 * accepted,
+          "ES got " + es.written.size() + " items instead of " + 2 * accepted);
+    for (final Map.Entry<String, AtomicInteger> e : es.written.entrySet()) {
+      check(e.getValue().get() == 1, e.getKey() + " written "
+            + e.getValue() + " times");
+    }
+  }
+
+  /** The route of all the traces we upload.  */
+  private static final String ROUTE = "/users/" + RouteNormalizer.NUM;
+
+  /** Returns the body of a {@code _bulk} request for the i-th trace.  */
+  private static String batch(final int i) {
+    final String id = "t" + i;
+    final StringBuilder buf = new StringBuilder();
+    buf.append("{\"index\":{\"_index\":\"" + INDEX + "\",\"_type\":\"summary\",\"_id\":\"")
+      .append(id).append("\"}}\n")
+      .append("{\"resource\":\"/users/").append(i)
+      .append("\",\"method\":\"GET\",\"end_to_end\":12.5,\"request_ts\":")
+      .append(System.currentTimeMillis()).append("}\n");
+    buf.append("{\"index\":{\"_index\":\"" + INDEX + "\",\"_type\":\"trace\",\"_id\":\"")
+      .append(id).append("\"}}\n")
+      .append("{\"syscalls_times\":[{\"syscall\":\"read\",\"time\":1.5}]}\n");
+    return buf.toString();
+  }
+
+  private static int post(final String url, final String body) throws IOException {
+    final HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+    conn.setRequestMethod("POST");
+    conn.setDoOutput(true);
+    conn.setRequestProperty("Content-Type", "application/json");
+    final OutputStream out = conn.getOutputStream();
+    try {
+      out.write(body.getBytes(Json.UTF8));
+    } finally {
+      out.close();
+    }
+    final int status = conn.getResponseCode();
+    final InputStream in = status == 200 ? conn.getInputStream() : conn.getErrorStream();
+    BulkWriter.readFully(in);
+    return status;
+  }
+
+  private static Map<String, Object> stats(final String gateway) throws IOException {
+    final HttpURLConnection conn = (HttpURLConnection)
+      new URL(gateway + "/_droopy/stats").openConnection();
+    return Json.parseObject(BulkWriter.readFully(conn.getInputStream()));
+  }
+
+  /** Returns how many times the gateway counted our route.  */
+  private static long routeCount(final String gateway) throws IOException {
+    final HttpURLConnection conn = (HttpURLConnection)
+      new URL(gateway + "/_droopy/routes").openConnection();
+    final Map<String, Object> json =
+      Json.parseObject(BulkWriter.readFully(conn.getInputStream()));
+    final Object count = Json.getObject(json, "routes").get(ROUTE);
+    return count == null ? 0 : ((Number) count).longValue();
+  }
+
+  private static long number(final Map<String, Object> map, final String key) {
+    return ((Number) map.get(key)).longValue();
+  }
+
+  private static void respond(final HttpExchange exchange, final int status,
+                              final String json) throws IOException {
+    final byte[] body = json.getBytes(Json.UTF8);
+    exchange.sendResponseHeaders(status, body.length);
+    final OutputStream out = exchange.getResponseBody();
+    try {
+      out.write(body);
+    } finally {
+      out.close();
+    }
+  }
+
+  private static int freePort() throws IOException {
+    final ServerSocket socket = new ServerSocket(0);
+    try {
+      return socket.getLocalPort();
+    } finally {
+      socket.close();
+    }
+  }
+
+  private static void check(final boolean condition, final String msg) {
+    if (!condition) {
+      throw new AssertionError(msg);
+    }
+  }
+
+}
@@ -0,0 +1,251 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package ingest;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes traces and full traces with {@link TraceCodec}, decodes them and
+ * checks we get the original documents back, times being rounded to the
+ * microsecond.
+ * <p>
+ * When given a file name, also writes there what was encoded and what it
+ * must decode to, so that {@code test/viewer/traceworker_test.js} can check
+ * the decoders of {@code viewer/traceworker.js} against the same data.
+ * <p>
+ * Run with {@code make check}.
+ */
+final class TraceCodecTest {
+
+  /** Half a microsecond, in milliseconds.  */
+  private static final double EPSILON = 0.0005;
+
+  public static void main(final String[] args) {
+    try {
+      run(args.length > 0 ? args[0] : null);
+    } catch (Throwable e) {
+      e.printStackTrace();
+      System.exit(1);
+    }
+    System.out.println("PASS");
+  }
+
+  private static void run(final String fixtures) throws IOException {
+    final ArrayList<Object> traces = new ArrayList<Object>();
+    for (final Map<String, Object> trace : traces()) {
+      final String compact = TraceCodec.compact("trace", Json.toString(trace));
+      check(compact != null, "trace not encoded: " + trace);
+      final Map<String, Object> doc = Json.parseObject(compact);
+      final Map<String, Object> decoded = TraceCodec.expand("trace", doc);
+      compare("trace", trace, decoded);
+      // What we decoded must survive a trip through JSON, like in ES.
+      compare("trace", trace, Json.parseObject(Json.toString(decoded)));
+      traces.add(obj("compact", doc.get("compact"), "expected", decoded));
+    }
+
+    final ArrayList<Object> fulltraces = new ArrayList<Object>();
+    for (final List<Object> lines : fullTraces()) {
+      final String compact =
+        TraceCodec.compact("fulltrace", Json.toString(obj("syscalls", lines)));
+      check(compact != null, "full trace not encoded: " + lines);
+      final Map<String, Object> doc = Json.parseObject(compact);
+      final List<Object> decoded =
+        Json.getList(TraceCodec.expand("fulltrace", doc), "syscalls");
+      check(lines.equals(decoded), "full trace: expected " + lines
+            + " but got " + decoded);
+      fulltraces.add(obj("compact", doc.get("compact"), "lines", lines));
+    }
+
+    // Documents we can't encode are stored as they are.
+    check(TraceCodec.compact("fulltrace", "{\"syscalls\":[42]}") == null,
+          "encoded a full trace with a number for a line");
+    check(TraceCodec.compact("fulltrace", "{\"syscalls\":[],\"pid\":1}") == null,
+          "encoded a full trace with extra fields");
+    check(TraceCodec.compact("trace", "not json") == null,
+          "encoded a trace that isn't JSON");
+    final Map<String, Object> plain = obj("request", "GET / HTTP/1.1");
+    check(TraceCodec.expand("trace", plain) == plain,
+          "expanded a document that isn't compact");
+
+    // Corrupted data.
+    final byte[] data = TraceCodec.encodeTrace(traces().get(0));
+    final byte[] bad_version = data.clone();
+    bad_version[0] = TraceCodec.VERSION + 1;
+    checkCorrupted(bad_version);
+    checkCorrupted(Arrays.copyOf(data, data.length / 2));
+    checkCorrupted(new byte[0]);
+
+    if (fixtures != null) {
+      final FileOutputStream out = new FileOutputStream(fixtures);
+      try {
+        out.write(Json.toString(obj("traces", traces,
+                                    "fulltraces", fulltraces))
+                  .getBytes(Json.UTF8));
+      } finally {
+        out.close();
+      }
+    }
+  }
+
+  /** Traces to encode, with all the cases the encoder treats differently. */
+  private static List<Map<String, Object>> traces() {
+    final ArrayList<Map<String, Object>> traces = new ArrayList<Map<String, Object>>();
+    traces.add(obj(
+      "request", "GET /caf\u00e9/\u65e5\u672c?q=\u00fc HTTP/1.1",
+      "req_size", 512L,
+      "resp_size", 20480L,
+      "num_cli_read", 2L,
+      "read_time", 0.0123,
+      "num_cli_write", 1L,
+      "write_time", 1.5,
+      "syscalls_times", list(
+        obj("name", "read", "time", 12.345678, "count", 10L),
+        obj("name", "epoll_wait", "time", 3.2, "count", 4L),  // Negative delta.
+        obj("name", "\u00e9crire", "time", 0.0004, "count", 1L)),
+      "backend_reqs", list(
+        obj("peer", "10.0.0.1:3306",
+            "calls", list(
+              obj("duration", 5.5, "name", "write", "retv", 42L,
+                  "call", "SELECT 'na\u00efve' \u2603",
+                  "timestamp", 1299473528478.145, "fast_path", true),
+              obj("duration", 1.25, "name", "read", "retv", -11L,
+                  "call", "read(3, ...)",
+                  "timestamp", 1299473528470.0, "fast_path", false),
+              obj("duration", 0.0005, "name", "close", "retv", 0L,
+                  "timestamp", true))),
+        obj("peer", "m\u00fcnchen.example.com:11211",
+            "calls", list(
+              obj("duration", 2L, "name", "sendto", "retv", -1L,
+                  "call", "sendto(5, \"get k\\r\\n\", 7, 0, NULL, 0)",
+                  "errno", "EAGAIN",
+                  "nested", obj("a", list(1L, 2.5, "\u00df", null))),
+              obj("duration", 3L, "name", "recvfrom",
+                  "retv", -2147483648L)))),
+      "host", "web-\u00e5.example.com",
+      "pid", 1234L));
+    // Missing fields.
+    traces.add(obj("request", "GET / HTTP/1.0"));
+    traces.add(obj("num_cli_write", 3L, "write_time", 0.25));
+    traces.add(new LinkedHashMap<String, Object>());
+    // Negative numbers.
+    traces.add(obj("resp_size", -1L, "read_time", -0.25,
+                   "syscalls_times", list(
+                     obj("name", "read", "time", -1.0, "count", -2L))));
+    // Fields of the wrong type, left in the blob of extra fields.
+    traces.add(obj(
+      "request", null,
+      "req_size", "big",
+      "read_time", null,
+      "syscalls_times", list(),
+      "backend_reqs", list(
+        obj("peer", "db",
+            "calls", list(obj("duration", 1L, "name", "read", "retv", 1.5))))));
+    traces.add(obj(
+      "syscalls_times", list(obj("name", "read", "time", 1L)),
+      "backend_reqs", list()));
+    return traces;
+  }
+
+  /** Full traces to encode.  */
+  private static List<List<Object>> fullTraces() {
+    final ArrayList<List<Object>> fulltraces = new ArrayList<List<Object>>();
+    fulltraces.add(list(
+      "1299473528.478145 close(3) = 0 <0.000009>\n",
+      "1299473528.478200 write(1, \"h\u00e9llo \u2603\\n\", 10) = 10 <0.000120>\n",
+      // Goes back in time, negative retv, no newline.
+      "1299473528.478100 read(3, 0x7fff, 4096) = -1 EAGAIN"
+      + " (Resource temporarily unavailable) <0.000004>",
+      // Lines we can't split are stored as they are.
+      "1299473528.478300 <... read resumed> \"\u00fcber\", 4) = 4 <0.000050>\n",
+      "--- SIGCHLD (Child exited) @ 0 (0) ---\n",
+      "1299473528.4783 read(3, \"\", 4) = 0 <0.000050>\n",
+      "",
+      "1299473529.000001 epoll_wait(4, {}, 64, 1000) = 0 <1.000000>"));
+    fulltraces.add(list());
+    return fulltraces;
+  }
+
+  /**
+   * Checks that a decoded document matches the original one.
+   * Fields can come back in any order and numbers can be off by half a
+   * microsecond, since times are rounded.
+   */
+  private static void compare(final String path, final Object expected,
+                              final Object actual) {
+    if (expected instanceof Map) {
+      check(actual instanceof Map, path + ": expected an object, got " + actual);
+      final Map<?, ?> exp = (Map<?, ?>) expected;
+      final Map<?, ?> act = (Map<?, ?>) actual;
+      check(exp.keySet().equals(act.keySet()), path + ": expected fields "
+            + exp.keySet() + " but got " + act.keySet());
+      for (final Map.Entry<?, ?> e : exp.entrySet()) {
+        compare(path + '.' + e.getKey(), e.getValue(), act.get(e.getKey()));
+      }
+    } else if (expected instanceof List) {
+      check(actual instanceof List, path + ": expected an array, got " + actual);
+      final List<?> exp = (List<?>) expected;
+      final List<?> act = (List<?>) actual;
+      check(exp.size() == act.size(), path + ": expected " + exp.size()
+            + " elements but got " + act.size());
+      for (int i = 0; i < exp.size(); i++) {
+        compare(path + '[' + i + ']', exp.get(i), act.get(i));
+      }
+    } else if (expected instanceof Long && actual instanceof Long) {
+      check(expected.equals(actual), path + ": expected " + expected
+            + " but got " + actual);
+    } else if (expected instanceof Number) {
+      check(actual instanceof Number, path + ": expected a number, got " + actual);
+      final double exp = ((Number) expected).doubleValue();
+      final double act = ((Number) actual).doubleValue();
+      check(Math.abs(exp - act) <= EPSILON, path + ": expected " + exp
+            + " but got " + act);
+    } else {
+      check(expected == null ? actual == null : expected.equals(actual),
+            path + ": expected " + expected + " but got " + actual);
+    }
+  }
+
+  private static void checkCorrupted(final byte[] data) {
+    try {
+      TraceCodec.decodeTrace(data);
+    } catch (IllegalArgumentException e) {
+      return;
+    }
+    throw new AssertionError("decoded corrupted data: " + Arrays.toString(data));
+  }
+
+  private static Map<String, Object> obj(final Object... kvs) {
+    final LinkedHashMap<String, Object> map = new LinkedHashMap<String, Object>();
+    for (int i = 0; i < kvs.length; i += 2) {
+      map.put((String) kvs[i], kvs[i + 1]);
+    }
+    return map;
+  }
+
+  private static List<Object> list(final Object... values) {
+    return new ArrayList<Object>(Arrays.asList(values));
+  }
+
+  private static void check(final boolean condition, final String msg) {
+    if (!condition) {
+      throw new AssertionError(msg);
+    }
+  }
+
+}
@@ -0,0 +1,127 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+
+/*
+ * Checks the decoders of viewer/traceworker.js against what
+ * ingest.TraceCodec encoded and decoded in ingest.TraceCodecTest.
+ * Usage: node traceworker_test.js fixtures.json
+ * Run with `make check'.
+ */
+
+var fs = require('fs');
+var path = require('path');
+var vm = require('vm');
+
+var fixtures = JSON.parse(fs.readFileSync(process.argv[2], 'utf8'));
+
+// What a worker gets from the browser.
+var worker = {
+  atob: function(s) { return Buffer.from(s, 'base64').toString('binary') },
+  postMessage: function() {},
+  escape: escape,
+  decodeURIComponent: decodeURIComponent,
+  Float64Array: Float64Array,
+  JSON: JSON
+};
+vm.runInNewContext(
+  fs.readFileSync(path.join(__dirname, '../../viewer/traceworker.js'), 'utf8'),
+  worker, 'traceworker.js');
+
+function check(condition, msg) {
+  if (!condition) {
+    throw new Error(msg);
+  }
+}
+
+/** Checks two values are the same, modulo floating point noise.  */
+function compare(path, expected, actual) {
+  if (typeof expected == 'number') {
+    check(typeof actual == 'number'
+          && Math.abs(expected - actual) <= 1e-9 * Math.max(1, Math.abs(expected)),
+          path + ': expected ' + expected + ' but got ' + actual);
+  } else if (expected === null || typeof expected != 'object') {
+    check(expected === actual,
+          path + ': expected ' + JSON.stringify(expected)
+          + ' but got ' + JSON.stringify(actual));
+  } else if (expected instanceof Array) {
+    check(Array.isArray(actual),
+          path + ': expected an array, got ' + JSON.stringify(actual));
+    check(expected.length == actual.length,
+          path + ': expected ' + expected.length + ' elements but got '
+          + actual.length);
+    for (var i = 0; i < expected.length; i++) {
+      compare(path + '[' + i + ']', expected[i], actual[i]);
+    }
+  } else {
+    check(actual !== null && typeof actual == 'object',
+          path + ': expected an object, got ' + JSON.stringify(actual));
+    var expected_keys = Object.keys(expected).sort();
+    var actual_keys = Object.keys(actual).sort();
+    check(expected_keys.join() == actual_keys.join(),
+          path + ': expected fields ' + expected_keys + ' but got ' + actual_keys);
+    for (var key in expected) {
+      compare(path + '.' + key, expected[key], actual[key]);
+    }
+  }
+}
+
+function run() {
+  fixtures.traces.forEach(function(fixture, i) {
+    compare('traces[' + i + ']', fixture.expected,
+            worker.decodeTrace(worker.atob(fixture.compact)));
+  });
+
+  // Lanes built from the compact form must match the ones built from
+  // the lines of strace output it encodes.
+  fixtures.fulltraces.forEach(function(fixture, i) {
+    var expected = new worker.LaneBuilder();
+    fixture.lines.forEach(function(line) {
+      worker.parseLine(line, expected);
+    });
+    var actual = new worker.LaneBuilder();
+    worker.decodeFullTrace(worker.atob(fixture.compact), actual);
+    compare('fulltraces[' + i + ']', toArrays(expected.build()),
+            toArrays(actual.build()));
+  });
+
+  var data = worker.atob(fixtures.traces[0].compact);
+  [String.fromCharCode(2) + data.substring(1),
+   data.substring(0, data.length >> 1),
+   ''].forEach(function(corrupted) {
+    var threw = false;
+    try {
+      worker.decodeTrace(corrupted);
+    } catch (e) {
+      threw = true;
+    }
+    check(threw, 'decoded corrupted data: ' + JSON.stringify(corrupted));
+  });
+}
+
+/** Turns the typed arrays of the lanes into plain arrays.  */
+function toArrays(lanes) {
+  return lanes.map(function(lane) {
+    return {name: lane.name, time: lane.time, count: lane.count,
+            start: Array.prototype.slice.call(lane.start),
+            end: Array.prototype.slice.call(lane.end),
+            max_end: Array.prototype.slice.call(lane.max_end)};
+  });
+}
+
+try {
+  run();
+} catch (e) {
+  console.error(e.stack || String(e));
+  process.exit(1);
+}
+console.log('PASS');
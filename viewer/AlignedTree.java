@@ -12,9 +12,16 @@
 // see <http://www.gnu.org/licenses/>.
 package viewer;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 
+import com.google.gwt.core.client.Scheduler;
+import com.google.gwt.dom.client.Style;
+import com.google.gwt.event.logical.shared.ResizeEvent;
+import com.google.gwt.event.logical.shared.ResizeHandler;
+import com.google.gwt.event.shared.HandlerRegistration;
+import com.google.gwt.user.client.Window;
 import com.google.gwt.user.client.ui.HasTreeItems;
 import com.google.gwt.user.client.ui.HorizontalPanel;
 import com.google.gwt.user.client.ui.InlineLabel;
@@ -34,7 +41,11 @@ import com.google.gwt.user.client.ui.Widget;
  * tree.  This causes the tree to be rendered again, and users might notice
  * the double-rendering in a short flicker.  Not super efficient, but gets the
  * job done without having to copy-paste-edit the code of {@link Tree} and
- * {@link TreeItem} as I've seen some GWT projects do.
+ * {@link TreeItem} as I've seen some GWT projects do.  To limit the damage,
+ * all the widths are measured first and then all the cells are resized, so
+ * that the browser doesn't have to re-compute the layout in between, and the
+ * tree remembers the widths of its columns so that aligning it again only
+ * costs something for the rows that were added in the mean time.
  *
  * This class also provides a number of static methods to add rows to the
  * tree table.  It's OK to have rows with a variable number of columns.
@@ -43,13 +54,64 @@ import com.google.gwt.user.client.ui.Widget;
  * loop, you can't align it immediately.  You have to defer the call to
  * {@link #align()} since the tree needs to be rendered first, so that we can
  * tell what size each widget in the tree has.  Sorry :-/
+ *
+ * When the tree has many top-level rows, it can be put in a virtualized mode
+ * with {@link #setRowSource}.  In this mode, only the rows that are visible
+ * in the browser window (plus some margin) are actually in the tree, and
+ * the rows we skipped are replaced by padding of the same height.  Since the
+ * tree doesn't have all its rows, {@link #align()} only measures the rows
+ * currently rendered.  Rows rendered later on start with the widths it
+ * found, and once the tree has been aligned, they're measured as they come
+ * in, in case they need wider columns.
  */
 public class AlignedTree extends Tree {
 
   private static final int DEFAULT_SPACING = 5;  // pixels.
 
+  /** How many pixels above and below the window we render in virtual mode.  */
+  private static final int OVERSCAN = 800;
+
+  /** Height we assume rows have until we've seen them (virtual mode).  */
+  private static final int DEFAULT_ROW_HEIGHT = 24;  // pixels.
+
   private final int spacing;
 
+  /**
+   * Provides the rows of the tree in virtualized mode.
+   * @see #setRowSource
+   */
+  public interface RowSource {
+
+    /** Returns the total number of top-level rows.  */
+    int rowCount();
+
+    /**
+     * Creates the {@code i}th row.
+     * This can be called more than once for the same row, as rows that
+     * scroll out of the window are thrown away, unless they're open.
+     */
+    TreeItem createRow(int i);
+
+  }
+
+  /** Source of the rows in virtual mode, {@code null} otherwise.  */
+  private RowSource source;
+  /** Rows we created, indexed by row number.  {@code null} = not created.  */
+  private TreeItem[] rows;
+  /** Last known height of each row.  */
+  private int[] heights;
+  /** Range of rows currently in the tree: {@code [first, last)}.  */
+  private int first;
+  private int last;
+  /** Width of each column found by the last {@link #align()}, w/o spacing.  */
+  private int[] column_widths;
+  /** Whether or not {@link #updateWindow} is already scheduled.  */
+  private boolean update_scheduled;
+  /** Whether or not {@link #align()} is already scheduled.  */
+  private boolean align_scheduled;
+  private HandlerRegistration scroll_handler;
+  private HandlerRegistration resize_handler;
+
   public AlignedTree() {
     this(DEFAULT_SPACING);
   }
@@ -133,70 +195,365 @@ public class AlignedTree extends Tree {
     return row;
   }
 
+  /**
+   * Puts this tree in virtualized mode.
+   * Any row currently in the tree is removed.
+   * @param source The source of rows, or {@code null} to leave the
+   * virtualized mode.
+   */
+  public void setRowSource(final RowSource source) {
+    clear();
+    this.source = source;
+    if (source == null) {
+      if (scroll_handler != null) {
+        scroll_handler.removeHandler();
+        resize_handler.removeHandler();
+        scroll_handler = resize_handler = null;
+      }
+      return;
+    }
+    final int n = source.rowCount();
+    rows = new TreeItem[n];
+    heights = new int[n];
+    Arrays.fill(heights, DEFAULT_ROW_HEIGHT);
+    if (scroll_handler == null) {
+      scroll_handler = Window.addWindowScrollHandler(new Window.ScrollHandler() {
+        public void onWindowScroll(final Window.ScrollEvent event) {
+          scheduleUpdate();
+        }
+      });
+      resize_handler = Window.addResizeHandler(new ResizeHandler() {
+        public void onResize(final ResizeEvent event) {
+          scheduleUpdate();
+        }
+      });
+    }
+    updateWindow();
+  }
+
+  /**
+   * Tells the tree that rows were appended to its {@link RowSource}.
+   * Rows already created are kept, and the new rows are aligned with the
+   * widths of the columns found by the last {@link #align()}.
+   */
+  public void rowsAdded() {
+    final int n = source.rowCount();
+    final int old = rows.length;
+    if (n <= old) {
+      return;
+    }
+    final TreeItem[] old_rows = rows;
+    rows = new TreeItem[n];
+    System.arraycopy(old_rows, 0, rows, 0, old);
+    final int[] old_heights = heights;
+    heights = new int[n];
+    System.arraycopy(old_heights, 0, heights, 0, old);
+    Arrays.fill(heights, old, n, DEFAULT_ROW_HEIGHT);
+    updateWindow();
+  }
+
+  public void clear() {
+    super.clear();
+    rows = null;
+    heights = null;
+    first = last = 0;
+    column_widths = null;
+    final Style style = getElement().getStyle();
+    style.clearPaddingTop();
+    style.clearPaddingBottom();
+  }
+
+  protected void onLoad() {
+    super.onLoad();
+    if (source != null) {
+      scheduleUpdate();
+    }
+  }
+
+  /** Updates the rows in the tree at most once per event loop.  */
+  private void scheduleUpdate() {
+    if (update_scheduled) {
+      return;
+    }
+    update_scheduled = true;
+    Scheduler.get().scheduleDeferred(new Scheduler.ScheduledCommand() {
+      public void execute() {
+        update_scheduled = false;
+        updateWindow();
+      }
+    });
+  }
+
+  /**
+   * Makes sure the tree contains the rows in the browser window.
+   * All the reads from the DOM happen before we start modifying it, so
+   * that we don't force the browser to re-compute the layout many times.
+   */
+  private void updateWindow() {
+    if (source == null) {
+      return;
+    }
+    final int n = rows.length;
+    // Read phase.
+    if (isAttached()) {
+      for (int i = first; i < last; i++) {
+        final int height = rows[i].getElement().getOffsetHeight();
+        if (height > 0) {
+          heights[i] = height;
+        }
+      }
+    }
+    final int top = Window.getScrollTop() - getAbsoluteTop() - OVERSCAN;
+    final int bottom = top + Window.getClientHeight() + 2 * OVERSCAN;
+
+    // Find the range of rows that intersects with [top, bottom).
+    int new_first = 0;
+    int y = 0;  // Position of the top of the row `new_first'.
+    while (new_first < n && y + heights[new_first] <= top) {
+      y += heights[new_first++];
+    }
+    final int padding_top = y;
+    int new_last = new_first;
+    while (new_last < n && y < bottom) {
+      y += heights[new_last++];
+    }
+    int padding_bottom = 0;
+    for (int i = new_last; i < n; i++) {
+      padding_bottom += heights[i];
+    }
+
+    // Write phase.
+    int keep_first = Math.max(first, new_first);
+    int keep_last = Math.min(last, new_last);
+    if (keep_first >= keep_last) {  // No overlap.
+      keep_first = keep_last = new_first;
+    }
+    for (int i = first; i < last; i++) {
+      if (i < keep_first || i >= keep_last) {
+        releaseRow(i);
+      }
+    }
+    boolean created = false;
+    for (int i = keep_first - 1; i >= new_first; i--) {
+      created |= rows[i] == null;
+      insertItem(0, getRow(i));
+    }
+    for (int i = keep_last; i < new_last; i++) {
+      created |= rows[i] == null;
+      addItem(getRow(i));
+    }
+    if (created && column_widths != null) {
+      scheduleAlign();
+    }
+    first = new_first;
+    last = new_last;
+    final Style style = getElement().getStyle();
+    style.setPaddingTop(padding_top, Style.Unit.PX);
+    style.setPaddingBottom(padding_bottom, Style.Unit.PX);
+  }
+
+  /** Returns the given row, creating it if necessary.  */
+  private TreeItem getRow(final int i) {
+    TreeItem row = rows[i];
+    if (row == null) {
+      row = rows[i] = source.createRow(i);
+      final Widget w = row.getWidget();
+      if (column_widths != null && w instanceof HorizontalPanel) {
+        // Only until align() measures it, it may need wider columns.
+        resizeCells((HorizontalPanel) w, column_widths, spacing);
+      }
+    } else if (row.getWidget() instanceof HorizontalPanel) {
+      // An open row we kept, columns may have grown since it was out.
+      final HorizontalPanel h = (HorizontalPanel) row.getWidget();
+      final int[] applied = appliedWidths(h);
+      if (applied != null && applied != column_widths && column_widths != null) {
+        setCellWidths(h, column_widths, spacing);
+      }
+    }
+    return row;
+  }
+
+  /** Measures the rows that were just rendered, once they're laid out.  */
+  private void scheduleAlign() {
+    if (align_scheduled) {
+      return;
+    }
+    align_scheduled = true;
+    Scheduler.get().scheduleDeferred(new Scheduler.ScheduledCommand() {
+      public void execute() {
+        align_scheduled = false;
+        if (source != null) {
+          align();
+        }
+      }
+    });
+  }
+
+  /** Removes the given row from the tree.  */
+  private void releaseRow(final int i) {
+    final TreeItem row = rows[i];
+    removeItem(row);
+    if (!row.getState()) {  // Keep open rows to not lose what's in them.
+      rows[i] = null;
+    }
+  }
+
   /**
    * Aligns all the columns of the horizontal boxes within this tree.
    * This essentially helps make the tree look like a table with columns.
+   * <p>
+   * The widths of the columns are remembered, so calling this method again
+   * only measures the rows that were added since the last call.  The rows
+   * that were already aligned are only touched again if one of the new rows
+   * made a column wider.  Rows that were aligned by a call to the static
+   * {@link #align(HasTreeItems)} on a subtree aren't considered part of
+   * this tree's columns.
+   * In virtual mode, only the rows currently in the tree are measured.
    */
   public void align() {
-    align(this, spacing);
+    final ArrayList<HorizontalPanel> hboxes;
+    if (source == null) {
+      hboxes = collectRows(this);
+    } else {
+      hboxes = new ArrayList<HorizontalPanel>(last - first);
+      for (int i = first; i < last; i++) {
+        final Widget w = rows[i].getWidget();
+        if (w instanceof HorizontalPanel) {
+          hboxes.add((HorizontalPanel) w);
+        }
+      }
+    }
+    column_widths = align(hboxes, column_widths, spacing);
   }
 
+  /**
+   * Aligns all the columns of the horizontal boxes within the given tree.
+   * Unlike {@link #align()}, this always measures all the rows, and the
+   * columns are independent from those of any enclosing tree.  This is
+   * meant to align a subtree that was just populated.
+   */
   public static void align(final HasTreeItems tree) {
     align(tree, DEFAULT_SPACING);
   }
 
   public static void align(final HasTreeItems tree, final int spacing) {
-    final HorizontalPanel first = findFirstHBox(tree);
-    if (first == null) {
-      return;
-    }
+    align(collectRows(tree), null, spacing);
+  }
 
-    // 1st pass: find the max width for each "column".
-    int[] widths = new int[first.getWidgetCount()];
+  /**
+   * Aligns the given subtree incrementally.
+   * This is like {@link #align(HasTreeItems)} except that rows that were
+   * aligned by a previous call for the same subtree aren't measured again.
+   * @param tree The subtree to align.
+   * @param widths What the previous call for this subtree returned, or
+   * {@code null} if this is the first time we align this subtree.
+   * @return The widths of the columns, to pass to the next call.
+   */
+  public static int[] align(final HasTreeItems tree, final int[] widths) {
+    return align(collectRows(tree), widths, DEFAULT_SPACING);
+  }
+
+  /** Returns all the {@link HorizontalPanel} rows in the given tree.  */
+  private static ArrayList<HorizontalPanel> collectRows(final HasTreeItems tree) {
+    final ArrayList<HorizontalPanel> hboxes = new ArrayList<HorizontalPanel>();
     for (final Widget w : iter(tree)) {
       if (w instanceof HorizontalPanel) {
-        final HorizontalPanel h = (HorizontalPanel) w;
-        final int n = h.getWidgetCount();
-        if (n > widths.length) {
-          // Uh?  There's no Arrays.copyOf in GWT's emulated JRE.  WTF?
-          //widths = Arrays.copyOf(widths, n);
-          final int[] old = widths;
-          widths = new int[n];
-          System.arraycopy(old, 0, widths, 0, old.length);
-        }
-        for (int i = 0; i < n; i++) {
-          final int width = h.getWidget(i).getOffsetWidth();
-          if (width > widths[i]) {
-            widths[i] = width;
-          }
-        }
+        hboxes.add((HorizontalPanel) w);
       }
     }
+    return hboxes;
+  }
 
-    // Add the spacing we were asked to add.
-    for (int i = 0; i < widths.length; i++) {
-      widths[i] += spacing;
+  /**
+   * Aligns the given rows.
+   * All the measurements are done before we start changing the widths of
+   * the cells, so the browser only needs to compute the layout once.
+   * @param hboxes The rows to align.
+   * @param widths The widths of the columns from a previous alignment, or
+   * {@code null}.  Rows that were aligned with this very array won't be
+   * measured again.
+   * @param spacing Number of pixels to add to each column.
+   * @return The widths of the columns (not including the spacing).  This is
+   * {@code widths} itself if no column needed to be wider.
+   */
+  private static int[] align(final ArrayList<HorizontalPanel> hboxes,
+                             final int[] widths, final int spacing) {
+    // Read phase: measure the rows that haven't been aligned yet.
+    int[] max;
+    if (widths == null) {
+      max = new int[0];
+    } else {
+      max = new int[widths.length];
+      System.arraycopy(widths, 0, max, 0, widths.length);
+    }
+    final ArrayList<HorizontalPanel> fresh = new ArrayList<HorizontalPanel>();
+    for (final HorizontalPanel h : hboxes) {
+      final int[] applied = appliedWidths(h);
+      if (applied == null) {
+        fresh.add(h);
+        max = measure(h, max);
+      }  // else: already aligned by us or by someone else.
+    }
+    final boolean grew = widths == null || !Arrays.equals(widths, max);
+    if (!grew) {
+      max = widths;
     }
 
-    // 2nd pass: set the width on every cell in each row.
-    for (final Widget w : iter(tree)) {
-      if (w instanceof HorizontalPanel) {
-        final HorizontalPanel h = (HorizontalPanel) w;
-        final int n = h.getWidgetCount();
-        for (int i = 0; i < n; i++) {
-          h.setCellWidth(h.getWidget(i), widths[i] + "px");
-        }
+    // Write phase.
+    for (final HorizontalPanel h : hboxes) {
+      final int[] applied = appliedWidths(h);
+      if (applied == null || (grew && applied == widths)) {
+        setCellWidths(h, max, spacing);
       }
     }
+    return max;
   }
 
-  private static HorizontalPanel findFirstHBox(final HasTreeItems tree) {
-    for (final Widget w : iter(tree)) {
-      if (w instanceof HorizontalPanel) {
-        return (HorizontalPanel) w;
+  /**
+   * Updates the max width of each column with the cells of the given row.
+   * @return The array of widths, which may have been re-allocated.
+   */
+  private static int[] measure(final HorizontalPanel h, int[] widths) {
+    final int n = h.getWidgetCount();
+    if (n > widths.length) {
+      // Uh?  There's no Arrays.copyOf in GWT's emulated JRE.  WTF?
+      //widths = Arrays.copyOf(widths, n);
+      final int[] old = widths;
+      widths = new int[n];
+      System.arraycopy(old, 0, widths, 0, old.length);
+    }
+    for (int i = 0; i < n; i++) {
+      final int width = h.getWidget(i).getOffsetWidth();
+      if (width > widths[i]) {
+        widths[i] = width;
       }
     }
-    return null;
+    return widths;
+  }
+
+  /** Returns the widths last applied to this row, if we know them.  */
+  private static int[] appliedWidths(final HorizontalPanel h) {
+    return h instanceof HBox ? ((HBox) h).cell_widths : null;
+  }
+
+  private static void setCellWidths(final HorizontalPanel h, final int[] widths,
+                                    final int spacing) {
+    resizeCells(h, widths, spacing);
+    if (h instanceof HBox) {
+      ((HBox) h).cell_widths = widths;
+    }
+  }
+
+  /**
+   * Resizes the cells of a row without marking it as aligned, so that
+   * the next {@link #align()} still measures it.
+   */
+  private static void resizeCells(final HorizontalPanel h, final int[] widths,
+                                  final int spacing) {
+    final int n = Math.min(h.getWidgetCount(), widths.length);
+    for (int i = 0; i < n; i++) {
+      h.setCellWidth(h.getWidget(i), (widths[i] + spacing) + "px");
+    }
   }
 
   private static Iterable<Widget> iter(final HasTreeItems tree) {
@@ -0,0 +1,247 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package viewer;
+
+import com.google.gwt.core.client.JavaScriptObject;
+import com.google.gwt.core.client.JsArray;
+
+/**
+ * Decodes traces stored in the compact form of {@code ingest.TraceCodec}.
+ * <p>
+ * See {@code ingest/TraceCodec.java} for the format, this must be kept in
+ * sync with it.  Numbers are handled as doubles, not longs, because longs
+ * are emulated and slow in GWT, and all the values we deal with fit in the
+ * 53 bits of precision of a double.
+ */
+final class CompactTrace {
+
+  /** Version of the encoding we understand.  */
+  private static final int VERSION = 1;
+
+  /** Top-level fields stored natively, in the order of the bitmap.  */
+  private static final String[] TOP_FIELDS = {
+    "request", "req_size", "resp_size", "num_cli_read", "read_time",
+    "num_cli_write", "write_time",
+  };
+  /** Which of the {@link #TOP_FIELDS} are times, the others are integers. */
+  private static final int TOP_TIME_FIELDS = (1 << 4) | (1 << 6);
+
+  /** The encoded trace, as a "binary string" (one character per byte). */
+  private final String data;
+  private int pos;
+  private String[] strings;
+
+  private CompactTrace(final String data) {
+    this.data = data;
+  }
+
+  /**
+   * Replaces the source of the hit by the decoded trace, if the trace was
+   * stored in the compact form.  Otherwise leaves the hit untouched.
+   * @throws IllegalArgumentException if the compact trace is corrupted.
+   */
+  public static void expand(final ESResponse.Hit<Trace> hit) {
+    final String compact = compactField(hit.source());
+    if (compact != null) {
+      hit.setSource(new CompactTrace(atob(compact)).decodeTrace());
+    }
+  }
+
+  private static native String compactField(final JavaScriptObject doc) /*-{
+    return doc && doc.v ? doc.compact : null;
+  }-*/;
+
+  private static native String atob(final String base64) /*-{
+    return $wnd.atob(base64);
+  }-*/;
+
+  private Trace decodeTrace() {
+    if (data.length() == 0 || data.charAt(pos++) != VERSION) {
+      throw corrupted("unsupported version");
+    }
+    strings = new String[readCount()];
+    for (int i = 0; i < strings.length; i++) {
+      strings[i] = readString();
+    }
+
+    final JavaScriptObject trace = JavaScriptObject.createObject();
+    final int bitmap = (int) readVarint();
+    for (int i = 0; i < TOP_FIELDS.length; i++) {
+      if ((bitmap & (1 << i)) == 0) {
+        continue;
+      } else if (i == 0) {
+        put(trace, TOP_FIELDS[i], readString());
+      } else if ((TOP_TIME_FIELDS & (1 << i)) != 0) {
+        put(trace, TOP_FIELDS[i], readSvarint() / 1000);
+      } else {
+        put(trace, TOP_FIELDS[i], readSvarint());
+      }
+    }
+
+    int n = readCount();
+    if (n > 0) {
+      final JsArray<JavaScriptObject> times = JavaScriptObject.createArray().cast();
+      double prev = 0;
+      for (int i = 0; i < n; i++) {
+        final JavaScriptObject entry = JavaScriptObject.createObject();
+        put(entry, "name", readRef());
+        prev += readSvarint();
+        put(entry, "time", prev / 1000);
+        put(entry, "count", readSvarint());
+        times.push(entry);
+      }
+      put(trace, "syscalls_times", times);
+    }
+
+    n = readCount();
+    if (n > 0) {
+      final JsArray<JavaScriptObject> reqs = JavaScriptObject.createArray().cast();
+      for (int i = 0; i < n; i++) {
+        final JavaScriptObject req = JavaScriptObject.createObject();
+        put(req, "peer", readRef());
+        final int ncalls = readCount();
+        final JsArray<JavaScriptObject> calls = JavaScriptObject.createArray().cast();
+        double prev_duration = 0;
+        double prev_ts = 0;
+        for (int j = 0; j < ncalls; j++) {
+          final JavaScriptObject call = JavaScriptObject.createObject();
+          prev_duration += readSvarint();
+          put(call, "duration", prev_duration / 1000);
+          put(call, "name", readRef());
+          put(call, "retv", readSvarint());
+          final String args = readString();
+          if (args != null) {
+            put(call, "call", args);
+          }
+          final int flags = (int) readVarint();
+          if ((flags & 2) != 0) {
+            prev_ts += readSvarint();
+            put(call, "timestamp", prev_ts / 1000);
+          } else if ((flags & 1) != 0) {
+            put(call, "timestamp", true);
+          }
+          if ((flags & 12) != 0) {
+            put(call, "fast_path", (flags & 4) != 0);
+          }
+          readExtra(call);
+          calls.push(call);
+        }
+        put(req, "calls", calls);
+        reqs.push(req);
+      }
+      put(trace, "backend_reqs", reqs);
+    }
+    readExtra(trace);
+    return trace.cast();
+  }
+
+  private IllegalArgumentException corrupted(final String msg) {
+    return new IllegalArgumentException("Corrupted compact trace at offset "
+                                        + pos + ": " + msg);
+  }
+
+  private double readVarint() {
+    double v = 0;
+    double multiplier = 1;
+    for (int i = 0; i < 10; i++) {
+      if (pos >= data.length()) {
+        throw corrupted("truncated varint");
+      }
+      final int b = data.charAt(pos++);
+      v += (b & 0x7F) * multiplier;
+      if (b < 0x80) {
+        return v;
+      }
+      multiplier *= 128;
+    }
+    throw corrupted("varint too long");
+  }
+
+  /** Reads a zigzag-encoded varint.  */
+  private double readSvarint() {
+    final double v = readVarint();
+    return v % 2 == 0 ? v / 2 : -(v + 1) / 2;
+  }
+
+  private int readCount() {
+    final double n = readVarint();
+    if (n > data.length() - pos) {  // Each element takes at least 1 byte.
+      throw corrupted("invalid count " + n);
+    }
+    return (int) n;
+  }
+
+  private String readRef() {
+    final double ref = readVarint();
+    if (ref >= strings.length) {
+      throw corrupted("invalid string reference " + ref);
+    }
+    return strings[(int) ref];
+  }
+
+  private String readString() {
+    final int n = (int) readVarint();
+    if (n == 0) {
+      return null;
+    } else if (n - 1 > data.length() - pos) {
+      throw corrupted("truncated string");
+    }
+    final String s = data.substring(pos, pos + n - 1);
+    pos += n - 1;
+    return decodeUtf8(s);
+  }
+
+  /** Reads the JSON blob of extra fields into the given object.  */
+  private void readExtra(final JavaScriptObject obj) {
+    final String extra = readString();
+    if (extra != null) {
+      merge(obj, extra);
+    }
+  }
+
+  /** Turns a binary string of UTF-8 bytes into a string.  */
+  private static native String decodeUtf8(final String bytes) /*-{
+    // Fast path: no need to do anything for pure ASCII.
+    return /[\x80-\xff]/.test(bytes)
+      ? decodeURIComponent(escape(bytes)) : bytes;
+  }-*/;
+
+  private static native void put(final JavaScriptObject obj, final String key,
+                                 final String value) /*-{
+    obj[key] = value;
+  }-*/;
+
+  private static native void put(final JavaScriptObject obj, final String key,
+                                 final double value) /*-{
+    obj[key] = value;
+  }-*/;
+
+  private static native void put(final JavaScriptObject obj, final String key,
+                                 final JavaScriptObject value) /*-{
+    obj[key] = value;
+  }-*/;
+
+  private static native void put(final JavaScriptObject obj, final String key,
+                                 final boolean value) /*-{
+    obj[key] = value;
+  }-*/;
+
+  private static native void merge(final JavaScriptObject obj,
+                                   final String json) /*-{
+    var extra = JSON.parse(json);
+    for (var key in extra) {
+      obj[key] = extra[key];
+    }
+  }-*/;
+
+}
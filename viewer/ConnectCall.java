@@ -35,6 +35,7 @@ public final class ConnectCall extends JavaScriptObject {
   public native String type() /*-{ return this.type }-*/;
   public native int retv() /*-{ return this.retv }-*/;
   public native String call() /*-{ return this.call }-*/;
-  public native int timestamp() /*-{ return this.timestamp }-*/;
+  /** When the connect was made, in milliseconds since the Epoch.  */
+  public native double timestamp() /*-{ return this.timestamp }-*/;
 
 }
@@ -16,7 +16,6 @@ import java.util.Iterator;
 
 import com.google.gwt.core.client.JavaScriptObject;
 import com.google.gwt.core.client.JsArray;
-import com.google.gwt.json.client.JSONObject;
 
 /**
  * JavaScript overlay for ElasticSearch's responses.
@@ -26,19 +25,34 @@ public final class ESResponse<T extends JavaScriptObject> extends JavaScriptObje
   protected ESResponse() {
   }
 
-  public static <T extends JavaScriptObject> ESResponse<T> fromJson(final JSONObject json) {
-    return json.getJavaScriptObject().cast();
-  }
-  public static native <T extends JavaScriptObject> ESResponse<T> fromJson(final String json) /*-{
-    return eval('(' + json + ')');
+  /**
+   * Parses JSON straight into an overlay type.
+   * This uses the browser's native JSON parser, so unlike when going through
+   * {@code JSONParser}, no intermediate wrapper objects get created and the
+   * response is only materialized once.
+   * @throws com.google.gwt.core.client.JavaScriptException if the JSON is
+   * invalid.
+   */
+  public static native <T extends JavaScriptObject> T parse(final String json) /*-{
+    return JSON.parse(json);
   }-*/;
 
+  public static <T extends JavaScriptObject> ESResponse<T> fromJson(final String json) {
+    return parse(json);
+  }
+
   public native int took() /*-{ return this.took }-*/;
   public native boolean timedOut() /*-{ return this.timed_out }-*/;
   //public static final native Shards hits() /*-{ return this._shards }-*/;
   public native Hits<T> hits() /*-{ return this.hits }-*/;
+  /** Only there for searches that asked for a scroll, can be {@code null}. */
+  public native String scrollId() /*-{ return this._scroll_id || null }-*/;
+  /** The error ES failed the request with, or {@code null}.  */
+  public native String error() /*-{ return this.error || null }-*/;
   public native <F extends Facet> Facets<F> facets(final String name)
   /*-{ return this.facets == null ? null : this.facets[name] }-*/;
+  public native StatisticalFacet statistical(final String name)
+  /*-{ return this.facets == null ? null : this.facets[name] }-*/;
 
   public static final class Hits<T extends JavaScriptObject> extends JavaScriptObject {
     protected Hits() {}
@@ -52,15 +66,29 @@ public final class ESResponse<T extends JavaScriptObject> extends JavaScriptObje
   }
 
   public static final class Hit<T extends JavaScriptObject> extends JavaScriptObject {
-    public static <T extends JavaScriptObject> Hit<T> fromJson(final JSONObject json) {
-      return json.getJavaScriptObject().cast();
-    }
-
     protected Hit() {}
     public native String index() /*-{ return this._index }-*/;
     public native String type() /*-{ return this._type }-*/;
     public native String id() /*-{ return this._id }-*/;
     public native T source() /*-{ return this._source }-*/;
+    public native void setSource(T source) /*-{ this._source = source }-*/;
+    /** Only meaningful for GET and multi-GET responses.  */
+    public native boolean exists() /*-{ return this.exists }-*/;
+  }
+
+  /** Response to a multi-GET ({@code _mget}) request.  */
+  public static final class MultiGet<T extends JavaScriptObject> extends JavaScriptObject {
+    public static <T extends JavaScriptObject> MultiGet<T> fromJson(final String json) {
+      return parse(json);
+    }
+
+    protected MultiGet() {}
+    public native JsArray<Hit<T>> docs() /*-{ return this.docs }-*/;
+
+    // Can't implement the Iterable interface due to GWT bug #4864.
+    public Iterable<Hit<T>> iterator() {
+      return new JsArrayIterator(docs());
+    }
   }
 
   public static abstract class Facet extends JavaScriptObject {
@@ -71,6 +99,8 @@ public final class ESResponse<T extends JavaScriptObject> extends JavaScriptObje
     protected Facets() {}
     public native int missing() /*-{ return this.missing }-*/;
     public native JsArray<T> terms() /*-{ return this.terms }-*/;
+    /** For histogram facets, which have entries instead of terms.  */
+    public native JsArray<T> entries() /*-{ return this.entries }-*/;
 
     // Can't implement the Iterable interface due to GWT bug #4864.
     public Iterable<T> iterator() {
@@ -86,8 +116,29 @@ public final class ESResponse<T extends JavaScriptObject> extends JavaScriptObje
 
   public static final class HistoFacet extends Facet {
     protected HistoFacet() {}
-    public native int key() /*-{ return this.key }-*/;
+    public native double key() /*-{ return this.key }-*/;
+    public native int count() /*-{ return this.count }-*/;
+    /** Only for histograms with a {@code value_field}.  */
+    public native double total() /*-{ return this.total || 0 }-*/;
+  }
+
+  public static final class TermStatsFacet extends Facet {
+    protected TermStatsFacet() {}
+    public native String term() /*-{ return this.term }-*/;
     public native int count() /*-{ return this.count }-*/;
+    public native double total() /*-{ return this.total }-*/;
+    public native double mean() /*-{ return this.mean }-*/;
+    public native double max() /*-{ return this.max }-*/;
+  }
+
+  /** Statistical facets aren't a list of terms, they're the stats directly.  */
+  public static final class StatisticalFacet extends JavaScriptObject {
+    protected StatisticalFacet() {}
+    public native double count() /*-{ return this.count }-*/;
+    public native double total() /*-{ return this.total }-*/;
+    public native double min() /*-{ return this.min }-*/;
+    public native double max() /*-{ return this.max }-*/;
+    public native double mean() /*-{ return this.mean }-*/;
   }
 
 }
@@ -25,6 +25,14 @@ public class HBox extends HorizontalPanel {
   public static final HasHorizontalAlignment.HorizontalAlignmentConstant
     ALIGN_RIGHT = HasHorizontalAlignment.ALIGN_RIGHT;
 
+  /**
+   * Widths of the cells last set by {@link AlignedTree}, or {@code null}.
+   * This is the very array of widths used by the aligner, so it can tell
+   * whether this row was aligned with the current widths without having
+   * to touch the DOM.
+   */
+  int[] cell_widths;
+
   /**
    * Adds a widget and also specify its alignment.
    */
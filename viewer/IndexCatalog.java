@@ -0,0 +1,188 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package viewer;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Keeps track of the monthly indices that exist and what they contain.
+ * <p>
+ * Traces are stored in one index per month, named "indexname-YYYYMM".
+ * Knowing which indices exist and the range of {@code request_ts} in each
+ * of them allows us to only search the indices that can have matches,
+ * instead of every month in the time range.
+ * <p>
+ * Until the catalog is loaded, we just search every month in the range.
+ * The index of a new month only shows up once the catalog is reloaded,
+ * which {@link #isStale} tells us to do when we look past the latest index.
+ */
+final class IndexCatalog {
+
+  /** Base name of the indices.  */
+  private final String indexname;
+
+  /** Indices that exist, or {@code null} if we don't know yet.  */
+  private HashSet<String> indices;
+
+  /**
+   * Maps the name of an index to the min and max {@code request_ts} in it.
+   * Indices in which we haven't looked yet aren't in there.
+   */
+  private final HashMap<String, double[]> ranges = new HashMap<String, double[]>();
+
+  /** Name of the most recent index.  This is the one still growing.  */
+  private String latest;
+
+  /** Don't reload the catalog more often than this, in milliseconds.  */
+  private static final long MIN_RELOAD_INTERVAL = 60000;
+  /** When {@link #setIndices} was last called, in milliseconds.  */
+  private long loaded_at;
+
+  IndexCatalog(final String indexname) {
+    this.indexname = indexname;
+  }
+
+  /**
+   * Records the names of all the indices that exist.
+   * The ranges of the indices we already knew are kept.
+   * @return {@code true} if there's an index we didn't know about.
+   */
+  public boolean setIndices(final Iterable<String> names) {
+    final HashSet<String> known = indices;
+    indices = new HashSet<String>();
+    latest = null;
+    loaded_at = System.currentTimeMillis();
+    boolean added = false;
+    final String prefix = indexname + '-';
+    for (final String name : names) {
+      if (!name.startsWith(prefix)) {
+        continue;
+      }
+      indices.add(name);
+      added |= known != null && !known.contains(name);
+      // Names are "indexname-YYYYMM" so the lexicographic order works.
+      if (latest == null || name.compareTo(latest) > 0) {
+        latest = name;
+      }
+    }
+    return added;
+  }
+
+  /** Returns the indices we know exist, or {@code null} if we don't know. */
+  public Iterable<String> indices() {
+    return indices;
+  }
+
+  /**
+   * Records the range of {@code request_ts} found in an index.
+   * @param index The name of the index.
+   * @param min The smallest {@code request_ts} in it.
+   * @param max The largest {@code request_ts} in it.
+   */
+  public void setRange(final String index, final double min, final double max) {
+    ranges.put(index, new double[] { min, max });
+  }
+
+  /** Records that an index has no trace.  */
+  public void setEmpty(final String index) {
+    ranges.put(index, null);
+  }
+
+  /** Returns whether we've looked for the range of an index already.  */
+  public boolean hasRange(final String index) {
+    return ranges.containsKey(index);
+  }
+
+  /**
+   * Returns whether the catalog must be reloaded to search up to a date.
+   * That's when the date is in a month after the latest index we know of,
+   * whose index may have been created since we loaded the catalog (e.g.
+   * the viewer was left open across the end of a month).
+   */
+  public boolean isStale(final Date to) {
+    if (indices == null
+        || System.currentTimeMillis() - loaded_at < MIN_RELOAD_INTERVAL) {
+      return false;
+    }
+    final int month = 1 + to.getMonth();
+    final String index = indexname + '-' + (1900 + to.getYear())
+      + (month < 10 ? "0" : "") + month;
+    return latest == null || index.compareTo(latest) > 0;
+  }
+
+  /**
+   * Returns whether the given index may contain traces in the given range.
+   */
+  private boolean mayOverlap(final String index, final long from, final long to) {
+    if (indices == null) {
+      return true;  // Don't know anything yet.
+    } else if (!indices.contains(index)) {
+      return false;
+    } else if (!ranges.containsKey(index)) {
+      return true;  // Haven't looked in it yet.
+    }
+    final double[] range = ranges.get(index);
+    if (range == null) {  // Empty index.
+      return index.equals(latest);  // ... but it may not be empty anymore.
+    }
+    // The latest index is still growing, so ignore its max.
+    return range[0] <= to && (index.equals(latest) || range[1] >= from);
+  }
+
+  /**
+   * Returns the indices to search for the given date range.
+   * For instance "/droopy-201106,droopy-201107".
+   * @param from Start of the time range.
+   * @param to End of the time range.
+   * @return The list of indices, or {@code null} if no index can have
+   * anything in that range.
+   */
+  public String indicesToSearch(final Date from, final Date to) {
+    final long start = from.getTime();
+    final long end = to.getTime();
+    final int y1 = 1900 + from.getYear();    // Start year
+    final int m1 = 1 + from.getMonth();          // Start month
+    final int y2 = 1900 + to.getYear();      // End year
+    final int m2 = 1 + to.getMonth();            // End month
+    final StringBuilder buf = new StringBuilder(8 * (y2 * 12 + m2 - y1 * 12 - m1));
+    final StringBuilder name = new StringBuilder(indexname.length() + 7);
+    buf.append("/");
+    int start_month = m1;
+    for (int y = y1; y <= y2; y++) {  // Use `<=' to loop at least once.
+      // If we're on the last year, stop at the end month, otherwise go
+      // through all the months until the end of the year.
+      final int end_month = y == y2 ? m2 : 12;
+      for (int m = start_month; m <= end_month; m++) {
+        name.setLength(0);
+        name.append(indexname).append('-').append(y);
+        if (m < 10) {
+          name.append('0');  // Padding for values less than 10.
+        }
+        name.append(m);
+        final String index = name.toString();
+        if (mayOverlap(index, start, end)) {
+          buf.append(index).append(',');
+        }
+      }
+      start_month = 1;
+    }
+    if (buf.length() == 1) {  // Only has the leading `/'.
+      return null;
+    }
+    buf.setLength(buf.length() - 1);  // Remove the last `,'
+    return buf.toString();
+  }
+
+}
@@ -12,23 +12,29 @@
 // see <http://www.gnu.org/licenses/>.
 package viewer;
 
-import com.google.gwt.json.client.JSONArray;
-import com.google.gwt.json.client.JSONNumber;
-import com.google.gwt.json.client.JSONObject;
-import com.google.gwt.json.client.JSONString;
-import com.google.gwt.json.client.JSONValue;
-
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Builder for the JSON requests we send to ElasticSearch.
+ * <p>
+ * This is plain Java (no JSNI nor {@code com.google.gwt.json}), so it can
+ * also run on the JVM, e.g. in the benchmarks.  Fields are kept in the
+ * order in which they're added.
+ */
 public final class Json {
 
-  private final JSONValue root;  // Either a JSONObject or a JSONArray.
+  /** Either a {@code LinkedHashMap<String, Object>} or an {@code ArrayList}. */
+  private final Object root;
 
   /** Private ctor, must use factory methods instead.  */
-  private Json(final JSONValue root) {
+  private Json(final Object root) {
     this.root = root;
   }
 
   public static Json object() {
-    return new Json(new JSONObject());
+    return new Json(new LinkedHashMap<String, Object>());
   }
 
   public static Json object(final String field, final String value) {
@@ -48,18 +54,17 @@ public final class Json {
   }
 
   public static Json array() {
-    return new Json(new JSONArray());
+    return new Json(new ArrayList<Object>());
   }
 
-  private Json add(final String field, final JSONValue value) {
-    JSONObject obj;
-    if ((obj = root.isObject()) != null) {
-      obj.put(field, value);
+  @SuppressWarnings("unchecked")
+  private Json add(final String field, final Object value) {
+    if (root instanceof LinkedHashMap) {
+      ((LinkedHashMap<String, Object>) root).put(field, value);
     } else {
-      final JSONArray array = root.isArray();
-      obj = new JSONObject();
+      final LinkedHashMap<String, Object> obj = new LinkedHashMap<String, Object>(1);
       obj.put(field, value);
-      array.set(array.size(), obj);
+      ((ArrayList<Object>) root).add(obj);
     }
     return this;
   }
@@ -69,19 +74,106 @@ public final class Json {
   }
 
   public Json add(final String field, final long value) {
-    return add(field, new JSONNumber(value));
+    return add(field, (Object) value);
   }
 
   public Json add(final String field, final double value) {
-    return add(field, new JSONNumber(value));
+    return add(field, (Object) value);
   }
 
   public Json add(final String field, final String value) {
-    return add(field, new JSONString(value));
+    return add(field, (Object) value);
+  }
+
+  public Json add(final String field, final boolean value) {
+    return add(field, (Object) value);
+  }
+
+  /** Appends the given value to this array.  */
+  @SuppressWarnings("unchecked")
+  public Json add(final Json value) {
+    if (!(root instanceof ArrayList)) {
+      throw new IllegalStateException("not an array: " + this);
+    }
+    ((ArrayList<Object>) root).add(value.root);
+    return this;
   }
 
   public String toString() {
-    return root.toString();
+    final StringBuilder buf = new StringBuilder();
+    append(buf, root);
+    return buf.toString();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void append(final StringBuilder buf, final Object value) {
+    if (value instanceof String) {
+      appendString(buf, (String) value);
+    } else if (value instanceof Long) {
+      buf.append(((Long) value).longValue());
+    } else if (value instanceof Boolean) {
+      buf.append(((Boolean) value).booleanValue());
+    } else if (value instanceof Double) {
+      final double d = (Double) value;
+      if (Double.isNaN(d) || Double.isInfinite(d)) {
+        buf.append("null");  // Not representable in JSON.
+      } else if (d == (long) d) {  // Don't print "42.0".
+        buf.append((long) d);
+      } else {
+        buf.append(d);
+      }
+    } else if (value instanceof LinkedHashMap) {
+      buf.append('{');
+      boolean first = true;
+      for (final Map.Entry<String, Object> e
+           : ((LinkedHashMap<String, Object>) value).entrySet()) {
+        if (!first) {
+          buf.append(',');
+        }
+        first = false;
+        appendString(buf, e.getKey());
+        buf.append(':');
+        append(buf, e.getValue());
+      }
+      buf.append('}');
+    } else {
+      buf.append('[');
+      boolean first = true;
+      for (final Object item : (ArrayList<Object>) value) {
+        if (!first) {
+          buf.append(',');
+        }
+        first = false;
+        append(buf, item);
+      }
+      buf.append(']');
+    }
+  }
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private static void appendString(final StringBuilder buf, final String s) {
+    buf.append('"');
+    final int n = s.length();
+    for (int i = 0; i < n; i++) {
+      final char c = s.charAt(i);
+      switch (c) {
+        case '"': buf.append("\\\""); break;
+        case '\\': buf.append("\\\\"); break;
+        case '\n': buf.append("\\n"); break;
+        case '\r': buf.append("\\r"); break;
+        case '\t': buf.append("\\t"); break;
+        default:
+          // Control characters, and the line separators JavaScript chokes on.
+          if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+            buf.append("\\u").append(HEX[c >> 12]).append(HEX[(c >> 8) & 0xF])
+              .append(HEX[(c >> 4) & 0xF]).append(HEX[c & 0xF]);
+          } else {
+            buf.append(c);
+          }
+      }
+    }
+    buf.append('"');
   }
 
 }
@@ -0,0 +1,158 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package viewer;
+
+import com.google.gwt.core.client.Duration;
+import com.google.gwt.core.client.EntryPoint;
+import com.google.gwt.core.client.JavaScriptObject;
+import com.google.gwt.core.client.Scheduler;
+import com.google.gwt.json.client.JSONParser;
+import com.google.gwt.user.client.ui.Grid;
+import com.google.gwt.user.client.ui.InlineLabel;
+import com.google.gwt.user.client.ui.RootPanel;
+import com.google.gwt.user.client.ui.VerticalPanel;
+
+/**
+ * Benchmark page to compare the ways of decoding ES responses.
+ * <p>
+ * This generates a synthetic {@code _search} response of about 5MB full of
+ * summaries and times how long it takes to go from the response text to
+ * {@link Summary} overlays with each decoder.  Build it with
+ * {@code make gwtbench} and open {@code jsonbench/jsonbench.html}.
+ */
+final class JsonBench implements EntryPoint {
+
+  /** Approximate size of the synthetic response.  */
+  private static final int RESPONSE_SIZE = 5 * 1024 * 1024;
+
+  /** How many times we decode the response with each decoder.  */
+  private static final int ITERATIONS = 5;
+
+  private final VerticalPanel root = new VerticalPanel();
+  private final InlineLabel status = new InlineLabel();
+  private final Grid results = new Grid(4, 3);
+
+  /** A way to decode the text of an ES response.  */
+  private interface Decoder {
+    ESResponse<Summary> decode(String text);
+  }
+
+  public void onModuleLoad() {
+    results.setText(0, 0, "Decoder");
+    results.setText(0, 1, "Average");
+    results.setText(0, 2, "Best");
+    root.add(status);
+    root.add(results);
+    RootPanel.get().add(root);
+    status.setText("Generating a synthetic response...");
+    // Let the browser render the page before we hog the CPU.
+    Scheduler.get().scheduleDeferred(new Scheduler.ScheduledCommand() {
+      public void execute() {
+        run();
+      }
+    });
+  }
+
+  private void run() {
+    final String text = syntheticResponse(RESPONSE_SIZE);
+    status.setText("Decoding a " + (text.length() >> 10) + "KB response "
+                   + ITERATIONS + " times with each decoder.");
+    bench(1, "JSONParser.parseStrict + JSONObject (old)", text, new Decoder() {
+      public ESResponse<Summary> decode(final String text) {
+        return JSONParser.parseStrict(text).isObject().getJavaScriptObject().cast();
+      }
+    });
+    bench(2, "eval (old)", text, new Decoder() {
+      public ESResponse<Summary> decode(final String text) {
+        return evalJson(text);
+      }
+    });
+    bench(3, "native JSON.parse (current)", text, new Decoder() {
+      public ESResponse<Summary> decode(final String text) {
+        return ESResponse.fromJson(text);
+      }
+    });
+  }
+
+  private void bench(final int row, final String name, final String text,
+                     final Decoder decoder) {
+    double total = 0;
+    double best = Double.MAX_VALUE;
+    for (int i = 0; i < ITERATIONS; i++) {
+      final Duration duration = new Duration();
+      final ESResponse<Summary> resp = decoder.decode(text);
+      // Touch every summary like renderTraces does, so lazy decoders don't
+      // get an unfair advantage.
+      double sum = 0;
+      for (final ESResponse.Hit<Summary> hit : resp.hits().iterator()) {
+        sum += hit.source().endToEnd();
+      }
+      final int elapsed = duration.elapsedMillis();
+      if (sum < 0) {  // Never true, prevents the loop from being optimized out.
+        status.setText("WTF? " + sum);
+      }
+      total += elapsed;
+      if (elapsed < best) {
+        best = elapsed;
+      }
+    }
+    results.setText(row, 0, name);
+    results.setText(row, 1, (total / ITERATIONS) + "ms");
+    results.setText(row, 2, best + "ms");
+  }
+
+  private static native <T extends JavaScriptObject> ESResponse<T> evalJson(final String json) /*-{
+    return eval('(' + json + ')');
+  }-*/;
+
+  /** Generates a fake {@code _search} response of approximately this size. */
+  private static native String syntheticResponse(final int size) /*-{
+    var hits = [];
+    var length = 0;
+    var now = new Date().getTime();
+    for (var i = 0; length < size; i++) {
+      var hit = {
+        _index: "droopy-201106", _type: "summary", _id: "trace" + i,
+        _score: null, sort: [now - i],
+        _source: {
+          method: "GET",
+          resource: "/some/resource/" + (i % 1000) + ".php",
+          request_ts: now - i,
+          end_to_end: (i % 5000) / 3,
+          num_syscalls: 100 + i % 10000,
+          apache_closed: false,
+          slowest_syscall: {
+            duration: (i % 300) / 7, name: "recvfrom", retv: 42,
+            call: "recvfrom(17, \"VALUE some_memcache_key_" + i
+                  + " 0 1234\\r\\n\", 16384, MSG_DONTWAIT, NULL, NULL)"
+          },
+          prev_connect: {
+            peer: "10.0.0." + (i % 250) + ":11211",
+            host: "memcache" + (i % 250) + ".example.com",
+            type: "port_11211", retv: 0, timestamp: now - i,
+            call: "connect(17, {sa_family=AF_INET, sin_port=htons(11211),"
+                  + " sin_addr=inet_addr(\"10.0.0." + (i % 250) + "\")}, 16)"
+          }
+        }
+      };
+      length += JSON.stringify(hit).length + 1;
+      hits.push(hit);
+    }
+    return JSON.stringify({
+      took: 42, timed_out: false,
+      _shards: { total: 5, successful: 5, failed: 0 },
+      hits: { total: hits.length, max_score: null, hits: hits }
+    });
+  }-*/;
+
+}
@@ -0,0 +1,124 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package viewer;
+
+import java.util.TreeMap;
+
+/**
+ * Merges the latency sketches of time buckets, to estimate percentiles
+ * over any time range.
+ * <p>
+ * This is the reading side of {@code ingest.LatencySketch}, see there for
+ * how values are bucketed.  The two must be kept in sync.
+ * <p>
+ * This is plain Java, so that it can also run on the JVM in the benchmarks.
+ */
+final class LatencySketch {
+
+  /** Ratio between the bounds of consecutive buckets.  */
+  static final double GAMMA = 1.02;
+
+  /** Index of the bucket of {@code counts[0]}.  */
+  private int offset;
+  /** Count of each bucket, starting from {@link #offset}.  */
+  private double[] counts;
+  private double count;
+  private double min = Double.POSITIVE_INFINITY;
+  private double max = Double.NEGATIVE_INFINITY;
+
+  /**
+   * Adds the count of a bucket.
+   * @param bucket The index of the bucket.
+   * @param n How many values are in it.
+   */
+  void add(final int bucket, final double n) {
+    if (counts == null) {
+      offset = bucket;
+      counts = new double[16];
+    } else if (bucket < offset) {
+      final int shift = Math.max(offset - bucket, 16);
+      final double[] grown = new double[counts.length + shift];
+      System.arraycopy(counts, 0, grown, shift, counts.length);
+      counts = grown;
+      offset -= shift;
+    } else if (bucket - offset >= counts.length) {
+      final double[] grown = new double[Math.max(bucket - offset + 1,
+                                                 counts.length * 2)];
+      System.arraycopy(counts, 0, grown, 0, counts.length);
+      counts = grown;
+    }
+    counts[bucket - offset] += n;
+    count += n;
+  }
+
+  /** Records the smallest and largest value of a sketch merged in.  */
+  void addRange(final double min, final double max) {
+    if (min < this.min) {
+      this.min = min;
+    }
+    if (max > this.max) {
+      this.max = max;
+    }
+  }
+
+  double count() {
+    return count;
+  }
+
+  /**
+   * Estimates a quantile, within 1%.
+   * @param q The quantile, between 0 and 1 (e.g. 0.99 for the p99).
+   * @return The estimate in milliseconds, or NaN if the sketch is empty.
+   */
+  double quantile(final double q) {
+    if (count == 0) {
+      return Double.NaN;
+    }
+    final double rank = Math.floor(q * (count - 1));
+    double seen = 0;
+    int i = 0;
+    while (i < counts.length - 1 && (seen += counts[i]) <= rank) {
+      i++;
+    }
+    return value(i);
+  }
+
+  /**
+   * Counts the values in buckets of a fixed width, like a histogram facet.
+   * @param width The width of the buckets, in milliseconds.
+   * @return Maps the lower bound of each bucket that isn't empty to the
+   * number of values in it.
+   */
+  TreeMap<Long, Double> histogram(final double width) {
+    final TreeMap<Long, Double> histogram = new TreeMap<Long, Double>();
+    if (count == 0) {
+      return histogram;
+    }
+    for (int i = 0; i < counts.length; i++) {
+      if (counts[i] == 0) {
+        continue;
+      }
+      final long key = (long) (Math.floor(value(i) / width) * width);
+      final Double n = histogram.get(key);
+      histogram.put(key, n == null ? counts[i] : n + counts[i]);
+    }
+    return histogram;
+  }
+
+  /** Returns the value that stands for the values of {@code counts[i]}.  */
+  private double value(final int i) {
+    final double value = 2 * Math.pow(GAMMA, offset + i) / (GAMMA + 1);
+    return Math.min(Math.max(value, min), max);
+  }
+
+}
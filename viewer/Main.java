@@ -12,15 +12,21 @@
 // see <http://www.gnu.org/licenses/>.
 package viewer;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 import com.google.gwt.core.client.EntryPoint;
+import com.google.gwt.core.client.JavaScriptException;
 import com.google.gwt.core.client.JavaScriptObject;
 import com.google.gwt.core.client.JsArray;
+import com.google.gwt.core.client.Scheduler;
 import com.google.gwt.event.dom.client.ClickEvent;
 import com.google.gwt.event.dom.client.ClickHandler;
 import com.google.gwt.event.dom.client.DomEvent;
@@ -35,19 +41,20 @@ import com.google.gwt.http.client.Response;
 import com.google.gwt.http.client.URL;
 import com.google.gwt.i18n.client.DateTimeFormat;
 import com.google.gwt.json.client.JSONArray;
-import com.google.gwt.json.client.JSONException;
 import com.google.gwt.json.client.JSONNumber;
 import com.google.gwt.json.client.JSONObject;
-import com.google.gwt.json.client.JSONParser;
 import com.google.gwt.json.client.JSONString;
 import com.google.gwt.json.client.JSONValue;
 import com.google.gwt.user.client.DOM;
 import com.google.gwt.user.client.Element;
 import com.google.gwt.user.client.History;
+import com.google.gwt.user.client.Timer;
 import com.google.gwt.user.client.Window;
 import com.google.gwt.user.client.rpc.AsyncCallback;
 import com.google.gwt.user.client.ui.Button;
 import com.google.gwt.user.client.ui.CheckBox;
+import com.google.gwt.user.client.ui.Grid;
+import com.google.gwt.user.client.ui.HTMLTable;
 import com.google.gwt.user.client.ui.HorizontalPanel;
 import com.google.gwt.user.client.ui.InlineLabel;
 import com.google.gwt.user.client.ui.ListBox;
@@ -63,6 +70,7 @@ import com.google.gwt.visualization.client.events.SelectHandler;
 import com.google.gwt.visualization.client.visualizations.corechart.AxisOptions;
 import com.google.gwt.visualization.client.visualizations.corechart.ColumnChart;
 import com.google.gwt.visualization.client.visualizations.corechart.CoreChart;
+import com.google.gwt.visualization.client.visualizations.corechart.LineChart;
 import com.google.gwt.visualization.client.visualizations.corechart.Options;
 import com.google.gwt.visualization.client.visualizations.corechart.PieChart;
 
@@ -76,28 +84,73 @@ final class Main implements EntryPoint {
   static final DateTimeFormat FULLDATE =
     DateTimeFormat.getFormat("yyyy/MM/dd-HH:mm:ss");
 
-  private static final DateTimeFormat INDEXDATE =
-    DateTimeFormat.getFormat("yyyyMM");
-
-  /** Max number of results we'll fetch from ES.  */
-  private static final short MAX_RESULTS = 200;
-  private static final short DEFAULT_RESULTS = 20;
+  /** How many traces we fetch at a time.  */
+  private static final int DEFAULT_RESULTS = 20;
+  /** Max number of traces we load at first, whatever the URL says.  */
+  private static final int MAX_RESULTS = 1000;
+  /** How long ES keeps the scroll of "Load more traces" between pages.  */
+  private static final String SCROLL_KEEPALIVE = "10m";
+  /** Max number of traces we keep in {@link #trace_cache}.  */
+  private static final int TRACE_CACHE_SIZE = 50;
 
   /** ip:port of the ES server to talk to.  */
   private String server;
   /** Base name of the ES index to use, typically an alias name.  */
   private String indexname;
+  /** What we know about the indices in which traces are stored.  */
+  private IndexCatalog catalog;
+  /** Whether we're reloading {@link #catalog}.  */
+  private boolean catalog_reloading;
+  /** Used to fetch the details of the traces we expand.  */
+  private TraceFetcher fetcher;
+  /** Traces we've already fetched.  */
+  private TraceCache trace_cache;
 
   private final VerticalPanel root = new VerticalPanel();
   private final InlineLabel status = new InlineLabel();
   private final HorizontalPanel charts = new HorizontalPanel();
   private final AlignedTree traces = new AlignedTree();
-  private short nresults = DEFAULT_RESULTS;  // How many traces we want.
+  private int nresults = DEFAULT_RESULTS;  // How many traces we want.
+  /** Traces currently in {@link #traces}, in display order.  */
+  private JsArray<ESResponse.Hit<Summary>> shown;
+  /** Total number of traces matching the current search.  */
+  private int total_hits;
+  /**
+   * Upper bound of {@code request_ts} for the current search.
+   * If no end time was given, this is pinned to when the search started,
+   * so that traces coming in afterwards don't shift the pages we load.
+   */
+  private long search_end;
+  /**
+   * Indices, query and sort order of the current search.
+   * Pages after the first one are loaded with these, and not with what's
+   * in the input boxes by then, otherwise they'd be pages of another search.
+   */
+  private String search_indices;
+  private Json search_query;
+  private Json search_sort;
+  /**
+   * ID of the scroll to get the next page of the current search, or
+   * {@code null} if we haven't started scrolling or the server can't.
+   */
+  private String search_scroll;
+  private final Button load_more = new Button("Load more traces", new ClickHandler() {
+    public void onClick(final ClickEvent event) {
+      loadMoreTraces();
+    }
+  });
 
   private final DateTimeBox start_datebox = new DateTimeBox();
   private final DateTimeBox end_datebox = new DateTimeBox();
   private final TextBox esquery = new TextBox();
   private final ListBox sortby = new ListBox();
+  /** When checked, only show aggregates over the time range, no traces.  */
+  private final CheckBox overview = new CheckBox("Overview only");
+  /** When checked, show where the time goes in each backend instead.  */
+  private final CheckBox backends = new CheckBox("Backends");
+  /** When checked, group the traces by route instead of listing them.  */
+  private final CheckBox by_route = new CheckBox("Group by route");
+  private final SearchScheduler searches = new SearchScheduler();
 
   private abstract class AjaxCallback implements RequestCallback/*AsyncCallback<JavaScriptObject>*/ {
     public void onError(final Request req, final Throwable e) {
@@ -117,17 +170,17 @@ final class Main implements EntryPoint {
         }
         onError(request, new RuntimeException(errmsg));
       } else {
-        JSONValue value;
+        final JavaScriptObject value;
         try {
-          value = JSONParser.parseStrict(text);
-        } catch (JSONException e) {
+          value = ESResponse.parse(text);
+        } catch (JavaScriptException e) {
           onError(request, e);
           return;
         }
         onSuccess(value);
       }
     }
-    protected abstract void onSuccess(final JSONValue response);
+    protected abstract void onSuccess(final JavaScriptObject response);
   }
 
   /**
@@ -142,11 +195,6 @@ final class Main implements EntryPoint {
     VisualizationUtils.loadVisualizationApi(new Start(), "corechart");
   }
 
-  /** Returns the name of the index for this month.  */
-  private String currentIndexName() {
-    return indexname + "-" + INDEXDATE.format(new Date());
-  }
-
   private void onModuleLoadReal() {
     server = getServer();
     indexname = getIndexName();
@@ -154,22 +202,31 @@ final class Main implements EntryPoint {
       promptForServerUi();
       return;
     }
+    catalog = new IndexCatalog(indexname);
+    fetcher = new TraceFetcher(server);
+    trace_cache = new TraceCache(TRACE_CACHE_SIZE, useSessionStorage());
     status.setText("Checking server health...");
     root.add(status);
     root.add(charts);
     removeLoadingMessage();
     RootPanel.get().add(root);
     ajax("/" + indexname + "/_status", new AjaxCallback() {
-      public void onSuccess(final JSONValue response) {
-        final JSONObject resp = response.isObject();
+      public void onSuccess(final JavaScriptObject response) {
+        final JSONObject resp = new JSONObject(response);
         if (resp.containsKey("ok")
             && resp.get("ok").isBoolean().booleanValue()) {
-          status.setText("Server is ready, "
-                         + (resp.get("indices").isObject()
-                            .get(currentIndexName()).isObject()
-                            .get("docs").isObject()
-                            .get("num_docs")) + " traces available."
-                         + "  Loading ...");
+          final JSONObject indices = resp.get("indices").isObject();
+          long num_docs = 0;
+          for (final String index : indices.keySet()) {
+            final JSONObject docs = indices.get(index).isObject()
+              .get("docs").isObject();
+            num_docs += (long) docs.get("num_docs").isNumber().doubleValue();
+          }
+          catalog.setIndices(indices.keySet());
+          loadIndexRanges();
+          status.setText("Server is ready, " + num_docs + " traces available"
+                         + " in " + indices.size() + " indices"
+                         + ".  Loading ...");
           setupUi();
           setupHistory();
         } else if (resp.containsKey("error") && resp.containsKey("status")) {
@@ -182,6 +239,64 @@ final class Main implements EntryPoint {
     });
   }
 
+  /**
+   * Reloads the list of indices, to find those created since we loaded it.
+   * If there's a new one, the current search is sent again.
+   */
+  private void reloadCatalog() {
+    catalog_reloading = true;
+    ajax("/" + indexname + "/_status", new AjaxCallback() {
+      public void onError(final Request req, final Throwable e) {
+        catalog_reloading = false;  // We'll try again later.
+      }
+      public void onSuccess(final JavaScriptObject response) {
+        catalog_reloading = false;
+        final JSONObject resp = new JSONObject(response);
+        if (!resp.containsKey("indices")) {
+          return;
+        }
+        if (catalog.setIndices(resp.get("indices").isObject().keySet())) {
+          loadIndexRanges();
+          loadTraces();
+        }
+      }
+    });
+  }
+
+  /**
+   * Finds the range of timestamps in each index, to avoid searching indices
+   * that can't have anything in the time range we're looking at.
+   * This is done only once, for each index in the catalog.
+   */
+  private void loadIndexRanges() {
+    final String json = object()
+      .add("size", 0)
+      .add("facets", object("range", object("statistical",
+                                            object("field", "request_ts"))))
+      .toString();
+    for (final String index : catalog.indices()) {
+      if (catalog.hasRange(index)) {
+        continue;
+      }
+      ajax('/' + index + "/summary/_search", json, new AjaxCallback() {
+        public void onError(final Request req, final Throwable e) {
+          // Not a big deal, we'll keep searching this index.
+        }
+        public void onSuccess(final JavaScriptObject response) {
+          final ESResponse<Summary> resp = response.cast();
+          final ESResponse.StatisticalFacet range = resp.statistical("range");
+          if (range == null) {
+            return;  // Leave this index alone.
+          } else if (range.count() == 0) {
+            catalog.setEmpty(index);
+          } else {
+            catalog.setRange(index, range.min(), range.max());
+          }
+        }
+      });
+    }
+  }
+
   private static void removeLoadingMessage() {
     // Remove the static "Loading..." message.
     final Element loading = DOM.getElementById("loading");
@@ -204,6 +319,11 @@ final class Main implements EntryPoint {
     return index;
   }
 
+  /** Returns false if the URL says not to use the session storage.  */
+  private static boolean useSessionStorage() {
+    return !"0".equals(Window.Location.getParameter("sessioncache"));
+  }
+
   private void promptForServerUi() {
     final VerticalPanel vbox = new VerticalPanel();
     vbox.add(new InlineLabel("I need to know the address of the ElasticSearch"
@@ -252,12 +372,16 @@ final class Main implements EntryPoint {
     RootPanel.get().add(root);
   }
 
-  private void ajax(final String resource, final AjaxCallback callback) {
-    ajax(resource, null, callback);
+  private Request ajax(final String resource, final AjaxCallback callback) {
+    return ajax(resource, null, callback);
   }
 
-  private void ajax(final String resource, final String body,
-                    final AjaxCallback callback) {
+  /**
+   * Sends an AJAX request to the server.
+   * @return The request in flight, or {@code null} if we failed to send it.
+   */
+  private Request ajax(final String resource, final String body,
+                       final AjaxCallback callback) {
     final boolean has_body = body != null;
     final RequestBuilder builder =
       new RequestBuilder(has_body ? RequestBuilder.POST : RequestBuilder.GET,
@@ -267,13 +391,70 @@ final class Main implements EntryPoint {
     //  builder.setHeader("Content-Type", "application/json");
     //}
     try {
-      builder.sendRequest(body, callback);
+      return builder.sendRequest(body, callback);
     } catch (RequestException e) {
       status.setText("Failed to setup AJAX call to " + server + resource
                      + ": " + e);
+      return null;
     }
   }
 
+  /** How long the input must be left alone before we search, in ms.  */
+  private static final int INPUT_DEBOUNCE = 300;
+
+  /**
+   * Makes sure we don't pile up searches as the user changes the input.
+   * Changes in the input trigger a refresh only once they stop for a short
+   * while.  When we start a new search, the one in flight (if any) is
+   * cancelled, and in case its response was already on its way, responses
+   * of searches other than the last one are ignored.
+   */
+  private final class SearchScheduler extends Timer {
+
+    /** The last search we sent, or {@code null}.  */
+    private Request inflight;
+    /** Incremented for every search, to recognize stale responses.  */
+    private int generation;
+
+    /** Schedules a refresh once the input stops changing.  */
+    void debounce() {
+      schedule(INPUT_DEBOUNCE);  // Cancels the previous schedule, if any.
+    }
+
+    public void run() {
+      refreshNow();
+    }
+
+    /**
+     * Sends a search, superseding any search in flight.
+     * @param resource The URL to send the search to.
+     * @param body The body of the search.
+     * @param callback Invoked only if no other search was started since.
+     */
+    void search(final String resource, final String body,
+                final AjaxCallback callback) {
+      if (inflight != null && inflight.isPending()) {
+        inflight.cancel();
+      }
+      final int search_generation = ++generation;
+      inflight = ajax(resource, body, new AjaxCallback() {
+        public void onError(final Request req, final Throwable e) {
+          if (search_generation == generation) {
+            inflight = null;
+            callback.onError(req, e);
+          }
+        }
+        protected void onSuccess(final JavaScriptObject response) {
+          if (search_generation == generation) {
+            inflight = null;
+            callback.onSuccess(response);
+          }
+        }
+      });
+    }
+
+  }
+
   private void setupUi() {
     setupChangeHandlers();
     final HorizontalPanel hbox = new HorizontalPanel();
@@ -296,10 +477,16 @@ final class Main implements EntryPoint {
     sortby.addItem("End-to-end latency", "end_to_end");
     sortby.addItem("Slowest system call", "slowest_syscall.duration");
     sortby.addItem("Number of system calls", "num_syscalls");
+    sortby.addItem("Time spent in backends", "backend_time");
     hbox.add(sortby);
+    hbox.add(by_route);
+    hbox.add(overview);
+    hbox.add(backends);
     root.add(hbox);
     traces.setAnimationEnabled(true);
     root.add(traces);
+    load_more.setVisible(false);
+    root.add(load_more);
   }
 
   private void setupChangeHandlers() {
@@ -324,6 +511,24 @@ final class Main implements EntryPoint {
     }
     esquery.addKeyPressHandler(refresh);
     sortby.addChangeHandler(refresh);
+    overview.addClickHandler(refresh);
+    backends.addClickHandler(refresh);
+    by_route.addClickHandler(refresh);
+    // These are different views, only one can be picked.
+    overview.addValueChangeHandler(new ValueChangeHandler<Boolean>() {
+      public void onValueChange(final ValueChangeEvent<Boolean> event) {
+        if (event.getValue()) {
+          backends.setValue(false);
+        }
+      }
+    });
+    backends.addValueChangeHandler(new ValueChangeHandler<Boolean>() {
+      public void onValueChange(final ValueChangeEvent<Boolean> event) {
+        if (event.getValue()) {
+          overview.setValue(false);
+        }
+      }
+    });
   }
 
   private void setupHistory() {
@@ -346,15 +551,19 @@ final class Main implements EntryPoint {
         } else {
           sortby.setSelectedIndex(0);  // Pick the 1st item as the default.
         }
+        overview.setValue(params.containsKey("overview"));
+        backends.setValue(params.containsKey("backends"));
+        by_route.setValue(params.containsKey("byroute"));
         if ((value = params.get("results")) != null) {
-          short n;
+          int n;
           try {
-            n = Short.valueOf(value.get(0));
+            n = Integer.parseInt(value.get(0));
           } catch (NumberFormatException e) {
             n = -1;
           }
-          if (0 < n && n < MAX_RESULTS) {
-            nresults = n;
+          if (n > 0) {
+            // The URL may have been edited, don't ask ES for too many.
+            nresults = Math.min(n, MAX_RESULTS);
           }
         } else {
           nresults = DEFAULT_RESULTS;
@@ -374,7 +583,12 @@ final class Main implements EntryPoint {
     History.fireCurrentHistoryState();
   }
 
+  /** Updates the URL to reflect the input, once the input stops changing.  */
   private void refresh() {
+    searches.debounce();
+  }
+
+  private void refreshNow() {
     final Date start = start_datebox.getValue();
     if (start == null) {
       status.setText("Please specify a start time.");
@@ -400,86 +614,601 @@ final class Main implements EntryPoint {
     if (!esquery.getValue().isEmpty()) {
       token.append("&q=").append(esquery.getValue());
     }
+    if (by_route.getValue()) {
+      token.append("&byroute");
+    }
+    if (overview.getValue()) {
+      token.append("&overview");
+    } else if (backends.getValue()) {
+      token.append("&backends");
+    }
     History.newItem(token.toString());
   }
 
   /**
    * Returns the indices to search for the current date range.
-   * For instance "/droopy201106,"
+   * For instance "/droopy-201106,droopy-201107".
+   * @return The indices, or {@code null} if no index can have anything in
+   * the current range, in which case we also tell the user.
    */
   private String indicesToSearch() {
     final Date from = start_datebox.getValue();
     final Date to = end_datebox.getValue() != null ? end_datebox.getValue() : new Date();
-    final int y1 = 1900 + from.getYear();    // Start year
-    final int m1 = 1 + from.getMonth();          // Start month
-    final int y2 = 1900 + to.getYear();      // End year
-    final int m2 = 1 + to.getMonth();            // End month
-    final StringBuilder buf = new StringBuilder(8 * (y2 * 12 + m2 - y1 * 12 - m1));
-    buf.append("/");
-    int start_month = m1;
-    for (int y = y1; y <= y2; y++) {  // Use `<=' to loop at least once.
-      // If we're on the last year, stop at the end month, otherwise go
-      // through all the months until the end of the year.
-      final int end_month = y == y2 ? m2 : 12;
-      for (int m = start_month; m <= end_month; m++) {
-        buf.append(indexname).append('-').append(y);
-        if (m < 10) {
-          buf.append('0');  // Padding for values less than 10.
-        }
-        buf.append(m).append(',');
-      }
-      start_month = 1;
-    }
-    buf.setLength(buf.length() - 1);  // Remove the last `,'
-    return buf.toString();
+    if (!catalog_reloading && catalog.isStale(to)) {
+      reloadCatalog();
+    }
+    final String indices = catalog.indicesToSearch(from, to);
+    if (indices == null) {
+      status.setText("No traces in this time range.");
+      charts.clear();
+      traces.setRowSource(null);
+      load_more.setVisible(false);
+    }
+    return indices;
   }
 
   private void loadTraces() {
+    if (overview.getValue()) {
+      loadOverview();
+      return;
+    } else if (backends.getValue()) {
+      loadBackends();
+      return;
+    }
+    final String indices = indicesToSearch();
+    if (indices == null) {
+      return;
+    }
     status.setText("Loading...");
-    final Json request_ts = object()
-      .add("from", toMillis(start_datebox));
-    if (end_datebox.getValue() != null) {
-      request_ts.add("to", toMillis(end_datebox));
+    search_end = (end_datebox.getValue() != null ? toMillis(end_datebox)
+                  : System.currentTimeMillis());
+    final boolean group = by_route.getValue();
+    final Json facets = object()
+      .add("slowbe", object("terms", object("field", "prev_connect.host")))
+      .add("wslowbe", weightsBy("prev_connect.host"))
+      .add("betype", object("terms", object("field", "prev_connect.type")))
+      .add("wbetype", weightsBy("prev_connect.type"))
+      .add("lathisto", object("histogram",
+                              object("field", "end_to_end")
+                              .add("interval", LATENCY_BUCKET)))
+      .add("wlathisto", object("histogram",
+                               object("key_field", "end_to_end")
+                               .add("value_field", "sample_weight")
+                               .add("interval", LATENCY_BUCKET)));
+    if (group) {
+      // Routes have a bounded cardinality, unlike resources, so this stays
+      // cheap for ES however many distinct URLs there are.
+      facets.add("routes", object("terms_stats",
+                                   object("key_field", "route")
+                                   .add("value_field", "end_to_end")
+                                   .add("order", "total")
+                                   .add("size", MAX_ROUTES)));
+      facets.add("wroutes", weightsBy("route"));
     }
+    search_indices = indices;
+    search_query = getFilteredQuery(search_end);
+    search_sort = getSort();
+    search_scroll = null;  // The previous one will just expire.
     final String json = object()
-      .add("size", nresults)
-      .add("sort", Json.array()
-           .add(sortby.getValue(sortby.getSelectedIndex()), object("order", "desc")))
-      .add("query",
-           object("filtered", object("query", getESQuery())
-                  .add("filter",
-                       object("numeric_range",
-                              object("request_ts", request_ts)
-                             )
-                      )
-                 )
-          )
-      .add("facets",
-           object()
-           .add("slowbe", object("terms", object("field", "prev_connect.host")))
-           .add("betype", object("terms", object("field", "prev_connect.type")))
-           //.add("lathisto", object("histogram",
-           //                        object("field", "end_to_end").add("interval", 30)))
-          )
+      .add("size", group ? 0 : nresults)
+      .add("sort", search_sort)
+      .add("query", search_query)
+      .add("facets", facets)
       .toString();
-    ajax(indicesToSearch() + "/summary/_search", json,
+    searches.search(indices + "/summary/_search", json,
           new AjaxCallback() {
-      public void onSuccess(final JSONValue response) {
-        final ESResponse<Summary> resp = ESResponse.fromJson(response.isObject());
+      public void onSuccess(final JavaScriptObject response) {
+        final ESResponse<Summary> resp = response.cast();
         status.setText("Found " + resp.hits().total() + " traces in "
                        + resp.took() + "ms");
 
         charts.clear();
         renderChart(resp.<ESResponse.TermFacet>facets("slowbe"),
+                    byTerm(resp.<ESResponse.TermStatsFacet>facets("wslowbe")),
                     "Slowest Backend Hosts", "host");
         renderChart(resp.<ESResponse.TermFacet>facets("betype"),
+                    byTerm(resp.<ESResponse.TermStatsFacet>facets("wbetype")),
                     "Slowest Backend Types", "type");
-        renderLatencyHistogram(resp.<ESResponse.HistoFacet>facets("lathisto"));
-        renderTraces(resp.hits());
+        renderLatencyHistogram(resp.<ESResponse.HistoFacet>facets("lathisto"),
+                               byKey(resp.<ESResponse.HistoFacet>facets("wlathisto")));
+        if (group) {
+          traces.setRowSource(null);
+          shown = null;
+          updateLoadMore();
+          renderRoutes(resp.<ESResponse.TermStatsFacet>facets("routes"),
+                       byTerm(resp.<ESResponse.TermStatsFacet>facets("wroutes")));
+        } else {
+          renderTraces(resp.hits());
+        }
+        if (esquery.getValue().isEmpty()) {
+          loadHotResources(indices, search_end);
+        }
       }
     });
   }
 
+  /**
+   * Fetches the next page of traces and appends it to the ones shown.
+   * Only the new page is fetched from ES, using the same query, sort order
+   * and time range as the search that got us the traces already shown.
+   * <p>
+   * With from/size, ES would have to collect and sort all the traces up to
+   * the new page on every shard for every click.  So the first click opens
+   * a scroll on the pinned search, and the following ones just continue it,
+   * which only costs a page each.  The embedded store doesn't scroll, it
+   * answers with a plain page, and then we keep using from/size.
+   */
+  private void loadMoreTraces() {
+    load_more.setEnabled(false);
+    load_more.setText("Loading...");
+    final boolean scrolling = search_scroll != null;
+    final AjaxCallback callback = new AjaxCallback() {
+      public void onSuccess(final JavaScriptObject response) {
+        final ESResponse<Summary> resp = response.cast();
+        if (resp.hits() == null) {
+          if (scrolling) {
+            // The scroll probably expired, start another one from here.
+            search_scroll = null;
+            loadMoreTraces();
+          } else {
+            status.setText("Failed to load more traces: " + resp.error());
+            updateLoadMore();
+          }
+          return;
+        }
+        search_scroll = resp.scrollId();
+        for (final ESResponse.Hit<Summary> hit : resp.hits().iterator()) {
+          shown.push(hit);
+        }
+        nresults = shown.length();
+        total_hits = resp.hits().total();
+        status.setText("Showing " + nresults + " of " + total_hits + " traces");
+        replaceHistoryTokens("results", Integer.toString(nresults));
+        traces.rowsAdded();
+        updateLoadMore();
+      }
+    };
+    if (scrolling) {
+      searches.search("/_search/scroll?scroll=" + SCROLL_KEEPALIVE,
+                      search_scroll, callback);
+      return;
+    }
+    final String json = object()
+      .add("from", shown.length())
+      .add("size", DEFAULT_RESULTS)
+      .add("sort", search_sort)
+      .add("query", search_query)
+      .toString();
+    searches.search(search_indices + "/summary/_search?scroll=" + SCROLL_KEEPALIVE,
+                    json, callback);
+  }
+
+  private void updateLoadMore() {
+    load_more.setText("Load more traces");
+    load_more.setEnabled(true);
+    load_more.setVisible(shown != null && shown.length() < total_hits);
+  }
+
+  private Json getSort() {
+    return Json.array()
+      // Not every index has every field (e.g. backend_time only exists
+      // when the ingest gateway analyzes the traces), so don't fail on those
+      // where it's unmapped, and put traces without it last.
+      .add(sortby.getValue(sortby.getSelectedIndex()),
+           object("order", "desc").add("ignore_unmapped", true)
+           .add("missing", "_last"))
+      // Ties must be broken the same way for every page, otherwise traces
+      // with the same value could be skipped or shown twice.
+      .add("_uid", object("order", "desc"));
+  }
+
+  /**
+   * Loads aggregates over the whole time range instead of traces.
+   * Everything is computed by ES with facets, we don't ask for any hit, so
+   * this remains cheap regardless of how many traces are in the range.
+   * When the ingest gateway writes time buckets, everything is read from
+   * them instead of from the summaries, which is much faster over long
+   * ranges and counts the traces that were sampled out.  The buckets can't
+   * be filtered by a query though.
+   */
+  private void loadOverview() {
+    final String indices = indicesToSearch();
+    if (indices == null) {
+      return;
+    }
+    status.setText("Loading...");
+    final long start = toMillis(start_datebox);
+    final long end = (end_datebox.getValue() != null ? toMillis(end_datebox)
+                      : System.currentTimeMillis());
+    final long interval = timelineInterval(end - start);
+    final long granularity = rollupGranularity(interval);
+    if (granularity == 0 || !esquery.getValue().isEmpty()) {
+      loadOverview(indices, end, interval);
+      return;
+    }
+    new RollupSearch(indices, granularity) {
+      String request(final long granularity) {
+        // Coarser buckets don't fit in a finer timeline.
+        final long width = Math.max(interval, granularity);
+        // The timeline only needs the totals, the other buckets are fetched
+        // for their latency sketches and top resources.
+        final Json total = object("term", object("dimension", "total"));
+        return object()
+          .add("size", MAX_ROLLUPS)
+          .add("query", getRollupQuery(granularity, start, end,
+                                       "total", "backend", "syscall", "topk"))
+          .add("facets",
+               object()
+               .add("requests", object("histogram",
+                                       object("key_field", "bucket_ts")
+                                       .add("value_field", "count")
+                                       .add("interval", width))
+                    .add("facet_filter", total))
+               .add("latency", object("histogram",
+                                      object("key_field", "bucket_ts")
+                                      .add("value_field", "time_total")
+                                      .add("interval", width))
+                    .add("facet_filter", total))
+              )
+          .toString();
+      }
+      public void onError(final Request req, final Throwable e) {
+        loadOverview(indices, end, interval);
+      }
+      void onRollups(final ESResponse<Rollup> resp, final long granularity) {
+        // ES returns an error instead of hits if no index has time buckets.
+        if (resp.hits() != null && resp.hits().total() > 0) {
+          renderOverview(resp, Math.max(interval, granularity));
+        } else {
+          loadOverview(indices, end, interval);
+        }
+      }
+    }.search();
+  }
+
+  /**
+   * Renders the overview from the time buckets of the ingest gateway, so
+   * that we don't have to look at any of the summaries.
+   * @param rollups The response with the time buckets and their timeline.
+   * @param interval Width of the buckets of the timeline, in milliseconds.
+   */
+  private void renderOverview(final ESResponse<Rollup> rollups,
+                              final long interval) {
+    status.setText("Aggregated " + rollups.hits().total() + " time buckets in "
+                   + rollups.took() + "ms");
+    charts.clear();
+    traces.setRowSource(null);
+    shown = null;
+    updateLoadMore();
+    final LatencySketch latency = new LatencySketch();
+    double count = 0;
+    double time = 0;
+    double max = 0;
+    for (final ESResponse.Hit<Rollup> hit : rollups.hits().iterator()) {
+      final Rollup rollup = hit.source();
+      if ("total".equals(rollup.dimension())) {
+        rollup.mergeInto(latency);
+        count += rollup.count();
+        time += rollup.timeTotal();
+        max = Math.max(max, rollup.timeMax());
+      }
+    }
+    renderPercentiles(latency, count, time, max);
+    renderLatencyHistogram(latency.histogram(LATENCY_BUCKET));
+    renderRollupTimeline(rollups.<ESResponse.HistoFacet>facets("requests"),
+                         rollups.<ESResponse.HistoFacet>facets("latency"),
+                         interval);
+    renderSketches(rollups.hits());
+    renderHotResources(rollups.hits());
+    renderTopBackends(rollups.hits());
+  }
+
+  /**
+   * Loads the aggregates of the summaries for the overview.
+   * @param indices The indices to search.
+   * @param end Upper bound of the time range, in milliseconds.
+   * @param interval Width of the buckets of the timeline, in milliseconds.
+   */
+  private void loadOverview(final String indices, final long end,
+                            final long interval) {
+    final Json facets = object()
+      .add("latstats", object("statistical", object("field", "end_to_end")))
+      .add("lathisto", object("histogram",
+                              object("field", "end_to_end")
+                              .add("interval", LATENCY_BUCKET)))
+      // Only traces stored with --sample have a weight.
+      .add("weights", object("statistical", object("field", "sample_weight")))
+      .add("wlathisto", object("histogram",
+                               object("key_field", "end_to_end")
+                               .add("value_field", "sample_weight")
+                               .add("interval", LATENCY_BUCKET)))
+      .add("topres", object("terms_stats",
+                            object("key_field", "resource")
+                            .add("value_field", "end_to_end")
+                            .add("order", "total")
+                            .add("size", 15)))
+      // Only traces stored with --routes have a route, and only those can
+      // have a weight, since --sample implies --routes.
+      .add("toproutes", object("terms_stats",
+                               object("key_field", "route")
+                               .add("value_field", "end_to_end")
+                               .add("order", "total")
+                               .add("size", 15)))
+      .add("wtoproutes", weightsBy("route"))
+      // Only traces stored with rollups have these fields.
+      .add("topbe", object("terms_stats",
+                           object("key_field", "top_backend")
+                           .add("value_field", "top_backend_time")
+                           .add("order", "total")
+                           .add("size", 15)))
+      .add("wtopbe", weightsBy("top_backend"))
+      .add("timeline", object("histogram",
+                              object("field", "request_ts")
+                              .add("interval", interval)))
+      .add("wtimeline", object("histogram",
+                               object("key_field", "request_ts")
+                               .add("value_field", "sample_weight")
+                               .add("interval", interval)));
+    final String json = object()
+      .add("size", 0)
+      .add("query", getFilteredQuery(end))
+      .add("facets", facets)
+      .toString();
+    searches.search(indices + "/summary/_search", json,
+          new AjaxCallback() {
+      public void onSuccess(final JavaScriptObject response) {
+        final ESResponse<Summary> resp = response.cast();
+        status.setText("Aggregated " + resp.hits().total() + " traces in "
+                       + resp.took() + "ms");
+        charts.clear();
+        traces.setRowSource(null);
+        shown = null;
+        updateLoadMore();
+        final HashMap<Double, ESResponse.HistoFacet> wlathisto =
+          byKey(resp.<ESResponse.HistoFacet>facets("wlathisto"));
+        renderPercentiles(resp.statistical("latstats"), resp.statistical("weights"),
+                          resp.<ESResponse.HistoFacet>facets("lathisto"), wlathisto);
+        renderLatencyHistogram(resp.<ESResponse.HistoFacet>facets("lathisto"),
+                               wlathisto);
+        renderTimeline(resp.<ESResponse.HistoFacet>facets("timeline"),
+                       byKey(resp.<ESResponse.HistoFacet>facets("wtimeline")),
+                       interval);
+        final ESResponse.Facets<ESResponse.TermStatsFacet> toproutes =
+          resp.<ESResponse.TermStatsFacet>facets("toproutes");
+        if (toproutes != null && toproutes.terms() != null
+            && toproutes.terms().length() > 0) {
+          renderTermStats(toproutes,
+                          byTerm(resp.<ESResponse.TermStatsFacet>facets("wtoproutes")),
+                          "Route");
+        } else {
+          renderTermStats(resp.<ESResponse.TermStatsFacet>facets("topres"), null,
+                          "Resource");
+        }
+        renderTermStats(resp.<ESResponse.TermStatsFacet>facets("topbe"),
+                        byTerm(resp.<ESResponse.TermStatsFacet>facets("wtopbe")),
+                        "Slowest backend");
+      }
+    });
+  }
+
+  /**
+   * Returns the query for the time buckets of the ingest gateway.
+   * @param granularity The duration of the buckets, in milliseconds.
+   * @param start Lower bound of the time range, in milliseconds.
+   * @param end Upper bound of the time range, in milliseconds.
+   * @param dimensions The dimensions of the buckets we want.
+   */
+  private static Json getRollupQuery(final long granularity, final long start,
+                                     final long end, final String... dimensions) {
+    final Json should = Json.array();
+    for (final String dimension : dimensions) {
+      should.add(object("term", object("dimension", dimension)));
+    }
+    final Json must = Json.array()
+      .add(object("term", object("granularity", granularity / 1000)))
+      .add(object("bool", object("should", should)));
+    final Json bucket_ts = object()
+      .add("from", start)
+      .add("to", end);
+    return object("filtered",
+                  object("query", object("bool", object("must", must)))
+                  .add("filter",
+                       object("numeric_range", object("bucket_ts", bucket_ts))));
+  }
+
+  /**
+   * Returns the duration of the time buckets to read for a timeline.
+   * @param interval The width of the buckets of the timeline.
+   * @return The coarsest granularity that fits in the interval, in
+   * milliseconds, or 0 if the interval is too small for any.
+   */
+  private static long rollupGranularity(final long interval) {
+    for (final long granularity : ROLLUP_GRANULARITIES) {
+      if (granularity <= interval) {
+        return granularity;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * A search on the time buckets of the ingest gateway.
+   * We fetch at most {@link #MAX_ROLLUPS} buckets, so if there are more
+   * than that in the time range, the sums we'd make out of them would be
+   * short.  Instead, we search the next coarser buckets, of which there
+   * are fewer.  Only when even the coarsest don't fit do we settle for some
+   * of them, and then the hits are fewer than their total.
+   */
+  private abstract class RollupSearch extends AjaxCallback {
+
+    private final String indices;
+    /** Granularity of the buckets we're searching, in milliseconds.  */
+    private long granularity;
+
+    RollupSearch(final String indices, final long granularity) {
+      this.indices = indices;
+      this.granularity = granularity;
+    }
+
+    /** Returns the body of the search for buckets of this granularity.  */
+    abstract String request(long granularity);
+
+    /**
+     * Called with the buckets.
+     * @param granularity The granularity of the buckets we got, which may
+     * be coarser than the one we asked for.
+     */
+    abstract void onRollups(ESResponse<Rollup> resp, long granularity);
+
+    final void search() {
+      searches.search(indices + "/rollup/_search", request(granularity), this);
+    }
+
+    public final void onSuccess(final JavaScriptObject response) {
+      final ESResponse<Rollup> resp = response.cast();
+      final long coarser = coarserGranularity(granularity);
+      if (resp.hits() != null && resp.hits().total() > resp.hits().hits().length()
+          && coarser != 0) {
+        granularity = coarser;
+        search();
+        return;
+      }
+      onRollups(resp, granularity);
+    }
+
+  }
+
+  /**
+   * Returns the next coarser duration of the time buckets, in milliseconds,
+   * or 0 if there's none.
+   */
+  private static long coarserGranularity(final long granularity) {
+    for (int i = ROLLUP_GRANULARITIES.length - 1; i >= 0; i--) {
+      if (ROLLUP_GRANULARITIES[i] > granularity) {
+        return ROLLUP_GRANULARITIES[i];
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Loads the resources on which we spent the most time in the current
+   * time range, from the time buckets of the ingest gateway.
+   * @param indices The indices to search.
+   * @param end Upper bound of the time range, in milliseconds.
+   */
+  private void loadHotResources(final String indices, final long end) {
+    final long start = toMillis(start_datebox);
+    if (end - start < ROLLUP_GRANULARITIES[ROLLUP_GRANULARITIES.length - 1]) {
+      return;  // Less than a bucket.
+    }
+    // At least the finest buckets, even if the timeline would be finer.
+    final long granularity = rollupGranularity(
+      Math.max(timelineInterval(end - start),
+               ROLLUP_GRANULARITIES[ROLLUP_GRANULARITIES.length - 1]));
+    new RollupSearch(indices, granularity) {
+      String request(final long granularity) {
+        return object()
+          .add("size", MAX_ROLLUPS)
+          .add("query", getRollupQuery(granularity, start, end, "topk"))
+          .toString();
+      }
+      public void onError(final Request req, final Throwable e) {
+        // Not every setup has time buckets, this is only a bonus.
+      }
+      void onRollups(final ESResponse<Rollup> resp, final long granularity) {
+        if (resp.hits() != null) {
+          renderHotResources(resp.hits());
+        }
+      }
+    }.search();
+  }
+
+  /**
+   * Loads how much time all the requests spent in each backend, from the
+   * time buckets of the ingest gateway.
+   * Unlike the charts of the slowest backends, which count how often a
+   * backend was the slowest part of a request, this accounts for every
+   * call made to every backend.  The buckets can't be filtered by a query.
+   */
+  private void loadBackends() {
+    final String indices = indicesToSearch();
+    if (indices == null) {
+      return;
+    }
+    final long start = toMillis(start_datebox);
+    final long end = (end_datebox.getValue() != null ? toMillis(end_datebox)
+                      : System.currentTimeMillis());
+    final long finest = ROLLUP_GRANULARITIES[ROLLUP_GRANULARITIES.length - 1];
+    if (end - start < finest) {
+      status.setText("The time range must be at least " + (finest / 60000)
+                     + " minute long to look at the backends.");
+      return;
+    }
+    status.setText("Loading...");
+    final long interval = Math.max(timelineInterval(end - start), finest);
+    new RollupSearch(indices, rollupGranularity(interval)) {
+      String request(final long granularity) {
+        return object()
+          .add("size", MAX_ROLLUPS)
+          .add("query", getRollupQuery(granularity, start, end, "backend"))
+          .toString();
+      }
+      void onRollups(final ESResponse<Rollup> resp, final long granularity) {
+        charts.clear();
+        traces.setRowSource(null);
+        shown = null;
+        updateLoadMore();
+        // ES returns an error instead of hits if no index has time buckets.
+        if (resp.hits() == null || resp.hits().total() == 0) {
+          status.setText("No time buckets in this time range, is the ingest"
+                         + " gateway running with --time-buckets?");
+          return;
+        }
+        status.setText("Aggregated " + resp.hits().total() + " time buckets in "
+                       + resp.took() + "ms");
+        renderBackends(resp.hits(), Math.max(interval, granularity));
+      }
+    }.search();
+  }
+
+  /**
+   * Returns the query for the traces in the current time range.
+   * @param end Upper bound of the time range, in milliseconds.
+   */
+  private Json getFilteredQuery(final long end) {
+    final Json request_ts = object()
+      .add("from", toMillis(start_datebox))
+      .add("to", end);
+    return object("filtered", object("query", getESQuery())
+                  .add("filter",
+                       object("numeric_range",
+                              object("request_ts", request_ts)
+                             )
+                      )
+                 );
+  }
+
+  /**
+   * Returns the width of the buckets of the timeline, in milliseconds.
+   * We aim for roughly 100 buckets and round to a human-friendly interval.
+   */
+  private static long timelineInterval(final long range) {
+    final long[] intervals = {
+      1000, 5000, 10000, 30000,                  // seconds
+      60000, 300000, 600000, 1800000,            // minutes
+      3600000, 3 * 3600000, 6 * 3600000, 12 * 3600000,  // hours
+      86400000,                                  // 1 day
+    };
+    final long target = range / 100;
+    for (final long interval : intervals) {
+      if (interval >= target) {
+        return interval;
+      }
+    }
+    return intervals[intervals.length - 1];
+  }
+
   private Json getESQuery() {
     final String q = esquery.getValue();
     if (q.isEmpty()) {
@@ -489,7 +1218,14 @@ final class Main implements EntryPoint {
                   .add("default_operator", "AND"));
   }
 
+  /**
+   * Renders a pie chart of the number of requests for each term.
+   * @param facets A {@code terms} facet.
+   * @param weighted The weights of the terms, see {@link #byTerm}.  Can be
+   * {@code null}.
+   */
   private void renderChart(final ESResponse.Facets<ESResponse.TermFacet> facets,
+                           final HashMap<String, ESResponse.TermStatsFacet> weighted,
                            final String title, final String tag) {
     if (facets == null) {
       return;
@@ -507,7 +1243,7 @@ final class Main implements EntryPoint {
         continue;
       }
       data.setValue(i, 0, backend);
-      data.setValue(i, 1, facet.count());
+      data.setValue(i, 1, Math.round(requests(backend, facet.count(), weighted)));
     }
     final PieChart.PieOptions options = PieChart.createPieOptions();
     options.setWidth(400);
@@ -557,85 +1293,759 @@ final class Main implements EntryPoint {
 
   }
 
-  private void renderLatencyHistogram(final ESResponse.Facets<ESResponse.HistoFacet> facets) {
-    // Disabled because it triggers a JavaScript error in corechart.  See:
+  /** Width of the buckets of the latency histogram, in milliseconds.  */
+  private static final int LATENCY_BUCKET = 30;
+
+  /**
+   * Duration of the time buckets written by the ingest gateway, in
+   * milliseconds, coarsest first.
+   */
+  private static final long[] ROLLUP_GRANULARITIES = { 3600000, 600000, 60000 };
+
+  /** Max number of time buckets we fetch for their latency sketches.  */
+  private static final int MAX_ROLLUPS = 10000;
+
+  /** How many backends and syscalls we show the percentiles of.  */
+  private static final int MAX_SKETCHES = 10;
+
+  /** How many of the resources we spent the most time on we show.  */
+  private static final int MAX_HOT_RESOURCES = 15;
+
+  /** How many routes we show when grouping the traces by route.  */
+  private static final int MAX_ROUTES = 50;
+
+  /** How many backends we show in the backends view.  */
+  private static final int MAX_BACKENDS = 30;
+
+  /**
+   * Indexes the entries of a histogram by key.
+   * @return The entries, or {@code null} if there are none.
+   */
+  private static HashMap<Double, ESResponse.HistoFacet>
+    byKey(final ESResponse.Facets<ESResponse.HistoFacet> facets) {
+    if (facets == null || facets.entries() == null
+        || facets.entries().length() == 0) {
+      return null;
+    }
+    final JsArray<ESResponse.HistoFacet> entries = facets.entries();
+    final int n = entries.length();
+    final HashMap<Double, ESResponse.HistoFacet> by_key =
+      new HashMap<Double, ESResponse.HistoFacet>(n);
+    for (int i = 0; i < n; i++) {
+      by_key.put(entries.get(i).key(), entries.get(i));
+    }
+    return by_key;
+  }
+
+  /**
+   * Returns the number of requests a bucket of a histogram stands for.
+   * The ingest gateway may only store a sample of the traces, in which
+   * case each one has a {@code sample_weight}: the number of requests it
+   * stands for.
+   * @param bucket A bucket of a histogram of the summaries.
+   * @param weighted The same histogram with {@code sample_weight} as its
+   * {@code value_field}, see {@link #byKey}.  Can be {@code null}.
+   */
+  private static double requests(final ESResponse.HistoFacet bucket,
+                                 final HashMap<Double, ESResponse.HistoFacet> weighted) {
+    final ESResponse.HistoFacet w = weighted == null ? null
+      : weighted.get(bucket.key());
+    // Traces without a weight stand for themselves.
+    return w == null ? bucket.count() : bucket.count() - w.count() + w.total();
+  }
+
+  /**
+   * Returns a facet that sums the {@code sample_weight} of the summaries
+   * for each term of a field, to weight another facet on this field.
+   */
+  private static Json weightsBy(final String field) {
+    return object("terms_stats", object("key_field", field)
+                  .add("value_field", "sample_weight")
+                  .add("size", 0));  // All the terms.
+  }
+
+  /**
+   * Indexes the entries of a facet from {@link #weightsBy} by term.
+   * @return The entries, or {@code null} if no trace has a weight.
+   */
+  private static HashMap<String, ESResponse.TermStatsFacet>
+    byTerm(final ESResponse.Facets<ESResponse.TermStatsFacet> facets) {
+    if (facets == null || facets.terms() == null) {
+      return null;
+    }
+    final JsArray<ESResponse.TermStatsFacet> terms = facets.terms();
+    final int n = terms.length();
+    final HashMap<String, ESResponse.TermStatsFacet> by_term =
+      new HashMap<String, ESResponse.TermStatsFacet>(n);
+    for (int i = 0; i < n; i++) {
+      if (terms.get(i).count() > 0) {
+        by_term.put(terms.get(i).term(), terms.get(i));
+      }
+    }
+    return by_term.isEmpty() ? null : by_term;
+  }
+
+  /**
+   * Returns the number of requests a term stands for, like
+   * {@link #requests(ESResponse.HistoFacet, HashMap)} does for a bucket.
+   * @param term The term.
+   * @param count The number of summaries with this term.
+   * @param weighted The weights of the terms, see {@link #byTerm}.  Can be
+   * {@code null}.
+   */
+  private static double requests(final String term, final int count,
+                                 final HashMap<String, ESResponse.TermStatsFacet> weighted) {
+    final ESResponse.TermStatsFacet w = weighted == null ? null
+      : weighted.get(term);
+    return w == null ? count : count - w.count() + w.total();
+  }
+
+  private void renderLatencyHistogram(final ESResponse.Facets<ESResponse.HistoFacet> facets,
+                                      final HashMap<Double, ESResponse.HistoFacet> weighted) {
+    if (facets == null || facets.entries() == null) {
+      return;
+    }
+    final TreeMap<Long, Double> histogram = new TreeMap<Long, Double>();
+    final JsArray<ESResponse.HistoFacet> buckets = facets.entries();
+    for (int i = 0; i < buckets.length(); i++) {
+      final ESResponse.HistoFacet facet = buckets.get(i);
+      histogram.put((long) facet.key(), requests(facet, weighted));
+    }
+    renderLatencyHistogram(histogram);
+  }
+
+  /**
+   * Renders the number of requests by latency.
+   * @param histogram Maps the lower bound of each bucket of latency, in
+   * milliseconds, to the number of requests in it.
+   */
+  private void renderLatencyHistogram(final TreeMap<Long, Double> histogram) {
+    // The first column has to be a string, a numeric domain axis triggers a
+    // JavaScript error in corechart.  See:
     // http://groups.google.com/group/gwt-google-apis/browse_thread/thread/332a644b2e7e66fc
+    final DataTable data = DataTable.create();
+    data.addColumn(DataTable.ColumnType.STRING, "Latency");
+    data.addColumn(DataTable.ColumnType.NUMBER, "Number of hits");
+    data.addRows(histogram.size());
+    int i = 0;
+    for (final Map.Entry<Long, Double> bucket : histogram.entrySet()) {
+      data.setValue(i, 0, bucket.getKey() + "ms");
+      data.setValue(i, 1, Math.round(bucket.getValue()));
+      i++;
+    }
+    final Options options = ColumnChart.createOptions();
+    options.setWidth(400);
+    options.setHeight(240);
+    options.setTitle("Response Latency");
+    final AxisOptions axis = AxisOptions.create();
+    axis.setTitle("Latency");
+    options.setHAxisOptions(axis);
+    charts.add(new ColumnChart(data, options));
+  }
 
-    //if (facets == null) {
-    //  return;
-    //}
-    //final DataTable data = DataTable.create();
-    //data.addColumn(DataTable.ColumnType.NUMBER, "Latency");
-    //data.addColumn(DataTable.ColumnType.NUMBER, "Number of hits");
-    //final JsArray<ESResponse.HistoFacet> buckets = facets.terms();
-    //final int nbuckets = buckets.length();
-    //data.addRows(nbuckets);
-    //for (int i = 0; i < nbuckets; i++) {
-    //  final ESResponse.HistoFacet facet = buckets.get(i);
-    //  data.setValue(i, 0, facet.key());
-    //  data.setValue(i, 1, facet.count());
-    //}
-    //final Options options = ColumnChart.createOptions();
-    //options.setWidth(400);
-    //options.setHeight(240);
-    //options.setTitle("Response Latency");
-    //final AxisOptions axis = AxisOptions.create();
-    //axis.setTitle("Latency");
-    //options.setHAxisOptions(axis);
-    //charts.add(new ColumnChart(data, options));
+  /**
+   * Renders the percentiles of the end-to-end latency.
+   * ES can't compute percentiles, so we estimate them from the latency
+   * histogram: the value we report is the upper bound of the bucket in which
+   * the percentile falls.
+   * @param weights Statistics on the {@code sample_weight} of the traces.
+   * @param weighted The latency histogram weighted by {@code sample_weight},
+   * see {@link #requests}.
+   */
+  private void renderPercentiles(final ESResponse.StatisticalFacet stats,
+                                 final ESResponse.StatisticalFacet weights,
+                                 final ESResponse.Facets<ESResponse.HistoFacet> facets,
+                                 final HashMap<Double, ESResponse.HistoFacet> weighted) {
+    if (stats == null || facets == null || facets.entries() == null) {
+      return;
+    }
+    final boolean sampled = weights != null && weights.count() > 0;
+    final double total = stats.count()
+      + (sampled ? weights.total() - weights.count() : 0);
+    final double[] percentiles = { 0.5, 0.9, 0.99, 0.999 };
+    final String[] labels = { "p50", "p90", "p99", "p99.9" };
+    final int first = sampled ? 4 : 3;
+    final Grid grid = new Grid(percentiles.length + first, 2);
+    grid.setText(0, 0, "Traces");
+    grid.setText(0, 1, Long.toString((long) stats.count()));
+    grid.setText(1, 0, "Mean latency");
+    grid.setText(2, 0, "Max latency");
+    grid.setText(2, 1, Summary.fmt(stats.max()));
+    if (sampled) {
+      grid.setText(3, 0, "Requests (estimated)");
+      grid.setText(3, 1, Long.toString(Math.round(total)));
+    }
+    final JsArray<ESResponse.HistoFacet> buckets = facets.entries();
+    final int nbuckets = buckets.length();
+    double cumul = 0;
+    double time = 0;  // Estimated from the middle of the buckets.
+    int p = 0;
+    for (int i = 0; i < nbuckets; i++) {
+      final ESResponse.HistoFacet bucket = buckets.get(i);
+      final double n = requests(bucket, weighted);
+      cumul += n;
+      time += n * (bucket.key() + LATENCY_BUCKET / 2.0);
+      while (p < percentiles.length && cumul >= percentiles[p] * total) {
+        grid.setText(first + p, 0, labels[p]);
+        grid.setText(first + p, 1, "< " + Summary.fmt(bucket.key() + LATENCY_BUCKET));
+        p++;
+      }
+    }
+    // The slow traces are all kept, so their plain mean is too high.
+    grid.setText(1, 1, sampled ? "~" + Summary.fmt(time / total)
+                 : Summary.fmt(stats.mean()));
+    charts.add(grid);
   }
 
-  private void renderTraces(final ESResponse.Hits<Summary> summaries) {
-    traces.clear();
-    final HashSet<String> expanded = new HashSet(getHistoryTokens("trace"));
-    for (final ESResponse.Hit<Summary> hit : summaries.iterator()) {
-      final String index = hit.index();
-      final String id = hit.id();
-      final Summary summary = hit.source();
-      final TreeItem trace = new LazyTreeItem(summary.widget()) {
-        protected void onFirstOpen() {
-          expandTrace(this, index, id, summary);
-          onOpen();
-        }
-        protected void onOpen() {
-          appendHistoryToken("trace", id);
-        }
-        protected void onClose() {
-          removeHistoryToken("trace", id);
+  /**
+   * Renders the percentiles of the end-to-end latency from the sketches of
+   * the time buckets, which count every request, sampled or not.
+   * @param latency The merged sketches of the {@code total} buckets.
+   * @param count The number of requests.
+   * @param time Their total latency.
+   * @param max Their max latency.
+   */
+  private void renderPercentiles(final LatencySketch latency, final double count,
+                                 final double time, final double max) {
+    if (count == 0) {
+      return;
+    }
+    final double[] percentiles = { 0.5, 0.9, 0.99, 0.999 };
+    final String[] labels = { "p50", "p90", "p99", "p99.9" };
+    final Grid grid = new Grid(percentiles.length + 3, 2);
+    grid.setText(0, 0, "Requests");
+    grid.setText(0, 1, Long.toString(Math.round(count)));
+    grid.setText(1, 0, "Mean latency");
+    grid.setText(1, 1, Summary.fmt(time / count));
+    grid.setText(2, 0, "Max latency");
+    grid.setText(2, 1, Summary.fmt(max));
+    for (int p = 0; p < percentiles.length; p++) {
+      final double value = latency.quantile(percentiles[p]);
+      grid.setText(3 + p, 0, labels[p]);
+      grid.setText(3 + p, 1, value == value ? Summary.fmt(value) : "");
+    }
+    charts.add(grid);
+  }
+
+  /**
+   * Renders the number of traces over time.
+   * @param weighted The same histogram weighted by {@code sample_weight},
+   * see {@link #requests}.
+   */
+  private void renderTimeline(final ESResponse.Facets<ESResponse.HistoFacet> facets,
+                              final HashMap<Double, ESResponse.HistoFacet> weighted,
+                              final long interval) {
+    if (facets == null || facets.entries() == null) {
+      return;
+    }
+    final DataTable data = DataTable.create();
+    data.addColumn(DataTable.ColumnType.STRING, "Time");
+    data.addColumn(DataTable.ColumnType.NUMBER, "Number of traces");
+    final JsArray<ESResponse.HistoFacet> buckets = facets.entries();
+    final int nbuckets = buckets.length();
+    data.addRows(nbuckets);
+    for (int i = 0; i < nbuckets; i++) {
+      final ESResponse.HistoFacet facet = buckets.get(i);
+      data.setValue(i, 0, FULLDATE.format(new Date((long) facet.key())));
+      data.setValue(i, 1, Math.round(requests(facet, weighted)));
+    }
+    final Options options = ColumnChart.createOptions();
+    options.setWidth(600);
+    options.setHeight(240);
+    options.setTitle("Traces per " + (interval / 1000) + "s");
+    charts.add(new ColumnChart(data, options));
+  }
+
+  /**
+   * Renders the number of requests and their mean latency over time, from
+   * the time buckets of the ingest gateway.
+   * @param requests Histogram of the {@code count} of the buckets.
+   * @param latency Histogram of the {@code time_total} of the buckets.
+   * @param interval Width of the histograms, in milliseconds.
+   */
+  private void renderRollupTimeline(final ESResponse.Facets<ESResponse.HistoFacet> requests,
+                                    final ESResponse.Facets<ESResponse.HistoFacet> latency,
+                                    final long interval) {
+    if (requests == null || requests.entries() == null
+        || latency == null || latency.entries() == null) {
+      return;
+    }
+    final DataTable counts = DataTable.create();
+    counts.addColumn(DataTable.ColumnType.STRING, "Time");
+    counts.addColumn(DataTable.ColumnType.NUMBER, "Requests");
+    final DataTable means = DataTable.create();
+    means.addColumn(DataTable.ColumnType.STRING, "Time");
+    means.addColumn(DataTable.ColumnType.NUMBER, "Mean latency (ms)");
+    final JsArray<ESResponse.HistoFacet> buckets = requests.entries();
+    final JsArray<ESResponse.HistoFacet> times = latency.entries();
+    // Both histograms are over the same buckets, so they have the same keys.
+    final int nbuckets = Math.min(buckets.length(), times.length());
+    counts.addRows(nbuckets);
+    means.addRows(nbuckets);
+    for (int i = 0; i < nbuckets; i++) {
+      final ESResponse.HistoFacet bucket = buckets.get(i);
+      final String time = FULLDATE.format(new Date((long) bucket.key()));
+      counts.setValue(i, 0, time);
+      counts.setValue(i, 1, bucket.total());
+      means.setValue(i, 0, time);
+      if (bucket.total() > 0) {
+        means.setValue(i, 1, times.get(i).total() / bucket.total());
+      }
+    }
+    Options options = ColumnChart.createOptions();
+    options.setWidth(600);
+    options.setHeight(240);
+    options.setTitle("Requests per " + (interval / 1000) + "s");
+    charts.add(new ColumnChart(counts, options));
+    options = LineChart.createOptions();
+    options.setWidth(600);
+    options.setHeight(240);
+    options.setTitle("Mean latency per " + (interval / 1000) + "s");
+    charts.add(new LineChart(means, options));
+  }
+
+  /**
+   * Renders the percentiles of the latency of all the requests, and of the
+   * top backends and syscalls, from the sketches of the time buckets.
+   * Unlike {@link #renderPercentiles}, these are accurate within 1%.
+   */
+  private void renderSketches(final ESResponse.Hits<Rollup> rollups) {
+    // Merge all the buckets of each dimension and key.
+    final HashMap<String, LatencySketch> sketches = new HashMap<String, LatencySketch>();
+    final HashMap<String, Double> counts = new HashMap<String, Double>();
+    for (final ESResponse.Hit<Rollup> hit : rollups.iterator()) {
+      final Rollup rollup = hit.source();
+      final String name = rollup.dimension() + ':' + rollup.key();
+      LatencySketch sketch = sketches.get(name);
+      if (sketch == null) {
+        sketch = new LatencySketch();
+        sketches.put(name, sketch);
+        counts.put(name, 0.0);
+      }
+      rollup.mergeInto(sketch);
+      counts.put(name, counts.get(name) + rollup.count());
+    }
+    final ArrayList<String> names = new ArrayList<String>();
+    if (sketches.containsKey("total:_all")) {
+      names.add("total:_all");
+    }
+    names.addAll(topKeys(counts, "backend:"));
+    names.addAll(topKeys(counts, "syscall:"));
+    if (names.isEmpty()) {
+      return;
+    }
+    final double[] percentiles = { 0.5, 0.99, 0.999 };
+    final Grid grid = new Grid(names.size() + 1, 2 + percentiles.length);
+    grid.setText(0, 0, rollups.total() > rollups.hits().length()
+                 ? "Latency (partial)" : "Latency");
+    grid.setText(0, 1, "Count");
+    grid.setText(0, 2, "p50");
+    grid.setText(0, 3, "p99");
+    grid.setText(0, 4, "p99.9");
+    for (int i = 0; i < names.size(); i++) {
+      final String name = names.get(i);
+      final LatencySketch sketch = sketches.get(name);
+      grid.setText(i + 1, 0, name.equals("total:_all") ? "All requests" : name);
+      grid.setText(i + 1, 1, Long.toString(counts.get(name).longValue()));
+      for (int p = 0; p < percentiles.length; p++) {
+        final double value = sketch.quantile(percentiles[p]);
+        grid.setText(i + 1, 2 + p, value == value ? Summary.fmt(value) : "");
+      }
+    }
+    charts.add(grid);
+  }
+
+  /**
+   * Renders the resources on which we spent the most time, from the top-K
+   * of the time buckets.
+   * Each bucket only has its own top resources, so the times of a resource
+   * that's only sometimes in the top are underestimated.
+   */
+  private void renderHotResources(final ESResponse.Hits<Rollup> rollups) {
+    // Maps "method resource" to its time and count.
+    final HashMap<String, double[]> hot = new HashMap<String, double[]>();
+    double total_time = 0;
+    for (final ESResponse.Hit<Rollup> hit : rollups.iterator()) {
+      final Rollup rollup = hit.source();
+      final JsArray<Rollup.Hot> top = rollup.top();
+      if (top == null) {
+        continue;
+      }
+      total_time += rollup.timeTotal();
+      for (int i = 0; i < top.length(); i++) {
+        final Rollup.Hot entry = top.get(i);
+        final String key = entry.method() + ' ' + entry.resource();
+        double[] acc = hot.get(key);
+        if (acc == null) {
+          acc = new double[2];
+          hot.put(key, acc);
         }
-      };
-      traces.addItem(trace);
-      if (expanded.remove(id)) {  // If this trace ID should be expanded...
-        trace.setState(true);     // then expand it now.
+        acc[0] += entry.time();
+        acc[1] += entry.count();
       }
     }
-    if (nresults < MAX_RESULTS && summaries.total() > nresults) {
-      final Button more = new Button("Load more traces", new ClickHandler() {
-        public void onClick(final ClickEvent event) {
-          nresults += 20;
-          traces.getItem(traces.getItemCount() - 1).setText("Loading...");
-          replaceHistoryTokens("results", Short.toString(nresults));
-          loadTraces();
+    if (hot.isEmpty()) {
+      return;
+    }
+    final ArrayList<String> keys = new ArrayList<String>(hot.keySet());
+    Collections.sort(keys, new Comparator<String>() {
+      public int compare(final String a, final String b) {
+        return Double.compare(hot.get(b)[0], hot.get(a)[0]);
+      }
+    });
+    final int n = Math.min(keys.size(), MAX_HOT_RESOURCES);
+    final Grid grid = new Grid(n + 1, 4);
+    grid.setText(0, 0, "Hot resource");
+    grid.setText(0, 1, "Requests");
+    grid.setText(0, 2, "Total time");
+    grid.setText(0, 3, "Share");
+    for (int i = 0; i < n; i++) {
+      final double[] acc = hot.get(keys.get(i));
+      grid.setText(i + 1, 0, keys.get(i));
+      grid.setText(i + 1, 1, Long.toString((long) acc[1]));
+      grid.setText(i + 1, 2, Summary.fmt(acc[0]));
+      grid.setText(i + 1, 3, total_time > 0
+                   ? (Math.round(acc[0] * 1000 / total_time) / 10.0) + "%" : "");
+    }
+    charts.add(grid);
+  }
+
+  /**
+   * Renders the backends on which we spent the most time, from the time
+   * buckets.  Unlike the slowest backends of the summaries, this accounts
+   * for every call made to every backend.
+   */
+  private void renderTopBackends(final ESResponse.Hits<Rollup> rollups) {
+    // Maps a peer to its calls and time.
+    final HashMap<String, double[]> totals = new HashMap<String, double[]>();
+    for (final ESResponse.Hit<Rollup> hit : rollups.iterator()) {
+      final Rollup rollup = hit.source();
+      if (!"backend".equals(rollup.dimension())) {
+        continue;
+      }
+      double[] acc = totals.get(rollup.key());
+      if (acc == null) {
+        acc = new double[2];
+        totals.put(rollup.key(), acc);
+      }
+      acc[0] += rollup.count();
+      acc[1] += rollup.timeTotal();
+    }
+    if (totals.isEmpty()) {
+      return;
+    }
+    final ArrayList<String> peers = new ArrayList<String>(totals.keySet());
+    Collections.sort(peers, new Comparator<String>() {
+      public int compare(final String a, final String b) {
+        return Double.compare(totals.get(b)[1], totals.get(a)[1]);
+      }
+    });
+    final int n = Math.min(peers.size(), MAX_HOT_RESOURCES);
+    final Grid grid = new Grid(n + 1, 4);
+    grid.setText(0, 0, "Backend");
+    grid.setText(0, 1, "Calls");
+    grid.setText(0, 2, "Total time");
+    grid.setText(0, 3, "Mean");
+    for (int i = 0; i < n; i++) {
+      final double[] acc = totals.get(peers.get(i));
+      grid.setText(i + 1, 0, peers.get(i));
+      grid.setText(i + 1, 1, Long.toString((long) acc[0]));
+      grid.setText(i + 1, 2, Summary.fmt(acc[1]));
+      grid.setText(i + 1, 3, acc[0] > 0 ? Summary.fmt(acc[1] / acc[0]) : "");
+    }
+    charts.add(grid);
+  }
+
+  /**
+   * Renders the time spent in each backend, and the mean latency of the
+   * busiest ones over time, so that a backend getting slower stands out.
+   * @param interval Width of the buckets of the timeline, in milliseconds.
+   */
+  private void renderBackends(final ESResponse.Hits<Rollup> rollups,
+                              final long interval) {
+    // Maps a peer to its requests, calls, time and time on the serving path.
+    final HashMap<String, double[]> totals = new HashMap<String, double[]>();
+    final HashMap<String, LatencySketch> sketches = new HashMap<String, LatencySketch>();
+    // Maps a peer to its time and calls in each interval of the timeline.
+    final HashMap<String, TreeMap<Long, double[]>> timelines =
+      new HashMap<String, TreeMap<Long, double[]>>();
+    for (final ESResponse.Hit<Rollup> hit : rollups.iterator()) {
+      final Rollup rollup = hit.source();
+      final String peer = rollup.key();
+      double[] acc = totals.get(peer);
+      if (acc == null) {
+        acc = new double[4];
+        totals.put(peer, acc);
+        sketches.put(peer, new LatencySketch());
+        timelines.put(peer, new TreeMap<Long, double[]>());
+      }
+      acc[0] += rollup.requests();
+      acc[1] += rollup.count();
+      acc[2] += rollup.timeTotal();
+      acc[3] += rollup.fastTime();
+      rollup.mergeInto(sketches.get(peer));
+      final long ts = (long) rollup.bucketTs();
+      final long key = ts - ts % interval;
+      double[] point = timelines.get(peer).get(key);
+      if (point == null) {
+        point = new double[2];
+        timelines.get(peer).put(key, point);
+      }
+      point[0] += rollup.timeTotal();
+      point[1] += rollup.count();
+    }
+    final ArrayList<String> peers = new ArrayList<String>(totals.keySet());
+    Collections.sort(peers, new Comparator<String>() {
+      public int compare(final String a, final String b) {
+        return Double.compare(totals.get(b)[2], totals.get(a)[2]);
+      }
+    });
+
+    final double[] percentiles = { 0.5, 0.99, 0.999 };
+    final int n = Math.min(peers.size(), MAX_BACKENDS);
+    final Grid grid = new Grid(n + 1, 9);
+    grid.setText(0, 0, rollups.total() > rollups.hits().length()
+                 ? "Backend (partial)" : "Backend");
+    grid.setText(0, 1, "Requests");
+    grid.setText(0, 2, "Calls");
+    grid.setText(0, 3, "Total time");
+    grid.setText(0, 4, "Mean");
+    grid.setText(0, 5, "p50");
+    grid.setText(0, 6, "p99");
+    grid.setText(0, 7, "p99.9");
+    grid.setText(0, 8, "Serving path");
+    for (int i = 0; i < n; i++) {
+      final String peer = peers.get(i);
+      final double[] acc = totals.get(peer);
+      grid.setText(i + 1, 0, peer);
+      grid.setText(i + 1, 1, Long.toString((long) acc[0]));
+      grid.setText(i + 1, 2, Long.toString((long) acc[1]));
+      grid.setText(i + 1, 3, Summary.fmt(acc[2]));
+      grid.setText(i + 1, 4, acc[1] > 0 ? Summary.fmt(acc[2] / acc[1]) : "");
+      for (int p = 0; p < percentiles.length; p++) {
+        final double value = sketches.get(peer).quantile(percentiles[p]);
+        grid.setText(i + 1, 5 + p, value == value ? Summary.fmt(value) : "");
+      }
+      grid.setText(i + 1, 8, acc[2] > 0
+                   ? (Math.round(acc[3] * 1000 / acc[2]) / 10.0) + "%" : "");
+    }
+    charts.add(grid);
+
+    // The mean latency of the busiest backends over time.
+    final List<String> busiest = peers.size() > MAX_SKETCHES
+      ? peers.subList(0, MAX_SKETCHES) : peers;
+    final TreeMap<Long, Integer> rows = new TreeMap<Long, Integer>();
+    for (final String peer : busiest) {
+      for (final Long key : timelines.get(peer).keySet()) {
+        rows.put(key, 0);
+      }
+    }
+    final DataTable data = DataTable.create();
+    data.addColumn(DataTable.ColumnType.STRING, "Time");
+    for (final String peer : busiest) {
+      data.addColumn(DataTable.ColumnType.NUMBER, peer);
+    }
+    data.addRows(rows.size());
+    int row = 0;
+    for (final Map.Entry<Long, Integer> e : rows.entrySet()) {
+      e.setValue(row);
+      data.setValue(row++, 0, FULLDATE.format(new Date(e.getKey())));
+    }
+    for (int i = 0; i < busiest.size(); i++) {
+      for (final Map.Entry<Long, double[]> e : timelines.get(busiest.get(i)).entrySet()) {
+        final double[] point = e.getValue();
+        if (point[1] > 0) {
+          data.setValue(rows.get(e.getKey()), i + 1, point[0] / point[1]);
         }
-      });
-      traces.addItem(more);
+      }
     }
-    traces.align();
-    // IDs that haven't been expanded are no longer displayed,
+    final Options options = LineChart.createOptions();
+    options.setWidth(800);
+    options.setHeight(400);
+    options.setTitle("Mean latency of the busiest backends per "
+                     + (interval / 1000) + "s (ms)");
+    charts.add(new LineChart(data, options));
+  }
+
+  /** Returns the names with the given prefix that have the highest counts. */
+  private static List<String> topKeys(final HashMap<String, Double> counts,
+                                      final String prefix) {
+    final ArrayList<String> names = new ArrayList<String>();
+    for (final String name : counts.keySet()) {
+      if (name.startsWith(prefix)) {
+        names.add(name);
+      }
+    }
+    Collections.sort(names, new Comparator<String>() {
+      public int compare(final String a, final String b) {
+        return Double.compare(counts.get(b), counts.get(a));
+      }
+    });
+    return names.size() > MAX_SKETCHES ? names.subList(0, MAX_SKETCHES) : names;
+  }
+
+  /**
+   * Renders a table of the top terms and the time spent on them.
+   * When some traces were sampled out, the number of requests accounts for
+   * them but the times are only those of the traces that were stored.
+   * @param facets A {@code terms_stats} facet.
+   * @param weighted The weights of the terms, see {@link #byTerm}.  Can be
+   * {@code null}.
+   * @param what What the terms are.
+   */
+  private void renderTermStats(final ESResponse.Facets<ESResponse.TermStatsFacet> facets,
+                               final HashMap<String, ESResponse.TermStatsFacet> weighted,
+                               final String what) {
+    if (facets == null || facets.terms() == null || facets.terms().length() == 0) {
+      return;
+    }
+    final JsArray<ESResponse.TermStatsFacet> terms = facets.terms();
+    final int nterms = terms.length();
+    final Grid grid = new Grid(nterms + 1, 4);
+    grid.setText(0, 0, what);
+    setCountHeaders(grid, weighted != null);
+    for (int i = 0; i < nterms; i++) {
+      final ESResponse.TermStatsFacet term = terms.get(i);
+      grid.setText(i + 1, 0, term.term());
+      grid.setText(i + 1, 1, Long.toString(Math.round(
+        requests(term.term(), term.count(), weighted))));
+      grid.setText(i + 1, 2, Summary.fmt(term.total()));
+      grid.setText(i + 1, 3, Summary.fmt(term.mean()));
+    }
+    charts.add(grid);
+  }
+
+  /**
+   * Sets the headers of the count, total and mean columns of a table.
+   * @param sampled Whether some of the traces were sampled out, in which
+   * case the total and the mean are only over the stored traces.
+   */
+  private static void setCountHeaders(final Grid grid, final boolean sampled) {
+    grid.setText(0, 1, sampled ? "Requests" : "Traces");
+    grid.setText(0, 2, sampled ? "Total time (stored traces)" : "Total time");
+    grid.setText(0, 3, sampled ? "Mean (stored traces)" : "Mean");
+  }
+
+  /**
+   * Renders the number of traces and the latency of each route.
+   * Clicking on a route shows its traces.
+   * @param facets A {@code terms_stats} facet on the routes.
+   * @param weighted The weights of the routes, see {@link #byTerm}.  Can be
+   * {@code null}.
+   */
+  private void renderRoutes(final ESResponse.Facets<ESResponse.TermStatsFacet> facets,
+                            final HashMap<String, ESResponse.TermStatsFacet> weighted) {
+    if (facets == null || facets.terms() == null || facets.terms().length() == 0) {
+      status.setText(status.getText() + ", none of them has a route"
+                     + " (see --routes in the ingest gateway).");
+      return;
+    }
+    final JsArray<ESResponse.TermStatsFacet> terms = facets.terms();
+    final int nterms = terms.length();
+    final Grid grid = new Grid(nterms + 1, 5);
+    grid.setText(0, 0, "Route");
+    setCountHeaders(grid, weighted != null);
+    grid.setText(0, 4, "Max");
+    for (int i = 0; i < nterms; i++) {
+      final ESResponse.TermStatsFacet term = terms.get(i);
+      grid.setText(i + 1, 0, term.term());
+      grid.setText(i + 1, 1, Long.toString(Math.round(
+        requests(term.term(), term.count(), weighted))));
+      grid.setText(i + 1, 2, Summary.fmt(term.total()));
+      grid.setText(i + 1, 3, Summary.fmt(term.mean()));
+      grid.setText(i + 1, 4, Summary.fmt(term.max()));
+    }
+    grid.addClickHandler(new ClickHandler() {
+      public void onClick(final ClickEvent event) {
+        final HTMLTable.Cell cell = grid.getCellForEvent(event);
+        if (cell == null || cell.getRowIndex() == 0) {
+          return;
+        }
+        final String route = grid.getText(cell.getRowIndex(), 0);
+        esquery.setValue((esquery.getValue() + " route:\"" + route + '"').trim());
+        by_route.setValue(false);
+        refresh();
+      }
+    });
+    charts.add(grid);
+  }
+
+  private void renderTraces(final ESResponse.Hits<Summary> summaries) {
+    shown = summaries.hits();
+    total_hits = summaries.total();
+    final HashSet<String> expanded = new HashSet(getHistoryTokens("trace"));
+    // IDs that aren't part of the results will never be displayed,
     // so remove them from the URL.
-    for (final String id : expanded) {
-      removeHistoryToken("trace", id);
+    {
+      final HashSet<String> gone = new HashSet<String>(expanded);
+      for (final ESResponse.Hit<Summary> hit : summaries.iterator()) {
+        gone.remove(hit.id());
+      }
+      for (final String id : gone) {
+        expanded.remove(id);
+        removeHistoryToken("trace", id);
+      }
     }
+    // Only the rows in the browser window actually get rendered.
+    traces.setRowSource(new AlignedTree.RowSource() {
+      public int rowCount() {
+        return shown.length();
+      }
+
+      public TreeItem createRow(final int i) {
+        final ESResponse.Hit<Summary> hit = shown.get(i);
+        final String index = hit.index();
+        final String id = hit.id();
+        final Summary summary = hit.source();
+        final TreeItem trace = new LazyTreeItem(summary.widget()) {
+          protected void onFirstOpen() {
+            expandTrace(this, index, id, summary);
+            onOpen();
+          }
+          protected void onOpen() {
+            appendHistoryToken("trace", id);
+          }
+          protected void onClose() {
+            removeHistoryToken("trace", id);
+          }
+        };
+        if (expanded.remove(id)) {  // If this trace ID should be expanded...
+          // ... then expand it once it's been added to the tree.
+          Scheduler.get().scheduleFinally(new Scheduler.ScheduledCommand() {
+            public void execute() {
+              trace.setState(true);
+            }
+          });
+        }
+        return trace;
+      }
+    });
+    traces.align();
+    updateLoadMore();
   }
 
   private void expandTrace(final TreeItem parent,
                            final String index, final String traceid,
                            final Summary summary) {
-    ajax('/' + index + "/trace/" + traceid, new AjaxCallback() {
-      public void onSuccess(final JSONValue response) {
-        final ESResponse.Hit<Trace> hit = ESResponse.Hit.fromJson(response.isObject());
+    final Timeline.SyscallSource syscalls = new Timeline.SyscallSource() {
+      public void load(final AsyncCallback<JsArray<Timeline.Lane>> callback) {
+        fetcher.fetchFullTrace(index, traceid, callback);
+      }
+    };
+    final Trace cached = trace_cache.get(index, traceid);
+    if (cached != null) {
+      parent.removeItems();
+      parent.addItem(cached.widget(summary, syscalls));
+      return;
+    }
+    fetcher.fetch(index, traceid, new AsyncCallback<ESResponse.Hit<Trace>>() {
+      public void onFailure(final Throwable e) {
+        status.setText("Failed to load trace " + traceid + ": " + e.getMessage());
+      }
+      public void onSuccess(final ESResponse.Hit<Trace> hit) {
+        trace_cache.put(hit);
         parent.removeItems();
-        parent.addItem(hit.source().widget(summary));
+        parent.addItem(hit.source().widget(summary, syscalls));
       }
     });
   }
@@ -0,0 +1,69 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package viewer;
+
+import com.google.gwt.core.client.JavaScriptObject;
+import com.google.gwt.core.client.JsArray;
+import com.google.gwt.core.client.JsArrayInteger;
+import com.google.gwt.core.client.JsArrayNumber;
+
+/**
+ * JavaScript overlay for the time buckets written by the ingest gateway.
+ */
+public final class Rollup extends JavaScriptObject {
+
+  protected Rollup() {
+  }
+
+  /** Start of the bucket, in milliseconds.  */
+  public native double bucketTs() /*-{ return this.bucket_ts }-*/;
+  public native String dimension() /*-{ return this.dimension }-*/;
+  public native String key() /*-{ return this.key }-*/;
+  public native double count() /*-{ return this.count }-*/;
+  public native double timeTotal() /*-{ return this.time_total }-*/;
+  public native double timeMax() /*-{ return this.time_max || 0 }-*/;
+  /** Only for the {@code backend} dimension.  */
+  public native double requests() /*-{ return this.requests || 0 }-*/;
+  /** Time spent on the serving path, only for the {@code backend} dimension.  */
+  public native double fastTime() /*-{ return this.fast_time || 0 }-*/;
+  /** Only for the {@code topk} dimension.  */
+  public native JsArray<Hot> top() /*-{ return this.top }-*/;
+  private native JsArrayInteger buckets() /*-{ return this.latency ? this.latency.b : null }-*/;
+  private native JsArrayNumber bucketCounts() /*-{ return this.latency ? this.latency.c : null }-*/;
+  private native double min() /*-{ return this.latency.min }-*/;
+  private native double max() /*-{ return this.latency.max }-*/;
+
+  /** Merges the latency sketch of this bucket into the given one.  */
+  public void mergeInto(final LatencySketch sketch) {
+    final JsArrayInteger buckets = buckets();
+    final JsArrayNumber counts = bucketCounts();
+    if (buckets == null || counts == null || buckets.length() == 0) {
+      return;
+    }
+    final int n = Math.min(buckets.length(), counts.length());
+    for (int i = 0; i < n; i++) {
+      sketch.add(buckets.get(i), counts.get(i));
+    }
+    sketch.addRange(min(), max());
+  }
+
+  /** A resource on which we spent a lot of time in a bucket.  */
+  public static final class Hot extends JavaScriptObject {
+    protected Hot() {}
+    public native String method() /*-{ return this.method }-*/;
+    public native String resource() /*-{ return this.resource }-*/;
+    public native double time() /*-{ return this.time }-*/;
+    public native double count() /*-{ return this.count }-*/;
+  }
+
+}
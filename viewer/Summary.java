@@ -74,7 +74,7 @@ public final class Summary extends JavaScriptObject {
   private static final NumberFormat FMT = NumberFormat.getFormat("0.00");
 
   /** Format a timing in a human readable fashion.  */
-  private static String fmt(final double timing) {
+  static String fmt(final double timing) {
     return FMT.format(timing) + "ms";
   }
 
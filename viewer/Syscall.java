@@ -26,6 +26,19 @@ public final class Syscall extends JavaScriptObject {
   public native String name() /*-{ return this.name }-*/;
   public native int retv() /*-{ return this.retv }-*/;
   public native String call() /*-{ return this.call }-*/;
-  public native int timestamp() /*-{ return this.timestamp }-*/;
+  /**
+   * When the call was made, in milliseconds since the Epoch, or NaN.
+   * Traces of backend calls recorded before this was added have a boolean
+   * instead, see {@link #fastPath}.
+   */
+  public native double timestamp() /*-{
+    return typeof this.timestamp == "number" ? this.timestamp : NaN;
+  }-*/;
+
+  /** Whether the call was made before the response was sent.  */
+  public native boolean fastPath() /*-{
+    return this.hasOwnProperty("fast_path") ? !!this.fast_path
+      : this.timestamp === true;
+  }-*/;
 
 }
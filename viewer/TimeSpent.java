@@ -0,0 +1,95 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package viewer;
+
+/**
+ * Something we spent time on, e.g. a backend, sorted by descending time.
+ * <p>
+ * This is also where we decide where the long tail of negligible items
+ * starts.  It's plain Java, so that the ingest gateway and the analyzer
+ * compile it too to precompute the same cut, and the viewer hands the
+ * thresholds to {@code traceworker.js}.  This way there's only one
+ * definition of the long tail.
+ */
+public abstract class TimeSpent implements Comparable<TimeSpent> {
+
+  /** We always keep at least this many items.  */
+  public static final int MIN_IMPORTANT = 3;
+  /** Items that make up this share of the total time are important.  */
+  public static final double IMPORTANT_SHARE = 0.8;
+
+  /** A list of times, sorted by descending time.  */
+  public interface Times {
+    int size();
+    double time(int i);
+  }
+
+  private final double total_time;
+
+  protected TimeSpent(final double total_time) {
+    this.total_time = total_time;
+  }
+
+  public final double totalTime() {
+    return total_time;
+  }
+
+  /** Compares in descending order of total time spent.  */
+  public final int compareTo(final TimeSpent other) {
+    return Double.compare(other.total_time, total_time);
+  }
+
+  /**
+   * Returns whether the next item of a list sorted by descending time is
+   * part of the long tail of negligible items.
+   * We always keep at least the top {@link #MIN_IMPORTANT} items, and then
+   * consider any of the items that make up the top
+   * {@link #IMPORTANT_SHARE} of the time to be important.
+   * @param nimportant How many important items we found so far.
+   * @param cumul_time Total time of the important items found so far.
+   * @param total_time Total time of all the items.
+   */
+  public static boolean isNegligible(final int nimportant, final double cumul_time,
+                                     final double total_time) {
+    return nimportant > MIN_IMPORTANT && cumul_time / total_time > IMPORTANT_SHARE;
+  }
+
+  /**
+   * Returns how many items of a list sorted by descending time aren't part
+   * of the long tail.
+   * @param times The times of the items.
+   * @param total_time Total time of all the items.
+   */
+  public static int countImportant(final Times times, final double total_time) {
+    final int n = times.size();
+    double cumul_time = 0;
+    int i = 0;
+    while (i < n && !isNegligible(i, cumul_time, total_time)) {
+      cumul_time += times.time(i++);
+    }
+    return i;
+  }
+
+  /** Same as {@link #countImportant(Times, double)} over an array.  */
+  public static int countImportant(final double[] times, final double total_time) {
+    return countImportant(new Times() {
+      public int size() {
+        return times.length;
+      }
+      public double time(final int i) {
+        return times[i];
+      }
+    }, total_time);
+  }
+
+}
@@ -0,0 +1,492 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package viewer;
+
+import java.util.ArrayList;
+
+import com.google.gwt.animation.client.AnimationScheduler;
+import com.google.gwt.canvas.client.Canvas;
+import com.google.gwt.canvas.dom.client.Context2d;
+import com.google.gwt.core.client.JavaScriptObject;
+import com.google.gwt.core.client.JsArray;
+import com.google.gwt.core.client.JsArrayNumber;
+import com.google.gwt.event.dom.client.DoubleClickEvent;
+import com.google.gwt.event.dom.client.DoubleClickHandler;
+import com.google.gwt.event.dom.client.MouseDownEvent;
+import com.google.gwt.event.dom.client.MouseDownHandler;
+import com.google.gwt.event.dom.client.MouseMoveEvent;
+import com.google.gwt.event.dom.client.MouseMoveHandler;
+import com.google.gwt.event.dom.client.MouseOutEvent;
+import com.google.gwt.event.dom.client.MouseOutHandler;
+import com.google.gwt.event.dom.client.MouseUpEvent;
+import com.google.gwt.event.dom.client.MouseUpHandler;
+import com.google.gwt.event.dom.client.MouseWheelEvent;
+import com.google.gwt.event.dom.client.MouseWheelHandler;
+import com.google.gwt.i18n.client.NumberFormat;
+import com.google.gwt.user.client.Window;
+import com.google.gwt.user.client.rpc.AsyncCallback;
+import com.google.gwt.user.client.ui.Composite;
+import com.google.gwt.user.client.ui.InlineLabel;
+import com.google.gwt.user.client.ui.VerticalPanel;
+
+/**
+ * Plots the calls made during a request against time, flame-graph style.
+ * <p>
+ * There is one lane per backend, from the {@code backend_reqs} of the
+ * trace, and, if the full trace of the request was recorded
+ * ({@code droopytrace --print-all-syscalls}), one lane per syscall.
+ * <p>
+ * A full trace can have tens of thousands of syscalls, far more than there
+ * are pixels, so the lanes are drawn with level-of-detail merging: calls
+ * less than a pixel apart at the current zoom level are drawn as a single
+ * rectangle.  So we never draw more rectangles per lane than there are
+ * pixels, and we only look at the calls that are visible, which we find by
+ * binary search (see {@link Lane}).  Redraws are coalesced to one per
+ * animation frame.
+ * <p>
+ * Scroll to zoom around the cursor, drag to pan, double-click to zoom out.
+ */
+final class Timeline extends Composite {
+
+  /** Loads the syscall lanes of a trace, see {@link TraceFetcher}.  */
+  interface SyscallSource {
+    void load(AsyncCallback<JsArray<Lane>> callback);
+  }
+
+  /** Width of the lane names, on the left, in pixels.  */
+  private static final int LABEL_WIDTH = 160;
+  private static final int AXIS_HEIGHT = 18;
+  private static final int LANE_HEIGHT = 14;
+  /** Space between lanes, in pixels.  */
+  private static final int LANE_GAP = 2;
+  /** Don't zoom in past this, in milliseconds per pixel (10ns).  */
+  private static final double MIN_SCALE = 1e-5;
+
+  private static final String REQUEST_COLOR = "#999";
+  private static final String BACKEND_COLOR = "#c9302c";
+  private static final String SYSCALL_COLOR = "#3a75b0";
+
+  private static final NumberFormat FMT = NumberFormat.getFormat("0.###");
+
+  private final Canvas canvas;
+  private final Context2d ctx;
+  private final InlineLabel info = new InlineLabel();
+
+  /** Width of the plot area, in pixels.  */
+  private final int width;
+
+  /** Where time 0 is, in milliseconds since the Epoch.  */
+  private final double origin;
+  /** How long the request took, in milliseconds.  */
+  private final double end_to_end;
+
+  private final ArrayList<Lane> lanes = new ArrayList<Lane>();
+  private final ArrayList<String> colors = new ArrayList<String>();
+  /** Number of backend lanes, which come before the syscall lanes.  */
+  private int nbackends;
+
+  /** Time range of everything we have to plot, relative to the origin.  */
+  private double min_time;
+  private double max_time;
+
+  /** Current view: time at the left edge, and milliseconds per pixel.  */
+  private double view_start;
+  private double scale;
+
+  private boolean redraw_pending;
+  /** X coordinate of the mouse when dragging started, or -1.  */
+  private int drag_x = -1;
+
+  /**
+   * Constructor.
+   * @param summary The summary of the trace.
+   * @param be_reqs The calls made to backends, can be {@code null}.
+   * @param syscalls Where to get the syscalls from, can be {@code null}.
+   */
+  Timeline(final Summary summary, final ArrayList<BackendReqs> be_reqs,
+           final SyscallSource syscalls) {
+    canvas = Canvas.createIfSupported();
+    final VerticalPanel vbox = new VerticalPanel();
+    initWidget(vbox);
+    origin = summary.requestTs();
+    end_to_end = summary.endToEnd();
+    min_time = 0;
+    max_time = Math.max(end_to_end, 1e-3);
+    if (canvas == null) {
+      ctx = null;
+      width = 0;
+      vbox.add(new InlineLabel("Your browser doesn't support the canvas"
+                               + " element, can't show the timeline."));
+      return;
+    }
+    ctx = canvas.getContext2d();
+    width = Math.max(Window.getClientWidth() - LABEL_WIDTH - 100, 300);
+
+    int missing = 0;  // Backend calls recorded without a timestamp.
+    if (be_reqs != null) {
+      for (final BackendReqs reqs : be_reqs) {
+        final Lane lane = Lane.fromCalls(reqs.peer(), reqs.calls());
+        missing += reqs.calls().length() - lane.count();
+        if (lane.count() > 0) {
+          addLane(lane, BACKEND_COLOR);
+        }
+      }
+    }
+    nbackends = lanes.size();
+    if (missing > 0) {
+      info.setText(missing + " backend calls were recorded without a"
+                   + " timestamp and can't be shown.");
+    }
+    vbox.add(canvas);
+    vbox.add(info);
+    resetView();
+    resize();
+    setupHandlers();
+
+    if (syscalls != null) {
+      syscalls.load(new AsyncCallback<JsArray<Lane>>() {
+        public void onFailure(final Throwable e) {
+          info.setText("Syscalls not shown: " + e.getMessage());
+        }
+        public void onSuccess(final JsArray<Lane> syscalls) {
+          addSyscalls(syscalls);
+        }
+      });
+    }
+  }
+
+  private void addLane(final Lane lane, final String color) {
+    lanes.add(lane);
+    colors.add(color);
+    min_time = Math.min(min_time, lane.first() - origin);
+    max_time = Math.max(max_time, lane.last() - origin);
+  }
+
+  private void addSyscalls(final JsArray<Lane> syscalls) {
+    final boolean zoomed = view_start != min_time
+      || scale != (max_time - min_time) / width;
+    for (int i = 0; i < syscalls.length(); i++) {
+      addLane(syscalls.get(i), SYSCALL_COLOR);
+    }
+    if (!zoomed) {
+      resetView();
+    }
+    resize();
+  }
+
+  /** Shows the whole request.  */
+  private void resetView() {
+    view_start = min_time;
+    scale = (max_time - min_time) / width;
+  }
+
+  /** Resizes the canvas to fit all the lanes.  */
+  private void resize() {
+    final int height = AXIS_HEIGHT + (lanes.size() + 1) * (LANE_HEIGHT + LANE_GAP);
+    canvas.setCoordinateSpaceWidth(LABEL_WIDTH + width);
+    canvas.setCoordinateSpaceHeight(height);
+    canvas.setPixelSize(LABEL_WIDTH + width, height);
+    scheduleRedraw();
+  }
+
+  private void scheduleRedraw() {
+    if (redraw_pending) {
+      return;
+    }
+    redraw_pending = true;
+    AnimationScheduler.get().requestAnimationFrame(new AnimationScheduler.AnimationCallback() {
+      public void execute(final double timestamp) {
+        redraw_pending = false;
+        draw();
+      }
+    }, canvas.getElement());
+  }
+
+  private void draw() {
+    ctx.clearRect(0, 0, LABEL_WIDTH + width, canvas.getCoordinateSpaceHeight());
+    ctx.setFont("11px sans-serif");
+    ctx.setTextBaseline(Context2d.TextBaseline.MIDDLE);
+    drawAxis();
+
+    ctx.save();
+    ctx.beginPath();
+    ctx.rect(LABEL_WIDTH, 0, width, canvas.getCoordinateSpaceHeight());
+    ctx.clip();
+    // The request itself, from the first read to the last write.
+    int y = AXIS_HEIGHT;
+    ctx.setFillStyle(REQUEST_COLOR);
+    fillRange(0, end_to_end, y);
+    for (int i = 0; i < lanes.size(); i++) {
+      y += LANE_HEIGHT + LANE_GAP;
+      ctx.setFillStyle(colors.get(i));
+      lanes.get(i).draw(ctx, origin + view_start, scale, LABEL_WIDTH, width,
+                        y, LANE_HEIGHT);
+    }
+    ctx.restore();
+
+    ctx.setFillStyle("#000");
+    y = AXIS_HEIGHT + LANE_HEIGHT / 2;
+    ctx.fillText("request", 2, y, LABEL_WIDTH - 4);
+    for (final Lane lane : lanes) {
+      y += LANE_HEIGHT + LANE_GAP;
+      ctx.fillText(lane.name(), 2, y, LABEL_WIDTH - 4);
+    }
+  }
+
+  /** Draws a rectangle for a time range, in milliseconds.  */
+  private void fillRange(final double start, final double end, final int y) {
+    final double x0 = Math.max((start - view_start) / scale, -1);
+    final double x1 = Math.min((end - view_start) / scale, width + 1);
+    if (x1 >= x0) {
+      ctx.fillRect(LABEL_WIDTH + x0, y, Math.max(x1 - x0, 1), LANE_HEIGHT);
+    }
+  }
+
+  /** Draws the time axis, with a tick about every 100 pixels.  */
+  private void drawAxis() {
+    final double step = niceStep(scale * 100);
+    ctx.setFillStyle("#000");
+    ctx.setStrokeStyle("#ccc");
+    ctx.beginPath();
+    for (double t = Math.ceil(view_start / step) * step;
+         t <= view_start + width * scale; t += step) {
+      final double x = LABEL_WIDTH + Math.floor((t - view_start) / scale) + 0.5;
+      ctx.moveTo(x, AXIS_HEIGHT - 4);
+      ctx.lineTo(x, canvas.getCoordinateSpaceHeight());
+      ctx.fillText(FMT.format(t) + "ms", x + 2, AXIS_HEIGHT / 2);
+    }
+    ctx.stroke();
+  }
+
+  /** Rounds a step up to 1, 2 or 5 times a power of 10.  */
+  private static double niceStep(final double step) {
+    final double magnitude = Math.pow(10, Math.floor(Math.log(step) / Math.log(10)));
+    final double n = step / magnitude;
+    return (n <= 1 ? 1 : n <= 2 ? 2 : n <= 5 ? 5 : 10) * magnitude;
+  }
+
+  private void setupHandlers() {
+    canvas.addMouseWheelHandler(new MouseWheelHandler() {
+      public void onMouseWheel(final MouseWheelEvent event) {
+        event.preventDefault();
+        final int x = event.getRelativeX(canvas.getElement()) - LABEL_WIDTH;
+        if (x < 0) {
+          return;
+        }
+        // Keep the time under the cursor where it is.
+        final double t = view_start + x * scale;
+        scale = Math.max(scale * (event.getDeltaY() > 0 ? 1.25 : 0.8), MIN_SCALE);
+        scale = Math.min(scale, 2 * (max_time - min_time) / width);
+        view_start = t - x * scale;
+        scheduleRedraw();
+      }
+    });
+    canvas.addMouseDownHandler(new MouseDownHandler() {
+      public void onMouseDown(final MouseDownEvent event) {
+        event.preventDefault();  // Don't select text.
+        drag_x = event.getRelativeX(canvas.getElement());
+      }
+    });
+    canvas.addMouseUpHandler(new MouseUpHandler() {
+      public void onMouseUp(final MouseUpEvent event) {
+        drag_x = -1;
+      }
+    });
+    canvas.addMouseOutHandler(new MouseOutHandler() {
+      public void onMouseOut(final MouseOutEvent event) {
+        drag_x = -1;
+      }
+    });
+    canvas.addMouseMoveHandler(new MouseMoveHandler() {
+      public void onMouseMove(final MouseMoveEvent event) {
+        final int x = event.getRelativeX(canvas.getElement());
+        if (drag_x >= 0) {
+          view_start -= (x - drag_x) * scale;
+          drag_x = x;
+          scheduleRedraw();
+        } else {
+          describe(x - LABEL_WIDTH, event.getRelativeY(canvas.getElement()));
+        }
+      }
+    });
+    canvas.addDoubleClickHandler(new DoubleClickHandler() {
+      public void onDoubleClick(final DoubleClickEvent event) {
+        resetView();
+        scheduleRedraw();
+      }
+    });
+  }
+
+  /** Says what's under the mouse.  */
+  private void describe(final int x, final int y) {
+    final int lane = (y - AXIS_HEIGHT) / (LANE_HEIGHT + LANE_GAP) - 1;
+    if (x < 0 || lane < 0 || lane >= lanes.size()) {
+      return;
+    }
+    final double t = view_start + x * scale;
+    // Everything in this pixel, like when it was drawn.
+    final JsArrayNumber calls = lanes.get(lane).callsAt(origin + t, origin + t + scale);
+    final String what = lanes.get(lane).name()
+      + (lane < nbackends ? "" : " syscalls");
+    if (calls.get(0) == 0) {
+      info.setText(FMT.format(t) + "ms");
+    } else if (calls.get(0) == 1) {
+      info.setText(FMT.format(t) + "ms: " + what + " call at "
+                   + FMT.format(calls.get(2) - origin) + "ms, took "
+                   + FMT.format(calls.get(1)) + "ms");
+    } else {
+      info.setText(FMT.format(t) + "ms: " + (int) calls.get(0) + ' ' + what
+                   + " calls, " + FMT.format(calls.get(1)) + "ms in total");
+    }
+  }
+
+  /**
+   * The calls in one lane, sorted by start time.
+   * Times are in milliseconds since the Epoch, in typed arrays:
+   * <pre>
+   * {"name": "read", "count": 3, "time": 1.2,
+   *  "start": [...], "end": [...], "max_end": [...]}
+   * </pre>
+   * where {@code max_end[i]} is the latest end of the calls up to
+   * {@code i}, so that we can binary search the first call that's visible
+   * from a given time.
+   */
+  static final class Lane extends JavaScriptObject {
+
+    protected Lane() {
+    }
+
+    native String name() /*-{ return this.name }-*/;
+    native int count() /*-{ return this.count }-*/;
+
+    /** Start of the first call.  */
+    native double first() /*-{
+      return this.count ? this.start[0] : Infinity;
+    }-*/;
+
+    /** End of the last call.  */
+    native double last() /*-{
+      return this.count ? this.max_end[this.count - 1] : -Infinity;
+    }-*/;
+
+    /** Creates a lane for the calls that have a timestamp.  */
+    static Lane fromCalls(final String name, final JsArray<Syscall> calls) {
+      final JsArrayNumber starts = JavaScriptObject.createArray().cast();
+      final JsArrayNumber durations = JavaScriptObject.createArray().cast();
+      for (final Syscall call : JsArrayIterator.iter(calls)) {
+        final double timestamp = call.timestamp();
+        if (timestamp == timestamp) {  // Not NaN.
+          starts.push(timestamp);
+          durations.push(call.duration());
+        }
+      }
+      return create(name, starts, durations);
+    }
+
+    private static native Lane create(final String name,
+                                      final JsArrayNumber starts,
+                                      final JsArrayNumber durations) /*-{
+      var n = starts.length;
+      var order = new Array(n);
+      var time = 0;
+      for (var i = 0; i < n; i++) {
+        order[i] = i;
+        time += durations[i];
+      }
+      order.sort(function(a, b) { return starts[a] - starts[b] || a - b });
+      var lane = {name: name, count: n, time: time, start: new Float64Array(n),
+                  end: new Float64Array(n), max_end: new Float64Array(n)};
+      var latest = -Infinity;
+      for (var i = 0; i < n; i++) {
+        lane.start[i] = starts[order[i]];
+        lane.end[i] = lane.start[i] + durations[order[i]];
+        lane.max_end[i] = latest = Math.max(latest, lane.end[i]);
+      }
+      return lane;
+    }-*/;
+
+    /**
+     * Draws the visible calls, merging those less than a pixel apart.
+     * @param ctx Where to draw, with the fill style already set.
+     * @param t0 Time at the left edge of the plot.
+     * @param scale Milliseconds per pixel.
+     * @param left X coordinate of the left edge of the plot.
+     * @param width Width of the plot in pixels.
+     * @param y Y coordinate of the top of the lane.
+     * @param height Height of the lane in pixels.
+     */
+    native void draw(final Context2d ctx, final double t0, final double scale,
+                     final double left, final double width,
+                     final double y, final double height) /*-{
+      var n = this.count, start = this.start, end = this.end;
+      var t1 = t0 + width * scale;
+      var i = @viewer.Timeline.Lane::firstEndingAfter(Lviewer/Timeline$Lane;D)(this, t0);
+      var run_start = 0, run_end = -Infinity;  // In pixels.
+      for (; i < n && start[i] < t1; i++) {
+        var x0 = (start[i] - t0) / scale;
+        var x1 = (end[i] - t0) / scale;
+        if (x0 <= run_end + 1) {  // Less than a pixel apart, merge.
+          if (x1 > run_end) {
+            run_end = x1;
+          }
+          continue;
+        }
+        if (run_end >= run_start) {
+          ctx.fillRect(left + run_start, y, Math.max(run_end - run_start, 1), height);
+        }
+        run_start = Math.max(x0, -1);
+        run_end = Math.min(x1, width + 1);
+      }
+      if (run_end >= run_start) {
+        ctx.fillRect(left + run_start, y, Math.max(run_end - run_start, 1), height);
+      }
+    }-*/;
+
+    /**
+     * Returns the number of calls overlapping a time range, their total
+     * duration, and the start of the first one.
+     */
+    native JsArrayNumber callsAt(final double from, final double to) /*-{
+      var n = this.count, start = this.start, end = this.end;
+      var count = 0, time = 0, first = NaN;
+      var i = @viewer.Timeline.Lane::firstEndingAfter(Lviewer/Timeline$Lane;D)(this, from);
+      for (; i < n && start[i] < to; i++) {
+        if (end[i] >= from) {
+          if (count++ == 0) {
+            first = start[i];
+          }
+          time += end[i] - start[i];
+        }
+      }
+      return [count, time, first];
+    }-*/;
+
+    /** Returns the index of the first call whose end is at or after t.  */
+    private static native int firstEndingAfter(final Lane lane,
+                                               final double t) /*-{
+      var max_end = lane.max_end;
+      var lo = 0, hi = lane.count;
+      while (lo < hi) {
+        var mid = (lo + hi) >>> 1;
+        if (max_end[mid] < t) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      return lo;
+    }-*/;
+
+  }
+
+}
@@ -18,13 +18,18 @@ import java.util.Iterator;
 
 import com.google.gwt.core.client.JavaScriptObject;
 import com.google.gwt.core.client.JsArray;
+import com.google.gwt.core.client.JsArrayInteger;
 import com.google.gwt.core.client.Scheduler;
+import com.google.gwt.event.dom.client.ClickEvent;
+import com.google.gwt.event.dom.client.ClickHandler;
 import com.google.gwt.i18n.client.NumberFormat;
 import com.google.gwt.json.client.JSONObject;
-import com.google.gwt.user.client.ui.HasTreeItems;
+import com.google.gwt.user.client.ui.Button;
 import com.google.gwt.user.client.ui.TreeItem;
 import com.google.gwt.user.client.ui.Widget;
 
+import static viewer.AlignedTree.row;
+
 /**
  * JavaScript overlay for Droopy traces.
  */
@@ -33,6 +38,11 @@ public final class Trace extends JavaScriptObject {
   protected Trace() {
   }
 
+  /** Parses a trace previously serialized in JSON.  */
+  public static native Trace fromJson(final String json) /*-{
+    return JSON.parse(json);
+  }-*/;
+
   public native int reqSize() /*-{ return this.req_size }-*/;
   public native int respSize() /*-{ return this.resp_size }-*/;
   public native int numCliRead() /*-{ return this.num_cli_read }-*/;
@@ -41,26 +51,48 @@ public final class Trace extends JavaScriptObject {
   public native double writeTime() /*-{ return this.write_time }-*/;
   public native JsArray<SyscallTime> syscallsTimes() /*-{ return this.syscalls_times }-*/;
   public native JsArray<BackendReqs.JSO> backendReqs() /*-{ return this.backend_reqs }-*/;
+  /** Returns what was precomputed when the trace was stored, if anything. */
+  public native TraceRollups rollups() /*-{ return this.rollups }-*/;
 
   private native void sortSyscallTimes() /*-{
     this.syscalls_times.sort(function(a, b) { return b.time - a.time })
   }-*/;
 
+  /**
+   * Returns the calls made to each backend.
+   * If the trace has rollups, they're already sorted.
+   */
   public ArrayList<BackendReqs> backendRequests() {
     final JsArray<BackendReqs.JSO> jsos = backendReqs();
     if (jsos == null) {
       return null;
     }
     final ArrayList<BackendReqs> be_reqs = new ArrayList<BackendReqs>(jsos.length());
-    for (final BackendReqs.JSO jso : JsArrayIterator.iter(jsos)) {
-      be_reqs.add(new BackendReqs(jso));
+    final TraceRollups rollups = rollups();
+    final JsArray<TraceRollups.Backend> backends =
+      rollups == null ? null : rollups.backends();
+    if (backends != null && backends.length() == jsos.length()) {
+      for (int i = 0; i < jsos.length(); i++) {
+        be_reqs.add(new BackendReqs(jsos.get(i), backends.get(i)));
+      }
+    } else {
+      for (final BackendReqs.JSO jso : JsArrayIterator.iter(jsos)) {
+        be_reqs.add(new BackendReqs(jso));
+      }
+      Collections.sort(be_reqs);
     }
     return be_reqs;
   }
 
-  /** Returns the widget associated with this trace.  */
-  public Widget widget(final Summary summary) {
-    return new TraceWidget(summary);
+  /**
+   * Returns the widget associated with this trace.
+   * @param summary The summary of this trace.
+   * @param syscalls Where to get the syscalls of the timeline from, can be
+   * {@code null}.
+   */
+  public Widget widget(final Summary summary,
+                       final Timeline.SyscallSource syscalls) {
+    return new TraceWidget(summary, syscalls);
   }
 
   private static final NumberFormat FMT = NumberFormat.getFormat("0.00");
@@ -88,7 +120,7 @@ public final class Trace extends JavaScriptObject {
   }
 
   private final class TraceWidget extends AlignedTree {
-    TraceWidget(final Summary summary) {
+    TraceWidget(final Summary summary, final Timeline.SyscallSource syscalls) {
       super.setWidth("100%");
       super.addItem(row("Request time: " + summary.readableTime()));
       if (readTime() > 0.1) {
@@ -108,28 +140,40 @@ public final class Trace extends JavaScriptObject {
 
       // Time spent doing system calls.
       {
-        // First compute the total amount of time spent doing system calls.
+        final TraceRollups rollups = rollups();
+        final JsArray<SyscallTime> calls = syscallsTimes();
         double syscalls_times = 0;
-        sortSyscallTimes();  // Make sure we sort them by time spent.
-        for (final SyscallTime call : JsArrayIterator.iter(syscallsTimes())) {
-          syscalls_times += call.time();
+        final int important;
+        if (rollups != null && rollups.hasSyscalls()) {
+          syscalls_times = rollups.syscallsTime();  // Already sorted too.
+          important = rollups.importantSyscalls();
+        } else {
+          // First compute the total amount of time spent doing system calls.
+          sortSyscallTimes();  // Make sure we sort them by time spent.
+          for (final SyscallTime call : JsArrayIterator.iter(calls)) {
+            syscalls_times += call.time();
+          }
+          important = TimeSpent.countImportant(new TimeSpent.Times() {
+            public int size() {
+              return calls.length();
+            }
+            public double time(final int i) {
+              return calls.get(i).time();
+            }
+          }, syscalls_times);
         }
-        // Do another loop and find the top N system calls.
-        double cumul_time = 0;  // How much cumulative time we have so far.
+        // Split the top N system calls from the long tail.
         final TreeItem timings = new TreeItem();  // The important calls.
         final TreeItem negligible_timings = new TreeItem();  // The long tail.
         double negligible_time = 0;  // How much time spent in the long tail.
-        for (final SyscallTime call : JsArrayIterator.iter(syscallsTimes())) {
-          // Make sure we grab at least the top 3 calls by time spent,
-          // and then consider any of the top N% calls to be important.
+        for (int i = 0; i < calls.length(); i++) {
+          final SyscallTime call = calls.get(i);
           final TreeItem chosen;
-          if (timings.getChildCount() > 3
-              && cumul_time / syscalls_times > 0.8) {
+          if (i >= important) {
             chosen = negligible_timings;
             negligible_time += call.time();
           } else {
             chosen = timings;
-            cumul_time += call.time();
           }
           chosen.addItem(row(call.name(), fmt(call.time()), pluralnz(call.count(), "call")));
         }
@@ -172,7 +216,6 @@ public final class Trace extends JavaScriptObject {
       {
         final ArrayList<BackendReqs> be_reqs = backendRequests();
         if (be_reqs != null) {
-          Collections.sort(be_reqs);
           int num_be_calls = 0;
           double total_time = 0;
           for (final BackendReqs reqs : be_reqs) {
@@ -188,40 +231,22 @@ public final class Trace extends JavaScriptObject {
                                   percent(total_time, summary.endToEnd())
                                   + " of total time"));
           final TreeItem negligible = new TreeItem();
-          double cumul_time = 0;  // How much cumulative time we have so far.
           double negligible_time = 0;  // How much time spent in the long tail.
           int negligible_calls = 0;
-          for (final BackendReqs reqs : be_reqs) {
-            // Make sure we grab at least the top 3 calls by time spent,
-            // and then consider any of the top N% calls to be important.
+          final int nimportant = importantBackends(be_reqs, total_time);
+          for (int i = 0; i < be_reqs.size(); i++) {
+            final BackendReqs reqs = be_reqs.get(i);
             final TreeItem chosen;
-            if (important.getChildCount() > 3
-                && cumul_time / total_time > 0.8) {
+            if (i >= nimportant) {
               chosen = negligible;
               negligible_time += reqs.totalTime();
               negligible_calls += reqs.calls().length();
             } else {
               chosen = important;
-              cumul_time += reqs.totalTime();
             }
-            final TreeItem be = new LazyTreeItem(row(reqs.peer(), fmt(reqs.totalTime()),
-                                                     plural(reqs.calls().length(), "call"))) {
-              protected void onFirstOpen() {
-                removeItems();
-                for (final Syscall req : reqs) {
-                  final HBox call = row(fmt(req.duration()));
-                  call.add(new FixedWidth(" " + req.call()));
-                  addItem(call);
-                }
-                deferredAlign(this);
-              }
-
-              protected void onOpen() {
-              }
-
-              protected void onClose() {
-              }
-            };
+            final TreeItem be = new CallsItem(row(reqs.peer(), fmt(reqs.totalTime()),
+                                                  plural(reqs.calls().length(), "call")),
+                                              reqs, 0, reqs.calls().length());
             chosen.addItem(be);
           }
           negligible.setWidget(row(plural(negligible.getChildCount(),
@@ -231,27 +256,177 @@ public final class Trace extends JavaScriptObject {
           super.addItem(important);
         }
       }
+
+      super.addItem(new TimelineItem(Trace.this, summary, syscalls));
+    }
+
+    /**
+     * Returns how many of the backends aren't part of the long tail.
+     * @param be_reqs What {@link #backendRequests} returned.
+     * @param total_time Total time spent with all the backends.
+     */
+    private int importantBackends(final ArrayList<BackendReqs> be_reqs,
+                                  final double total_time) {
+      final TraceRollups rollups = rollups();
+      if (rollups != null && rollups.hasBackends()
+          && rollups.backends().length() == be_reqs.size()) {
+        return rollups.importantBackends();  // Same order as be_reqs.
+      }
+      return TimeSpent.countImportant(new TimeSpent.Times() {
+        public int size() {
+          return be_reqs.size();
+        }
+        public double time(final int i) {
+          return be_reqs.get(i).totalTime();
+        }
+      }, total_time);
     }
 
     protected void doAttachChildren() {
       super.doAttachChildren();
-      deferredAlign(this);
+      // The tree remembers the widths of its columns, so when the tree is
+      // re-attached this is cheap as long as no new rows showed up.
+      Scheduler.get().scheduleDeferred(new Scheduler.ScheduledCommand() {
+        public void execute() {
+          align();
+        }
+      });
     }
 
   }
 
-  private static void deferredAlign(final HasTreeItems tree) {
-    // We need to align the tree outside of the processing of this event,
-    // otherwise the browser won't have actually computed the layout of the
-    // Tree, and the nested widgets will appear to have a size of 0.
-    // It's kind of ugly because it means the browser does the layout once,
-    // then we "fix" it by aligning widgets, so users can see the layout
-    // flicker a bit after we "fix" it, but I don't know of a better way...
-    Scheduler.get().scheduleDeferred(new Scheduler.ScheduledCommand() {
-      public void execute() {
-        AlignedTree.align(tree);
+  /** Only draws the {@link Timeline} of the calls when it's opened.  */
+  private static final class TimelineItem extends LazyTreeItem {
+
+    private final Trace trace;
+    private final Summary summary;
+    private final Timeline.SyscallSource syscalls;
+
+    TimelineItem(final Trace trace, final Summary summary,
+                 final Timeline.SyscallSource syscalls) {
+      super(row("Timeline"));
+      this.trace = trace;
+      this.summary = summary;
+      this.syscalls = syscalls;
+    }
+
+    protected void onFirstOpen() {
+      removeItems();
+      addItem(new Timeline(summary, trace.backendRequests(), syscalls));
+    }
+
+    protected void onOpen() {
+    }
+
+    protected void onClose() {
+    }
+
+  }
+
+  /** How many calls to a backend we render at once.  */
+  private static final int CALLS_PAGE_SIZE = 100;
+
+  /**
+   * Lazily renders a range of the calls made to a backend.
+   * The calls are rendered by descending duration, one page at a time.
+   * The long tail of negligible calls, if any, goes in a nested item.
+   */
+  private static final class CallsItem extends LazyTreeItem {
+
+    private final BackendReqs reqs;
+    /** Range of calls, in {@link BackendReqs#callsByDuration} order.  */
+    private final int start;
+    private final int end;
+    /** Widths of the columns of our rows, once aligned.  */
+    private int[] widths;
+
+    /**
+     * Constructor.
+     * @param w The widget for this item.
+     * @param reqs The calls made to the backend.
+     * @param start Index of the first call to render (inclusive).
+     * @param end Index of the last call to render (exclusive).
+     * If {@code start} is 0, the negligible calls in this range are split
+     * into a nested item.
+     */
+    CallsItem(final Widget w, final BackendReqs reqs,
+              final int start, final int end) {
+      super(w);
+      this.reqs = reqs;
+      this.start = start;
+      this.end = end;
+    }
+
+    protected void onFirstOpen() {
+      removeItems();
+      int stop = end;
+      if (start == 0) {
+        stop = reqs.importantCalls();
+        if (stop < end) {
+          final JsArray<Syscall> calls = reqs.calls();
+          final JsArrayInteger order = reqs.callsByDuration();
+          double negligible_time = 0;
+          for (int i = stop; i < end; i++) {
+            negligible_time += calls.get(order.get(i)).duration();
+          }
+          addItem(new CallsItem(row(plural(end - stop, "negligible call"),
+                                    fmt(negligible_time)),
+                                reqs, stop, end));
+        }
+      }
+      renderPage(0, start, stop);
+      deferredAlign();
+    }
+
+    /**
+     * Renders one page of calls.
+     * @param pos Position at which to insert the calls among our children.
+     * @param from Index of the first call to render (inclusive).
+     * @param to Index of the last call of the range (exclusive).  If there
+     * are more calls than fit on a page, a button to see the rest is added.
+     */
+    private void renderPage(int pos, final int from, final int to) {
+      final JsArray<Syscall> calls = reqs.calls();
+      final JsArrayInteger order = reqs.callsByDuration();
+      final int page_end = Math.min(to, from + CALLS_PAGE_SIZE);
+      for (int i = from; i < page_end; i++) {
+        final Syscall req = calls.get(order.get(i));
+        final HBox call = row(fmt(req.duration()));
+        call.add(new FixedWidth(" " + req.call()));
+        insertItem(pos++, new TreeItem(call));
+      }
+      if (page_end < to) {
+        final TreeItem more = new TreeItem();
+        final int left = to - page_end;
+        more.setWidget(new Button("Show " + Math.min(left, CALLS_PAGE_SIZE)
+                                  + " more of the " + plural(left, "remaining call"),
+                                  new ClickHandler() {
+          public void onClick(final ClickEvent event) {
+            final int index = getChildIndex(more);
+            removeItem(more);
+            renderPage(index, page_end, to);
+            deferredAlign();
+          }
+        }));
+        insertItem(pos, more);
       }
-    });
+    }
+
+    /** Aligns our rows, re-using the widths of the previous pages.  */
+    private void deferredAlign() {
+      Scheduler.get().scheduleDeferred(new Scheduler.ScheduledCommand() {
+        public void execute() {
+          widths = AlignedTree.align(CallsItem.this, widths);
+        }
+      });
+    }
+
+    protected void onOpen() {
+    }
+
+    protected void onClose() {
+    }
+
   }
 
 }
@@ -268,18 +443,63 @@ final class SyscallTime extends JavaScriptObject {
 
 }
 
-final class BackendReqs implements Comparable<BackendReqs>, Iterable<Syscall> {
+/** Overlay for what {@code ingest.Rollups} precomputes.  */
+final class TraceRollups extends JavaScriptObject {
+
+  protected TraceRollups() {
+  }
+
+  public native boolean hasSyscalls() /*-{ return this.hasOwnProperty("syscalls_time") }-*/;
+  public native double syscallsTime() /*-{ return this.syscalls_time }-*/;
+  public native int importantSyscalls() /*-{ return this.important_syscalls }-*/;
+  public native boolean hasBackends() /*-{
+    return this.hasOwnProperty("important_backends") && !!this.backends
+  }-*/;
+  public native int importantBackends() /*-{ return this.important_backends }-*/;
+  /** In the same order as {@code backend_reqs}, can be {@code null}.  */
+  public native JsArray<Backend> backends() /*-{ return this.backends }-*/;
+
+  static final class Backend extends JavaScriptObject {
+
+    protected Backend() {
+    }
+
+    public native double totalTime() /*-{ return this.total_time }-*/;
+    public native int importantCalls() /*-{ return this.important_calls }-*/;
+    /** Only added by {@code traceworker.js}, can be {@code null}.  */
+    public native JsArrayInteger byDuration() /*-{ return this.by_duration || null }-*/;
+
+  }
+
+}
+
+final class BackendReqs extends TimeSpent implements Iterable<Syscall> {
 
-  private final double total_time;
   private final JSO jso;
+  /** Indexes of the calls by descending duration.  Computed lazily.  */
+  private JsArrayInteger by_duration;
+  /** Number of important calls, or -1 if not computed yet.  */
+  private int important_calls = -1;
 
   public BackendReqs(final JSO jso) {
+    super(sumDurations(jso));
     this.jso = jso;
+  }
+
+  /** Constructor for when the totals were precomputed.  */
+  public BackendReqs(final JSO jso, final TraceRollups.Backend rollup) {
+    super(rollup.totalTime());
+    this.jso = jso;
+    this.important_calls = rollup.importantCalls();
+    this.by_duration = rollup.byDuration();
+  }
+
+  private static double sumDurations(final JSO jso) {
     double t = 0;
-    for (final Syscall call : JsArrayIterator.iter(calls())) {
+    for (final Syscall call : JsArrayIterator.iter(jso.calls())) {
       t += call.duration();
     }
-    this.total_time = t;
+    return t;
   }
 
   // Needs to be wrapped because we can't add extra members into JSOs.
@@ -291,6 +511,16 @@ final class BackendReqs implements Comparable<BackendReqs>, Iterable<Syscall> {
     native String peer() /*-{ return this.peer }-*/;
     native JsArray<Syscall> calls() /*-{ return this.calls }-*/;
 
+    native JsArrayInteger sortCallsByDuration() /*-{
+      var calls = this.calls;
+      var order = new Array(calls.length);
+      for (var i = 0; i < order.length; i++) {
+        order[i] = i;
+      }
+      order.sort(function(a, b) { return calls[b].duration - calls[a].duration });
+      return order;
+    }-*/;
+
   }
 
   public String peer() {
@@ -301,17 +531,39 @@ final class BackendReqs implements Comparable<BackendReqs>, Iterable<Syscall> {
     return jso.calls();
   }
 
-  public double totalTime() {
-    return total_time;
+  /**
+   * Returns the indexes of the calls, sorted by descending duration.
+   * The calls themselves are left in the order in which they were made.
+   */
+  public JsArrayInteger callsByDuration() {
+    if (by_duration == null) {
+      by_duration = jso.sortCallsByDuration();
+    }
+    return by_duration;
   }
 
-  public Iterator<Syscall> iterator() {
-    return JsArrayIterator.iter(calls());
+  /**
+   * Returns how many of the slowest calls aren't part of the long tail.
+   * @see TimeSpent#countImportant
+   */
+  public int importantCalls() {
+    if (important_calls < 0) {
+      final JsArray<Syscall> calls = calls();
+      final JsArrayInteger order = callsByDuration();
+      important_calls = countImportant(new Times() {
+        public int size() {
+          return order.length();
+        }
+        public double time(final int i) {
+          return calls.get(order.get(i)).duration();
+        }
+      }, totalTime());
+    }
+    return important_calls;
   }
 
-  /** Compares in descending order of total time spent with this backend.  */
-  public int compareTo(final BackendReqs other) {
-    return Double.compare(other.total_time, total_time);
+  public Iterator<Syscall> iterator() {
+    return JsArrayIterator.iter(calls());
   }
 
 }
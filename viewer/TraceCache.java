@@ -0,0 +1,122 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package viewer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.gwt.core.client.JavaScriptException;
+import com.google.gwt.storage.client.Storage;
+
+/**
+ * Bounded LRU cache of the {@link Trace}s we've downloaded.
+ * <p>
+ * Traces never change once they've been uploaded, so there's no need to
+ * ever invalidate anything here, we just need to keep memory usage bounded.
+ * If the browser supports it, the cache is also backed by the session
+ * storage, so traces survive a reload of the page.  The session storage
+ * holds the same entries as the in-memory cache, no more.
+ */
+final class TraceCache {
+
+  /** Prefix of the keys we put in the session storage.  */
+  private static final String PREFIX = "droopy.trace.";
+
+  private final int capacity;
+  /** Session storage, or {@code null} if we're not using one.  */
+  private final Storage storage;
+  private final LinkedHashMap<String, Trace> traces;
+
+  /**
+   * Constructor.
+   * @param capacity Maximum number of traces to keep in the cache.
+   * @param use_storage Whether or not to also keep the traces in the session
+   * storage, if the browser supports it.
+   */
+  TraceCache(final int capacity, final boolean use_storage) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("invalid capacity: " + capacity);
+    }
+    this.capacity = capacity;
+    this.storage = use_storage ? Storage.getSessionStorageIfSupported() : null;
+    // The 3rd argument makes the map ordered by access, not by insertion.
+    traces = new LinkedHashMap<String, Trace>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(final Map.Entry<String, Trace> eldest) {
+        if (size() <= TraceCache.this.capacity) {
+          return false;
+        }
+        if (storage != null) {
+          storage.removeItem(PREFIX + eldest.getKey());
+        }
+        return true;
+      }
+    };
+    if (storage != null) {
+      restore();
+    }
+  }
+
+  private static String key(final String index, final String id) {
+    return index + '/' + id;
+  }
+
+  /**
+   * Returns the given trace, or {@code null} if it's not in the cache.
+   * @param index The name of the index in which the trace is.
+   * @param id The ID of the trace.
+   */
+  public Trace get(final String index, final String id) {
+    return traces.get(key(index, id));
+  }
+
+  /** Adds the trace of the given hit to the cache.  */
+  public void put(final ESResponse.Hit<Trace> hit) {
+    final String key = key(hit.index(), hit.id());
+    final Trace trace = hit.source();
+    traces.put(key, trace);
+    if (storage != null) {
+      try {
+        storage.setItem(PREFIX + key, stringify(trace));
+      } catch (JavaScriptException e) {
+        // Most likely we exceeded our storage quota.  Just keep the trace
+        // in memory, the next eviction will free up some space.
+      }
+    }
+  }
+
+  /** Reloads what we previously saved in the session storage.  */
+  private void restore() {
+    final int n = storage.getLength();
+    // Collect the keys first, because we may remove some entries as we go.
+    final String[] keys = new String[n];
+    for (int i = 0; i < n; i++) {
+      keys[i] = storage.key(i);
+    }
+    for (final String key : keys) {
+      if (key == null || !key.startsWith(PREFIX)) {
+        continue;
+      }
+      final String json = storage.getItem(key);
+      try {
+        traces.put(key.substring(PREFIX.length()), Trace.fromJson(json));
+      } catch (JavaScriptException e) {
+        storage.removeItem(key);  // Corrupted entry, forget about it.
+      }
+    }
+  }
+
+  private static native String stringify(final Trace trace) /*-{
+    return JSON.stringify(trace);
+  }-*/;
+
+}
@@ -0,0 +1,374 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package viewer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import com.google.gwt.core.client.GWT;
+import com.google.gwt.core.client.JavaScriptException;
+import com.google.gwt.core.client.JavaScriptObject;
+import com.google.gwt.core.client.JsArray;
+import com.google.gwt.core.client.Scheduler;
+import com.google.gwt.http.client.Request;
+import com.google.gwt.http.client.RequestBuilder;
+import com.google.gwt.http.client.RequestCallback;
+import com.google.gwt.http.client.RequestException;
+import com.google.gwt.http.client.Response;
+import com.google.gwt.http.client.URL;
+import com.google.gwt.user.client.rpc.AsyncCallback;
+
+import static viewer.Json.object;
+
+/**
+ * Fetches trace documents from ElasticSearch, coalescing requests.
+ * <p>
+ * All the traces requested while processing the same event are fetched with
+ * a single multi-GET ({@code _mget}) once the event is done being processed.
+ * This way, when we restore a permalink with many expanded traces, we only
+ * do one round trip to ElasticSearch instead of one per trace.
+ * <p>
+ * When the browser supports it, the multi-GET is done by a Web Worker
+ * ({@code traceworker.js}) which also parses the response, decodes the
+ * compact traces and computes their rollups, so that big traces don't
+ * freeze the UI.  Otherwise, or if the worker fails to start, we do all
+ * this on the main thread.  The worker also decodes full traces for the
+ * {@link Timeline}, which we don't do on the main thread.
+ */
+final class TraceFetcher {
+
+  /** Base URL of the ES server, e.g. "http://host:port".  */
+  private final String server;
+
+  /**
+   * Callbacks waiting on the batch that hasn't been sent yet.
+   * Maps "index/id" to the callbacks waiting for that trace.
+   * The same trace can be requested more than once in the same batch.
+   */
+  private HashMap<String, ArrayList<AsyncCallback<ESResponse.Hit<Trace>>>> pending;
+
+  /** Index and ID of each trace in {@link #pending}, in request order.  */
+  private ArrayList<String[]> pending_ids;
+
+  /** The worker that prepares the traces, or {@code null}.  */
+  private JavaScriptObject worker;
+
+  /** Batches sent to the {@link #worker}, by ID.  */
+  private final HashMap<Integer, Batch> inflight = new HashMap<Integer, Batch>();
+  /** Full traces requested from the {@link #worker}, by ID.  */
+  private final HashMap<Integer, AsyncCallback<JsArray<Timeline.Lane>>> fulltraces =
+    new HashMap<Integer, AsyncCallback<JsArray<Timeline.Lane>>>();
+  private int next_message_id;
+
+  /** A multi-GET and the callbacks waiting on it.  */
+  private static final class Batch {
+    final HashMap<String, ArrayList<AsyncCallback<ESResponse.Hit<Trace>>>> callbacks;
+    final String body;
+
+    Batch(final HashMap<String, ArrayList<AsyncCallback<ESResponse.Hit<Trace>>>> callbacks,
+          final String body) {
+      this.callbacks = callbacks;
+      this.body = body;
+    }
+  }
+
+  TraceFetcher(final String server) {
+    this.server = server;
+    worker = startWorker(GWT.getModuleBaseURL() + "traceworker.js");
+    if (worker != null) {
+      // The worker computes the rollups of traces stored without them, so
+      // it must cut the long tail where we do.
+      postLongTail(worker, TimeSpent.MIN_IMPORTANT, TimeSpent.IMPORTANT_SHARE);
+    }
+  }
+
+  /**
+   * Schedules the fetch of a trace.
+   * The callback will be invoked asynchronously, once the multi-GET that
+   * contains this trace completes.
+   * @param index The name of the index in which the trace is.
+   * @param id The ID of the trace.
+   * @param callback The callback to invoke with the trace.
+   */
+  public void fetch(final String index, final String id,
+                    final AsyncCallback<ESResponse.Hit<Trace>> callback) {
+    if (pending == null) {
+      pending = new HashMap<String, ArrayList<AsyncCallback<ESResponse.Hit<Trace>>>>();
+      pending_ids = new ArrayList<String[]>();
+      // Wait until we're done with the current event before sending the
+      // batch, so that all the traces requested in the meantime get in it.
+      Scheduler.get().scheduleFinally(new Scheduler.ScheduledCommand() {
+        public void execute() {
+          flush();
+        }
+      });
+    }
+    final String key = key(index, id);
+    ArrayList<AsyncCallback<ESResponse.Hit<Trace>>> callbacks = pending.get(key);
+    if (callbacks == null) {
+      callbacks = new ArrayList<AsyncCallback<ESResponse.Hit<Trace>>>(1);
+      pending.put(key, callbacks);
+      pending_ids.add(new String[] { index, id });
+    }
+    callbacks.add(callback);
+  }
+
+  /**
+   * Fetches the full trace of a request, and turns it into timeline lanes.
+   * This is only done in the worker, full traces are too big to be decoded
+   * on the main thread without freezing the UI.
+   * @param index The name of the index in which the trace is.
+   * @param id The ID of the trace.
+   * @param callback The callback to invoke with the lanes.
+   */
+  public void fetchFullTrace(final String index, final String id,
+                             final AsyncCallback<JsArray<Timeline.Lane>> callback) {
+    if (worker == null) {
+      callback.onFailure(new RuntimeException("this browser doesn't support"
+                                              + " Web Workers"));
+      return;
+    }
+    final int message_id = next_message_id++;
+    fulltraces.put(message_id, callback);
+    postFullTrace(worker, message_id, server + '/' + URL.encodePathSegment(index)
+                  + "/fulltrace/" + URL.encodePathSegment(id));
+  }
+
+  private static String key(final String index, final String id) {
+    return index + '/' + id;
+  }
+
+  /** Sends the multi-GET for all the pending traces.  */
+  private void flush() {
+    final HashMap<String, ArrayList<AsyncCallback<ESResponse.Hit<Trace>>>> callbacks = pending;
+    final Json docs = Json.array();
+    for (final String[] trace : pending_ids) {
+      docs.add(object("_index", trace[0])
+               .add("_type", "trace")
+               .add("_id", trace[1]));
+    }
+    pending = null;
+    pending_ids = null;
+
+    final Batch batch = new Batch(callbacks, object("docs", docs).toString());
+    if (worker != null) {
+      final int id = next_message_id++;
+      inflight.put(id, batch);
+      postMessage(worker, id, server + "/_mget", batch.body);
+    } else {
+      send(batch);
+    }
+  }
+
+  /** Does the multi-GET of a batch on the main thread.  */
+  private void send(final Batch batch) {
+    final HashMap<String, ArrayList<AsyncCallback<ESResponse.Hit<Trace>>>> callbacks =
+      batch.callbacks;
+    final RequestBuilder builder =
+      new RequestBuilder(RequestBuilder.POST, server + "/_mget");
+    try {
+      builder.sendRequest(batch.body, new RequestCallback() {
+        public void onError(final Request req, final Throwable e) {
+          failAll(callbacks, e);
+        }
+
+        public void onResponseReceived(final Request req, final Response response) {
+          final String text = response.getText();
+          if (text.isEmpty()) {
+            failAll(callbacks, new RuntimeException("Empty response from server:"
+                                                    + " code=" + response.getStatusCode()
+                                                    + " status=" + response.getStatusText()));
+            return;
+          }
+          final ESResponse.MultiGet<Trace> mget;
+          try {
+            mget = ESResponse.MultiGet.fromJson(text);
+          } catch (JavaScriptException e) {
+            failAll(callbacks, e);
+            return;
+          }
+          dispatch(callbacks, mget);
+        }
+      });
+    } catch (RequestException e) {
+      failAll(callbacks, e);
+    }
+  }
+
+  /**
+   * Starts the worker.
+   * @return The worker, or {@code null} if this browser can't start it
+   * (e.g. because the page was loaded from a {@code file://} URL).
+   */
+  private native JavaScriptObject startWorker(final String url) /*-{
+    if (!$wnd.Worker) {
+      return null;
+    }
+    var worker;
+    try {
+      worker = new $wnd.Worker(url);
+    } catch (e) {
+      return null;
+    }
+    var fetcher = this;
+    worker.onmessage = $entry(function(event) {
+      fetcher.@viewer.TraceFetcher::onWorkerMessage(Lcom/google/gwt/core/client/JavaScriptObject;)(event.data);
+    });
+    worker.onerror = $entry(function(event) {
+      fetcher.@viewer.TraceFetcher::onWorkerError()();
+    });
+    return worker;
+  }-*/;
+
+  private static native void postMessage(final JavaScriptObject worker,
+                                         final int id, final String url,
+                                         final String body) /*-{
+    worker.postMessage({id: id, url: url, body: body});
+  }-*/;
+
+  private static native void postLongTail(final JavaScriptObject worker,
+                                          final int min_important,
+                                          final double important_share) /*-{
+    worker.postMessage({long_tail: {min_important: min_important,
+                                    important_share: important_share}});
+  }-*/;
+
+  private static native void postFullTrace(final JavaScriptObject worker,
+                                           final int id, final String url) /*-{
+    worker.postMessage({id: id, url: url, fulltrace: true});
+  }-*/;
+
+  private static native int messageId(final JavaScriptObject msg) /*-{
+    return msg.id;
+  }-*/;
+
+  private static native String messageError(final JavaScriptObject msg) /*-{
+    return msg.error || null;
+  }-*/;
+
+  private static native ESResponse.MultiGet<Trace> messageResponse(final JavaScriptObject msg) /*-{
+    return msg.response;
+  }-*/;
+
+  private static native JsArray<Timeline.Lane> messageLanes(final JavaScriptObject msg) /*-{
+    return msg.lanes;
+  }-*/;
+
+  /** Returns why the worker couldn't decode a trace, if it couldn't.  */
+  private static native String decodingError(final ESResponse.Hit<Trace> hit) /*-{
+    return hit.error || null;
+  }-*/;
+
+  private void onWorkerMessage(final JavaScriptObject msg) {
+    final String error = messageError(msg);
+    final AsyncCallback<JsArray<Timeline.Lane>> fulltrace =
+      fulltraces.remove(messageId(msg));
+    if (fulltrace != null) {
+      if (error != null) {
+        fulltrace.onFailure(new RuntimeException(error));
+      } else {
+        fulltrace.onSuccess(messageLanes(msg));
+      }
+      return;
+    }
+    final Batch batch = inflight.remove(messageId(msg));
+    if (batch == null) {
+      return;
+    }
+    if (error != null) {
+      failAll(batch.callbacks, new RuntimeException(error));
+    } else {
+      dispatch(batch.callbacks, messageResponse(msg));
+    }
+  }
+
+  /**
+   * Called when the worker dies, typically because its script failed to
+   * load.  From then on we do everything on the main thread, starting with
+   * the batches the worker didn't get to.
+   */
+  private void onWorkerError() {
+    if (worker == null) {
+      return;
+    }
+    terminate(worker);
+    worker = null;
+    final ArrayList<Batch> batches = new ArrayList<Batch>(inflight.values());
+    inflight.clear();
+    for (final Batch batch : batches) {
+      send(batch);
+    }
+    final ArrayList<AsyncCallback<JsArray<Timeline.Lane>>> callbacks =
+      new ArrayList<AsyncCallback<JsArray<Timeline.Lane>>>(fulltraces.values());
+    fulltraces.clear();
+    for (final AsyncCallback<JsArray<Timeline.Lane>> cb : callbacks) {
+      cb.onFailure(new RuntimeException("the Web Worker died"));
+    }
+  }
+
+  private static native void terminate(final JavaScriptObject worker) /*-{
+    worker.terminate();
+  }-*/;
+
+  /** Hands each trace we got to the callbacks that were waiting on it.  */
+  private static void dispatch(final HashMap<String, ArrayList<AsyncCallback<ESResponse.Hit<Trace>>>> batch,
+                               final ESResponse.MultiGet<Trace> response) {
+    if (response.docs() == null) {
+      failAll(batch, new RuntimeException("Incomprehensible response from"
+                                          + " server: " + response));
+      return;
+    }
+    for (final ESResponse.Hit<Trace> hit : response.iterator()) {
+      final ArrayList<AsyncCallback<ESResponse.Hit<Trace>>> callbacks =
+        batch.remove(key(hit.index(), hit.id()));
+      if (callbacks == null) {
+        continue;  // Duplicate or unexpected doc, ignore.
+      }
+      Throwable error = null;
+      if (!hit.exists()) {
+        error = new RuntimeException("No such trace: " + hit.id()
+                                     + " in " + hit.index());
+      } else if (decodingError(hit) != null) {
+        error = new IllegalArgumentException(decodingError(hit));
+      } else {
+        try {
+          CompactTrace.expand(hit);
+        } catch (IllegalArgumentException e) {
+          error = e;
+        } catch (JavaScriptException e) {  // Invalid base64 or UTF-8.
+          error = e;
+        }
+      }
+      for (final AsyncCallback<ESResponse.Hit<Trace>> cb : callbacks) {
+        if (error == null) {
+          cb.onSuccess(hit);
+        } else {
+          cb.onFailure(error);
+        }
+      }
+    }
+    // Anything left over wasn't in the response.
+    failAll(batch, new RuntimeException("Trace missing from the response"));
+  }
+
+  private static void failAll(final HashMap<String, ArrayList<AsyncCallback<ESResponse.Hit<Trace>>>> batch,
+                              final Throwable e) {
+    for (final ArrayList<AsyncCallback<ESResponse.Hit<Trace>>> callbacks : batch.values()) {
+      for (final AsyncCallback<ESResponse.Hit<Trace>> cb : callbacks) {
+        cb.onFailure(e);
+      }
+    }
+    batch.clear();
+  }
+
+}
@@ -0,0 +1,570 @@
+// This file is part of Droopy.
+// Copyright (C) 2011  Benoit Sigoure.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+
+/*
+ * Web Worker that fetches traces and gets them ready to render.
+ *
+ * Big traces take hundreds of milliseconds to parse, decode and sort, which
+ * freezes the UI if done on the main thread.  So viewer.TraceFetcher hands
+ * us its multi-GET requests, and for each trace in the response we:
+ *  - decode it if it was stored in the compact form of ingest.TraceCodec,
+ *  - add the rollups ingest.Rollups would have added, if it doesn't have
+ *    them already (e.g. it was stored before they existed), which sorts
+ *    syscalls_times and backend_reqs,
+ *  - add the order of the calls of each backend by descending duration.
+ * The main thread then only has to build the widgets.
+ *
+ * We also turn full traces (every syscall of a request) into the lanes of
+ * viewer.Timeline: one per syscall name, with the start and end times of
+ * its calls in typed arrays, which we hand over to the main thread without
+ * copying them.
+ *
+ * This can't be written in Java: GWT doesn't compile code for workers.
+ *
+ * Messages we get:  {id: 42, url: "http://host:port/_mget", body: "..."}
+ *               or: {id: 42, url: "http://host:port/index/fulltrace/id",
+ *                    fulltrace: true}
+ *               or: {long_tail: {min_important: 3, important_share: 0.8}}
+ *                   first, with the thresholds of viewer.TimeSpent.
+ * Messages we send: {id: 42, response: {docs: [...]}}
+ *               or: {id: 42, lanes: [...]}
+ *               or: {id: 42, error: "what went wrong"}
+ * A trace we failed to decode has an "error" field instead of a "_source".
+ */
+
+'use strict';
+
+onmessage = function(event) {
+  var msg = event.data;
+  if (msg.long_tail) {
+    long_tail = msg.long_tail;
+    return;
+  }
+  var xhr = new XMLHttpRequest();
+  xhr.open(msg.fulltrace ? 'GET' : 'POST', msg.url, true);
+  xhr.onload = function() {
+    var text = xhr.responseText;
+    if (!text) {
+      postMessage({id: msg.id, error: 'Empty response from server: code='
+                   + xhr.status + ' status=' + xhr.statusText});
+      return;
+    }
+    var response;
+    try {
+      response = JSON.parse(text);
+    } catch (e) {
+      postMessage({id: msg.id, error: String(e)});
+      return;
+    }
+    if (msg.fulltrace) {
+      sendLanes(msg.id, response);
+      return;
+    }
+    var docs = response.docs;
+    if (docs) {
+      for (var i = 0; i < docs.length; i++) {
+        prepare(docs[i]);
+      }
+    }
+    postMessage({id: msg.id, response: response});
+  };
+  xhr.onerror = function() {
+    postMessage({id: msg.id, error: 'Request to ' + msg.url + ' failed'});
+  };
+  xhr.send(msg.fulltrace ? null : msg.body);
+};
+
+/** Decodes a hit of a multi-GET response and adds its rollups, in place. */
+function prepare(hit) {
+  var trace = hit._source;
+  if (!hit.exists || !trace) {
+    return;
+  }
+  try {
+    if (trace.v) {
+      trace = hit._source = decodeTrace(atob(trace.compact));
+    }
+    addRollups(trace);
+  } catch (e) {
+    delete hit._source;
+    hit.error = e.message || String(e);
+  }
+}
+
+// ------------------------------------------------------------ //
+// Rollups, must be kept in sync with ingest/Rollups.java.      //
+// ------------------------------------------------------------ //
+
+/**
+ * Where the long tail starts, sent by the viewer so we use the thresholds
+ * of viewer.TimeSpent instead of a copy of them.
+ */
+var long_tail = null;
+
+/** Same as viewer.TimeSpent.isNegligible.  */
+function isNegligible(nimportant, cumul_time, total_time) {
+  return nimportant > long_tail.min_important
+    && cumul_time / total_time > long_tail.important_share;
+}
+
+/** Returns how many items of a list sorted by descending time matter.  */
+function countImportant(times) {
+  var total = 0;
+  for (var i = 0; i < times.length; i++) {
+    total += times[i];
+  }
+  var cumul_time = 0;
+  var important = 0;
+  while (important < times.length
+         && !isNegligible(important, cumul_time, total)) {
+    cumul_time += times[important++];
+  }
+  return important;
+}
+
+/** Rounds a time in milliseconds to the microsecond.  */
+function round(ms) {
+  return Math.round(ms * 1000) / 1000;
+}
+
+function addRollups(trace) {
+  var reqs = trace.backend_reqs;
+  var rollups = trace.rollups;
+  if (rollups) {
+    // Precomputed when the trace was stored, only the call order is missing.
+    if (reqs && rollups.backends && rollups.backends.length == reqs.length) {
+      for (var i = 0; i < reqs.length; i++) {
+        rollups.backends[i].by_duration = sortByDuration(reqs[i].calls || []);
+      }
+    }
+    return;
+  }
+  rollups = {};
+
+  var syscalls = trace.syscalls_times;
+  if (syscalls) {
+    syscalls.sort(function(a, b) { return b.time - a.time });
+    var times = new Array(syscalls.length);
+    var total = 0;
+    for (var i = 0; i < syscalls.length; i++) {
+      total += times[i] = syscalls[i].time || 0;
+    }
+    rollups.syscalls_time = round(total);
+    rollups.important_syscalls = countImportant(times);
+  }
+
+  if (reqs) {
+    var backends = new Array(reqs.length);
+    for (var i = 0; i < reqs.length; i++) {
+      backends[i] = backendRollup(reqs[i], i);
+    }
+    // Array.sort isn't guaranteed to be stable, so break ties on position.
+    backends.sort(function(a, b) {
+      return b.total_time - a.total_time || a.pos - b.pos;
+    });
+    var times = new Array(backends.length);
+    var total = 0;
+    var ncalls = 0;
+    for (var i = 0; i < backends.length; i++) {
+      var backend = backends[i];
+      reqs[i] = backend.req;
+      total += times[i] = backend.total_time;
+      ncalls += backend.num_calls;
+      delete backend.req;
+      delete backend.pos;
+    }
+    rollups.backends_time = round(total);
+    rollups.backend_calls = ncalls;
+    rollups.important_backends = countImportant(times);
+    rollups.backends = backends;
+  }
+  trace.rollups = rollups;
+}
+
+/** Returns the rollup of one entry of backend_reqs.  */
+function backendRollup(req, pos) {
+  var calls = req.calls || [];
+  var order = sortByDuration(calls);
+  var durations = new Array(order.length);
+  for (var i = 0; i < order.length; i++) {
+    durations[i] = calls[order[i]].duration || 0;
+  }
+  var total = 0;
+  for (var i = 0; i < calls.length; i++) {  // Same order as the Java code.
+    total += calls[i].duration || 0;
+  }
+  return {
+    req: req,
+    pos: pos,
+    // Not rounded, since viewer.BackendReqs works on the exact total.
+    total_time: total,
+    num_calls: calls.length,
+    important_calls: countImportant(durations),
+    by_duration: order
+  };
+}
+
+/** Same as viewer.BackendReqs.JSO.sortCallsByDuration.  */
+function sortByDuration(calls) {
+  var order = new Array(calls.length);
+  for (var i = 0; i < order.length; i++) {
+    order[i] = i;
+  }
+  order.sort(function(a, b) { return calls[b].duration - calls[a].duration });
+  return order;
+}
+
+// ------------------------------------------------------------ //
+// Compact traces, must be kept in sync with ingest/TraceCodec. //
+// This is a port of viewer/CompactTrace.java.                  //
+// ------------------------------------------------------------ //
+
+/** Version of the encoding we understand.  */
+var VERSION = 1;
+
+/** Top-level fields stored natively, in the order of the bitmap.  */
+var TOP_FIELDS = [
+  'request', 'req_size', 'resp_size', 'num_cli_read', 'read_time',
+  'num_cli_write', 'write_time'
+];
+/** Which of the TOP_FIELDS are times, the others are integers.  */
+var TOP_TIME_FIELDS = (1 << 4) | (1 << 6);
+
+/**
+ * Decodes a compact trace.
+ * @param data The encoded trace, as a "binary string".
+ */
+function decodeTrace(data) {
+  var pos = 0;
+  var strings;
+
+  function corrupted(msg) {
+    return new Error('Corrupted compact trace at offset ' + pos + ': ' + msg);
+  }
+
+  function readVarint() {
+    var v = 0;
+    var multiplier = 1;
+    for (var i = 0; i < 10; i++) {
+      if (pos >= data.length) {
+        throw corrupted('truncated varint');
+      }
+      var b = data.charCodeAt(pos++);
+      v += (b & 0x7F) * multiplier;
+      if (b < 0x80) {
+        return v;
+      }
+      multiplier *= 128;
+    }
+    throw corrupted('varint too long');
+  }
+
+  /** Reads a zigzag-encoded varint.  */
+  function readSvarint() {
+    var v = readVarint();
+    return v % 2 == 0 ? v / 2 : -(v + 1) / 2;
+  }
+
+  function readCount() {
+    var n = readVarint();
+    if (n > data.length - pos) {  // Each element takes at least 1 byte.
+      throw corrupted('invalid count ' + n);
+    }
+    return n;
+  }
+
+  function readRef() {
+    var ref = readVarint();
+    if (ref >= strings.length) {
+      throw corrupted('invalid string reference ' + ref);
+    }
+    return strings[ref];
+  }
+
+  function readString() {
+    var n = readVarint();
+    if (n == 0) {
+      return null;
+    } else if (n - 1 > data.length - pos) {
+      throw corrupted('truncated string');
+    }
+    var s = data.substring(pos, pos + n - 1);
+    pos += n - 1;
+    // Fast path: no need to do anything for pure ASCII.
+    return /[\x80-\xff]/.test(s) ? decodeURIComponent(escape(s)) : s;
+  }
+
+  /** Reads the JSON blob of extra fields into the given object.  */
+  function readExtra(obj) {
+    var extra = readString();
+    if (extra != null) {
+      extra = JSON.parse(extra);
+      for (var key in extra) {
+        obj[key] = extra[key];
+      }
+    }
+  }
+
+  if (data.length == 0 || data.charCodeAt(pos++) != VERSION) {
+    throw corrupted('unsupported version');
+  }
+  strings = new Array(readCount());
+  for (var i = 0; i < strings.length; i++) {
+    strings[i] = readString();
+  }
+
+  var trace = {};
+  var bitmap = readVarint();
+  for (var i = 0; i < TOP_FIELDS.length; i++) {
+    if ((bitmap & (1 << i)) == 0) {
+      continue;
+    } else if (i == 0) {
+      trace[TOP_FIELDS[i]] = readString();
+    } else if ((TOP_TIME_FIELDS & (1 << i)) != 0) {
+      trace[TOP_FIELDS[i]] = readSvarint() / 1000;
+    } else {
+      trace[TOP_FIELDS[i]] = readSvarint();
+    }
+  }
+
+  var n = readCount();
+  if (n > 0) {
+    var times = new Array(n);
+    var prev = 0;
+    for (var i = 0; i < n; i++) {
+      var name = readRef();
+      prev += readSvarint();
+      times[i] = {name: name, time: prev / 1000, count: readSvarint()};
+    }
+    trace.syscalls_times = times;
+  }
+
+  n = readCount();
+  if (n > 0) {
+    var reqs = new Array(n);
+    for (var i = 0; i < n; i++) {
+      var peer = readRef();
+      var ncalls = readCount();
+      var calls = new Array(ncalls);
+      var prev_duration = 0;
+      var prev_ts = 0;
+      for (var j = 0; j < ncalls; j++) {
+        var call = {};
+        prev_duration += readSvarint();
+        call.duration = prev_duration / 1000;
+        call.name = readRef();
+        call.retv = readSvarint();
+        var args = readString();
+        if (args != null) {
+          call.call = args;
+        }
+        var flags = readVarint();
+        if ((flags & 2) != 0) {
+          prev_ts += readSvarint();
+          call.timestamp = prev_ts / 1000;
+        } else if ((flags & 1) != 0) {
+          call.timestamp = true;
+        }
+        if ((flags & 12) != 0) {
+          call.fast_path = (flags & 4) != 0;
+        }
+        readExtra(call);
+        calls[j] = call;
+      }
+      reqs[i] = {peer: peer, calls: calls};
+    }
+    trace.backend_reqs = reqs;
+  }
+  readExtra(trace);
+  return trace;
+}
+
+// ------------------------------------------------------------ //
+// Full traces, for the timeline.                               //
+// ------------------------------------------------------------ //
+
+/** Turns the response to a GET of a full trace into timeline lanes.  */
+function sendLanes(id, hit) {
+  var doc = hit._source;
+  if (!hit.exists || !doc) {
+    postMessage({id: id, error: 'No full trace for this request'});
+    return;
+  }
+  var lanes;
+  try {
+    var builder = new LaneBuilder();
+    if (doc.v) {
+      decodeFullTrace(atob(doc.compact), builder);
+    } else {
+      var lines = doc.syscalls || [];
+      for (var i = 0; i < lines.length; i++) {
+        parseLine(lines[i], builder);
+      }
+    }
+    lanes = builder.build();
+  } catch (e) {
+    postMessage({id: id, error: e.message || String(e)});
+    return;
+  }
+  var buffers = [];
+  for (var i = 0; i < lanes.length; i++) {
+    buffers.push(lanes[i].start.buffer, lanes[i].end.buffer,
+                 lanes[i].max_end.buffer);
+  }
+  postMessage({id: id, lanes: lanes}, buffers);
+}
+
+/** Groups syscalls by name.  Times are in milliseconds since the Epoch. */
+function LaneBuilder() {
+  this.lanes = {};
+}
+
+LaneBuilder.prototype.add = function(name, start, duration) {
+  var lane = this.lanes[name];
+  if (!lane) {
+    lane = this.lanes[name] = {name: name, start: [], duration: [], time: 0};
+  }
+  lane.start.push(start);
+  lane.duration.push(duration);
+  lane.time += duration;
+};
+
+/**
+ * Returns the lanes, by descending time spent, in the form viewer.Timeline
+ * expects: the calls sorted by start time, and for each call the latest
+ * end time of the calls up to it, so the first call visible from a given
+ * time can be found by binary search.
+ */
+LaneBuilder.prototype.build = function() {
+  var lanes = [];
+  for (var name in this.lanes) {
+    var lane = this.lanes[name];
+    var n = lane.start.length;
+    var order = new Array(n);
+    for (var i = 0; i < n; i++) {
+      order[i] = i;
+    }
+    // strace output is in chronological order, so this is cheap.
+    order.sort(function(a, b) { return lane.start[a] - lane.start[b] || a - b });
+    var start = new Float64Array(n);
+    var end = new Float64Array(n);
+    var max_end = new Float64Array(n);
+    var latest = -Infinity;
+    for (var i = 0; i < n; i++) {
+      start[i] = lane.start[order[i]];
+      end[i] = start[i] + lane.duration[order[i]];
+      max_end[i] = latest = Math.max(latest, end[i]);
+    }
+    lanes.push({name: name, time: round(lane.time), count: n,
+                start: start, end: end, max_end: max_end});
+  }
+  lanes.sort(function(a, b) { return b.time - a.time });
+  return lanes;
+};
+
+/**
+ * Parses a line of strace output such as
+ * "1299473528.478145 close(3) = 0 <0.000009>".
+ * Lines we can't make sense of (e.g. "<... read resumed>") are skipped.
+ */
+function parseLine(line, builder) {
+  var space = 17;  // Timestamps have a fixed size.
+  if (line.charAt(space) != ' ') {
+    return;
+  }
+  var paren = line.indexOf('(', space);
+  var lt = line.lastIndexOf(' <');
+  if (paren < 0 || lt < paren) {
+    return;
+  }
+  var start = parseFloat(line.substring(0, space)) * 1000;  // s -> ms
+  var duration = parseFloat(line.substring(lt + 2)) * 1000;
+  if (start == start && duration == duration) {
+    builder.add(line.substring(space + 1, paren), start, duration);
+  }
+}
+
+/**
+ * Decodes a full trace stored in the compact form of ingest.TraceCodec.
+ * @param data The encoded trace, as a "binary string".
+ */
+function decodeFullTrace(data, builder) {
+  var pos = 0;
+
+  function corrupted(msg) {
+    return new Error('Corrupted compact full trace at offset ' + pos
+                     + ': ' + msg);
+  }
+
+  function readVarint() {
+    var v = 0;
+    var multiplier = 1;
+    for (var i = 0; i < 10; i++) {
+      if (pos >= data.length) {
+        throw corrupted('truncated varint');
+      }
+      var b = data.charCodeAt(pos++);
+      v += (b & 0x7F) * multiplier;
+      if (b < 0x80) {
+        return v;
+      }
+      multiplier *= 128;
+    }
+    throw corrupted('varint too long');
+  }
+
+  function readSvarint() {
+    var v = readVarint();
+    return v % 2 == 0 ? v / 2 : -(v + 1) / 2;
+  }
+
+  /** Skips a string, or reads it if it's needed.  */
+  function readString(needed) {
+    var n = readVarint();
+    if (n == 0) {
+      return null;
+    } else if (n - 1 > data.length - pos) {
+      throw corrupted('truncated string');
+    }
+    var s = needed ? data.substring(pos, pos + n - 1) : null;
+    pos += n - 1;
+    return s;
+  }
+
+  if (data.length == 0 || data.charCodeAt(pos++) != VERSION) {
+    throw corrupted('unsupported version');
+  }
+  var strings = new Array(readVarint());
+  for (var i = 0; i < strings.length; i++) {
+    strings[i] = readString(true);  // Syscall names are ASCII.
+  }
+  var n = readVarint();
+  var prev_ts = 0;
+  var prev_duration = 0;
+  for (var i = 0; i < n; i++) {
+    var tag = readVarint();
+    if (tag == 0) {
+      parseLine(decodeURIComponent(escape(readString(true))), builder);
+      continue;
+    }
+    var name = strings[(tag >> 1) - 1];
+    prev_ts += readSvarint();
+    readString(false);  // Arguments.
+    readString(false);  // Return value.
+    prev_duration += readSvarint();
+    if (name === undefined) {
+      throw corrupted('invalid string reference ' + ((tag >> 1) - 1));
+    }
+    builder.add(name, prev_ts / 1000, prev_duration / 1000);
+  }
+}